@@ -1,30 +1,184 @@
 package org.aanguita.jacuzzi.concurrency;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * @deprecated use ObjectMapPool
- * A generic map of re-entrant locks
+ * A generic map of re-entrant locks. Lock lookups do not require any global lock.
+ * <p>
+ * Three modes are available:
+ * - per key (default constructor): each index has its own lock, kept until it is explicitly removed
+ * - striped: a fixed number of locks is shared among all indexes. Memory usage is bounded, at the cost of
+ * unrelated indexes sometimes sharing a lock
+ * - weak: each index has its own lock, which is automatically reclaimed once no one references it. Callers must
+ * keep the retrieved lock (and unlock that same instance) instead of looking it up again
  */
 public class LockMap<T> {
 
-    private final Map<T, Lock> locks;
+    private static class WeakLock<T> extends WeakReference<Lock> {
+
+        private final T index;
+
+        private WeakLock(T index, Lock lock, ReferenceQueue<Lock> queue) {
+            super(lock, queue);
+            this.index = index;
+        }
+    }
+
+    private final ConcurrentMap<T, Lock> locks;
+
+    private final Lock[] stripes;
+
+    private final ConcurrentMap<T, WeakLock<T>> weakLocks;
+
+    private final ReferenceQueue<Lock> reclaimedLocks;
 
     public LockMap() {
-        locks = new HashMap<>();
+        this(new ConcurrentHashMap<>(), null, null);
+    }
+
+    private LockMap(ConcurrentMap<T, Lock> locks, Lock[] stripes, ConcurrentMap<T, WeakLock<T>> weakLocks) {
+        this.locks = locks;
+        this.stripes = stripes;
+        this.weakLocks = weakLocks;
+        reclaimedLocks = weakLocks != null ? new ReferenceQueue<>() : null;
+    }
+
+    /**
+     * Creates a lock map with a fixed number of locks, shared among all indexes
+     *
+     * @param stripeCount number of locks
+     */
+    public static <T> LockMap<T> striped(int stripeCount) {
+        if (stripeCount < 1) {
+            throw new IllegalArgumentException("At least one stripe is required, received " + stripeCount);
+        }
+        Lock[] stripes = new Lock[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+        return new LockMap<>(null, stripes, null);
+    }
+
+    /**
+     * Creates a lock map whose locks are reclaimed once they are no longer referenced
+     */
+    public static <T> LockMap<T> weak() {
+        return new LockMap<>(null, null, new ConcurrentHashMap<>());
+    }
+
+    public Lock getLock(T index) {
+        if (stripes != null) {
+            return stripes[stripeOf(index)];
+        } else if (weakLocks != null) {
+            return getWeakLock(index);
+        } else {
+            return locks.computeIfAbsent(index, i -> new ReentrantLock());
+        }
+    }
+
+    /**
+     * Retrieves the locks of several indexes, without duplicates. In striped mode, locks are sorted by stripe, so
+     * acquiring them in the returned order never deadlocks with other threads doing the same. In the other modes,
+     * locks follow the iteration order of the given indexes, which must be consistent among threads
+     *
+     * @param indexes indexes whose locks are retrieved
+     * @return the locks of the given indexes
+     */
+    public List<Lock> getLocks(Collection<T> indexes) {
+        if (stripes != null) {
+            SortedSet<Integer> stripeIndexes = new TreeSet<>();
+            for (T index : indexes) {
+                stripeIndexes.add(stripeOf(index));
+            }
+            List<Lock> orderedLocks = new ArrayList<>();
+            for (int stripeIndex : stripeIndexes) {
+                orderedLocks.add(stripes[stripeIndex]);
+            }
+            return orderedLocks;
+        } else {
+            Set<Lock> orderedLocks = new LinkedHashSet<>();
+            for (T index : indexes) {
+                orderedLocks.add(getLock(index));
+            }
+            return new ArrayList<>(orderedLocks);
+        }
     }
 
-    public synchronized Lock getLock(T index) {
-        if (!locks.containsKey(index)) {
-            locks.put(index, new ReentrantLock());
+    public void removeLock(T index) {
+        if (locks != null) {
+            locks.remove(index);
+        } else if (weakLocks != null) {
+            weakLocks.remove(index);
         }
-        return locks.get(index);
     }
 
-    public synchronized void removeLock(T index) {
-        locks.remove(index);
+    /**
+     * Number of locks currently held by this map (in weak mode, locks pending reclamation are also counted)
+     */
+    public int size() {
+        if (stripes != null) {
+            return stripes.length;
+        } else if (weakLocks != null) {
+            expungeReclaimedLocks();
+            return weakLocks.size();
+        } else {
+            return locks.size();
+        }
+    }
+
+    /**
+     * Clears and enqueues the weak lock of an index, as the garbage collector does once it is no longer referenced
+     * (weak mode only, used for testing the reclamation of locks)
+     */
+    void reclaimLock(T index) {
+        WeakLock<T> weakLock = weakLocks.get(index);
+        if (weakLock != null) {
+            weakLock.clear();
+            weakLock.enqueue();
+        }
+    }
+
+    private int stripeOf(T index) {
+        int hash = index != null ? index.hashCode() : 0;
+        // spread the high bits, as keys often differ only in those
+        hash ^= (hash >>> 16);
+        return Math.floorMod(hash, stripes.length);
+    }
+
+    private Lock getWeakLock(T index) {
+        expungeReclaimedLocks();
+        while (true) {
+            WeakLock<T> weakLock = weakLocks.get(index);
+            Lock lock = weakLock != null ? weakLock.get() : null;
+            if (lock != null) {
+                return lock;
+            }
+            lock = new ReentrantLock();
+            WeakLock<T> newWeakLock = new WeakLock<>(index, lock, reclaimedLocks);
+            boolean stored = weakLock == null ?
+                    weakLocks.putIfAbsent(index, newWeakLock) == null :
+                    weakLocks.replace(index, weakLock, newWeakLock);
+            if (stored) {
+                return lock;
+            }
+            // another thread stored a lock for this index meanwhile -> retry
+        }
+    }
+
+    private void expungeReclaimedLocks() {
+        Reference<? extends Lock> reference;
+        while ((reference = reclaimedLocks.poll()) != null) {
+            @SuppressWarnings("unchecked")
+            WeakLock<T> weakLock = (WeakLock<T>) reference;
+            weakLocks.remove(weakLock.index, weakLock);
+        }
     }
 }
@@ -39,6 +39,18 @@ public class EventHub {
         private ParsedChannel(String channel) {
             levels = new ArrayList<>(Arrays.asList(channel.split("/")));
         }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            return levels.equals(((ParsedChannel) o).levels);
+        }
+
+        @Override
+        public int hashCode() {
+            return levels.hashCode();
+        }
     }
 
     private static class ParsedChannelExpression extends ParsedChannel {
@@ -1,9 +1,19 @@
 package org.aanguita.jacuzzi.files;
 
 import java.io.*;
-import java.nio.file.Files;
-import java.nio.file.Paths;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * File read-write utility methods
@@ -11,6 +21,31 @@ import java.util.ArrayList;
  */
 public class FileReaderWriter {
 
+    /**
+     * Writes the contents of a file through a channel
+     *
+     * @param <E> additional exception type thrown by the writer
+     */
+    @FunctionalInterface
+    public interface ChannelWriter<E extends Exception> {
+
+        void write(FileChannel channel) throws IOException, E;
+    }
+
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+
+    /**
+     * Executor for concurrent copies (daemon threads, so it does not prevent the JVM from exiting)
+     */
+    private static final class CopyExecutor {
+
+        private static final ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "FileReaderWriter-copy");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
     private static final int STRINGBUILDER_INIT_CAP = 500;
 
     private static final int BUFFER_CAP = 1024;
@@ -90,6 +125,142 @@ public class FileReaderWriter {
         Files.write(Paths.get(path), data);
     }
 
+    /**
+     * Writes bytes into a file, optionally in atomic mode (see writeAtomically)
+     */
+    public static void writeBytes(String path, byte[] data, boolean atomic) throws IOException {
+        if (atomic) {
+            writeAtomically(path, channel -> {
+                ByteBuffer buffer = ByteBuffer.wrap(data);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            });
+        } else {
+            writeBytes(path, data);
+        }
+    }
+
+    /**
+     * Writes a file atomically: the contents are written into a temporary file in the same directory, flushed to
+     * the storage device, and then renamed to the target path. A crash during the write leaves the previous
+     * contents of the target file untouched. The written file keeps the permissions of the replaced target file, or
+     * gets the default permissions for new files if the target did not exist
+     *
+     * @param path   path to the file to be written (replaced if it exists)
+     * @param writer writer of the file contents
+     * @param <E>    additional exception type thrown by the writer
+     * @throws IOException there are problems writing the file (the target file is not modified)
+     */
+    public static <E extends Exception> void writeAtomically(String path, ChannelWriter<E> writer) throws IOException, E {
+        Path target = Paths.get(path).toAbsolutePath();
+        // the temp file is created as a regular file (not with Files.createTempFile, which restricts permissions to
+        // the owner), so the umask applies as for any new file
+        Path tempFile = target.resolveSibling("." + target.getFileName() + "." + UUID.randomUUID() + TEMP_FILE_SUFFIX);
+        boolean moved = false;
+        try {
+            try (FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                writer.write(channel);
+                channel.force(true);
+            }
+            copyPermissions(target, tempFile);
+            try {
+                Files.move(tempFile, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tempFile, target, StandardCopyOption.REPLACE_EXISTING);
+            }
+            moved = true;
+            syncDirectory(target.getParent());
+        } finally {
+            if (!moved) {
+                Files.deleteIfExists(tempFile);
+            }
+        }
+    }
+
+    /**
+     * Copies the posix permissions of an existing file to another file. Does nothing if the source file does not
+     * exist or the file system does not support posix permissions
+     */
+    private static void copyPermissions(Path source, Path target) throws IOException {
+        PosixFileAttributeView sourceView = Files.getFileAttributeView(source, PosixFileAttributeView.class);
+        if (sourceView != null && Files.exists(source)) {
+            Set<PosixFilePermission> permissions;
+            try {
+                permissions = sourceView.readAttributes().permissions();
+            } catch (NoSuchFileException e) {
+                // the source file was removed meanwhile
+                return;
+            }
+            Files.setPosixFilePermissions(target, permissions);
+        }
+    }
+
+    /**
+     * Flushes a directory, so a rename in it survives a crash. Not all platforms support this, so errors are ignored
+     */
+    private static void syncDirectory(Path directory) {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // directories cannot be opened in some platforms -> the rename is durable at the discretion of the OS
+        }
+    }
+
+    /**
+     * Atomically copies a file to several target paths (see writeAtomically). Copies are performed concurrently, in
+     * a dedicated thread pool
+     *
+     * @param sourcePath  path to the file to copy
+     * @param targetPaths paths of the copies
+     * @throws IOException there are problems copying the file to any target (other copies are still completed)
+     */
+    public static void copyAtomically(String sourcePath, String... targetPaths) throws IOException {
+        List<CompletableFuture<Void>> copies = new ArrayList<>();
+        for (int i = 1; i < targetPaths.length; i++) {
+            String targetPath = targetPaths[i];
+            copies.add(CompletableFuture.runAsync(() -> {
+                try {
+                    copyFileAtomically(sourcePath, targetPath);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }, CopyExecutor.executor));
+        }
+        IOException exception = null;
+        if (targetPaths.length > 0) {
+            try {
+                copyFileAtomically(sourcePath, targetPaths[0]);
+            } catch (IOException e) {
+                exception = e;
+            }
+        }
+        for (CompletableFuture<Void> copy : copies) {
+            try {
+                copy.join();
+            } catch (CompletionException e) {
+                if (exception == null) {
+                    exception = e.getCause() instanceof UncheckedIOException ? ((UncheckedIOException) e.getCause()).getCause() : new IOException(e.getCause());
+                }
+            }
+        }
+        if (exception != null) {
+            throw exception;
+        }
+    }
+
+    private static void copyFileAtomically(String sourcePath, String targetPath) throws IOException {
+        writeAtomically(targetPath, channel -> {
+            try (FileChannel source = FileChannel.open(Paths.get(sourcePath), StandardOpenOption.READ)) {
+                long size = source.size();
+                long position = 0L;
+                while (position < size) {
+                    position += channel.transferFrom(source, position, size - position);
+                }
+            }
+        });
+    }
+
     public static <S extends Serializable> int sizeOfObject(S o) {
         // object is temporarily serialized into a byte array, then the number of bytes of that array is counted, giving the size
         // in bytes of the object. The object must be serializable
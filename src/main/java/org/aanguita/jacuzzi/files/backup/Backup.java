@@ -1,6 +1,6 @@
 package org.aanguita.jacuzzi.files.backup;
 
-import org.aanguita.jacuzzi.files.RandomAccess;
+import org.aanguita.jacuzzi.files.FileReaderWriter;
 import org.aanguita.jacuzzi.hash.MD5;
 import org.aanguita.jacuzzi.io.serialization.Serializer;
 
@@ -8,6 +8,9 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 
 /**
  * API with file backup and CRC checking functionality
@@ -34,7 +37,21 @@ public class Backup {
         MD5 md5 = new MD5();
         byte[] crc = md5.digest(file);
         byte[] crcExtension = Serializer.addArrays(separator.getBytes(), crc);
-        RandomAccess.append(file, crcExtension);
+        // the file is replaced atomically by a copy with the CRC extension, so a crash cannot leave it half-written
+        FileReaderWriter.writeAtomically(file.getPath(), channel -> {
+            try (FileChannel source = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                long size = source.size();
+                long position = 0L;
+                while (position < size) {
+                    position += channel.transferFrom(source, position, size - position);
+                }
+            }
+            channel.position(channel.size());
+            ByteBuffer extension = ByteBuffer.wrap(crcExtension);
+            while (extension.hasRemaining()) {
+                channel.write(extension);
+            }
+        });
         if (!checkEmbeddedCRC(file, separator)) {
             // remove CRC and start again
             removeEmbeddedCRC(file, separator);
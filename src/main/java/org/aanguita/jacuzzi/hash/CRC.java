@@ -1,42 +1,157 @@
 package org.aanguita.jacuzzi.hash;
 
-import org.aanguita.jacuzzi.io.serialization.FragmentedByteArray;
 import org.aanguita.jacuzzi.io.serialization.MutableOffset;
-import org.aanguita.jacuzzi.io.serialization.Serializer;
+import org.aanguita.jacuzzi.io.serialization.SerializerReader;
+import org.aanguita.jacuzzi.io.serialization.SerializerWriter;
 
-import java.util.Arrays;
+import java.nio.ByteBuffer;
 import java.util.zip.CRC32;
 
 /**
  * A random-length CRC implementation
+ * <p>
+ * CRCs of more than 4 bytes are built in chunks of 4 bytes. Each chunk is the CRC32 of the data followed by the
+ * previous chunks
+ * <p>
+ * The header of data with CRC contains the data length and the CRC length, as two 4-byte ints. A compact header
+ * can be used instead, with a marker byte followed by both lengths as varints (3 bytes for records of up to 127
+ * bytes). Both headers are told apart by the first byte, as the data length of the regular header is not negative
  */
 public class CRC {
 
+    /**
+     * Length of the header of data with CRC (data length and CRC length)
+     */
+    private static final int HEADER_LENGTH = 8;
+
+    /**
+     * First byte of compact headers
+     */
+    private static final byte COMPACT_HEADER_MARKER = (byte) 0x80;
+
+    /**
+     * Max length of any header (a compact header with two 5-byte varints)
+     */
+    public static final int MAX_HEADER_LENGTH = 11;
+
     public static byte[] addCRC(byte[] data, int CRCBytes, boolean addHeader) {
-        FragmentedByteArray byteArray = new FragmentedByteArray();
-        byte[] header = null;
+        SerializerWriter writer = new SerializerWriter(data.length + CRCBytes + (addHeader ? HEADER_LENGTH : 0));
         if (addHeader) {
             // add length of data and length of CRC
-            header = Serializer.addArrays(Serializer.serialize(data.length), Serializer.serialize(CRCBytes));
-            byteArray.add(Serializer.serialize(data.length), Serializer.serialize(CRCBytes));
+            writer.write(data.length).write(CRCBytes);
         }
-        return byteArray.add(data, calculateCRC(data, CRCBytes)).generateArray();
+        writer.writeRaw(data);
+        writeCRC(writer, ByteBuffer.wrap(data), CRCBytes);
+        return writer.toByteArray();
     }
 
-    public static byte[] calculateCRC(byte[] data, int CRCBytes) {
-        if (CRCBytes == 0) {
-            return new byte[0];
+    /**
+     * Adds a CRC and a header to some data
+     *
+     * @param data          data to which the CRC is added
+     * @param CRCBytes      number of CRC bytes
+     * @param compactHeader whether the header is compact (varint lengths) or regular (4-byte lengths)
+     * @return the data with header and CRC
+     */
+    public static byte[] addCRCWithHeader(byte[] data, int CRCBytes, boolean compactHeader) {
+        if (!compactHeader) {
+            return addCRC(data, CRCBytes, true);
+        }
+        SerializerWriter writer = new SerializerWriter(data.length + CRCBytes + MAX_HEADER_LENGTH);
+        writeRecord(writer, ByteBuffer.wrap(data), CRCBytes, true);
+        return writer.toByteArray();
+    }
+
+    /**
+     * Writes data with CRC header into a writer, for data whose length is known in advance (unlike
+     * startRecord/endRecord, this admits compact headers)
+     *
+     * @param writer        writer receiving the record
+     * @param data          data of the record (its remaining bytes). Its position is not modified
+     * @param CRCBytes      number of CRC bytes
+     * @param compactHeader whether the header is compact (varint lengths) or regular (4-byte lengths)
+     */
+    public static void writeRecord(SerializerWriter writer, ByteBuffer data, int CRCBytes, boolean compactHeader) {
+        if (compactHeader) {
+            writer.write(COMPACT_HEADER_MARKER).writeVarInt(data.remaining()).writeVarInt(CRCBytes);
         } else {
+            writer.write(data.remaining()).write(CRCBytes);
+        }
+        writer.writeRaw(data.duplicate());
+        writeCRC(writer, data.duplicate(), CRCBytes);
+    }
+
+    /**
+     * Starts writing data with CRC header into a writer. The data must be written next, followed by a call to
+     * endRecord
+     *
+     * @param writer writer receiving the data
+     * @return the position of the record, to be passed to endRecord
+     */
+    public static int startRecord(SerializerWriter writer) {
+        int recordPosition = writer.position();
+        // placeholders for the data length and CRC length
+        writer.write(0).write(0);
+        return recordPosition;
+    }
+
+    /**
+     * Finishes data with CRC header started with startRecord, filling its header and appending its CRC. The
+     * result is identical to addCRC with header
+     *
+     * @param writer         writer containing the data
+     * @param recordPosition position returned by startRecord
+     * @param CRCBytes       number of CRC bytes
+     */
+    public static void endRecord(SerializerWriter writer, int recordPosition, int CRCBytes) {
+        int dataPosition = recordPosition + HEADER_LENGTH;
+        int dataLength = writer.position() - dataPosition;
+        writer.writeAt(recordPosition, dataLength).writeAt(recordPosition + 4, CRCBytes);
+        ByteBuffer data = writer.buffer();
+        data.position(dataPosition);
+        writeCRC(writer, data, CRCBytes);
+    }
+
+    private static void writeCRC(SerializerWriter writer, ByteBuffer data, int CRCBytes) {
+        if (CRCBytes > 0) {
             CRC32 crc32 = new CRC32();
             crc32.update(data);
+            writeCRC(writer, crc32, CRCBytes);
+        }
+    }
+
+    private static void writeCRC(SerializerWriter writer, CRC32 crc32, int CRCBytes) {
+        while (CRCBytes > 0) {
             int bytesForCRC = Math.min(CRCBytes, 4);
-            byte[] crcData = Serializer.serialize(crc32.getValue());
-            crcData = Arrays.copyOfRange(crcData, crcData.length - bytesForCRC, crcData.length);
+            int crcChunk = (int) crc32.getValue();
+            for (int i = bytesForCRC - 1; i >= 0; i--) {
+                byte crcByte = (byte) (crcChunk >>> (8 * i));
+                writer.write(crcByte);
+                crc32.update(crcByte);
+            }
             CRCBytes -= bytesForCRC;
-            return Serializer.addArrays(crcData, calculateCRC(Serializer.addArrays(data, crcData), CRCBytes));
         }
     }
 
+    /**
+     * Calculates the CRC of data that has been fed incrementally into a CRC32 (for instance, while streaming it)
+     *
+     * @param crc32    CRC32 updated with all the data, and nothing else. It is further updated by this method
+     * @param CRCBytes number of CRC bytes
+     * @return the CRC bytes, identical to those of calculateCRC over the same data
+     */
+    public static byte[] calculateCRC(CRC32 crc32, int CRCBytes) {
+        SerializerWriter writer = new SerializerWriter(Math.max(CRCBytes, 1));
+        writeCRC(writer, crc32, CRCBytes);
+        return writer.toByteArray();
+    }
+
+    public static byte[] calculateCRC(byte[] data, int CRCBytes) {
+        SerializerWriter writer = new SerializerWriter(Math.max(CRCBytes, 1));
+        writeCRC(writer, ByteBuffer.wrap(data), CRCBytes);
+        return writer.toByteArray();
+    }
+
     /**
      * Extract the byte[] data from an array which contains CRC information.
      *
@@ -55,16 +170,87 @@ public class CRC {
      * @throws CRCMismatchException if the CRC validation failed
      */
     public static byte[] extractDataWithCRC(byte[] data, MutableOffset mutableOffset) throws CRCMismatchException {
-        int dataLength = Serializer.deserializeIntValue(data, mutableOffset);
-        int CRCLength = Serializer.deserializeIntValue(data, mutableOffset);
-        byte[] originalData = Arrays.copyOfRange(data, mutableOffset.value(), mutableOffset.value() + dataLength);
-        mutableOffset.add(dataLength);
-        byte[] existingCRC = Arrays.copyOfRange(data, mutableOffset.value(), mutableOffset.value() + CRCLength);
-        mutableOffset.add(CRCLength);
-        if (Arrays.equals(existingCRC, calculateCRC(originalData, CRCLength))) {
-            return originalData;
+        SerializerReader reader = new SerializerReader(data, mutableOffset.value());
+        SerializerReader record = readRecord(reader);
+        mutableOffset.add(reader.position() - mutableOffset.value());
+        return record.readRaw(record.remaining());
+    }
+
+    /**
+     * Reads data with CRC header from a reader, without copying it
+     *
+     * @param reader reader positioned at the CRC header. It is moved past the CRC
+     * @return a reader over the validated data
+     * @throws CRCMismatchException if the CRC validation failed
+     */
+    public static SerializerReader readRecord(SerializerReader reader) throws CRCMismatchException {
+        return readRecord(reader, true);
+    }
+
+    /**
+     * Reads data with CRC header from a reader, without copying it
+     *
+     * @param reader      reader positioned at the CRC header. It is moved past the CRC
+     * @param validateCRC whether the CRC is validated. If not, the data is not traversed at all
+     * @return a reader over the data
+     * @throws CRCMismatchException if the CRC validation failed
+     */
+    public static SerializerReader readRecord(SerializerReader reader, boolean validateCRC) throws CRCMismatchException {
+        long lengths = readHeader(reader);
+        int dataLength = (int) (lengths >>> 32);
+        int CRCLength = (int) lengths;
+        int dataPosition = reader.position();
+        ByteBuffer data = reader.readRawBuffer(dataLength);
+        ByteBuffer existingCRC = reader.readRawBuffer(CRCLength);
+        int recordEnd = reader.position();
+        // the returned reader is a slice of the given reader (not of the read-only data view), so it can access
+        // the backing array directly
+        reader.position(dataPosition);
+        SerializerReader dataReader = reader.slice(dataLength);
+        reader.position(recordEnd);
+        if (!validateCRC) {
+            return dataReader;
+        }
+        SerializerWriter expectedCRC = new SerializerWriter(Math.max(CRCLength, 1));
+        writeCRC(expectedCRC, data, CRCLength);
+        if (expectedCRC.buffer().equals(existingCRC)) {
+            return dataReader;
         } else {
             throw new CRCMismatchException();
         }
     }
+
+    /**
+     * Reads the header of data with CRC (regular or compact), and calculates the full length of the record
+     *
+     * @param reader reader positioned at the CRC header. It is moved past the header
+     * @return the length of the header, data and CRC
+     * @throws IndexOutOfBoundsException if the header is incomplete or incorrect
+     */
+    public static long readRecordLength(SerializerReader reader) {
+        int headerPosition = reader.position();
+        long lengths = readHeader(reader);
+        return reader.position() - headerPosition + (lengths >>> 32) + (int) lengths;
+    }
+
+    /**
+     * Reads a header, and returns the data length (high 32 bits) and the CRC length (low 32 bits)
+     */
+    private static long readHeader(SerializerReader reader) {
+        int headerPosition = reader.position();
+        int dataLength;
+        int CRCLength;
+        if (reader.readByteValue() == COMPACT_HEADER_MARKER) {
+            dataLength = reader.readVarInt();
+            CRCLength = reader.readVarInt();
+        } else {
+            reader.position(headerPosition);
+            dataLength = reader.readIntValue();
+            CRCLength = reader.readIntValue();
+        }
+        if (dataLength < 0 || CRCLength < 0) {
+            throw new IndexOutOfBoundsException("Incorrect record header");
+        }
+        return ((long) dataLength << 32) | CRCLength;
+    }
 }
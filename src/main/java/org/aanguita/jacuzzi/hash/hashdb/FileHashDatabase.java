@@ -31,6 +31,21 @@ public class FileHashDatabase implements VersionedObject {
 
     protected static class AnnotatedFile implements Serializable {
 
+        static {
+            CodecRegistry.register(AnnotatedFile.class, new Codec<AnnotatedFile>() {
+                @Override
+                public void write(AnnotatedFile value, SerializerWriter writer, CodecContext context) {
+                    writer.write(value.path);
+                }
+
+                @Override
+                public AnnotatedFile read(SerializerReader reader, CodecContext context) {
+                    // the stored path is already absolute if required
+                    return new AnnotatedFile(reader.readString(), false);
+                }
+            });
+        }
+
         final String path;
 
         protected AnnotatedFile(String path, boolean storeAbsolutePaths) {
@@ -73,6 +88,20 @@ public class FileHashDatabase implements VersionedObject {
 
     protected static class FileKeyGenerator implements AutoKeyMap.KeyGenerator<String, AnnotatedFile, IOException>, Serializable {
 
+        static {
+            // the hash function is set after deserialization
+            CodecRegistry.register(FileKeyGenerator.class, new Codec<FileKeyGenerator>() {
+                @Override
+                public void write(FileKeyGenerator value, SerializerWriter writer, CodecContext context) {
+                }
+
+                @Override
+                public FileKeyGenerator read(SerializerReader reader, CodecContext context) {
+                    return new FileKeyGenerator(null);
+                }
+            });
+        }
+
         private transient HashFunction hashFunction;
 
         public FileKeyGenerator(HashFunction hashFunction) {
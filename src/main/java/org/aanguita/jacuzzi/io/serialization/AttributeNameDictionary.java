@@ -0,0 +1,67 @@
+package org.aanguita.jacuzzi.io.serialization;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Dictionary of attribute names used by the VersionedObjectSerializer. The first occurrence of a name in a stream
+ * is serialized in full and added to the dictionary. Later occurrences are serialized as a one-byte index
+ * <p>
+ * Records serialized with a shared dictionary must be deserialized in the same order, with a dictionary that
+ * starts in the same state. Records serialized without a dictionary (such as the records of serialize(List)) are
+ * self-contained, and write all names in full with no index byte
+ */
+public class AttributeNameDictionary {
+
+    /**
+     * Max number of names in a dictionary. Index 255 is reserved for marking names serialized in full
+     */
+    static final int MAX_SIZE = 255;
+
+    private final List<String> names;
+
+    private final Map<String, Integer> indexes;
+
+    public AttributeNameDictionary() {
+        names = new ArrayList<>();
+        indexes = new HashMap<>();
+    }
+
+    /**
+     * Retrieves the index of a name
+     *
+     * @return the index of the name, or -1 if it is not in the dictionary
+     */
+    int indexOf(String name) {
+        Integer index = indexes.get(name);
+        return index != null ? index : -1;
+    }
+
+    /**
+     * Retrieves a name by its index
+     *
+     * @throws IllegalArgumentException if the index is not in the dictionary
+     */
+    String get(int index) {
+        if (index < 0 || index >= names.size()) {
+            throw new IllegalArgumentException("Unknown attribute name index: " + index);
+        }
+        return names.get(index);
+    }
+
+    /**
+     * Adds a new name. Names beyond the max size are not added, so they are always serialized in full
+     */
+    void add(String name) {
+        if (names.size() < MAX_SIZE && !indexes.containsKey(name)) {
+            indexes.put(name, names.size());
+            names.add(name);
+        }
+    }
+
+    public int size() {
+        return names.size();
+    }
+}
@@ -0,0 +1,25 @@
+package org.aanguita.jacuzzi.io.serialization;
+
+import java.io.NotSerializableException;
+
+/**
+ * Compact binary encoding of the values of a class, used by the VersionedObjectSerializer instead of java
+ * serialization. Codecs are registered in the CodecRegistry
+ * <p>
+ * Nested values (for instance, the elements of a collection) must be written and read through the given context,
+ * so they are also encoded with their codecs
+ */
+public interface Codec<T> {
+
+    void write(T value, SerializerWriter writer, CodecContext context) throws NotSerializableException;
+
+    T read(SerializerReader reader, CodecContext context) throws ClassNotFoundException;
+
+    /**
+     * Tells whether a value can be written without falling back to java serialization for any nested value.
+     * Codecs with nested values must check them with CodecRegistry.canWrite
+     */
+    default boolean accepts(T value) {
+        return true;
+    }
+}
@@ -0,0 +1,55 @@
+package org.aanguita.jacuzzi.io.serialization;
+
+import java.io.NotSerializableException;
+
+/**
+ * Context for writing or reading a value with codecs, including its nested values. Class names of the values are
+ * kept in a dictionary, so each class name is serialized in full only once per value
+ * <p>
+ * A context must be used for either writing or reading a single value
+ */
+public class CodecContext {
+
+    private final AttributeNameDictionary classNames;
+
+    CodecContext() {
+        classNames = new AttributeNameDictionary();
+    }
+
+    /**
+     * Writes a nested value (any value admitted as a VersionedObject attribute)
+     */
+    public void write(Object value, SerializerWriter writer) throws NotSerializableException {
+        if (value != null && CodecRegistry.get(value.getClass()) != null) {
+            VersionedObjectSerializer.writeCodecType(writer);
+            writeCodecValue(value, writer);
+        } else {
+            VersionedObjectSerializer.writeAttributeValue(value, writer);
+        }
+    }
+
+    /**
+     * Reads a nested value written with write
+     */
+    public Object read(SerializerReader reader) throws ClassNotFoundException {
+        byte type = reader.readByteValue();
+        if (VersionedObjectSerializer.isCodecType(type)) {
+            return readCodecValue(reader);
+        } else {
+            return VersionedObjectSerializer.readAttributeValue(type, reader);
+        }
+    }
+
+    /**
+     * Writes the class name and the codec data of a value, which must have a registered codec
+     */
+    @SuppressWarnings("unchecked")
+    void writeCodecValue(Object value, SerializerWriter writer) throws NotSerializableException {
+        VersionedObjectSerializer.writeName(value.getClass().getName(), classNames, writer);
+        ((Codec<Object>) CodecRegistry.get(value.getClass())).write(value, writer, this);
+    }
+
+    Object readCodecValue(SerializerReader reader) throws ClassNotFoundException {
+        return CodecRegistry.forName(VersionedObjectSerializer.readName(reader, classNames)).read(reader, this);
+    }
+}
@@ -0,0 +1,272 @@
+package org.aanguita.jacuzzi.io.serialization;
+
+import org.aanguita.jacuzzi.lists.tuple.*;
+import org.aanguita.jacuzzi.maps.AutoKeyMap;
+
+import java.io.NotSerializableException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registry of the codecs used by the VersionedObjectSerializer for attributes that are not primitives, enums or
+ * primitive arrays. Attributes whose class has a registered codec (and whose nested values can also be written with
+ * codecs) are serialized with it. Other attributes fall back to java serialization
+ * <p>
+ * Codecs are registered for exact classes (a codec for HashMap is not used for a LinkedHashMap). Values are
+ * serialized along with their class name, so the same codecs must be registered when deserializing. If no codec
+ * is registered for a class name found in the data, the class is initialized before giving up, so classes can
+ * register their own codecs in a static initializer
+ * <p>
+ * Built-in codecs cover HashMap, ArrayList, AutoKeyMap and the tuple classes
+ */
+public final class CodecRegistry {
+
+    private static final Map<Class<?>, Codec<?>> codecs = new ConcurrentHashMap<>();
+
+    private static final Map<String, Codec<?>> codecsByName = new ConcurrentHashMap<>();
+
+    static {
+        register(HashMap.class, new Codec<HashMap>() {
+            @Override
+            public void write(HashMap value, SerializerWriter writer, CodecContext context) throws NotSerializableException {
+                writer.write(value.size());
+                for (Object entry : value.entrySet()) {
+                    context.write(((Map.Entry) entry).getKey(), writer);
+                    context.write(((Map.Entry) entry).getValue(), writer);
+                }
+            }
+
+            @Override
+            public HashMap read(SerializerReader reader, CodecContext context) throws ClassNotFoundException {
+                int size = reader.readIntValue();
+                HashMap<Object, Object> map = new HashMap<>();
+                for (int i = 0; i < size; i++) {
+                    map.put(context.read(reader), context.read(reader));
+                }
+                return map;
+            }
+
+            @Override
+            public boolean accepts(HashMap value) {
+                return canWriteEntries(value.entrySet());
+            }
+        });
+
+        register(ArrayList.class, new Codec<ArrayList>() {
+            @Override
+            public void write(ArrayList value, SerializerWriter writer, CodecContext context) throws NotSerializableException {
+                writer.write(value.size());
+                for (Object element : value) {
+                    context.write(element, writer);
+                }
+            }
+
+            @Override
+            public ArrayList read(SerializerReader reader, CodecContext context) throws ClassNotFoundException {
+                int size = reader.readIntValue();
+                ArrayList<Object> list = new ArrayList<>(Math.min(size, reader.remaining()));
+                for (int i = 0; i < size; i++) {
+                    list.add(context.read(reader));
+                }
+                return list;
+            }
+
+            @Override
+            public boolean accepts(ArrayList value) {
+                for (Object element : value) {
+                    if (!canWrite(element)) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+        });
+
+        register(AutoKeyMap.class, new Codec<AutoKeyMap>() {
+            @Override
+            public void write(AutoKeyMap value, SerializerWriter writer, CodecContext context) throws NotSerializableException {
+                context.write(value.getKeyGenerator(), writer);
+                writer.write(value.size());
+                for (Object entry : value.entrySet()) {
+                    context.write(((Map.Entry) entry).getKey(), writer);
+                    context.write(((Map.Entry) entry).getValue(), writer);
+                }
+            }
+
+            @Override
+            public AutoKeyMap read(SerializerReader reader, CodecContext context) throws ClassNotFoundException {
+                AutoKeyMap<Object, Object, RuntimeException> map = new AutoKeyMap<>((AutoKeyMap.KeyGenerator<Object, Object, RuntimeException>) context.read(reader));
+                int size = reader.readIntValue();
+                for (int i = 0; i < size; i++) {
+                    map.put(context.read(reader), context.read(reader));
+                }
+                return map;
+            }
+
+            @Override
+            public boolean accepts(AutoKeyMap value) {
+                return value.getKeyGenerator() != null && canWrite(value.getKeyGenerator()) && canWriteEntries(value.entrySet());
+            }
+        });
+
+        register(Duple.class, new TupleCodec<>(2));
+        register(Triple.class, new TupleCodec<>(3));
+        register(FourTuple.class, new TupleCodec<>(4));
+        register(FiveTuple.class, new TupleCodec<>(5));
+        register(SixTuple.class, new TupleCodec<>(6));
+        register(SevenTuple.class, new TupleCodec<>(7));
+        register(EightTuple.class, new TupleCodec<>(8));
+    }
+
+    /**
+     * Codec for the tuple classes, writing their elements in order
+     */
+    private static class TupleCodec<T extends Duple> implements Codec<T> {
+
+        private final int arity;
+
+        private TupleCodec(int arity) {
+            this.arity = arity;
+        }
+
+        @Override
+        public void write(T value, SerializerWriter writer, CodecContext context) throws NotSerializableException {
+            for (Object element : elements(value)) {
+                context.write(element, writer);
+            }
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public T read(SerializerReader reader, CodecContext context) throws ClassNotFoundException {
+            Object[] e = new Object[arity];
+            for (int i = 0; i < arity; i++) {
+                e[i] = context.read(reader);
+            }
+            switch (arity) {
+                case 2:
+                    return (T) new Duple<>(e[0], e[1]);
+                case 3:
+                    return (T) new Triple<>(e[0], e[1], e[2]);
+                case 4:
+                    return (T) new FourTuple<>(e[0], e[1], e[2], e[3]);
+                case 5:
+                    return (T) new FiveTuple<>(e[0], e[1], e[2], e[3], e[4]);
+                case 6:
+                    return (T) new SixTuple<>(e[0], e[1], e[2], e[3], e[4], e[5]);
+                case 7:
+                    return (T) new SevenTuple<>(e[0], e[1], e[2], e[3], e[4], e[5], e[6]);
+                default:
+                    return (T) new EightTuple<>(e[0], e[1], e[2], e[3], e[4], e[5], e[6], e[7]);
+            }
+        }
+
+        @Override
+        public boolean accepts(T value) {
+            for (Object element : elements(value)) {
+                if (!canWrite(element)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private Object[] elements(T value) {
+            Object[] elements = new Object[arity];
+            elements[0] = value.element1;
+            elements[1] = value.element2;
+            if (arity >= 3) {
+                elements[2] = ((Triple) value).element3;
+            }
+            if (arity >= 4) {
+                elements[3] = ((FourTuple) value).element4;
+            }
+            if (arity >= 5) {
+                elements[4] = ((FiveTuple) value).element5;
+            }
+            if (arity >= 6) {
+                elements[5] = ((SixTuple) value).element6;
+            }
+            if (arity >= 7) {
+                elements[6] = ((SevenTuple) value).element7;
+            }
+            if (arity >= 8) {
+                elements[7] = ((EightTuple) value).element8;
+            }
+            return elements;
+        }
+    }
+
+    private CodecRegistry() {
+    }
+
+    /**
+     * Registers the codec for a class, replacing any previous codec for it
+     *
+     * @param type  class of the values written by the codec (subclasses are not included)
+     * @param codec codec for the class
+     */
+    public static <T> void register(Class<T> type, Codec<? super T> codec) {
+        codecs.put(type, codec);
+        codecsByName.put(type.getName(), codec);
+    }
+
+    public static void unregister(Class<?> type) {
+        codecs.remove(type);
+        codecsByName.remove(type.getName());
+    }
+
+    /**
+     * Retrieves the codec registered for a class
+     *
+     * @return the codec, or null if there is no codec for the class
+     */
+    public static Codec<?> get(Class<?> type) {
+        return codecs.get(type);
+    }
+
+    /**
+     * Tells whether a value can be written entirely with codecs, including its nested values
+     */
+    @SuppressWarnings("unchecked")
+    public static boolean canWrite(Object value) {
+        if (value == null || value instanceof String || value instanceof Boolean || value instanceof Byte ||
+                value instanceof Short || value instanceof Integer || value instanceof Long ||
+                value instanceof Float || value instanceof Double || value instanceof Enum<?> || value instanceof byte[] ||
+                value instanceof short[] || value instanceof int[] || value instanceof long[] ||
+                value instanceof float[] || value instanceof double[] || value instanceof boolean[]) {
+            return true;
+        }
+        Codec<Object> codec = (Codec<Object>) codecs.get(value.getClass());
+        return codec != null && codec.accepts(value);
+    }
+
+    private static boolean canWriteEntries(Iterable<?> entries) {
+        for (Object entry : entries) {
+            if (!canWrite(((Map.Entry) entry).getKey()) || !canWrite(((Map.Entry) entry).getValue())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Retrieves the codec for a class name found in serialized data
+     *
+     * @throws ClassNotFoundException if no codec is registered for the class, even after initializing it
+     */
+    static Codec<?> forName(String className) throws ClassNotFoundException {
+        Codec<?> codec = codecsByName.get(className);
+        if (codec == null) {
+            // the class might register its codec upon initialization
+            Class.forName(className);
+            codec = codecsByName.get(className);
+            if (codec == null) {
+                throw new ClassNotFoundException("No codec registered for " + className);
+            }
+        }
+        return codec;
+    }
+}
@@ -0,0 +1,361 @@
+package org.aanguita.jacuzzi.io.serialization;
+
+import org.aanguita.jacuzzi.files.FileReaderWriter;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * Incremental saving of a versioned object. Instead of serializing all attributes on each save, only the
+ * attributes that changed since the previous save are appended as a delta record to a log file. After a given
+ * number of deltas, the deltas are folded into a full snapshot of the object, and the log is restarted
+ * <p>
+ * The snapshot is a regular VersionedObjectSerializer file (written atomically, and with backups). The log starts
+ * with a header identifying the snapshot it applies to, so a log left behind by a crash during a fold is
+ * discarded. Each log record carries its own CRC. A torn record at the end of the log (for instance, due to a
+ * crash during an append) is discarded on load. The log has no backups
+ * <p>
+ * By default, changes are detected by comparing the serialized form of each attribute with the one of the previous
+ * save. This needs no cooperation from the object, but each save serializes every attribute, and the serialized
+ * form of all attributes is kept in memory. With explicit change tracking, the object (or its owner) reports the
+ * changed attributes through markChanged, and only those are serialized. Attributes changed but not marked are not
+ * saved until the next full snapshot. A full snapshot is also written when the version or the set of attribute names
+ * of the object change
+ * <p>
+ * This class is not thread safe
+ */
+public class IncrementalVersionedObjectSerializer {
+
+    /**
+     * A version stack and a set of attributes, serialized as a snapshot or as a delta
+     */
+    private static class AttributeSet implements VersionedObject {
+
+        private final VersionStack versionStack;
+
+        private final Map<String, Serializable> attributes;
+
+        private AttributeSet(VersionStack versionStack, Map<String, Serializable> attributes) {
+            this.versionStack = versionStack;
+            this.attributes = attributes;
+        }
+
+        @Override
+        public VersionStack getCurrentVersion() {
+            return versionStack;
+        }
+
+        @Override
+        public Map<String, Serializable> serialize() {
+            return attributes;
+        }
+
+        @Override
+        public void deserialize(String version, Map<String, Object> attributes, VersionStack parentVersions) {
+            // not used
+            throw new RuntimeException("This method must not be used in this object");
+        }
+    }
+
+    private static final String LOG_HEADER_VERSION = "1.0";
+
+    private static final String SNAPSHOT_LENGTH = "snapshotLength";
+
+    private static final String SNAPSHOT_CRC = "snapshotCRC";
+
+    private final VersionedObject versionedObject;
+
+    private final int CRCBytes;
+
+    private final int maxDeltas;
+
+    private final String snapshotPath;
+
+    private final String logPath;
+
+    private final String[] backupPaths;
+
+    private final SerializerWriter attributeWriter;
+
+    /**
+     * Changed attributes are reported through markChanged, instead of being detected
+     */
+    private final boolean explicitChanges;
+
+    /**
+     * Version of the object in the last save (null if the object was never saved or loaded)
+     */
+    private VersionStack savedVersion;
+
+    /**
+     * Names of the attributes of the object in the last save (null if the object was never saved or loaded)
+     */
+    private Set<String> savedAttributeNames;
+
+    /**
+     * Serialized attributes of the object in the last save (only kept without explicit change tracking)
+     */
+    private Map<String, byte[]> savedAttributes;
+
+    /**
+     * Attributes marked as changed since the last save (only used with explicit change tracking)
+     */
+    private final Set<String> markedAttributes;
+
+    private int deltaCount;
+
+    /**
+     * @param versionedObject object to save and load
+     * @param CRCBytes        number of CRC bytes of the snapshot and of each delta
+     * @param maxDeltas       number of deltas after which the next save writes a full snapshot
+     * @param snapshotPath    path to the snapshot file
+     * @param logPath         path to the log file
+     * @param backupPaths     paths to the backups of the snapshot file
+     */
+    public IncrementalVersionedObjectSerializer(VersionedObject versionedObject, int CRCBytes, int maxDeltas, String snapshotPath, String logPath, String... backupPaths) {
+        this(versionedObject, CRCBytes, maxDeltas, false, snapshotPath, logPath, backupPaths);
+    }
+
+    /**
+     * @param versionedObject object to save and load
+     * @param CRCBytes        number of CRC bytes of the snapshot and of each delta
+     * @param maxDeltas       number of deltas after which the next save writes a full snapshot
+     * @param explicitChanges true if changed attributes are reported through markChanged, false if they are
+     *                        detected by comparing serialized attributes
+     * @param snapshotPath    path to the snapshot file
+     * @param logPath         path to the log file
+     * @param backupPaths     paths to the backups of the snapshot file
+     */
+    public IncrementalVersionedObjectSerializer(VersionedObject versionedObject, int CRCBytes, int maxDeltas, boolean explicitChanges, String snapshotPath, String logPath, String... backupPaths) {
+        this.versionedObject = versionedObject;
+        this.CRCBytes = CRCBytes;
+        this.maxDeltas = maxDeltas;
+        this.snapshotPath = snapshotPath;
+        this.logPath = logPath;
+        this.backupPaths = backupPaths;
+        attributeWriter = new SerializerWriter();
+        this.explicitChanges = explicitChanges;
+        savedVersion = null;
+        savedAttributeNames = null;
+        savedAttributes = null;
+        markedAttributes = new HashSet<>();
+        deltaCount = 0;
+    }
+
+    /**
+     * Reports attributes changed since the last save, so the next save includes them (only with explicit change
+     * tracking)
+     *
+     * @param attributeNames names of the changed attributes
+     */
+    public void markChanged(String... attributeNames) {
+        if (!explicitChanges) {
+            throw new IllegalStateException("Changes are detected automatically, explicit change tracking is not enabled");
+        }
+        markedAttributes.addAll(Arrays.asList(attributeNames));
+    }
+
+    /**
+     * Number of deltas written since the last snapshot
+     */
+    public int getDeltaCount() {
+        return deltaCount;
+    }
+
+    /**
+     * Loads the object from the snapshot and the deltas of the log. A broken snapshot is repaired from its backups
+     *
+     * @return the list of repaired snapshot files
+     */
+    public List<String> load() throws VersionedSerializationException, IOException {
+        VersionedObjectPreview snapshot = new VersionedObjectPreview();
+        List<String> repairedFiles = VersionedObjectSerializer.deserialize(snapshot, snapshotPath, true, backupPaths);
+        Map<String, Object> attributes = snapshot.getAttributes();
+        String version = snapshot.getVersion();
+        VersionStack parentVersions = snapshot.getParentVersions();
+
+        byte[] logData = Files.exists(Paths.get(logPath)) ? FileReaderWriter.readBytes(logPath) : new byte[0];
+        MutableOffset offset = new MutableOffset();
+        long[] snapshotFingerprint = snapshotFingerprint();
+        deltaCount = 0;
+        if (readLogHeader(logData, offset, snapshotFingerprint)) {
+            // replay all valid deltas
+            int validLength = offset.value();
+            try {
+                while (offset.value() < logData.length) {
+                    VersionedObjectPreview delta = new VersionedObjectPreview(logData, offset);
+                    attributes.putAll(delta.getAttributes());
+                    version = delta.getVersion();
+                    parentVersions = delta.getParentVersions();
+                    validLength = offset.value();
+                    deltaCount++;
+                }
+            } catch (VersionedSerializationException e) {
+                if (e.reason == VersionedSerializationException.Reason.CLASS_NOT_FOUND) {
+                    throw e;
+                }
+                // torn or corrupted record -> discard it, and the rest of the log
+                try (FileChannel channel = FileChannel.open(Paths.get(logPath), StandardOpenOption.WRITE)) {
+                    channel.truncate(validLength);
+                    channel.force(true);
+                }
+            }
+        } else {
+            // missing log, or log of a previous snapshot
+            startLog(snapshotFingerprint);
+        }
+
+        try {
+            versionedObject.deserialize(version, attributes, parentVersions);
+        } catch (UnrecognizedVersionException e) {
+            throw new VersionedSerializationException(parentVersions, attributes, VersionedSerializationException.Reason.UNRECOGNIZED_VERSION);
+        }
+        savedVersion = versionedObject.getCurrentVersion();
+        setSavedAttributes(versionedObject.serialize());
+        return repairedFiles;
+    }
+
+    /**
+     * Saves the object. Only the attributes that changed (or were marked as changed) since the last save or load
+     * are written, unless a full snapshot is due
+     */
+    public void save() throws IOException {
+        VersionStack version = versionedObject.getCurrentVersion();
+        Map<String, Serializable> attributes = versionedObject.serialize();
+        if (savedAttributeNames == null || deltaCount >= maxDeltas || !version.equals(savedVersion) || !attributes.keySet().equals(savedAttributeNames)) {
+            writeSnapshot(version, attributes);
+        } else if (explicitChanges) {
+            Map<String, Serializable> changedAttributes = new HashMap<>();
+            for (String name : markedAttributes) {
+                if (attributes.containsKey(name)) {
+                    changedAttributes.put(name, attributes.get(name));
+                }
+            }
+            if (!changedAttributes.isEmpty()) {
+                appendDelta(version, changedAttributes);
+            }
+            markedAttributes.clear();
+        } else {
+            Map<String, byte[]> serializedAttributes = serializeAttributes(attributes);
+            Map<String, Serializable> changedAttributes = new HashMap<>();
+            for (Map.Entry<String, byte[]> entry : serializedAttributes.entrySet()) {
+                if (!Arrays.equals(entry.getValue(), savedAttributes.get(entry.getKey()))) {
+                    changedAttributes.put(entry.getKey(), attributes.get(entry.getKey()));
+                }
+            }
+            if (!changedAttributes.isEmpty()) {
+                appendDelta(version, changedAttributes);
+                savedAttributes = serializedAttributes;
+            }
+        }
+    }
+
+    /**
+     * Saves a full snapshot of the object, folding all previous deltas
+     */
+    public void snapshot() throws IOException {
+        writeSnapshot(versionedObject.getCurrentVersion(), versionedObject.serialize());
+    }
+
+    private void writeSnapshot(VersionStack version, Map<String, Serializable> attributes) throws IOException {
+        byte[] data = VersionedObjectSerializer.serialize(new AttributeSet(version, attributes), CRCBytes);
+        FileReaderWriter.writeBytes(snapshotPath, data, true);
+        FileReaderWriter.copyAtomically(snapshotPath, backupPaths);
+        CRC32 crc32 = new CRC32();
+        crc32.update(data);
+        startLog(new long[]{data.length, crc32.getValue()});
+        savedVersion = version;
+        setSavedAttributes(attributes);
+        deltaCount = 0;
+    }
+
+    /**
+     * Records the attributes of a full save or load, as the reference for the next delta
+     */
+    private void setSavedAttributes(Map<String, Serializable> attributes) throws IOException {
+        savedAttributeNames = new HashSet<>(attributes.keySet());
+        if (explicitChanges) {
+            markedAttributes.clear();
+        } else {
+            savedAttributes = serializeAttributes(attributes);
+        }
+    }
+
+    private void appendDelta(VersionStack version, Map<String, Serializable> changedAttributes) throws IOException {
+        byte[] data = VersionedObjectSerializer.serialize(new AttributeSet(version, changedAttributes), CRCBytes);
+        try (FileChannel channel = FileChannel.open(Paths.get(logPath), StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        deltaCount++;
+    }
+
+    private Map<String, byte[]> serializeAttributes(Map<String, Serializable> attributes) throws IOException {
+        Map<String, byte[]> serializedAttributes = new HashMap<>();
+        for (Map.Entry<String, Serializable> entry : attributes.entrySet()) {
+            attributeWriter.clear();
+            VersionedObjectSerializer.writeAttributeValue(entry.getValue(), attributeWriter);
+            serializedAttributes.put(entry.getKey(), attributeWriter.toByteArray());
+        }
+        attributeWriter.clear();
+        return serializedAttributes;
+    }
+
+    /**
+     * Writes a new log, containing only the header
+     */
+    private void startLog(long[] snapshotFingerprint) throws IOException {
+        Map<String, Serializable> header = new HashMap<>();
+        header.put(SNAPSHOT_LENGTH, snapshotFingerprint[0]);
+        header.put(SNAPSHOT_CRC, snapshotFingerprint[1]);
+        byte[] data = VersionedObjectSerializer.serialize(new AttributeSet(new VersionStack(LOG_HEADER_VERSION), header), CRCBytes);
+        FileReaderWriter.writeBytes(logPath, data, true);
+    }
+
+    /**
+     * Reads the header of the log, and checks that it applies to the current snapshot
+     */
+    private static boolean readLogHeader(byte[] logData, MutableOffset offset, long[] snapshotFingerprint) {
+        try {
+            VersionedObjectPreview header = new VersionedObjectPreview(logData, offset);
+            return LOG_HEADER_VERSION.equals(header.getVersion()) &&
+                    Long.valueOf(snapshotFingerprint[0]).equals(header.getAttributes().get(SNAPSHOT_LENGTH)) &&
+                    Long.valueOf(snapshotFingerprint[1]).equals(header.getAttributes().get(SNAPSHOT_CRC));
+        } catch (VersionedSerializationException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Length and CRC32 of the current snapshot file, identifying the snapshot to which a log applies
+     */
+    private long[] snapshotFingerprint() throws IOException {
+        CRC32 crc32 = new CRC32();
+        long length = 0;
+        try (FileChannel channel = FileChannel.open(Paths.get(snapshotPath), StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+            while (channel.read(buffer) >= 0) {
+                buffer.flip();
+                length += buffer.remaining();
+                crc32.update(buffer);
+                buffer.clear();
+            }
+        }
+        return new long[]{length, crc32.getValue()};
+    }
+}
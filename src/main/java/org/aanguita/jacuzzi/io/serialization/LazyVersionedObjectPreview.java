@@ -0,0 +1,191 @@
+package org.aanguita.jacuzzi.io.serialization;
+
+import org.aanguita.jacuzzi.hash.CRC;
+import org.aanguita.jacuzzi.hash.CRCMismatchException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A preview of a serialized versioned object that does not deserialize its attributes upfront. The record is
+ * scanned once for building an index of attribute positions, and each attribute value is decoded only when it is
+ * requested (every time it is requested, as values are not cached)
+ * <p>
+ * Records in files are memory-mapped, so only the accessed parts of the record are actually read. The CRC of the
+ * record is not validated unless explicitly requested, since that requires reading the whole record
+ * <p>
+ * Records serialized with a shared AttributeNameDictionary cannot be previewed, except for the first one
+ */
+public class LazyVersionedObjectPreview {
+
+    /**
+     * The whole record, including its CRC header
+     */
+    private final ByteBuffer record;
+
+    /**
+     * The data of the record, with no CRC header
+     */
+    private final ByteBuffer data;
+
+    private final String version;
+
+    private final VersionStack parentVersions;
+
+    private final Map<String, Integer> attributePositions;
+
+    private final long endPosition;
+
+    public LazyVersionedObjectPreview(byte[] data) throws VersionedSerializationException {
+        this(data, new MutableOffset());
+    }
+
+    /**
+     * @param data   serialized data
+     * @param offset offset of the record in the data. It is moved past the record
+     */
+    public LazyVersionedObjectPreview(byte[] data, MutableOffset offset) throws VersionedSerializationException {
+        this(ByteBuffer.wrap(data, offset.value(), data.length - offset.value()), offset.value());
+        offset.add((int) (endPosition - offset.value()));
+    }
+
+    /**
+     * Previews the first record of a file
+     */
+    public LazyVersionedObjectPreview(String path) throws VersionedSerializationException, IOException {
+        this(path, 0L);
+    }
+
+    /**
+     * Previews a record of a file, memory-mapping only that record (so it works with files of any size)
+     *
+     * @param path     path to the file
+     * @param position position of the record in the file. The position of the next record is given by
+     *                 getEndPosition
+     */
+    public LazyVersionedObjectPreview(String path, long position) throws VersionedSerializationException, IOException {
+        this(mapRecord(path, position), position);
+    }
+
+    private LazyVersionedObjectPreview(ByteBuffer buffer, long position) throws VersionedSerializationException {
+        attributePositions = new LinkedHashMap<>();
+        VersionStack versionStack = null;
+        try {
+            SerializerReader reader = new SerializerReader(buffer);
+            SerializerReader dataReader = CRC.readRecord(reader, false);
+            record = buffer.slice();
+            record.limit(reader.position());
+            data = dataReader.readRawBuffer(dataReader.remaining());
+            versionStack = VersionedObjectSerializer.indexAttributes(new SerializerReader(data), attributePositions);
+            version = versionStack.retrieveVersion();
+            parentVersions = versionStack;
+            endPosition = position + reader.position();
+        } catch (RuntimeException | CRCMismatchException e) {
+            throw new VersionedSerializationException(versionStack, new HashMap<>(), VersionedSerializationException.Reason.INCORRECT_DATA);
+        } catch (ClassNotFoundException e) {
+            throw new VersionedSerializationException(versionStack, new HashMap<>(), VersionedSerializationException.Reason.CLASS_NOT_FOUND);
+        }
+    }
+
+    private static ByteBuffer mapRecord(String path, long position) throws VersionedSerializationException, IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            // the header length depends on its kind (regular or compact), so the max header length is read
+            ByteBuffer header = ByteBuffer.allocate(CRC.MAX_HEADER_LENGTH);
+            while (header.hasRemaining() && channel.read(header, position + header.position()) >= 0) {
+                // keep reading until the header is complete or the file ends
+            }
+            header.flip();
+            long recordLength;
+            try {
+                recordLength = CRC.readRecordLength(new SerializerReader(header));
+            } catch (RuntimeException e) {
+                throw new VersionedSerializationException(null, new HashMap<>(), VersionedSerializationException.Reason.INCORRECT_DATA);
+            }
+            if (recordLength > Integer.MAX_VALUE || position + recordLength > channel.size()) {
+                throw new VersionedSerializationException(null, new HashMap<>(), VersionedSerializationException.Reason.INCORRECT_DATA);
+            }
+            // the mapping remains valid after closing the channel
+            return channel.map(FileChannel.MapMode.READ_ONLY, position, recordLength);
+        }
+    }
+
+    public String getVersion() {
+        return version;
+    }
+
+    public VersionStack getParentVersions() {
+        return parentVersions;
+    }
+
+    /**
+     * Names of the attributes of the record, in record order
+     */
+    public Set<String> getAttributeNames() {
+        return Collections.unmodifiableSet(attributePositions.keySet());
+    }
+
+    public boolean containsAttribute(String name) {
+        return attributePositions.containsKey(name);
+    }
+
+    /**
+     * Decodes the value of one attribute
+     *
+     * @param name name of the attribute
+     * @return the attribute value, or null if the record has no such attribute
+     * @throws VersionedSerializationException if the value could not be decoded
+     */
+    public Object getAttribute(String name) throws VersionedSerializationException {
+        Integer position = attributePositions.get(name);
+        if (position == null) {
+            return null;
+        }
+        try {
+            return VersionedObjectSerializer.readAttribute(new SerializerReader(data), position);
+        } catch (RuntimeException e) {
+            throw new VersionedSerializationException(null, new HashMap<>(), VersionedSerializationException.Reason.INCORRECT_DATA);
+        } catch (ClassNotFoundException e) {
+            throw new VersionedSerializationException(null, new HashMap<>(), VersionedSerializationException.Reason.CLASS_NOT_FOUND);
+        }
+    }
+
+    /**
+     * Decodes the values of all attributes
+     */
+    public Map<String, Object> getAttributes() throws VersionedSerializationException {
+        Map<String, Object> attributes = new HashMap<>();
+        for (String name : attributePositions.keySet()) {
+            attributes.put(name, getAttribute(name));
+        }
+        return attributes;
+    }
+
+    /**
+     * Validates the CRC of the record. This reads the whole record
+     *
+     * @throws VersionedSerializationException if the CRC validation failed
+     */
+    public void validate() throws VersionedSerializationException {
+        try {
+            CRC.readRecord(new SerializerReader(record));
+        } catch (CRCMismatchException e) {
+            throw new VersionedSerializationException(null, new HashMap<>(), VersionedSerializationException.Reason.CRC_MISMATCH);
+        }
+    }
+
+    /**
+     * Position right after the end of this record (in the file or array it was read from), where the next record
+     * starts
+     */
+    public long getEndPosition() {
+        return endPosition;
+    }
+}
@@ -6,6 +6,7 @@ import java.text.ParseException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.function.Function;
 
 /**
  * This class contains utility methods for transforming different types of objects into byte arrays, and vice-versa
@@ -50,6 +51,16 @@ public class Serializer {
         return addArrays(Serializer.serialize(objectData.length), objectData);
     }
 
+    /**
+     * Serializes an object into a byte array, with a varint length header instead of 4 bytes
+     *
+     * @param o Object to serialize
+     * @return byte array containing the object
+     */
+    public static byte[] serializeObjectCompact(Serializable o) throws NotSerializableException {
+        return serializeCompact(serializeObjectWithoutLengthHeader(o));
+    }
+
 
     public static byte[] serializeObjectWithoutLengthHeader(Serializable o) throws NotSerializableException {
         try {
@@ -156,6 +167,17 @@ public class Serializer {
         }
     }
 
+    /**
+     * Serializes a string object into a byte array with UTF-8, with a varint length header instead of 4 bytes. Short
+     * strings take 1 byte for the length
+     *
+     * @param str String to serialize (can be null)
+     * @return byte array containing the string object
+     */
+    public static byte[] serializeCompact(String str) {
+        return new SerializerWriter(str != null ? 5 + str.length() * 3 : 1).writeCompact(str).toByteArray();
+    }
+
     /**
      * Serializes a Boolean object in a 1 byte array
      *
@@ -283,6 +305,48 @@ public class Serializer {
         return serializeNumber(l, 8);
     }
 
+    /**
+     * Serializes an int value as an unsigned LEB128 varint, in 1 to 5 bytes. Small non-negative values take less
+     * space than with serialize(int), but negative values always take 5 bytes (see serializeZigZag)
+     *
+     * @param i the int value to serialize
+     * @return a byte array of size 1 to 5 with the value of the given integer
+     */
+    public static byte[] serializeVarInt(int i) {
+        return new SerializerWriter(5).writeVarInt(i).toByteArray();
+    }
+
+    /**
+     * Serializes a long value as an unsigned LEB128 varint, in 1 to 10 bytes
+     *
+     * @param l the long value to serialize
+     * @return a byte array of size 1 to 10 with the value of the given long
+     */
+    public static byte[] serializeVarLong(long l) {
+        return new SerializerWriter(10).writeVarLong(l).toByteArray();
+    }
+
+    /**
+     * Serializes an int value as a zigzag encoded varint, so values close to zero (positive or negative) take
+     * less space
+     *
+     * @param i the int value to serialize
+     * @return a byte array of size 1 to 5 with the value of the given integer
+     */
+    public static byte[] serializeZigZag(int i) {
+        return serializeVarInt(SerializerWriter.zigZag(i));
+    }
+
+    /**
+     * Serializes a long value as a zigzag encoded varint
+     *
+     * @param l the long value to serialize
+     * @return a byte array of size 1 to 10 with the value of the given long
+     */
+    public static byte[] serializeZigZag(long l) {
+        return serializeVarLong(SerializerWriter.zigZag(l));
+    }
+
     /**
      * Serializes a Float object in a 4 or 5 byte array
      *
@@ -353,6 +417,91 @@ public class Serializer {
         }
     }
 
+    /**
+     * Serializes a byte array with a varint length header (null arrays are admitted)
+     */
+    public static byte[] serializeCompact(byte[] bytes) {
+        return new SerializerWriter(bytes != null ? 5 + bytes.length : 1).writeCompact(bytes).toByteArray();
+    }
+
+    /**
+     * Serializes a short array with its length header (null arrays are admitted), with 2 bytes per element
+     */
+    public static byte[] serialize(short[] array) {
+        return new SerializerWriter(array != null ? 5 + array.length * 2 : 1).write(array).toByteArray();
+    }
+
+    /**
+     * Serializes an int array with its length header (null arrays are admitted), with 4 bytes per element
+     */
+    public static byte[] serialize(int[] array) {
+        return new SerializerWriter(array != null ? 5 + array.length * 4 : 1).write(array).toByteArray();
+    }
+
+    /**
+     * Serializes a long array with its length header (null arrays are admitted), with 8 bytes per element
+     */
+    public static byte[] serialize(long[] array) {
+        return new SerializerWriter(array != null ? 5 + array.length * 8 : 1).write(array).toByteArray();
+    }
+
+    /**
+     * Serializes a float array with its length header (null arrays are admitted), with 4 bytes per element
+     */
+    public static byte[] serialize(float[] array) {
+        return new SerializerWriter(array != null ? 5 + array.length * 4 : 1).write(array).toByteArray();
+    }
+
+    /**
+     * Serializes a double array with its length header (null arrays are admitted), with 8 bytes per element
+     */
+    public static byte[] serialize(double[] array) {
+        return new SerializerWriter(array != null ? 5 + array.length * 8 : 1).write(array).toByteArray();
+    }
+
+    /**
+     * Serializes a boolean array with its length header (null arrays are admitted), with 8 elements per byte
+     */
+    public static byte[] serialize(boolean[] array) {
+        return new SerializerWriter(array != null ? 5 + (array.length + 7) / 8 : 1).write(array).toByteArray();
+    }
+
+    /**
+     * Serializes a short array as the zigzag varint differences between consecutive elements. Sorted or slowly
+     * varying arrays take much less space than with serialize(short[])
+     */
+    public static byte[] serializeDelta(short[] array) {
+        return new SerializerWriter().writeDelta(array).toByteArray();
+    }
+
+    /**
+     * Serializes an int array as the zigzag varint differences between consecutive elements
+     */
+    public static byte[] serializeDelta(int[] array) {
+        return new SerializerWriter().writeDelta(array).toByteArray();
+    }
+
+    /**
+     * Serializes a long array as the zigzag varint differences between consecutive elements
+     */
+    public static byte[] serializeDelta(long[] array) {
+        return new SerializerWriter().writeDelta(array).toByteArray();
+    }
+
+    /**
+     * Serializes a float array as the zigzag varint differences between the bits of consecutive elements
+     */
+    public static byte[] serializeDelta(float[] array) {
+        return new SerializerWriter().writeDelta(array).toByteArray();
+    }
+
+    /**
+     * Serializes a double array as the zigzag varint differences between the bits of consecutive elements
+     */
+    public static byte[] serializeDelta(double[] array) {
+        return new SerializerWriter().writeDelta(array).toByteArray();
+    }
+
     public static byte[] deserializeRest(byte[] data, MutableOffset offset) {
         byte[] rest = new byte[data.length - offset.value()];
         System.arraycopy(data, offset.value(), rest, 0, rest.length);
@@ -368,6 +517,10 @@ public class Serializer {
         return o;
     }
 
+    public static Object deserializeObjectCompact(byte[] data, MutableOffset offset) throws ClassNotFoundException {
+        return deserializeObjectWithoutLengthHeader(deserializeCompactBytes(data, offset));
+    }
+
     public static Object deserializeObjectWithoutLengthHeader(byte[] data) throws ClassNotFoundException {
         try {
             ByteArrayInputStream bi = new ByteArrayInputStream(data);
@@ -440,6 +593,10 @@ public class Serializer {
         }
     }
 
+    public static String deserializeCompactString(byte[] data, MutableOffset offset) {
+        return deserializeValue(data, offset, SerializerReader::readCompactString);
+    }
+
     public static Boolean deserializeBoolean(byte[] data, MutableOffset offset) {
         byte b = deserializeByteValue(data, offset);
         if (b == -1) {
@@ -505,6 +662,22 @@ public class Serializer {
         return deserializeNumber(data, 8, offset);
     }
 
+    public static int deserializeVarInt(byte[] data, MutableOffset offset) {
+        return deserializeValue(data, offset, SerializerReader::readVarInt);
+    }
+
+    public static long deserializeVarLong(byte[] data, MutableOffset offset) {
+        return deserializeValue(data, offset, SerializerReader::readVarLong);
+    }
+
+    public static int deserializeZigZagInt(byte[] data, MutableOffset offset) {
+        return SerializerReader.unZigZag(deserializeVarInt(data, offset));
+    }
+
+    public static long deserializeZigZagLong(byte[] data, MutableOffset offset) {
+        return SerializerReader.unZigZag(deserializeVarLong(data, offset));
+    }
+
     public static Float deserializeFloat(byte[] data, MutableOffset offset) {
         Integer floatBits = deserializeInt(data, offset);
         if (floatBits != null) {
@@ -563,6 +736,61 @@ public class Serializer {
         }
     }
 
+    public static byte[] deserializeCompactBytes(byte[] data, MutableOffset offset) {
+        return deserializeValue(data, offset, SerializerReader::readCompactBytes);
+    }
+
+    public static short[] deserializeShortArray(byte[] data, MutableOffset offset) {
+        return deserializeValue(data, offset, SerializerReader::readShortArray);
+    }
+
+    public static int[] deserializeIntArray(byte[] data, MutableOffset offset) {
+        return deserializeValue(data, offset, SerializerReader::readIntArray);
+    }
+
+    public static long[] deserializeLongArray(byte[] data, MutableOffset offset) {
+        return deserializeValue(data, offset, SerializerReader::readLongArray);
+    }
+
+    public static float[] deserializeFloatArray(byte[] data, MutableOffset offset) {
+        return deserializeValue(data, offset, SerializerReader::readFloatArray);
+    }
+
+    public static double[] deserializeDoubleArray(byte[] data, MutableOffset offset) {
+        return deserializeValue(data, offset, SerializerReader::readDoubleArray);
+    }
+
+    public static boolean[] deserializeBooleanArray(byte[] data, MutableOffset offset) {
+        return deserializeValue(data, offset, SerializerReader::readBooleanArray);
+    }
+
+    public static short[] deserializeShortArrayDelta(byte[] data, MutableOffset offset) {
+        return deserializeValue(data, offset, SerializerReader::readShortArrayDelta);
+    }
+
+    public static int[] deserializeIntArrayDelta(byte[] data, MutableOffset offset) {
+        return deserializeValue(data, offset, SerializerReader::readIntArrayDelta);
+    }
+
+    public static long[] deserializeLongArrayDelta(byte[] data, MutableOffset offset) {
+        return deserializeValue(data, offset, SerializerReader::readLongArrayDelta);
+    }
+
+    public static float[] deserializeFloatArrayDelta(byte[] data, MutableOffset offset) {
+        return deserializeValue(data, offset, SerializerReader::readFloatArrayDelta);
+    }
+
+    public static double[] deserializeDoubleArrayDelta(byte[] data, MutableOffset offset) {
+        return deserializeValue(data, offset, SerializerReader::readDoubleArrayDelta);
+    }
+
+    private static <T> T deserializeValue(byte[] data, MutableOffset offset, Function<SerializerReader, T> readValue) {
+        SerializerReader reader = new SerializerReader(data, offset.value());
+        T value = readValue.apply(reader);
+        offset.add(reader.position() - offset.value());
+        return value;
+    }
+
     private static String byteToHex(byte b) {
         String intHex = Integer.toHexString((int) b);
         if (intHex.length() > 2) {
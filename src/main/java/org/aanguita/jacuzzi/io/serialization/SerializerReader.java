@@ -0,0 +1,470 @@
+package org.aanguita.jacuzzi.io.serialization;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Streaming counterpart of the deserialize methods of the Serializer. Values are read one after another from a
+ * ByteBuffer (which can wrap an array or a memory-mapped file), without copying the underlying data for each value
+ * <p>
+ * Reading past the end of the data throws an IndexOutOfBoundsException, like the Serializer does
+ * <p>
+ * This class is not thread safe
+ */
+public class SerializerReader {
+
+    private final ByteBuffer buffer;
+
+    public SerializerReader(byte[] data) {
+        this(data, 0);
+    }
+
+    /**
+     * @param data   serialized data
+     * @param offset position of the first value to read
+     */
+    public SerializerReader(byte[] data, int offset) {
+        this(ByteBuffer.wrap(data));
+        buffer.position(offset);
+    }
+
+    /**
+     * Creates a reader over the remaining bytes of a buffer. The reader works on a view of the buffer, so the
+     * position of the given buffer is not modified
+     *
+     * @param buffer buffer containing the serialized data
+     */
+    public SerializerReader(ByteBuffer buffer) {
+        this.buffer = buffer.slice();
+    }
+
+    /**
+     * Position of the next read byte, relative to the start of this reader
+     */
+    public int position() {
+        return buffer.position();
+    }
+
+    public void position(int position) {
+        buffer.position(position);
+    }
+
+    public int remaining() {
+        return buffer.remaining();
+    }
+
+    public SerializerReader skip(int count) {
+        if (count < 0 || count > buffer.remaining()) {
+            throw new IndexOutOfBoundsException("Cannot skip " + count + " bytes, remaining: " + buffer.remaining());
+        }
+        buffer.position(buffer.position() + count);
+        return this;
+    }
+
+    /**
+     * Creates a reader over the next bytes of this reader, and moves this reader past them. The data is not copied
+     *
+     * @param length number of bytes included in the new reader
+     * @return a reader whose positions start at the current position of this reader
+     */
+    public SerializerReader slice(int length) {
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IndexOutOfBoundsException("Cannot slice " + length + " bytes, remaining: " + buffer.remaining());
+        }
+        ByteBuffer view = buffer.slice();
+        view.limit(length);
+        skip(length);
+        return new SerializerReader(view);
+    }
+
+    /**
+     * Retrieves a view of the next bytes of this reader, and moves this reader past them. The data is not copied
+     */
+    public ByteBuffer readRawBuffer(int length) {
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IndexOutOfBoundsException("Cannot read " + length + " bytes, remaining: " + buffer.remaining());
+        }
+        ByteBuffer view = buffer.slice();
+        view.limit(length);
+        skip(length);
+        return view.asReadOnlyBuffer();
+    }
+
+    /**
+     * Reads bytes without any length header
+     */
+    public byte[] readRaw(int length) {
+        if (length < 0 || length > buffer.remaining()) {
+            // checked before allocating, as the length might come from corrupted data
+            throw new IndexOutOfBoundsException("Cannot read " + length + " bytes, remaining: " + buffer.remaining());
+        }
+        byte[] bytes = new byte[length];
+        get(bytes);
+        return bytes;
+    }
+
+    private void get(byte[] bytes) {
+        try {
+            buffer.get(bytes);
+        } catch (BufferUnderflowException e) {
+            throw new IndexOutOfBoundsException("Cannot read " + bytes.length + " bytes, remaining: " + buffer.remaining());
+        }
+    }
+
+    public String readString() {
+        return readString(readIntValue());
+    }
+
+    /**
+     * Reads a string with a varint length header (see SerializerWriter.writeCompact(String))
+     */
+    public String readCompactString() {
+        return readString(readVarInt() - 1);
+    }
+
+    private String readString(int strLen) {
+        if (strLen < 0) {
+            return null;
+        } else if (buffer.hasArray()) {
+            if (strLen > buffer.remaining()) {
+                throw new IndexOutOfBoundsException("Cannot read " + strLen + " bytes, remaining: " + buffer.remaining());
+            }
+            String str = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), strLen, StandardCharsets.UTF_8);
+            skip(strLen);
+            return str;
+        } else {
+            return new String(readRaw(strLen), StandardCharsets.UTF_8);
+        }
+    }
+
+    public Boolean readBoolean() {
+        byte b = readByteValue();
+        if (b == -1) {
+            return null;
+        } else {
+            return b != 0;
+        }
+    }
+
+    public boolean readBooleanValue() {
+        return readByteValue() != 0;
+    }
+
+    public Byte readByte() {
+        return readBooleanValue() ? readByteValue() : null;
+    }
+
+    public byte readByteValue() {
+        try {
+            return buffer.get();
+        } catch (BufferUnderflowException e) {
+            throw new IndexOutOfBoundsException("No bytes remaining");
+        }
+    }
+
+    public Short readShort() {
+        return readBooleanValue() ? readShortValue() : null;
+    }
+
+    public short readShortValue() {
+        try {
+            return buffer.getShort();
+        } catch (BufferUnderflowException e) {
+            throw new IndexOutOfBoundsException("Cannot read a short, remaining: " + buffer.remaining());
+        }
+    }
+
+    public Integer readInt() {
+        return readBooleanValue() ? readIntValue() : null;
+    }
+
+    public int readIntValue() {
+        try {
+            return buffer.getInt();
+        } catch (BufferUnderflowException e) {
+            throw new IndexOutOfBoundsException("Cannot read an int, remaining: " + buffer.remaining());
+        }
+    }
+
+    public Long readLong() {
+        return readBooleanValue() ? readLongValue() : null;
+    }
+
+    public long readLongValue() {
+        try {
+            return buffer.getLong();
+        } catch (BufferUnderflowException e) {
+            throw new IndexOutOfBoundsException("Cannot read a long, remaining: " + buffer.remaining());
+        }
+    }
+
+    public Float readFloat() {
+        return readBooleanValue() ? Float.intBitsToFloat(readIntValue()) : null;
+    }
+
+    public float readFloatValue() {
+        return Float.intBitsToFloat(readIntValue());
+    }
+
+    public Double readDouble() {
+        return readBooleanValue() ? Double.longBitsToDouble(readLongValue()) : null;
+    }
+
+    public double readDoubleValue() {
+        return Double.longBitsToDouble(readLongValue());
+    }
+
+    public <E extends Enum<E>> E readEnum(Class<E> enumType) {
+        int ordinal = readIntValue();
+        E[] values = enumType.getEnumConstants();
+        return ordinal >= 0 && ordinal < values.length ? values[ordinal] : null;
+    }
+
+    /**
+     * Reads a byte array with its length header (see SerializerWriter.write(byte[]))
+     */
+    public byte[] readBytes() {
+        Integer bytesLen = readInt();
+        return bytesLen != null ? readRaw(bytesLen) : null;
+    }
+
+    /**
+     * Reads a byte array with a varint length header (see SerializerWriter.writeCompact(byte[]))
+     */
+    public byte[] readCompactBytes() {
+        int bytesLen = readVarInt() - 1;
+        return bytesLen >= 0 ? readRaw(bytesLen) : null;
+    }
+
+    /**
+     * Reads an unsigned LEB128 varint (see SerializerWriter.writeVarInt)
+     */
+    public int readVarInt() {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = readByteValue();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    public long readVarLong() {
+        long value = 0;
+        for (int shift = 0; shift < 70; shift += 7) {
+            byte b = readByteValue();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    /**
+     * Reverses SerializerWriter.zigZag
+     */
+    public static int unZigZag(int i) {
+        return (i >>> 1) ^ -(i & 1);
+    }
+
+    public static long unZigZag(long l) {
+        return (l >>> 1) ^ -(l & 1);
+    }
+
+    /**
+     * Reads the length of an array and checks that the remaining data can hold it, given the min number of bits of
+     * each element
+     *
+     * @return the length, or -1 for null arrays
+     */
+    private int readArrayLength(boolean varInt, int minElementBits) {
+        if (!readBooleanValue()) {
+            return -1;
+        }
+        int length = varInt ? readVarInt() : readIntValue();
+        if (length < 0 || (long) length * minElementBits > buffer.remaining() * 8L) {
+            throw new IndexOutOfBoundsException("Cannot read an array of " + length + " elements, remaining: " + buffer.remaining());
+        }
+        return length;
+    }
+
+    /**
+     * Reads a short array written with SerializerWriter.write(short[])
+     */
+    public short[] readShortArray() {
+        int length = readArrayLength(false, 16);
+        if (length < 0) {
+            return null;
+        }
+        short[] array = new short[length];
+        buffer.asShortBuffer().get(array);
+        skip(length * 2);
+        return array;
+    }
+
+    public int[] readIntArray() {
+        int length = readArrayLength(false, 32);
+        if (length < 0) {
+            return null;
+        }
+        int[] array = new int[length];
+        buffer.asIntBuffer().get(array);
+        skip(length * 4);
+        return array;
+    }
+
+    public long[] readLongArray() {
+        int length = readArrayLength(false, 64);
+        if (length < 0) {
+            return null;
+        }
+        long[] array = new long[length];
+        buffer.asLongBuffer().get(array);
+        skip(length * 8);
+        return array;
+    }
+
+    public float[] readFloatArray() {
+        int length = readArrayLength(false, 32);
+        if (length < 0) {
+            return null;
+        }
+        float[] array = new float[length];
+        buffer.asFloatBuffer().get(array);
+        skip(length * 4);
+        return array;
+    }
+
+    public double[] readDoubleArray() {
+        int length = readArrayLength(false, 64);
+        if (length < 0) {
+            return null;
+        }
+        double[] array = new double[length];
+        buffer.asDoubleBuffer().get(array);
+        skip(length * 8);
+        return array;
+    }
+
+    /**
+     * Reads a bit-packed boolean array written with SerializerWriter.write(boolean[])
+     */
+    public boolean[] readBooleanArray() {
+        int length = readArrayLength(false, 1);
+        if (length < 0) {
+            return null;
+        }
+        boolean[] array = new boolean[length];
+        for (int i = 0; i < length; i += 8) {
+            byte packed = readByteValue();
+            for (int j = 0; j < 8 && i + j < length; j++) {
+                array[i + j] = (packed & (1 << j)) != 0;
+            }
+        }
+        return array;
+    }
+
+    /**
+     * Reads a short array written with SerializerWriter.writeDelta(short[])
+     */
+    public short[] readShortArrayDelta() {
+        int length = readArrayLength(true, 8);
+        if (length < 0) {
+            return null;
+        }
+        short[] array = new short[length];
+        int previous = 0;
+        for (int i = 0; i < length; i++) {
+            previous += unZigZag(readVarInt());
+            array[i] = (short) previous;
+        }
+        return array;
+    }
+
+    public int[] readIntArrayDelta() {
+        int length = readArrayLength(true, 8);
+        if (length < 0) {
+            return null;
+        }
+        int[] array = new int[length];
+        int previous = 0;
+        for (int i = 0; i < length; i++) {
+            previous += unZigZag(readVarInt());
+            array[i] = previous;
+        }
+        return array;
+    }
+
+    public long[] readLongArrayDelta() {
+        int length = readArrayLength(true, 8);
+        if (length < 0) {
+            return null;
+        }
+        long[] array = new long[length];
+        long previous = 0;
+        for (int i = 0; i < length; i++) {
+            previous += unZigZag(readVarLong());
+            array[i] = previous;
+        }
+        return array;
+    }
+
+    public float[] readFloatArrayDelta() {
+        int length = readArrayLength(true, 8);
+        if (length < 0) {
+            return null;
+        }
+        float[] array = new float[length];
+        int previous = 0;
+        for (int i = 0; i < length; i++) {
+            previous += unZigZag(readVarInt());
+            array[i] = Float.intBitsToFloat(previous);
+        }
+        return array;
+    }
+
+    public double[] readDoubleArrayDelta() {
+        int length = readArrayLength(true, 8);
+        if (length < 0) {
+            return null;
+        }
+        double[] array = new double[length];
+        long previous = 0;
+        for (int i = 0; i < length; i++) {
+            previous += unZigZag(readVarLong());
+            array[i] = Double.longBitsToDouble(previous);
+        }
+        return array;
+    }
+
+    /**
+     * Reads an object written with java serialization, preceded by its length
+     */
+    public Object readObject() throws ClassNotFoundException {
+        int objectLength = readIntValue();
+        InputStream in;
+        if (buffer.hasArray()) {
+            if (objectLength > buffer.remaining()) {
+                throw new IndexOutOfBoundsException("Cannot read " + objectLength + " bytes, remaining: " + buffer.remaining());
+            }
+            in = new ByteArrayInputStream(buffer.array(), buffer.arrayOffset() + buffer.position(), objectLength);
+            skip(objectLength);
+        } else {
+            in = new ByteArrayInputStream(readRaw(objectLength));
+        }
+        try {
+            return new ObjectInputStream(in).readObject();
+        } catch (IOException e) {
+            // the data does not contain a valid serialized object
+            throw new IllegalArgumentException("Incorrect serialized object data", e);
+        }
+    }
+}
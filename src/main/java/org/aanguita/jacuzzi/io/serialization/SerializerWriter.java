@@ -0,0 +1,627 @@
+package org.aanguita.jacuzzi.io.serialization;
+
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Streaming counterpart of the serialize methods of the Serializer. Values are written one after another into a
+ * single ByteBuffer, which grows as needed, so no intermediate arrays are allocated for each value. The written
+ * bytes are identical to the concatenation of the arrays produced by the Serializer
+ * <p>
+ * A writer can be reused (see clear) so its buffer is allocated only once. If the writer is created with a direct
+ * buffer, grown buffers are also direct
+ * <p>
+ * A writer can also be created with a sink. In that case, the buffer is drained to the sink instead of growing, so
+ * arbitrarily large data can be written with a bounded buffer. Errors of the sink are thrown as
+ * UncheckedIOException
+ * <p>
+ * This class is not thread safe
+ */
+public class SerializerWriter {
+
+    /**
+     * Receiver of the data of writers with bounded buffers
+     */
+    @FunctionalInterface
+    public interface Sink {
+
+        /**
+         * Consumes all the remaining bytes of the given buffer
+         */
+        void write(ByteBuffer data) throws IOException;
+    }
+
+    private static final int DEFAULT_CAPACITY = 256;
+
+    private ByteBuffer buffer;
+
+    private final Sink sink;
+
+    /**
+     * Number of bytes already drained to the sink since the last clear
+     */
+    private int drained;
+
+    /**
+     * Position from which bytes cannot be drained yet, because they will be overwritten (-1 if none)
+     */
+    private int pinnedPosition;
+
+    public SerializerWriter() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public SerializerWriter(int initialCapacity) {
+        this(ByteBuffer.allocate(Math.max(initialCapacity, 1)));
+    }
+
+    /**
+     * Creates a writer over an existing buffer (for instance, a pooled one). Values are written from the current
+     * position of the buffer. If the buffer gets full, it is replaced by a larger one
+     *
+     * @param buffer initial buffer
+     */
+    public SerializerWriter(ByteBuffer buffer) {
+        this(buffer, null);
+    }
+
+    /**
+     * Creates a writer with a bounded buffer, which is drained to a sink when full, and upon flush
+     *
+     * @param bufferSize size of the buffer. Only single values larger than this make the buffer grow
+     * @param sink       receiver of the written data
+     */
+    public SerializerWriter(int bufferSize, Sink sink) {
+        this(ByteBuffer.allocate(Math.max(bufferSize, 1)), sink);
+    }
+
+    private SerializerWriter(ByteBuffer buffer, Sink sink) {
+        this.buffer = buffer;
+        this.sink = sink;
+        drained = 0;
+        pinnedPosition = -1;
+    }
+
+    /**
+     * Position of the next written byte, counting bytes already drained to the sink (if any) since the last clear
+     */
+    public int position() {
+        return drained + buffer.position();
+    }
+
+    /**
+     * Discards the written bytes, keeping the allocated buffer for reuse. Bytes not flushed yet are not drained to
+     * the sink
+     */
+    public SerializerWriter clear() {
+        buffer.clear();
+        drained = 0;
+        pinnedPosition = -1;
+        return this;
+    }
+
+    /**
+     * Drains all the buffered bytes to the sink
+     */
+    public void flush() throws IOException {
+        if (sink != null) {
+            drain(buffer.position());
+        }
+    }
+
+    private void drain(int length) throws IOException {
+        if (length > 0) {
+            ByteBuffer data = buffer.duplicate();
+            data.position(0).limit(length);
+            sink.write(data);
+            buffer.flip();
+            buffer.position(length);
+            buffer.compact();
+            drained += length;
+        }
+    }
+
+    /**
+     * Retrieves a read-only view of the written bytes, from the start of the buffer up to the current position.
+     * Bytes drained to the sink are not included
+     */
+    public ByteBuffer buffer() {
+        ByteBuffer view = buffer.duplicate();
+        view.flip();
+        return view.asReadOnlyBuffer();
+    }
+
+    /**
+     * Copies the written bytes into a new array
+     */
+    public byte[] toByteArray() {
+        byte[] array = new byte[buffer.position()];
+        ByteBuffer view = buffer.duplicate();
+        view.flip();
+        view.get(array);
+        return array;
+    }
+
+    /**
+     * Writes the written bytes to an output stream, without copying them if the buffer is backed by an array
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        if (buffer.hasArray()) {
+            out.write(buffer.array(), buffer.arrayOffset(), buffer.position());
+        } else {
+            out.write(toByteArray());
+        }
+    }
+
+    private void ensureRemaining(int count) {
+        if (buffer.remaining() < count && sink != null) {
+            try {
+                drain(pinnedPosition >= 0 ? pinnedPosition - drained : buffer.position());
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        if (buffer.remaining() < count) {
+            int capacity = buffer.capacity();
+            int newCapacity = Math.max(capacity * 2, buffer.position() + count);
+            if (newCapacity < 0) {
+                throw new OutOfMemoryError("Serialized data too large");
+            }
+            ByteBuffer newBuffer = buffer.isDirect() ? ByteBuffer.allocateDirect(newCapacity) : ByteBuffer.allocate(newCapacity);
+            buffer.flip();
+            newBuffer.put(buffer);
+            buffer = newBuffer;
+        }
+    }
+
+    /**
+     * Writes bytes without any length header
+     */
+    public SerializerWriter writeRaw(byte[] bytes) {
+        return writeRaw(bytes, 0, bytes.length);
+    }
+
+    public SerializerWriter writeRaw(byte[] bytes, int offset, int length) {
+        ensureRemaining(length);
+        buffer.put(bytes, offset, length);
+        return this;
+    }
+
+    /**
+     * Writes the remaining bytes of a buffer without any length header
+     */
+    public SerializerWriter writeRaw(ByteBuffer bytes) {
+        ensureRemaining(bytes.remaining());
+        buffer.put(bytes);
+        return this;
+    }
+
+    /**
+     * Overwrites an int value at a previous position (for instance, a length header written before its data). The
+     * position must not have been drained to the sink
+     */
+    public SerializerWriter writeAt(int position, int i) {
+        if (position < drained) {
+            throw new IllegalStateException("Position " + position + " already drained to the sink");
+        }
+        buffer.putInt(position - drained, i);
+        return this;
+    }
+
+    public SerializerWriter write(String str) {
+        if (str == null) {
+            return write(-1);
+        } else {
+            byte[] strBytes = str.getBytes(StandardCharsets.UTF_8);
+            write(strBytes.length);
+            return writeRaw(strBytes);
+        }
+    }
+
+    public SerializerWriter write(Boolean b) {
+        if (b == null) {
+            return write((byte) -1);
+        } else {
+            return write(b ? (byte) 1 : (byte) 0);
+        }
+    }
+
+    public SerializerWriter write(boolean b) {
+        return write(b ? (byte) 1 : (byte) 0);
+    }
+
+    public SerializerWriter write(Byte b) {
+        return b != null ? write(true).write(b.byteValue()) : write(false);
+    }
+
+    public SerializerWriter write(byte b) {
+        ensureRemaining(1);
+        buffer.put(b);
+        return this;
+    }
+
+    public SerializerWriter write(Short s) {
+        return s != null ? write(true).write(s.shortValue()) : write(false);
+    }
+
+    public SerializerWriter write(short s) {
+        ensureRemaining(2);
+        buffer.putShort(s);
+        return this;
+    }
+
+    public SerializerWriter write(Integer i) {
+        return i != null ? write(true).write(i.intValue()) : write(false);
+    }
+
+    public SerializerWriter write(int i) {
+        ensureRemaining(4);
+        buffer.putInt(i);
+        return this;
+    }
+
+    public SerializerWriter write(Long l) {
+        return l != null ? write(true).write(l.longValue()) : write(false);
+    }
+
+    public SerializerWriter write(long l) {
+        ensureRemaining(8);
+        buffer.putLong(l);
+        return this;
+    }
+
+    public SerializerWriter write(Float f) {
+        return f != null ? write(true).write(Float.floatToIntBits(f)) : write(false);
+    }
+
+    public SerializerWriter write(float f) {
+        return write(Float.floatToIntBits(f));
+    }
+
+    public SerializerWriter write(Double d) {
+        return d != null ? write(true).write(Double.doubleToLongBits(d)) : write(false);
+    }
+
+    public SerializerWriter write(double d) {
+        return write(Double.doubleToLongBits(d));
+    }
+
+    public SerializerWriter write(Enum<?> e) {
+        return write(e.ordinal());
+    }
+
+    /**
+     * Writes a byte array with its length header (null arrays are admitted)
+     */
+    public SerializerWriter write(byte[] bytes) {
+        if (bytes != null) {
+            write(true).write(bytes.length);
+            return writeRaw(bytes);
+        } else {
+            return write(false);
+        }
+    }
+
+    /**
+     * Writes an int as an unsigned LEB128 varint (1 to 5 bytes, 7 bits per byte, least significant group first).
+     * Negative values take 5 bytes, so signed values should be zigzag encoded first
+     */
+    public SerializerWriter writeVarInt(int i) {
+        ensureRemaining(5);
+        while ((i & ~0x7F) != 0) {
+            buffer.put((byte) ((i & 0x7F) | 0x80));
+            i >>>= 7;
+        }
+        buffer.put((byte) i);
+        return this;
+    }
+
+    /**
+     * Writes a long as an unsigned LEB128 varint (1 to 10 bytes)
+     */
+    public SerializerWriter writeVarLong(long l) {
+        ensureRemaining(10);
+        while ((l & ~0x7FL) != 0) {
+            buffer.put((byte) ((l & 0x7F) | 0x80));
+            l >>>= 7;
+        }
+        buffer.put((byte) l);
+        return this;
+    }
+
+    /**
+     * Writes a string with a varint length header (length + 1, or 0 for null strings), instead of the 4 bytes of
+     * write(String)
+     */
+    public SerializerWriter writeCompact(String str) {
+        if (str == null) {
+            return writeVarInt(0);
+        } else {
+            byte[] strBytes = str.getBytes(StandardCharsets.UTF_8);
+            writeVarInt(strBytes.length + 1);
+            return writeRaw(strBytes);
+        }
+    }
+
+    /**
+     * Writes a byte array with a varint length header (length + 1, or 0 for null arrays), instead of the 5 bytes
+     * of write(byte[])
+     */
+    public SerializerWriter writeCompact(byte[] bytes) {
+        if (bytes == null) {
+            return writeVarInt(0);
+        } else {
+            writeVarInt(bytes.length + 1);
+            return writeRaw(bytes);
+        }
+    }
+
+    /**
+     * Maps signed ints to unsigned ints so that values close to zero (positive or negative) are small
+     */
+    public static int zigZag(int i) {
+        return (i << 1) ^ (i >> 31);
+    }
+
+    public static long zigZag(long l) {
+        return (l << 1) ^ (l >> 63);
+    }
+
+    /**
+     * Number of bytes that a varint takes
+     */
+    public static int varIntSize(int i) {
+        return i == 0 ? 1 : (31 - Integer.numberOfLeadingZeros(i)) / 7 + 1;
+    }
+
+    public static int varLongSize(long l) {
+        return l == 0 ? 1 : (63 - Long.numberOfLeadingZeros(l)) / 7 + 1;
+    }
+
+    /**
+     * Reserves space for writing the next elements of an array. With a sink, only one element is reserved, so
+     * large arrays are drained in several steps instead of growing the buffer
+     *
+     * @return the number of elements that fit in the buffer
+     */
+    private int reserve(int elementCount, int elementWidth) {
+        ensureRemaining(sink != null ? elementWidth : (int) Math.min((long) elementCount * elementWidth, Integer.MAX_VALUE));
+        return Math.min(elementCount, buffer.remaining() / elementWidth);
+    }
+
+    /**
+     * Writes a short array with its length header (null arrays are admitted), as fixed-width values
+     */
+    public SerializerWriter write(short[] array) {
+        if (array == null) {
+            return write(false);
+        }
+        write(true).write(array.length);
+        for (int i = 0; i < array.length; ) {
+            int count = reserve(array.length - i, 2);
+            buffer.asShortBuffer().put(array, i, count);
+            buffer.position(buffer.position() + count * 2);
+            i += count;
+        }
+        return this;
+    }
+
+    public SerializerWriter write(int[] array) {
+        if (array == null) {
+            return write(false);
+        }
+        write(true).write(array.length);
+        for (int i = 0; i < array.length; ) {
+            int count = reserve(array.length - i, 4);
+            buffer.asIntBuffer().put(array, i, count);
+            buffer.position(buffer.position() + count * 4);
+            i += count;
+        }
+        return this;
+    }
+
+    public SerializerWriter write(long[] array) {
+        if (array == null) {
+            return write(false);
+        }
+        write(true).write(array.length);
+        for (int i = 0; i < array.length; ) {
+            int count = reserve(array.length - i, 8);
+            buffer.asLongBuffer().put(array, i, count);
+            buffer.position(buffer.position() + count * 8);
+            i += count;
+        }
+        return this;
+    }
+
+    public SerializerWriter write(float[] array) {
+        if (array == null) {
+            return write(false);
+        }
+        write(true).write(array.length);
+        for (int i = 0; i < array.length; ) {
+            int count = reserve(array.length - i, 4);
+            buffer.asFloatBuffer().put(array, i, count);
+            buffer.position(buffer.position() + count * 4);
+            i += count;
+        }
+        return this;
+    }
+
+    public SerializerWriter write(double[] array) {
+        if (array == null) {
+            return write(false);
+        }
+        write(true).write(array.length);
+        for (int i = 0; i < array.length; ) {
+            int count = reserve(array.length - i, 8);
+            buffer.asDoubleBuffer().put(array, i, count);
+            buffer.position(buffer.position() + count * 8);
+            i += count;
+        }
+        return this;
+    }
+
+    /**
+     * Writes a boolean array with its length header (null arrays are admitted), packing 8 values per byte (first
+     * value in the least significant bit)
+     */
+    public SerializerWriter write(boolean[] array) {
+        if (array == null) {
+            return write(false);
+        }
+        write(true).write(array.length);
+        for (int i = 0; i < array.length; i += 8) {
+            int packed = 0;
+            for (int j = 0; j < 8 && i + j < array.length; j++) {
+                if (array[i + j]) {
+                    packed |= 1 << j;
+                }
+            }
+            write((byte) packed);
+        }
+        return this;
+    }
+
+    /**
+     * Writes a short array (null arrays are admitted) as the zigzag varint differences between consecutive
+     * values, preceded by the varint length. Sorted or slowly varying arrays take much less space than with
+     * fixed-width values
+     */
+    public SerializerWriter writeDelta(short[] array) {
+        if (array == null) {
+            return write(false);
+        }
+        write(true).writeVarInt(array.length);
+        int previous = 0;
+        for (short value : array) {
+            writeVarInt(zigZag(value - previous));
+            previous = value;
+        }
+        return this;
+    }
+
+    public SerializerWriter writeDelta(int[] array) {
+        if (array == null) {
+            return write(false);
+        }
+        write(true).writeVarInt(array.length);
+        int previous = 0;
+        for (int value : array) {
+            // overflowed differences are restored by the overflowed sum when reading
+            writeVarInt(zigZag(value - previous));
+            previous = value;
+        }
+        return this;
+    }
+
+    public SerializerWriter writeDelta(long[] array) {
+        if (array == null) {
+            return write(false);
+        }
+        write(true).writeVarInt(array.length);
+        long previous = 0;
+        for (long value : array) {
+            writeVarLong(zigZag(value - previous));
+            previous = value;
+        }
+        return this;
+    }
+
+    /**
+     * Writes a float array as the zigzag varint differences between the bits of consecutive values
+     */
+    public SerializerWriter writeDelta(float[] array) {
+        if (array == null) {
+            return write(false);
+        }
+        write(true).writeVarInt(array.length);
+        int previous = 0;
+        for (float value : array) {
+            int bits = Float.floatToRawIntBits(value);
+            writeVarInt(zigZag(bits - previous));
+            previous = bits;
+        }
+        return this;
+    }
+
+    public SerializerWriter writeDelta(double[] array) {
+        if (array == null) {
+            return write(false);
+        }
+        write(true).writeVarInt(array.length);
+        long previous = 0;
+        for (double value : array) {
+            long bits = Double.doubleToRawLongBits(value);
+            writeVarLong(zigZag(bits - previous));
+            previous = bits;
+        }
+        return this;
+    }
+
+    /**
+     * Writes a placeholder for the length of the data written next. The placeholder is filled by endLength. Bytes
+     * from the placeholder on are not drained to the sink until then
+     *
+     * @return the position of the placeholder, to be passed to endLength
+     */
+    public int startLength() {
+        int lengthPosition = position();
+        write(0);
+        if (pinnedPosition < 0) {
+            pinnedPosition = lengthPosition;
+        }
+        return lengthPosition;
+    }
+
+    /**
+     * Fills a length placeholder written by startLength with the number of bytes written after it
+     *
+     * @param lengthPosition position returned by startLength
+     */
+    public SerializerWriter endLength(int lengthPosition) {
+        unpin(lengthPosition);
+        return writeAt(lengthPosition, position() - lengthPosition - 4);
+    }
+
+    private void unpin(int lengthPosition) {
+        if (pinnedPosition == lengthPosition) {
+            pinnedPosition = -1;
+        }
+    }
+
+    /**
+     * Writes an object with java serialization, preceded by its length. The object is serialized directly into
+     * the buffer (which is not drained until the object is complete, as its length must be written first)
+     */
+    public SerializerWriter writeObject(Serializable o) throws NotSerializableException {
+        int lengthPosition = startLength();
+        try {
+            ObjectOutputStream so = new ObjectOutputStream(new OutputStream() {
+                @Override
+                public void write(int b) {
+                    SerializerWriter.this.write((byte) b);
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) {
+                    writeRaw(b, off, len);
+                }
+            });
+            so.writeObject(o);
+            so.close();
+        } catch (IOException e) {
+            // the object is not serializable -> discard its partially written data
+            unpin(lengthPosition);
+            buffer.position(lengthPosition - drained);
+            throw new NotSerializableException(o.getClass().toString());
+        }
+        return endLength(lengthPosition);
+    }
+}
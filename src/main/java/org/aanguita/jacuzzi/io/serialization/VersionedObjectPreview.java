@@ -15,6 +15,12 @@ public class VersionedObjectPreview implements VersionedObject {
 
     private VersionStack parentVersions;
 
+    /**
+     * Creates an empty preview, to be filled with a deserialize method of the VersionedObjectSerializer
+     */
+    VersionedObjectPreview() {
+    }
+
     public VersionedObjectPreview(String path, String... backupPaths) throws VersionedSerializationException, IOException {
         VersionedObjectSerializer.deserialize(this, path, backupPaths);
     }
@@ -7,74 +7,214 @@ import org.aanguita.jacuzzi.hash.CRCMismatchException;
 import java.io.IOException;
 import java.io.NotSerializableException;
 import java.io.Serializable;
-import java.nio.file.Files;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Paths;
-import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
 
 /**
  * Class with static methods for saving and restoring objects implementing the VersionedObject interface
+ * <p>
+ * Objects are serialized with a compact format: a format header, the version stack as a list of strings, and the
+ * attributes, each one with its name and a one-byte type code. Names are written in full, except in records
+ * serialized with an AttributeNameDictionary shared with previous records of the same stream, which refer to names
+ * already seen through a one-byte index (such records are not self-contained, so they are told apart by their
+ * format version). The original
+ * format, with the version stack as a java serialized object and types and names as full strings, can still be
+ * deserialized. Both formats are told apart by the first byte, as the original format starts with a
+ * non-negative length
+ * <p>
+ * Primitive arrays are serialized with fixed-width values, except short, int and long arrays whose delta encoding
+ * (see SerializerWriter.writeDelta) is smaller. Other attributes that are not primitives, enums or strings are
+ * serialized with the codecs of the CodecRegistry when possible, and with java serialization otherwise
+ * <p>
+ * Optionally, records can be serialized with varints: counts and lengths are written as varints, short, int and
+ * long attributes as zigzag varints, and the record has a compact CRC header (see CRC). Most values are small, so
+ * records shrink noticeably, at the cost of some encoding speed. Such records are told apart by their format
+ * version, so they are deserialized by the same methods. Values nested inside codecs keep their regular encoding
  */
 public class VersionedObjectSerializer {
 
-    private static final byte[] STRING_TYPE = Serializer.serialize("String");
-    private static final byte[] BOOLEAN_TYPE = Serializer.serialize("Boolean");
-    private static final byte[] BYTE_TYPE = Serializer.serialize("Byte");
-    private static final byte[] SHORT_TYPE = Serializer.serialize("Short");
-    private static final byte[] INTEGER_TYPE = Serializer.serialize("Integer");
-    private static final byte[] LONG_TYPE = Serializer.serialize("Long");
-    private static final byte[] FLOAT_TYPE = Serializer.serialize("Float");
-    private static final byte[] DOUBLE_TYPE = Serializer.serialize("Double");
-    private static final byte[] ENUM_TYPE = Serializer.serialize("Enum");
-    private static final byte[] BYTE_ARRAY_TYPE = Serializer.serialize("ByteArray");
-    private static final byte[] SERIALIZABLE_TYPE = Serializer.serialize("Serializable");
+    /**
+     * First byte of records in the compact format
+     */
+    private static final byte FORMAT_MARKER = (byte) 0xFF;
+
+    private static final byte FORMAT_VERSION = 2;
+
+    /**
+     * Format version of records serialized with varints
+     */
+    private static final byte VARINT_FORMAT_VERSION = 3;
+
+    /**
+     * Format versions of self-contained records, whose attribute names carry no dictionary index
+     */
+    private static final byte SELF_CONTAINED_FORMAT_VERSION = 4;
+
+    private static final byte SELF_CONTAINED_VARINT_FORMAT_VERSION = 5;
+
+    /**
+     * Format version returned for records in the original format, which have no format header
+     */
+    private static final byte ORIGINAL_FORMAT_VERSION = 0;
+
+    /**
+     * Length of the CRC header of each record (data length and CRC length)
+     */
+    private static final int RECORD_HEADER_LENGTH = 8;
+
+    /**
+     * Size of the buffer used for streaming records to files
+     */
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * Min size of the batches of records decoded by each task in parallel deserialization
+     */
+    private static final int PARALLEL_BATCH_SIZE = 64 * 1024;
+
+    /**
+     * Marks names that are not in the dictionary, and are serialized in full
+     */
+    private static final byte NEW_NAME = (byte) AttributeNameDictionary.MAX_SIZE;
+
+    private static final byte NULL_TYPE = 0;
+    private static final byte STRING_TYPE = 1;
+    private static final byte BOOLEAN_TYPE = 2;
+    private static final byte BYTE_TYPE = 3;
+    private static final byte SHORT_TYPE = 4;
+    private static final byte INTEGER_TYPE = 5;
+    private static final byte LONG_TYPE = 6;
+    private static final byte FLOAT_TYPE = 7;
+    private static final byte DOUBLE_TYPE = 8;
+    private static final byte ENUM_TYPE = 9;
+    private static final byte BYTE_ARRAY_TYPE = 10;
+    private static final byte SERIALIZABLE_TYPE = 11;
+    private static final byte CODEC_TYPE = 12;
+    private static final byte SHORT_ARRAY_TYPE = 13;
+    private static final byte INT_ARRAY_TYPE = 14;
+    private static final byte LONG_ARRAY_TYPE = 15;
+    private static final byte FLOAT_ARRAY_TYPE = 16;
+    private static final byte DOUBLE_ARRAY_TYPE = 17;
+    private static final byte BOOLEAN_ARRAY_TYPE = 18;
+    private static final byte SHORT_ARRAY_DELTA_TYPE = 19;
+    private static final byte INT_ARRAY_DELTA_TYPE = 20;
+    private static final byte LONG_ARRAY_DELTA_TYPE = 21;
 
     public static void serialize(List<? extends VersionedObject> versionedObjectList, String path, String... backupPaths) throws IOException {
-        FragmentedByteArray byteArray = new FragmentedByteArray();
-        for (VersionedObject versionedObject : versionedObjectList) {
-            byteArray.add(serialize(versionedObject));
-        }
-        byte[] data = byteArray.generateArray();
-        FileReaderWriter.writeBytes(path, data);
-        for (String backupPath : backupPaths) {
-            FileReaderWriter.writeBytes(backupPath, data);
-        }
+        serialize(versionedObjectList, 0, path, backupPaths);
     }
 
     public static void serialize(VersionedObject versionedObject, String path, String... backupPaths) throws IOException {
-        byte[] data = serialize(versionedObject);
-        FileReaderWriter.writeBytes(path, data);
-        for (String backupPath : backupPaths) {
-            FileReaderWriter.writeBytes(backupPath, data);
-        }
+        serialize(versionedObject, 0, path, backupPaths);
     }
 
+    /**
+     * Serializes a list of objects into a file. Objects are streamed to the file, so the whole list is never held
+     * in memory. The file is written atomically, so a crash during the write does not corrupt a previous version.
+     * Backups are atomic copies of the written file, performed concurrently
+     */
     public static void serialize(List<? extends VersionedObject> versionedObjectList, int CRCBytes, String path, String... backupPaths) throws IOException {
-        FragmentedByteArray byteArray = new FragmentedByteArray();
-        for (VersionedObject versionedObject : versionedObjectList) {
-            byteArray.add(serialize(versionedObject, CRCBytes));
-        }
-        byte[] data = byteArray.generateArray();
-        FileReaderWriter.writeBytes(path, data);
-        for (String backupPath : backupPaths) {
-            FileReaderWriter.writeBytes(backupPath, data);
-        }
+        FileReaderWriter.writeAtomically(path, channel -> serialize(versionedObjectList, CRCBytes, channel));
+        FileReaderWriter.copyAtomically(path, backupPaths);
     }
 
     public static void serialize(VersionedObject versionedObject, int CRCBytes, String path, String... backupPaths) throws IOException {
-        byte[] data = serialize(versionedObject, CRCBytes);
-        FileReaderWriter.writeBytes(path, data);
-        for (String backupPath : backupPaths) {
-            FileReaderWriter.writeBytes(backupPath, data);
+        serialize(Collections.singletonList(versionedObject), CRCBytes, path, backupPaths);
+    }
+
+    /**
+     * Serializes a list of objects into a file, optionally with varints. Records with varints are not streamed, as
+     * their header depends on their length, so each of them is built in memory before being written to the file
+     *
+     * @param varInts whether counts, lengths and integer attributes are written as varints
+     */
+    public static void serialize(List<? extends VersionedObject> versionedObjectList, int CRCBytes, boolean varInts, String path, String... backupPaths) throws IOException {
+        if (!varInts) {
+            serialize(versionedObjectList, CRCBytes, path, backupPaths);
+        } else {
+            FileReaderWriter.writeAtomically(path, channel -> {
+                SerializerWriter writer = new SerializerWriter();
+                for (VersionedObject versionedObject : versionedObjectList) {
+                    writer.clear();
+                    serialize(versionedObject, CRCBytes, true, null, writer);
+                    ByteBuffer record = writer.buffer();
+                    while (record.hasRemaining()) {
+                        channel.write(record);
+                    }
+                }
+            });
+            FileReaderWriter.copyAtomically(path, backupPaths);
         }
     }
 
-    public static byte[] serialize(List<? extends VersionedObject> versionedObjectList) throws NotSerializableException {
-        FragmentedByteArray byteArray = new FragmentedByteArray();
+    public static void serialize(VersionedObject versionedObject, int CRCBytes, boolean varInts, String path, String... backupPaths) throws IOException {
+        serialize(Collections.singletonList(versionedObject), CRCBytes, varInts, path, backupPaths);
+    }
+
+    /**
+     * Serializes a list of objects into a channel, starting at its current position. Each record is streamed
+     * through a bounded buffer, with its CRC computed incrementally, and its header filled once it is complete.
+     * The written bytes are identical to those of serialize(versionedObjectList, CRCBytes)
+     *
+     * @param versionedObjectList objects to serialize
+     * @param CRCBytes            number of CRC bytes of each record
+     * @param channel             channel receiving the records
+     * @throws IOException if the channel could not be written, or a record exceeds the max record size
+     */
+    public static void serialize(List<? extends VersionedObject> versionedObjectList, int CRCBytes, FileChannel channel) throws IOException {
+        CRC32 crc32 = new CRC32();
+        SerializerWriter writer = new SerializerWriter(STREAM_BUFFER_SIZE, data -> {
+            crc32.update(data.duplicate());
+            while (data.hasRemaining()) {
+                channel.write(data);
+            }
+        });
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_LENGTH);
         for (VersionedObject versionedObject : versionedObjectList) {
-            byteArray.add(serialize(versionedObject));
+            long recordPosition = channel.position();
+            // the header is filled once the record data is written
+            header.clear();
+            writeFully(channel, header, recordPosition);
+            channel.position(recordPosition + RECORD_HEADER_LENGTH);
+            crc32.reset();
+            writer.clear();
+            try {
+                writeRecordData(versionedObject, null, false, writer);
+                writer.flush();
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            long dataLength = channel.position() - recordPosition - RECORD_HEADER_LENGTH;
+            if (dataLength > Integer.MAX_VALUE) {
+                throw new IOException("Serialized object too large: " + dataLength + " bytes");
+            }
+            writeFully(channel, ByteBuffer.wrap(CRC.calculateCRC(crc32, CRCBytes)), channel.position());
+            long recordEnd = channel.position() + CRCBytes;
+            header.clear();
+            header.putInt((int) dataLength).putInt(CRCBytes).flip();
+            writeFully(channel, header, recordPosition);
+            channel.position(recordEnd);
         }
-        return byteArray.generateArray();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer data, long position) throws IOException {
+        while (data.hasRemaining()) {
+            position += channel.write(data, position);
+        }
+    }
+
+    public static byte[] serialize(List<? extends VersionedObject> versionedObjectList) throws NotSerializableException {
+        return serialize(versionedObjectList, 0);
     }
 
     public static byte[] serialize(VersionedObject versionedObject) throws NotSerializableException {
@@ -82,61 +222,287 @@ public class VersionedObjectSerializer {
     }
 
     public static byte[] serialize(List<? extends VersionedObject> versionedObjectList, int CRCBytes) throws NotSerializableException {
-        FragmentedByteArray byteArray = new FragmentedByteArray();
+        return serialize(versionedObjectList, CRCBytes, false);
+    }
+
+    /**
+     * Serializes a list of objects, optionally with varints
+     *
+     * @param varInts whether counts, lengths and integer attributes are written as varints
+     */
+    public static byte[] serialize(List<? extends VersionedObject> versionedObjectList, int CRCBytes, boolean varInts) throws NotSerializableException {
+        SerializerWriter writer = new SerializerWriter();
         for (VersionedObject versionedObject : versionedObjectList) {
-            byteArray.add(serialize(versionedObject, CRCBytes));
+            serialize(versionedObject, CRCBytes, varInts, null, writer);
         }
-        return byteArray.generateArray();
+        return writer.toByteArray();
     }
 
     public static byte[] serialize(VersionedObject versionedObject, int CRCBytes) throws NotSerializableException {
-        FragmentedByteArray data = new FragmentedByteArray(Serializer.serializeObject(versionedObject.getCurrentVersion().toArrayList()));
+        return serialize(versionedObject, CRCBytes, false);
+    }
+
+    public static byte[] serialize(VersionedObject versionedObject, int CRCBytes, boolean varInts) throws NotSerializableException {
+        SerializerWriter writer = new SerializerWriter();
+        serialize(versionedObject, CRCBytes, varInts, null, writer);
+        return writer.toByteArray();
+    }
+
+    /**
+     * Serializes an object with a dictionary of attribute names shared with other records of the same stream
+     *
+     * @param versionedObject object to serialize
+     * @param CRCBytes        number of CRC bytes
+     * @param dictionary      dictionary of attribute names. Names not found in it are added. Null for a
+     *                        self-contained record
+     * @return the serialized record
+     */
+    public static byte[] serialize(VersionedObject versionedObject, int CRCBytes, AttributeNameDictionary dictionary) throws NotSerializableException {
+        SerializerWriter writer = new SerializerWriter();
+        serialize(versionedObject, CRCBytes, dictionary, writer);
+        return writer.toByteArray();
+    }
+
+    /**
+     * Serializes an object at the end of a writer, so several records can be written in the same buffer
+     *
+     * @param versionedObject object to serialize
+     * @param CRCBytes        number of CRC bytes
+     * @param dictionary      dictionary of attribute names. Names not found in it are added. Null for a
+     *                        self-contained record
+     * @param writer          writer receiving the serialized record
+     */
+    public static void serialize(VersionedObject versionedObject, int CRCBytes, AttributeNameDictionary dictionary, SerializerWriter writer) throws NotSerializableException {
+        serialize(versionedObject, CRCBytes, false, dictionary, writer);
+    }
+
+    /**
+     * Serializes an object at the end of a writer, optionally with varints
+     *
+     * @param versionedObject object to serialize
+     * @param CRCBytes        number of CRC bytes
+     * @param varInts         whether counts, lengths and integer attributes are written as varints
+     * @param dictionary      dictionary of attribute names. Names not found in it are added. Null for a
+     *                        self-contained record
+     * @param writer          writer receiving the serialized record
+     */
+    public static void serialize(VersionedObject versionedObject, int CRCBytes, boolean varInts, AttributeNameDictionary dictionary, SerializerWriter writer) throws NotSerializableException {
+        if (varInts) {
+            // the length of the compact CRC header is not known until the data is written
+            SerializerWriter dataWriter = new SerializerWriter();
+            writeRecordData(versionedObject, dictionary, true, dataWriter);
+            CRC.writeRecord(writer, dataWriter.buffer(), CRCBytes, true);
+        } else {
+            int recordPosition = CRC.startRecord(writer);
+            writeRecordData(versionedObject, dictionary, false, writer);
+            CRC.endRecord(writer, recordPosition, CRCBytes);
+        }
+    }
+
+    private static void writeRecordData(VersionedObject versionedObject, AttributeNameDictionary dictionary, boolean varInts, SerializerWriter writer) throws NotSerializableException {
+        byte formatVersion;
+        if (dictionary != null) {
+            formatVersion = varInts ? VARINT_FORMAT_VERSION : FORMAT_VERSION;
+        } else {
+            formatVersion = varInts ? SELF_CONTAINED_VARINT_FORMAT_VERSION : SELF_CONTAINED_FORMAT_VERSION;
+        }
+        writer.write(FORMAT_MARKER).write(formatVersion);
+        List<String> versions = versionedObject.getCurrentVersion().toArrayList();
+        writeCount(versions.size(), varInts, writer);
+        for (String version : versions) {
+            writeString(version, varInts, writer);
+        }
         Map<String, Serializable> attributes = versionedObject.serialize();
-        data.add(Serializer.serialize(attributes.size()));
+        writeCount(attributes.size(), varInts, writer);
         for (Map.Entry<String, Serializable> entry : attributes.entrySet()) {
-            byte[] attributeName = Serializer.serialize(entry.getKey());
-            // find the type of the attributes
-            byte[] type;
-            byte[] attributeArray;
-            Object attribute = entry.getValue();
-            if (attribute instanceof String) {
-                type = STRING_TYPE;
-                attributeArray = Serializer.serialize((String) attribute);
-            } else if (attribute instanceof Boolean || attribute == null) {
-                // null value are serialized as a null Boolean
-                type = BOOLEAN_TYPE;
-                attributeArray = Serializer.serialize((Boolean) attribute);
-            } else if (attribute instanceof Byte) {
-                type = BYTE_TYPE;
-                attributeArray = Serializer.serialize((Byte) attribute);
-            } else if (attribute instanceof Short) {
-                type = SHORT_TYPE;
-                attributeArray = Serializer.serialize((Short) attribute);
-            } else if (attribute instanceof Integer) {
-                type = INTEGER_TYPE;
-                attributeArray = Serializer.serialize((Integer) attribute);
-            } else if (attribute instanceof Long) {
-                type = LONG_TYPE;
-                attributeArray = Serializer.serialize((Long) attribute);
-            } else if (attribute instanceof Float) {
-                type = FLOAT_TYPE;
-                attributeArray = Serializer.serialize((Float) attribute);
-            } else if (attribute instanceof Double) {
-                type = DOUBLE_TYPE;
-                attributeArray = Serializer.serialize((Double) attribute);
-            } else if (attribute instanceof Enum<?>) {
-                type = ENUM_TYPE;
-                attributeArray = Serializer.addArrays(Serializer.serialize(attribute.getClass().getName()), Serializer.serialize((Enum) attribute));
-            } else if (attribute instanceof byte[]) {
-                type = BYTE_ARRAY_TYPE;
-                attributeArray = Serializer.serialize((byte[]) attribute);
+            writeName(entry.getKey(), dictionary, varInts, writer);
+            writeAttributeValue(entry.getValue(), varInts, writer);
+        }
+    }
+
+    private static void writeCount(int count, boolean varInts, SerializerWriter writer) {
+        if (varInts) {
+            writer.writeVarInt(count);
+        } else {
+            writer.write(count);
+        }
+    }
+
+    private static void writeString(String str, boolean varInts, SerializerWriter writer) {
+        if (varInts) {
+            writer.writeCompact(str);
+        } else {
+            writer.write(str);
+        }
+    }
+
+    /**
+     * Writes a name (of an attribute or a class) through a dictionary
+     */
+    static void writeName(String name, AttributeNameDictionary dictionary, SerializerWriter writer) {
+        writeName(name, dictionary, false, writer);
+    }
+
+    private static void writeName(String name, AttributeNameDictionary dictionary, boolean varInts, SerializerWriter writer) {
+        if (dictionary == null) {
+            // self-contained record
+            writeString(name, varInts, writer);
+            return;
+        }
+        int nameIndex = dictionary.indexOf(name);
+        if (nameIndex >= 0) {
+            writer.write((byte) nameIndex);
+        } else {
+            writer.write(NEW_NAME);
+            writeString(name, varInts, writer);
+            dictionary.add(name);
+        }
+    }
+
+    /**
+     * Writes the type and value of a single attribute, optionally with varints. With varints, strings, byte
+     * arrays, enums, short, int and long values, and values written with codecs or java serialization, are
+     * written with varint lengths or as zigzag varints. Other types are written as in the regular format
+     *
+     * @param attribute attribute value (can be null)
+     * @param varInts   whether lengths and integers are written as varints
+     * @param writer    writer receiving the attribute
+     */
+    private static void writeAttributeValue(Object attribute, boolean varInts, SerializerWriter writer) throws NotSerializableException {
+        if (!varInts || attribute == null) {
+            writeAttributeValue(attribute, writer);
+        } else if (attribute instanceof String) {
+            writer.write(STRING_TYPE).writeCompact((String) attribute);
+        } else if (attribute instanceof Short) {
+            writer.write(SHORT_TYPE).writeVarInt(SerializerWriter.zigZag((int) (short) attribute));
+        } else if (attribute instanceof Integer) {
+            writer.write(INTEGER_TYPE).writeVarInt(SerializerWriter.zigZag((int) attribute));
+        } else if (attribute instanceof Long) {
+            writer.write(LONG_TYPE).writeVarLong(SerializerWriter.zigZag((long) attribute));
+        } else if (attribute instanceof Enum<?>) {
+            writer.write(ENUM_TYPE).writeCompact(((Enum<?>) attribute).getDeclaringClass().getName()).writeVarInt(((Enum<?>) attribute).ordinal());
+        } else if (attribute instanceof byte[]) {
+            writer.write(BYTE_ARRAY_TYPE).writeCompact((byte[]) attribute);
+        } else if (!CodecRegistry.canWrite(attribute)) {
+            writer.write(SERIALIZABLE_TYPE).writeCompact(Serializer.serializeObjectWithoutLengthHeader((Serializable) attribute));
+        } else if (CodecRegistry.get(attribute.getClass()) != null) {
+            // the codec data is written apart, as its length goes first
+            SerializerWriter codecWriter = new SerializerWriter();
+            new CodecContext().writeCodecValue(attribute, codecWriter);
+            writer.write(CODEC_TYPE).writeVarInt(codecWriter.position()).writeRaw(codecWriter.buffer());
+        } else {
+            writeAttributeValue(attribute, writer);
+        }
+    }
+
+    /**
+     * Writes the type and value of a single attribute
+     *
+     * @param attribute attribute value (can be null)
+     * @param writer    writer receiving the attribute
+     */
+    static void writeAttributeValue(Object attribute, SerializerWriter writer) throws NotSerializableException {
+        if (attribute == null) {
+            writer.write(NULL_TYPE);
+        } else if (attribute instanceof String) {
+            writer.write(STRING_TYPE).write((String) attribute);
+        } else if (attribute instanceof Boolean) {
+            writer.write(BOOLEAN_TYPE).write((boolean) attribute);
+        } else if (attribute instanceof Byte) {
+            writer.write(BYTE_TYPE).write((byte) attribute);
+        } else if (attribute instanceof Short) {
+            writer.write(SHORT_TYPE).write((short) attribute);
+        } else if (attribute instanceof Integer) {
+            writer.write(INTEGER_TYPE).write((int) attribute);
+        } else if (attribute instanceof Long) {
+            writer.write(LONG_TYPE).write((long) attribute);
+        } else if (attribute instanceof Float) {
+            writer.write(FLOAT_TYPE).write((float) attribute);
+        } else if (attribute instanceof Double) {
+            writer.write(DOUBLE_TYPE).write((double) attribute);
+        } else if (attribute instanceof Enum<?>) {
+            writer.write(ENUM_TYPE).write(((Enum<?>) attribute).getDeclaringClass().getName()).write((Enum<?>) attribute);
+        } else if (attribute instanceof byte[]) {
+            writer.write(BYTE_ARRAY_TYPE).write((byte[]) attribute);
+        } else if (attribute instanceof short[]) {
+            short[] array = (short[]) attribute;
+            if (deltaSize(array) < 4 + array.length * 2L) {
+                writer.write(SHORT_ARRAY_DELTA_TYPE).writeDelta(array);
+            } else {
+                writer.write(SHORT_ARRAY_TYPE).write(array);
+            }
+        } else if (attribute instanceof int[]) {
+            int[] array = (int[]) attribute;
+            if (deltaSize(array) < 4 + array.length * 4L) {
+                writer.write(INT_ARRAY_DELTA_TYPE).writeDelta(array);
             } else {
-                type = SERIALIZABLE_TYPE;
-                attributeArray = Serializer.serializeObject((Serializable) attribute);
+                writer.write(INT_ARRAY_TYPE).write(array);
             }
-            data.add(attributeName, type, attributeArray).generateArray();
+        } else if (attribute instanceof long[]) {
+            long[] array = (long[]) attribute;
+            if (deltaSize(array) < 4 + array.length * 8L) {
+                writer.write(LONG_ARRAY_DELTA_TYPE).writeDelta(array);
+            } else {
+                writer.write(LONG_ARRAY_TYPE).write(array);
+            }
+        } else if (attribute instanceof float[]) {
+            writer.write(FLOAT_ARRAY_TYPE).write((float[]) attribute);
+        } else if (attribute instanceof double[]) {
+            writer.write(DOUBLE_ARRAY_TYPE).write((double[]) attribute);
+        } else if (attribute instanceof boolean[]) {
+            writer.write(BOOLEAN_ARRAY_TYPE).write((boolean[]) attribute);
+        } else if (CodecRegistry.canWrite(attribute)) {
+            writer.write(CODEC_TYPE);
+            int lengthPosition = writer.startLength();
+            new CodecContext().writeCodecValue(attribute, writer);
+            writer.endLength(lengthPosition);
+        } else {
+            writer.write(SERIALIZABLE_TYPE).writeObject((Serializable) attribute);
+        }
+    }
+
+    /**
+     * Size of an array written with SerializerWriter.writeDelta (excluding the null flag)
+     */
+    private static long deltaSize(short[] array) {
+        long size = SerializerWriter.varIntSize(array.length);
+        int previous = 0;
+        for (short value : array) {
+            size += SerializerWriter.varIntSize(SerializerWriter.zigZag(value - previous));
+            previous = value;
         }
-        return CRC.addCRC(data.generateArray(), CRCBytes, true);
+        return size;
+    }
+
+    private static long deltaSize(int[] array) {
+        long size = SerializerWriter.varIntSize(array.length);
+        int previous = 0;
+        for (int value : array) {
+            size += SerializerWriter.varIntSize(SerializerWriter.zigZag(value - previous));
+            previous = value;
+        }
+        return size;
+    }
+
+    private static long deltaSize(long[] array) {
+        long size = SerializerWriter.varIntSize(array.length);
+        long previous = 0;
+        for (long value : array) {
+            size += SerializerWriter.varLongSize(SerializerWriter.zigZag(value - previous));
+            previous = value;
+        }
+        return size;
+    }
+
+    /**
+     * Writes the type of a value nested in a codec value, which is written next with a codec
+     */
+    static void writeCodecType(SerializerWriter writer) {
+        writer.write(CODEC_TYPE);
+    }
+
+    static boolean isCodecType(byte type) {
+        return type == CODEC_TYPE;
     }
 
     public static void deserialize(VersionedObject versionedObject, String path, String... backupPaths) throws VersionedSerializationException, IOException {
@@ -155,7 +521,7 @@ public class VersionedObjectSerializer {
                 backupPaths = Arrays.copyOfRange(backupPaths, 1, backupPaths.length);
                 List<String> repairedFiles = deserialize(versionedObject, newPath, repairIfBroken, backupPaths);
                 if (repairIfBroken) {
-                    Files.copy(Paths.get(newPath), Paths.get(path), StandardCopyOption.REPLACE_EXISTING);
+                    FileReaderWriter.copyAtomically(newPath, path);
                     repairedFiles.add(path);
                 }
                 return repairedFiles;
@@ -170,70 +536,45 @@ public class VersionedObjectSerializer {
     }
 
     public static void deserialize(VersionedObject versionedObject, byte[] data, MutableOffset offset) throws VersionedSerializationException {
+        deserialize(versionedObject, data, offset, new AttributeNameDictionary());
+    }
+
+    /**
+     * Deserializes an object with a dictionary of attribute names shared with other records of the same stream
+     *
+     * @param versionedObject object receiving the deserialized attributes
+     * @param data            serialized data
+     * @param offset          offset of the record in the data. It is moved past the record
+     * @param dictionary      dictionary of attribute names, in the same state as the one used for serializing
+     *                        the record. Names serialized in full are added
+     */
+    public static void deserialize(VersionedObject versionedObject, byte[] data, MutableOffset offset, AttributeNameDictionary dictionary) throws VersionedSerializationException {
+        SerializerReader reader = new SerializerReader(data, offset.value());
+        try {
+            deserialize(versionedObject, reader, dictionary);
+        } finally {
+            offset.add(reader.position() - offset.value());
+        }
+    }
+
+    /**
+     * Deserializes an object from a reader, so several records can be read from the same buffer
+     *
+     * @param versionedObject object receiving the deserialized attributes
+     * @param reader          reader positioned at the record. It is moved past the record
+     * @param dictionary      dictionary of attribute names, in the same state as the one used for serializing
+     *                        the record. Names serialized in full are added
+     */
+    public static void deserialize(VersionedObject versionedObject, SerializerReader reader, AttributeNameDictionary dictionary) throws VersionedSerializationException {
         VersionStack versionStack = null;
         Map<String, Object> attributes = new HashMap<>();
         try {
-            data = CRC.extractDataWithCRC(data, offset);
-            MutableOffset dataOffset = new MutableOffset();
-            versionStack = new VersionStack ((ArrayList<String>) Serializer.deserializeObject(data, dataOffset));
-            int attributeCount = Serializer.deserializeIntValue(data, dataOffset);
-            for (int i = 0; i < attributeCount; i++) {
-                String attributeName = Serializer.deserializeString(data, dataOffset);
-                String type = Serializer.deserializeString(data, dataOffset);
-                if (type == null) {
-                    throw new RuntimeException();
-                }
-                switch (type) {
-                    case "String":
-                        attributes.put(attributeName, Serializer.deserializeString(data, dataOffset));
-                        break;
-
-                    case "Boolean":
-                        attributes.put(attributeName, Serializer.deserializeBoolean(data, dataOffset));
-                        break;
-
-                    case "Byte":
-                        attributes.put(attributeName, Serializer.deserializeByte(data, dataOffset));
-                        break;
-
-                    case "Short":
-                        attributes.put(attributeName, Serializer.deserializeShort(data, dataOffset));
-                        break;
-
-                    case "Integer":
-                        attributes.put(attributeName, Serializer.deserializeInt(data, dataOffset));
-                        break;
-
-                    case "Long":
-                        attributes.put(attributeName, Serializer.deserializeLong(data, dataOffset));
-                        break;
-
-                    case "Float":
-                        attributes.put(attributeName, Serializer.deserializeFloat(data, dataOffset));
-                        break;
-
-                    case "Double":
-                        attributes.put(attributeName, Serializer.deserializeDouble(data, dataOffset));
-                        break;
-
-                    case "Enum":
-                        String enumType = Serializer.deserializeString(data, dataOffset);
-                        Class enumClass = Class.forName(enumType);
-                        attributes.put(attributeName, Serializer.deserializeEnum(enumClass, data, dataOffset));
-                        break;
-
-                    case "ByteArray":
-                        attributes.put(attributeName, Serializer.deserializeBytes(data, dataOffset));
-                        break;
-
-                    case "Serializable":
-                        attributes.put(attributeName, Serializer.deserializeObject(data, dataOffset));
-                        break;
-
-                    default:
-                        // the VersionedObjectSerializer failed when deserializing the byte array
-                        throw new RuntimeException("Unexpected type: " + type);
-                }
+            SerializerReader data = CRC.readRecord(reader);
+            byte formatVersion = readFormatVersion(data);
+            if (formatVersion != ORIGINAL_FORMAT_VERSION) {
+                versionStack = deserializeAttributes(data, usesDictionary(formatVersion) ? dictionary : null, isVarIntFormat(formatVersion), attributes);
+            } else {
+                versionStack = deserializeOriginalAttributes(data, attributes);
             }
             versionedObject.deserialize(versionStack.retrieveVersion(), attributes, versionStack);
         } catch (RuntimeException e) {
@@ -246,4 +587,614 @@ public class VersionedObjectSerializer {
             throw new VersionedSerializationException(null, attributes, VersionedSerializationException.Reason.CRC_MISMATCH);
         }
     }
+
+    /**
+     * Deserializes a list of objects from a file (written with serialize(List)), decoding the objects in parallel
+     * on the common ForkJoinPool. The file is memory-mapped. If the file cannot be read or is not correct, the
+     * backups are tried in order
+     *
+     * @param objectFactory supplier of the objects receiving the deserialized attributes
+     * @return the deserialized objects, in the same order as they were serialized
+     */
+    public static <T extends VersionedObject> List<T> deserializeParallel(Supplier<? extends T> objectFactory, String path, String... backupPaths) throws VersionedSerializationException, IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            List<T> objects = new ArrayList<>();
+            deserializeParallel(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), objectFactory, ForkJoinPool.commonPool(), objects::add);
+            return objects;
+        } catch (VersionedSerializationException | IOException e) {
+            // try with backup
+            if (backupPaths.length > 0) {
+                return deserializeParallel(objectFactory, backupPaths[0], Arrays.copyOfRange(backupPaths, 1, backupPaths.length));
+            } else {
+                throw e;
+            }
+        }
+    }
+
+    public static <T extends VersionedObject> List<T> deserializeParallel(byte[] data, Supplier<? extends T> objectFactory) throws VersionedSerializationException {
+        List<T> objects = new ArrayList<>();
+        deserializeParallel(ByteBuffer.wrap(data), objectFactory, ForkJoinPool.commonPool(), objects::add);
+        return objects;
+    }
+
+    /**
+     * Deserializes a list of objects in two phases. First, the record boundaries are found by scanning the record
+     * headers. Then, the records are decoded in parallel (in batches of consecutive records), and pushed to a
+     * consumer in their original order. The records must be self-contained (not serialized with a shared
+     * AttributeNameDictionary), as those written by serialize(List)
+     *
+     * @param data          buffer with the serialized records (for instance, a memory-mapped file). Its position is
+     *                      not modified
+     * @param objectFactory supplier of the objects receiving the deserialized attributes. It is invoked
+     *                      concurrently
+     * @param pool          pool decoding the records
+     * @param consumer      receiver of the deserialized objects, in order. It is invoked from the calling thread
+     * @throws VersionedSerializationException if a record could not be deserialized. Objects of previous records
+     *                                         have already been consumed
+     */
+    public static <T extends VersionedObject> void deserializeParallel(ByteBuffer data, Supplier<? extends T> objectFactory, ForkJoinPool pool, Consumer<? super T> consumer) throws VersionedSerializationException {
+        List<SerializerReader> batches = scanBatches(data);
+        List<ForkJoinTask<List<T>>> tasks = new ArrayList<>(batches.size());
+        for (SerializerReader reader : batches) {
+            tasks.add(pool.submit(() -> {
+                List<T> objects = new ArrayList<>();
+                while (reader.remaining() > 0) {
+                    T versionedObject = objectFactory.get();
+                    deserialize(versionedObject, reader, new AttributeNameDictionary());
+                    objects.add(versionedObject);
+                }
+                return objects;
+            }));
+        }
+        try {
+            for (ForkJoinTask<List<T>> task : tasks) {
+                task.get().forEach(consumer);
+            }
+        } catch (ExecutionException e) {
+            // the pool wraps checked exceptions of the tasks
+            for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+                if (cause instanceof VersionedSerializationException) {
+                    throw (VersionedSerializationException) cause;
+                }
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            } else {
+                throw new RuntimeException(e.getCause());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } finally {
+            for (ForkJoinTask<List<T>> task : tasks) {
+                task.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * Finds the boundaries of the records of a buffer, and groups consecutive records in batches of at least
+     * PARALLEL_BATCH_SIZE bytes (except the last one)
+     */
+    private static List<SerializerReader> scanBatches(ByteBuffer data) throws VersionedSerializationException {
+        List<SerializerReader> batches = new ArrayList<>();
+        SerializerReader scanner = new SerializerReader(data);
+        SerializerReader slicer = new SerializerReader(data);
+        try {
+            while (scanner.remaining() > 0) {
+                int batchStart = scanner.position();
+                while (scanner.position() - batchStart < PARALLEL_BATCH_SIZE && scanner.remaining() > 0) {
+                    int recordPosition = scanner.position();
+                    long recordLength = CRC.readRecordLength(scanner);
+                    scanner.position(recordPosition);
+                    scanner.skip(recordLength <= Integer.MAX_VALUE ? (int) recordLength : -1);
+                }
+                batches.add(slicer.slice(scanner.position() - batchStart));
+            }
+        } catch (RuntimeException e) {
+            throw new VersionedSerializationException(null, new HashMap<>(), VersionedSerializationException.Reason.INCORRECT_DATA);
+        }
+        return batches;
+    }
+
+    /**
+     * Reads the format header of the data of a record
+     *
+     * @return the format version, or ORIGINAL_FORMAT_VERSION for records in the original format (the data is then
+     * left at its start)
+     * @throws RuntimeException if the format version is not known
+     */
+    private static byte readFormatVersion(SerializerReader data) {
+        if (data.remaining() > 0 && data.readByteValue() == FORMAT_MARKER) {
+            byte formatVersion = data.readByteValue();
+            if (formatVersion < FORMAT_VERSION || formatVersion > SELF_CONTAINED_VARINT_FORMAT_VERSION) {
+                throw new RuntimeException("Unexpected format version: " + formatVersion);
+            }
+            return formatVersion;
+        } else {
+            data.position(0);
+            return ORIGINAL_FORMAT_VERSION;
+        }
+    }
+
+    private static boolean isVarIntFormat(byte formatVersion) {
+        return formatVersion == VARINT_FORMAT_VERSION || formatVersion == SELF_CONTAINED_VARINT_FORMAT_VERSION;
+    }
+
+    private static boolean usesDictionary(byte formatVersion) {
+        return formatVersion == FORMAT_VERSION || formatVersion == VARINT_FORMAT_VERSION;
+    }
+
+    /**
+     * Scans the data of a record without decoding its attribute values, and finds the position of each value
+     *
+     * @param data               data of the record (with no CRC header)
+     * @param attributePositions map receiving the position of the value of each attribute, in record order
+     * @return the version stack of the record
+     * @throws RuntimeException if the data is not correct
+     */
+    static VersionStack indexAttributes(SerializerReader data, Map<String, Integer> attributePositions) throws ClassNotFoundException {
+        byte formatVersion = readFormatVersion(data);
+        if (formatVersion != ORIGINAL_FORMAT_VERSION) {
+            boolean varInts = isVarIntFormat(formatVersion);
+            AttributeNameDictionary dictionary = usesDictionary(formatVersion) ? new AttributeNameDictionary() : null;
+            VersionStack versionStack = readVersionStack(data, varInts);
+            int attributeCount = readCount(data, varInts);
+            for (int i = 0; i < attributeCount; i++) {
+                String attributeName = readName(data, dictionary, varInts);
+                attributePositions.put(attributeName, data.position());
+                skipAttributeValue(data.readByteValue(), varInts, data);
+            }
+            return versionStack;
+        } else {
+            VersionStack versionStack = new VersionStack((ArrayList<String>) data.readObject());
+            int attributeCount = data.readIntValue();
+            for (int i = 0; i < attributeCount; i++) {
+                String attributeName = data.readString();
+                attributePositions.put(attributeName, data.position());
+                skipOriginalAttributeValue(data.readString(), data);
+            }
+            return versionStack;
+        }
+    }
+
+    /**
+     * Decodes a single attribute value of a record, previously located with indexAttributes
+     *
+     * @param data     data of the record (with no CRC header)
+     * @param position position of the value, as found by indexAttributes
+     * @return the attribute value
+     * @throws RuntimeException if the data is not correct
+     */
+    static Object readAttribute(SerializerReader data, int position) throws ClassNotFoundException {
+        byte formatVersion = readFormatVersion(data);
+        data.position(position);
+        if (formatVersion != ORIGINAL_FORMAT_VERSION) {
+            return readAttributeValue(data.readByteValue(), isVarIntFormat(formatVersion), data);
+        } else {
+            return readOriginalAttributeValue(data.readString(), data);
+        }
+    }
+
+    private static VersionStack readVersionStack(SerializerReader data, boolean varInts) {
+        int versionCount = readCount(data, varInts);
+        ArrayList<String> versions = new ArrayList<>(Math.min(versionCount, data.remaining()));
+        for (int i = 0; i < versionCount; i++) {
+            versions.add(readString(data, varInts));
+        }
+        return new VersionStack(versions);
+    }
+
+    private static int readCount(SerializerReader data, boolean varInts) {
+        return varInts ? data.readVarInt() : data.readIntValue();
+    }
+
+    private static String readString(SerializerReader data, boolean varInts) {
+        return varInts ? data.readCompactString() : data.readString();
+    }
+
+    /**
+     * Reads a name (of an attribute or a class) written with writeName
+     */
+    static String readName(SerializerReader data, AttributeNameDictionary dictionary) {
+        return readName(data, dictionary, false);
+    }
+
+    private static String readName(SerializerReader data, AttributeNameDictionary dictionary, boolean varInts) {
+        if (dictionary == null) {
+            // self-contained record
+            return readString(data, varInts);
+        }
+        byte nameIndex = data.readByteValue();
+        if (nameIndex == NEW_NAME) {
+            String attributeName = readString(data, varInts);
+            dictionary.add(attributeName);
+            return attributeName;
+        } else {
+            return dictionary.get(nameIndex & 0xFF);
+        }
+    }
+
+    private static VersionStack deserializeAttributes(SerializerReader data, AttributeNameDictionary dictionary, boolean varInts, Map<String, Object> attributes) throws ClassNotFoundException {
+        VersionStack versionStack = readVersionStack(data, varInts);
+        int attributeCount = readCount(data, varInts);
+        for (int i = 0; i < attributeCount; i++) {
+            String attributeName = readName(data, dictionary, varInts);
+            attributes.put(attributeName, readAttributeValue(data.readByteValue(), varInts, data));
+        }
+        return versionStack;
+    }
+
+    /**
+     * Reads an attribute value written with writeAttributeValue, optionally with varints
+     */
+    private static Object readAttributeValue(byte type, boolean varInts, SerializerReader data) throws ClassNotFoundException {
+        if (!varInts) {
+            return readAttributeValue(type, data);
+        }
+        switch (type) {
+            case STRING_TYPE:
+                return data.readCompactString();
+
+            case SHORT_TYPE:
+                return (short) SerializerReader.unZigZag(data.readVarInt());
+
+            case INTEGER_TYPE:
+                return SerializerReader.unZigZag(data.readVarInt());
+
+            case LONG_TYPE:
+                return SerializerReader.unZigZag(data.readVarLong());
+
+            case ENUM_TYPE:
+                Object[] enumValues = Class.forName(data.readCompactString()).getEnumConstants();
+                int ordinal = data.readVarInt();
+                return ordinal >= 0 && ordinal < enumValues.length ? enumValues[ordinal] : null;
+
+            case BYTE_ARRAY_TYPE:
+                return data.readCompactBytes();
+
+            case SERIALIZABLE_TYPE:
+                return Serializer.deserializeObjectWithoutLengthHeader(data.readCompactBytes());
+
+            case CODEC_TYPE:
+                return new CodecContext().readCodecValue(data.slice(data.readVarInt()));
+
+            default:
+                return readAttributeValue(type, data);
+        }
+    }
+
+    static Object readAttributeValue(byte type, SerializerReader data) throws ClassNotFoundException {
+        switch (type) {
+            case NULL_TYPE:
+                return null;
+
+            case STRING_TYPE:
+                return data.readString();
+
+            case BOOLEAN_TYPE:
+                return data.readBooleanValue();
+
+            case BYTE_TYPE:
+                return data.readByteValue();
+
+            case SHORT_TYPE:
+                return data.readShortValue();
+
+            case INTEGER_TYPE:
+                return data.readIntValue();
+
+            case LONG_TYPE:
+                return data.readLongValue();
+
+            case FLOAT_TYPE:
+                return data.readFloatValue();
+
+            case DOUBLE_TYPE:
+                return data.readDoubleValue();
+
+            case ENUM_TYPE:
+                Class enumClass = Class.forName(data.readString());
+                return data.readEnum(enumClass);
+
+            case BYTE_ARRAY_TYPE:
+                return data.readBytes();
+
+            case SERIALIZABLE_TYPE:
+                return data.readObject();
+
+            case CODEC_TYPE:
+                return new CodecContext().readCodecValue(data.slice(data.readIntValue()));
+
+            case SHORT_ARRAY_TYPE:
+                return data.readShortArray();
+
+            case INT_ARRAY_TYPE:
+                return data.readIntArray();
+
+            case LONG_ARRAY_TYPE:
+                return data.readLongArray();
+
+            case FLOAT_ARRAY_TYPE:
+                return data.readFloatArray();
+
+            case DOUBLE_ARRAY_TYPE:
+                return data.readDoubleArray();
+
+            case BOOLEAN_ARRAY_TYPE:
+                return data.readBooleanArray();
+
+            case SHORT_ARRAY_DELTA_TYPE:
+                return data.readShortArrayDelta();
+
+            case INT_ARRAY_DELTA_TYPE:
+                return data.readIntArrayDelta();
+
+            case LONG_ARRAY_DELTA_TYPE:
+                return data.readLongArrayDelta();
+
+            default:
+                // the VersionedObjectSerializer failed when deserializing the byte array
+                throw new RuntimeException("Unexpected type: " + type);
+        }
+    }
+
+    private static void skipAttributeValue(byte type, SerializerReader data) {
+        switch (type) {
+            case NULL_TYPE:
+                break;
+
+            case STRING_TYPE:
+                skipString(data);
+                break;
+
+            case BOOLEAN_TYPE:
+            case BYTE_TYPE:
+                data.skip(1);
+                break;
+
+            case SHORT_TYPE:
+                data.skip(2);
+                break;
+
+            case INTEGER_TYPE:
+            case FLOAT_TYPE:
+                data.skip(4);
+                break;
+
+            case LONG_TYPE:
+            case DOUBLE_TYPE:
+                data.skip(8);
+                break;
+
+            case ENUM_TYPE:
+                skipString(data);
+                data.skip(4);
+                break;
+
+            case BYTE_ARRAY_TYPE:
+                skipBytes(data);
+                break;
+
+            case SERIALIZABLE_TYPE:
+            case CODEC_TYPE:
+                data.skip(data.readIntValue());
+                break;
+
+            case SHORT_ARRAY_TYPE:
+                skipArray(data, 2);
+                break;
+
+            case INT_ARRAY_TYPE:
+            case FLOAT_ARRAY_TYPE:
+                skipArray(data, 4);
+                break;
+
+            case LONG_ARRAY_TYPE:
+            case DOUBLE_ARRAY_TYPE:
+                skipArray(data, 8);
+                break;
+
+            case BOOLEAN_ARRAY_TYPE:
+                if (data.readBooleanValue()) {
+                    data.skip((data.readIntValue() + 7) / 8);
+                }
+                break;
+
+            case SHORT_ARRAY_DELTA_TYPE:
+            case INT_ARRAY_DELTA_TYPE:
+            case LONG_ARRAY_DELTA_TYPE:
+                if (data.readBooleanValue()) {
+                    int length = data.readVarInt();
+                    for (int i = 0; i < length; i++) {
+                        data.readVarLong();
+                    }
+                }
+                break;
+
+            default:
+                // the VersionedObjectSerializer failed when deserializing the byte array
+                throw new RuntimeException("Unexpected type: " + type);
+        }
+    }
+
+    private static void skipAttributeValue(byte type, boolean varInts, SerializerReader data) {
+        if (!varInts) {
+            skipAttributeValue(type, data);
+            return;
+        }
+        switch (type) {
+            case STRING_TYPE:
+            case BYTE_ARRAY_TYPE:
+            case SERIALIZABLE_TYPE:
+                skipCompact(data);
+                break;
+
+            case SHORT_TYPE:
+            case INTEGER_TYPE:
+                data.readVarInt();
+                break;
+
+            case LONG_TYPE:
+                data.readVarLong();
+                break;
+
+            case ENUM_TYPE:
+                skipCompact(data);
+                data.readVarInt();
+                break;
+
+            case CODEC_TYPE:
+                data.skip(data.readVarInt());
+                break;
+
+            default:
+                skipAttributeValue(type, data);
+        }
+    }
+
+    /**
+     * Skips a string or byte array written with a varint length header
+     */
+    private static void skipCompact(SerializerReader data) {
+        int length = data.readVarInt() - 1;
+        if (length != -1) {
+            data.skip(length);
+        }
+    }
+
+    private static void skipString(SerializerReader data) {
+        int strLen = data.readIntValue();
+        if (strLen > 0) {
+            data.skip(strLen);
+        }
+    }
+
+    private static void skipArray(SerializerReader data, int elementWidth) {
+        if (data.readBooleanValue()) {
+            long length = (long) data.readIntValue() * elementWidth;
+            data.skip(length >= 0 && length <= Integer.MAX_VALUE ? (int) length : -1);
+        }
+    }
+
+    private static void skipBytes(SerializerReader data) {
+        if (data.readBooleanValue()) {
+            data.skip(data.readIntValue());
+        }
+    }
+
+    /**
+     * Deserializes the attributes of a record in the original format, with string types and names
+     */
+    private static VersionStack deserializeOriginalAttributes(SerializerReader data, Map<String, Object> attributes) throws ClassNotFoundException {
+        VersionStack versionStack = new VersionStack((ArrayList<String>) data.readObject());
+        int attributeCount = data.readIntValue();
+        for (int i = 0; i < attributeCount; i++) {
+            String attributeName = data.readString();
+            attributes.put(attributeName, readOriginalAttributeValue(data.readString(), data));
+        }
+        return versionStack;
+    }
+
+    private static Object readOriginalAttributeValue(String type, SerializerReader data) throws ClassNotFoundException {
+        if (type == null) {
+            throw new RuntimeException();
+        }
+        switch (type) {
+            case "String":
+                return data.readString();
+
+            case "Boolean":
+                return data.readBoolean();
+
+            case "Byte":
+                return data.readByte();
+
+            case "Short":
+                return data.readShort();
+
+            case "Integer":
+                return data.readInt();
+
+            case "Long":
+                return data.readLong();
+
+            case "Float":
+                return data.readFloat();
+
+            case "Double":
+                return data.readDouble();
+
+            case "Enum":
+                String enumType = data.readString();
+                Class enumClass = Class.forName(enumType);
+                return data.readEnum(enumClass);
+
+            case "ByteArray":
+                return data.readBytes();
+
+            case "Serializable":
+                return data.readObject();
+
+            default:
+                // the VersionedObjectSerializer failed when deserializing the byte array
+                throw new RuntimeException("Unexpected type: " + type);
+        }
+    }
+
+    private static void skipOriginalAttributeValue(String type, SerializerReader data) {
+        if (type == null) {
+            throw new RuntimeException();
+        }
+        switch (type) {
+            case "String":
+                skipString(data);
+                break;
+
+            case "Boolean":
+                data.skip(1);
+                break;
+
+            case "Byte":
+                skipBoxed(data, 1);
+                break;
+
+            case "Short":
+                skipBoxed(data, 2);
+                break;
+
+            case "Integer":
+            case "Float":
+                skipBoxed(data, 4);
+                break;
+
+            case "Long":
+            case "Double":
+                skipBoxed(data, 8);
+                break;
+
+            case "Enum":
+                skipString(data);
+                data.skip(4);
+                break;
+
+            case "ByteArray":
+                skipBytes(data);
+                break;
+
+            case "Serializable":
+                data.skip(data.readIntValue());
+                break;
+
+            default:
+                // the VersionedObjectSerializer failed when deserializing the byte array
+                throw new RuntimeException("Unexpected type: " + type);
+        }
+    }
+
+    private static void skipBoxed(SerializerReader data, int length) {
+        if (data.readBooleanValue()) {
+            data.skip(length);
+        }
+    }
 }
@@ -1,7 +1,11 @@
 package org.aanguita.jacuzzi.io.serialization.activejdbcsupport;
 
 import org.javalite.activejdbc.DB;
+import org.javalite.activejdbc.DBException;
 
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
 import java.util.ArrayDeque;
 import java.util.HashMap;
 import java.util.Map;
@@ -9,6 +13,14 @@ import java.util.Map;
 /**
  * This controller provides unified connection and disconnection methods so several projects
  * relying on active jdbc can work simultaneously
+ * <p>
+ * By default, each connection opens the database file and each disconnection closes it. A connection pool can be
+ * enabled so open connections are kept per database path and reused across calls and threads. Idle pooled
+ * connections are closed after a given time
+ * <p>
+ * Pragmas (such as the WAL journal mode) can be configured for all newly opened connections. Prepared statements
+ * retrieved through this controller are cached per connection, so pooled connections do not parse the same
+ * queries again
  */
 public class ActiveJDBCController {
 
@@ -27,11 +39,31 @@ public class ActiveJDBCController {
         }
 
         public void connect() {
-            db.open("org.sqlite.JDBC", "jdbc:sqlite:" + path, "", "");
+            ConnectionPool pool = connectionPool;
+            ConnectionPragmas pragmas = connectionPragmas;
+            if (pool != null) {
+                db.attach(pool.acquire(path, pragmas));
+            } else {
+                db.open("org.sqlite.JDBC", "jdbc:sqlite:" + path, "", "");
+                if (pragmas != null) {
+                    try {
+                        pragmas.apply(db.connection());
+                    } catch (SQLException e) {
+                        db.close();
+                        throw new DBException(e);
+                    }
+                }
+            }
         }
 
         public void disconnect() {
-            db.close();
+            ConnectionPool pool = connectionPool;
+            if (pool != null) {
+                pool.release(path, db.detach());
+            } else {
+                StatementCache.discard(db.connection());
+                db.close();
+            }
         }
 
         @Override
@@ -62,6 +94,74 @@ public class ActiveJDBCController {
 
     private static final Map<String, DB> databaseConnections = new HashMap<>();
 
+    /**
+     * Pool of open connections, or null if pooling is disabled
+     */
+    private static volatile ConnectionPool connectionPool = null;
+
+    /**
+     * Pragmas applied to newly opened connections, or null to keep the SQLite defaults
+     */
+    private static volatile ConnectionPragmas connectionPragmas = null;
+
+    /**
+     * Enables the pooled connection mode. Connections are no longer closed upon disconnection, but kept open for
+     * later reuse by any thread. If the pooled mode was already enabled, the previous pool is closed
+     *
+     * @param maxIdleConnectionsPerPath max number of idle connections kept open for each database path
+     * @param maxIdleTime               time (in millis) after which an idle connection is closed
+     */
+    public static synchronized void enableConnectionPool(int maxIdleConnectionsPerPath, long maxIdleTime) {
+        ConnectionPool previousPool = connectionPool;
+        connectionPool = new ConnectionPool(maxIdleConnectionsPerPath, maxIdleTime);
+        if (previousPool != null) {
+            previousPool.close();
+        }
+    }
+
+    /**
+     * Disables the pooled connection mode, closing all idle connections. Connections currently in use are closed
+     * when their owners disconnect
+     */
+    public static synchronized void disableConnectionPool() {
+        if (connectionPool != null) {
+            connectionPool.close();
+            connectionPool = null;
+        }
+    }
+
+    public static boolean isConnectionPoolEnabled() {
+        return connectionPool != null;
+    }
+
+    /**
+     * Sets the pragmas applied to each newly opened connection. Idle pooled connections are closed, so all
+     * subsequent connections use the new pragmas
+     *
+     * @param pragmas pragmas to apply, or null to keep the SQLite defaults
+     */
+    public static synchronized void configurePragmas(ConnectionPragmas pragmas) {
+        connectionPragmas = pragmas;
+        if (connectionPool != null) {
+            connectionPool.closeIdleConnections();
+        }
+    }
+
+    public static ConnectionPragmas getPragmas() {
+        return connectionPragmas;
+    }
+
+    /**
+     * Retrieves the number of idle pooled connections for a given database path
+     *
+     * @param dbPath path to the database
+     * @return the number of idle connections (0 if pooling is disabled)
+     */
+    public static int idleConnectionCount(String dbPath) {
+        ConnectionPool pool = connectionPool;
+        return pool != null ? pool.idleConnectionCount(dbPath) : 0;
+    }
+
     private static ArrayDeque<DBInfo> getConnectionsStack() {
         if (connectionsStack.get() == null) {
             connectionsStack.set(new ArrayDeque<>());
@@ -103,6 +203,18 @@ public class ActiveJDBCController {
         return getConnectionsStack().peek().db;
     }
 
+    /**
+     * Retrieves a prepared statement for the current connection. Statements are cached per connection and closed
+     * along with it, so callers must not close them, and must not use them after disconnecting
+     *
+     * @param sql sql of the statement
+     * @return the prepared statement, with its parameters cleared
+     */
+    public static PreparedStatement prepareStatement(String sql) {
+        Connection connection = getDB().connection();
+        return StatementCache.get(connection, sql);
+    }
+
     private static synchronized DB getDatabaseConnection(String database) {
         if (!databaseConnections.containsKey(database)) {
             databaseConnections.put(database, new DB(database));
@@ -0,0 +1,222 @@
+package org.aanguita.jacuzzi.io.serialization.activejdbcsupport;
+
+import org.aanguita.jacuzzi.concurrency.timer.Timer;
+import org.aanguita.jacuzzi.concurrency.timer.TimerAction;
+import org.javalite.activejdbc.DBException;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * A pool of open SQLite connections, indexed by database path. A connection is lent to a single thread at a time,
+ * and given back to the pool when that thread releases it, so other threads can reuse it.
+ * <p>
+ * Connections that stay idle for longer than the allowed time are closed by a periodic timer
+ */
+class ConnectionPool implements TimerAction {
+
+    private static class IdleConnection {
+
+        private final Connection connection;
+
+        private final long releaseTime;
+
+        private IdleConnection(Connection connection) {
+            this.connection = connection;
+            this.releaseTime = System.currentTimeMillis();
+        }
+    }
+
+    private static final String DRIVER = "org.sqlite.JDBC";
+
+    private static final String URL_PREFIX = "jdbc:sqlite:";
+
+    /**
+     * Idle connections of each database path. Most recently released connections are at the head
+     */
+    private final Map<String, ArrayDeque<IdleConnection>> idleConnections;
+
+    /**
+     * Max number of idle connections kept for each database path. Additional released connections are closed
+     */
+    private final int maxIdleConnectionsPerPath;
+
+    /**
+     * Time (in millis) after which an idle connection is closed
+     */
+    private final long maxIdleTime;
+
+    private final Timer evictionTimer;
+
+    private boolean closed;
+
+    ConnectionPool(int maxIdleConnectionsPerPath, long maxIdleTime) {
+        if (maxIdleConnectionsPerPath < 1) {
+            throw new IllegalArgumentException("At least one idle connection per path must be allowed, received " + maxIdleConnectionsPerPath);
+        }
+        if (maxIdleTime <= 0L) {
+            throw new IllegalArgumentException("Max idle time must be positive, received " + maxIdleTime);
+        }
+        try {
+            Class.forName(DRIVER);
+        } catch (ClassNotFoundException e) {
+            throw new DBException("SQLite driver not found", e);
+        }
+        this.idleConnections = new HashMap<>();
+        this.maxIdleConnectionsPerPath = maxIdleConnectionsPerPath;
+        this.maxIdleTime = maxIdleTime;
+        evictionTimer = new Timer(maxIdleTime, this, "ActiveJDBCController.ConnectionPool");
+        closed = false;
+    }
+
+    /**
+     * Retrieves an open connection to the given database path, reusing an idle one if available
+     *
+     * @param path    path to the database
+     * @param pragmas pragmas applied to newly opened connections (null for none)
+     * @return an open connection, owned by the caller until it is released
+     */
+    Connection acquire(String path, ConnectionPragmas pragmas) {
+        Connection connection = pollIdleConnection(path);
+        while (connection != null) {
+            if (isOpen(connection)) {
+                return connection;
+            }
+            StatementCache.discard(connection);
+            connection = pollIdleConnection(path);
+        }
+        try {
+            connection = DriverManager.getConnection(URL_PREFIX + path);
+        } catch (SQLException e) {
+            throw new DBException("Could not open connection to " + path, e);
+        }
+        try {
+            if (pragmas != null) {
+                pragmas.apply(connection);
+            }
+            return connection;
+        } catch (SQLException e) {
+            close(connection);
+            throw new DBException("Could not configure connection to " + path, e);
+        }
+    }
+
+    private synchronized Connection pollIdleConnection(String path) {
+        ArrayDeque<IdleConnection> connections = idleConnections.get(path);
+        if (connections == null || connections.isEmpty()) {
+            return null;
+        } else {
+            return connections.pop().connection;
+        }
+    }
+
+    /**
+     * Gives a connection back to the pool
+     *
+     * @param path       path to the database of the connection
+     * @param connection the released connection
+     */
+    void release(String path, Connection connection) {
+        if (connection != null && (!resetState(connection) || !offerIdleConnection(path, connection))) {
+            close(connection);
+        }
+    }
+
+    /**
+     * Leaves a released connection in auto-commit mode, discarding any transaction left open by its previous owner
+     *
+     * @return true if the connection can be reused, false otherwise
+     */
+    private static boolean resetState(Connection connection) {
+        try {
+            if (!connection.getAutoCommit()) {
+                connection.rollback();
+                connection.setAutoCommit(true);
+            }
+            return !connection.isClosed();
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private synchronized boolean offerIdleConnection(String path, Connection connection) {
+        if (closed) {
+            return false;
+        }
+        if (!idleConnections.containsKey(path)) {
+            idleConnections.put(path, new ArrayDeque<>());
+        }
+        ArrayDeque<IdleConnection> connections = idleConnections.get(path);
+        if (connections.size() < maxIdleConnectionsPerPath) {
+            connections.push(new IdleConnection(connection));
+            return true;
+        } else {
+            return false;
+        }
+    }
+
+    synchronized int idleConnectionCount(String path) {
+        ArrayDeque<IdleConnection> connections = idleConnections.get(path);
+        return connections != null ? connections.size() : 0;
+    }
+
+    @Override
+    public Long wakeUp(Timer timer) {
+        evictIdleConnections(System.currentTimeMillis() - maxIdleTime);
+        return null;
+    }
+
+    private synchronized void evictIdleConnections(long releasedBefore) {
+        Iterator<Map.Entry<String, ArrayDeque<IdleConnection>>> iterator = idleConnections.entrySet().iterator();
+        while (iterator.hasNext()) {
+            ArrayDeque<IdleConnection> connections = iterator.next().getValue();
+            // oldest connections are at the tail
+            while (!connections.isEmpty() && connections.peekLast().releaseTime <= releasedBefore) {
+                close(connections.pollLast().connection);
+            }
+            if (connections.isEmpty()) {
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Closes all idle connections, so later acquisitions open new ones
+     */
+    synchronized void closeIdleConnections() {
+        evictIdleConnections(Long.MAX_VALUE);
+    }
+
+    /**
+     * Stops the eviction timer and closes all idle connections. Connections currently lent are closed upon release
+     */
+    void close() {
+        evictionTimer.stop();
+        synchronized (this) {
+            closed = true;
+            evictIdleConnections(Long.MAX_VALUE);
+        }
+    }
+
+    private static boolean isOpen(Connection connection) {
+        try {
+            return !connection.isClosed();
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    private static void close(Connection connection) {
+        StatementCache.discard(connection);
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            // ignore, the connection is discarded anyway
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package org.aanguita.jacuzzi.io.serialization.activejdbcsupport;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * SQLite pragmas applied to each connection opened by the ActiveJDBCController. Null values keep the SQLite
+ * defaults
+ * <p>
+ * The WAL journal mode lets readers run at the same time as a writer. It is persistent, so it stays enabled for
+ * the database file even for connections opened without these pragmas
+ */
+public final class ConnectionPragmas {
+
+    /**
+     * Levels of the synchronous pragma. With WAL journal mode, NORMAL avoids syncing on every commit while keeping
+     * the database consistent
+     */
+    public enum Synchronous {
+        OFF,
+        NORMAL,
+        FULL,
+        EXTRA
+    }
+
+    private final boolean walJournal;
+
+    private final Synchronous synchronous;
+
+    private final Integer cacheSize;
+
+    private final Long mmapSize;
+
+    /**
+     * @param walJournal  true to switch the journal mode to WAL
+     * @param synchronous synchronous level
+     * @param cacheSize   page cache size. Positive values are number of pages, negative values are KiB (as in
+     *                    the cache_size pragma)
+     * @param mmapSize    max number of bytes of the database file accessed through memory mapping (0 disables it)
+     */
+    public ConnectionPragmas(boolean walJournal, Synchronous synchronous, Integer cacheSize, Long mmapSize) {
+        if (mmapSize != null && mmapSize < 0L) {
+            throw new IllegalArgumentException("Memory map size cannot be negative, received " + mmapSize);
+        }
+        this.walJournal = walJournal;
+        this.synchronous = synchronous;
+        this.cacheSize = cacheSize;
+        this.mmapSize = mmapSize;
+    }
+
+    public boolean isWalJournal() {
+        return walJournal;
+    }
+
+    public Synchronous getSynchronous() {
+        return synchronous;
+    }
+
+    public Integer getCacheSize() {
+        return cacheSize;
+    }
+
+    public Long getMmapSize() {
+        return mmapSize;
+    }
+
+    /**
+     * Applies the pragmas to a newly opened connection (must be in auto-commit mode)
+     */
+    void apply(Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            if (walJournal) {
+                statement.execute("PRAGMA journal_mode = WAL");
+            }
+            if (synchronous != null) {
+                statement.execute("PRAGMA synchronous = " + synchronous.name());
+            }
+            if (cacheSize != null) {
+                statement.execute("PRAGMA cache_size = " + cacheSize);
+            }
+            if (mmapSize != null) {
+                statement.execute("PRAGMA mmap_size = " + mmapSize);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ConnectionPragmas{" +
+                "walJournal=" + walJournal +
+                ", synchronous=" + synchronous +
+                ", cacheSize=" + cacheSize +
+                ", mmapSize=" + mmapSize +
+                '}';
+    }
+}
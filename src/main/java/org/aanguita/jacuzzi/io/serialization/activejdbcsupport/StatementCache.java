@@ -0,0 +1,65 @@
+package org.aanguita.jacuzzi.io.serialization.activejdbcsupport;
+
+import org.javalite.activejdbc.DBException;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Prepared statements of each open connection, indexed by their sql. Statements are kept until their connection is
+ * discarded, so pooled connections reuse them across accesses
+ * <p>
+ * A connection is used by a single thread at a time, so the statements of a connection need no synchronization
+ */
+class StatementCache {
+
+    private static final Map<Connection, Map<String, PreparedStatement>> statements = new IdentityHashMap<>();
+
+    private StatementCache() {
+    }
+
+    /**
+     * Retrieves a prepared statement for the given connection, preparing it if it is not cached yet
+     */
+    static PreparedStatement get(Connection connection, String sql) {
+        Map<String, PreparedStatement> connectionStatements;
+        synchronized (statements) {
+            connectionStatements = statements.computeIfAbsent(connection, c -> new HashMap<>());
+        }
+        PreparedStatement statement = connectionStatements.get(sql);
+        try {
+            if (statement == null || statement.isClosed()) {
+                statement = connection.prepareStatement(sql);
+                connectionStatements.put(sql, statement);
+            } else {
+                statement.clearParameters();
+            }
+            return statement;
+        } catch (SQLException e) {
+            throw new DBException(e);
+        }
+    }
+
+    /**
+     * Closes and forgets the statements of a connection that is about to be closed
+     */
+    static void discard(Connection connection) {
+        Map<String, PreparedStatement> connectionStatements;
+        synchronized (statements) {
+            connectionStatements = statements.remove(connection);
+        }
+        if (connectionStatements != null) {
+            for (PreparedStatement statement : connectionStatements.values()) {
+                try {
+                    statement.close();
+                } catch (SQLException e) {
+                    // ignore, the connection is discarded anyway
+                }
+            }
+        }
+    }
+}
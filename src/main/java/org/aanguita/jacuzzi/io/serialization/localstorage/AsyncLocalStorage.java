@@ -0,0 +1,547 @@
+package org.aanguita.jacuzzi.io.serialization.localstorage;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * Asynchronous facade of a local storage. Operations are run on a dedicated, bounded pool of I/O threads and return
+ * CompletableFutures, so callers never block on the database.
+ * <p>
+ * The pool is divided in stripes, each with a single thread and a bounded queue. Operations on an item always run in
+ * the same stripe, so operations on the same item are executed in submission order (a read submitted after a write
+ * sees the written value). Operations involving several items (keys, bulk reads and writes, flush) run in a separate
+ * stripe, once all single item operations submitted before them are complete. Single item operations submitted
+ * after them wait until they are complete, so the ordering of operations on each item is kept.
+ * <p>
+ * If the queue of a stripe is full, the returned future completes exceptionally with a RejectedExecutionException.
+ * Futures are completed in the I/O threads, so dependent actions should not block
+ */
+public class AsyncLocalStorage {
+
+    private static final int DEFAULT_THREAD_COUNT = 4;
+
+    private static final int DEFAULT_QUEUE_CAPACITY = 1024;
+
+    private static final AtomicInteger instanceCount = new AtomicInteger(0);
+
+    private final LocalStorage localStorage;
+
+    /**
+     * Single thread executors. The last one is used for operations involving several items
+     */
+    private final ThreadPoolExecutor[] stripes;
+
+    /**
+     * Serializes the submission of operations involving several items, so their barriers are queued in the same
+     * order in all stripes (otherwise, two of them could wait for each other)
+     */
+    private final Object multipleItemSubmitLock;
+
+    public AsyncLocalStorage(LocalStorage localStorage) {
+        this(localStorage, DEFAULT_THREAD_COUNT, DEFAULT_QUEUE_CAPACITY);
+    }
+
+    /**
+     * Creates an asynchronous facade of a local storage
+     *
+     * @param localStorage  the wrapped local storage
+     * @param threadCount   number of I/O threads for single item operations (one more thread is used for operations
+     *                      involving several items)
+     * @param queueCapacity max number of queued operations per thread
+     */
+    public AsyncLocalStorage(LocalStorage localStorage, int threadCount, int queueCapacity) {
+        if (threadCount < 1) {
+            throw new IllegalArgumentException("Thread count must be positive, received " + threadCount);
+        }
+        if (queueCapacity < 1) {
+            throw new IllegalArgumentException("Queue capacity must be positive, received " + queueCapacity);
+        }
+        this.localStorage = localStorage;
+        multipleItemSubmitLock = new Object();
+        stripes = new ThreadPoolExecutor[threadCount + 1];
+        String threadNamePrefix = "AsyncLocalStorage-" + instanceCount.incrementAndGet() + "-";
+        for (int i = 0; i < stripes.length; i++) {
+            String threadName = threadNamePrefix + i;
+            stripes[i] = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queueCapacity), runnable -> {
+                Thread thread = new Thread(runnable, threadName);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    /**
+     * Retrieves the wrapped (synchronous) local storage
+     */
+    public LocalStorage getLocalStorage() {
+        return localStorage;
+    }
+
+    /**
+     * Runs an arbitrary operation on an item of the local storage, ordered with the rest of operations on that item
+     *
+     * @param name       name of the item
+     * @param categories categories of the item
+     * @param operation  operation to run on the local storage
+     * @return a future with the result of the operation
+     */
+    public <T> CompletableFuture<T> submit(String name, String[] categories, Function<LocalStorage, T> operation) {
+        return submit(stripeOf(LocalStorage.generateName(name, categories)), operation);
+    }
+
+    /**
+     * Runs an arbitrary operation involving several items of the local storage. The operation runs after all
+     * previously submitted operations, and before any later single item operation
+     *
+     * @param operation operation to run on the local storage
+     * @return a future with the result of the operation
+     */
+    public <T> CompletableFuture<T> submit(Function<LocalStorage, T> operation) {
+        synchronized (multipleItemSubmitLock) {
+            // each single item stripe reaches a barrier and waits there until the operation is complete
+            int itemStripeCount = stripes.length - 1;
+            CountDownLatch barriersReached = new CountDownLatch(itemStripeCount);
+            CountDownLatch operationComplete = new CountDownLatch(1);
+            AtomicBoolean barrierRejected = new AtomicBoolean(false);
+            CompletableFuture<T> future = submit(stripes[itemStripeCount], ls -> {
+                try {
+                    awaitUninterruptibly(barriersReached);
+                    if (barrierRejected.get()) {
+                        throw new RejectedExecutionException("Queue of a stripe is full");
+                    }
+                    return operation.apply(ls);
+                } finally {
+                    operationComplete.countDown();
+                }
+            });
+            if (future.isCompletedExceptionally()) {
+                return future;
+            }
+            for (int i = 0; i < itemStripeCount; i++) {
+                try {
+                    stripes[i].execute(() -> {
+                        barriersReached.countDown();
+                        awaitUninterruptibly(operationComplete);
+                    });
+                } catch (RejectedExecutionException e) {
+                    barrierRejected.set(true);
+                    // release the operation, which fails
+                    for (int j = i; j < itemStripeCount; j++) {
+                        barriersReached.countDown();
+                    }
+                    break;
+                }
+            }
+            return future;
+        }
+    }
+
+    private static void awaitUninterruptibly(CountDownLatch latch) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                latch.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private ThreadPoolExecutor stripeOf(String fullName) {
+        int h = fullName.hashCode();
+        return stripes[Math.floorMod(h ^ (h >>> 16), stripes.length - 1)];
+    }
+
+    private <T> CompletableFuture<T> submit(ThreadPoolExecutor stripe, Function<LocalStorage, T> operation) {
+        try {
+            return CompletableFuture.supplyAsync(() -> operation.apply(localStorage), stripe);
+        } catch (RejectedExecutionException e) {
+            CompletableFuture<T> future = new CompletableFuture<>();
+            future.completeExceptionally(e);
+            return future;
+        }
+    }
+
+    public CompletableFuture<Integer> itemCount() {
+        return submit(LocalStorage::itemCount);
+    }
+
+    public CompletableFuture<List<String>> keys(String... categories) {
+        return submit(ls -> ls.keys(categories));
+    }
+
+    public CompletableFuture<Set<String>> categories(String... categories) {
+        return submit(ls -> ls.categories(categories));
+    }
+
+    public CompletableFuture<Boolean> containsItem(String name, String... categories) {
+        return submit(name, categories, ls -> ls.containsItem(name, categories));
+    }
+
+    public CompletableFuture<Void> removeItem(String name, String... categories) {
+        return submit(name, categories, ls -> {
+            ls.removeItem(name, categories);
+            return null;
+        });
+    }
+
+    public <E> CompletableFuture<Map<String, E>> getAll(Collection<String> names, Class<E> type, String... categories) {
+        return submit(ls -> ls.getAll(names, type, categories));
+    }
+
+    public CompletableFuture<Void> setAll(Map<String, ?> values, String... categories) {
+        return submit(ls -> {
+            ls.setAll(values, categories);
+            return null;
+        });
+    }
+
+    public CompletableFuture<Boolean> flush() {
+        return submit(LocalStorage::flush);
+    }
+
+    public CompletableFuture<String> getString(String name, String... categories) {
+        return submit(name, categories, ls -> ls.getString(name, categories));
+    }
+
+    public CompletableFuture<Boolean> setString(String name, String value, String... categories) {
+        return submit(name, categories, ls -> ls.setString(name, value, categories));
+    }
+
+    public CompletableFuture<Boolean> setString(String name, String value, long timeToLive, String... categories) {
+        return submit(name, categories, ls -> ls.setString(name, value, timeToLive, categories));
+    }
+
+    public CompletableFuture<Boolean> getBoolean(String name, String... categories) {
+        return submit(name, categories, ls -> ls.getBoolean(name, categories));
+    }
+
+    public CompletableFuture<Boolean> setBoolean(String name, Boolean value, String... categories) {
+        return submit(name, categories, ls -> ls.setBoolean(name, value, categories));
+    }
+
+    public CompletableFuture<Boolean> setBoolean(String name, Boolean value, long timeToLive, String... categories) {
+        return submit(name, categories, ls -> ls.setBoolean(name, value, timeToLive, categories));
+    }
+
+    public CompletableFuture<Byte> getByte(String name, String... categories) {
+        return submit(name, categories, ls -> ls.getByte(name, categories));
+    }
+
+    public CompletableFuture<Boolean> setByte(String name, Byte value, String... categories) {
+        return submit(name, categories, ls -> ls.setByte(name, value, categories));
+    }
+
+    public CompletableFuture<Boolean> setByte(String name, Byte value, long timeToLive, String... categories) {
+        return submit(name, categories, ls -> ls.setByte(name, value, timeToLive, categories));
+    }
+
+    public CompletableFuture<Short> getShort(String name, String... categories) {
+        return submit(name, categories, ls -> ls.getShort(name, categories));
+    }
+
+    public CompletableFuture<Boolean> setShort(String name, Short value, String... categories) {
+        return submit(name, categories, ls -> ls.setShort(name, value, categories));
+    }
+
+    public CompletableFuture<Boolean> setShort(String name, Short value, long timeToLive, String... categories) {
+        return submit(name, categories, ls -> ls.setShort(name, value, timeToLive, categories));
+    }
+
+    public CompletableFuture<Integer> getInteger(String name, String... categories) {
+        return submit(name, categories, ls -> ls.getInteger(name, categories));
+    }
+
+    public CompletableFuture<Boolean> setInteger(String name, Integer value, String... categories) {
+        return submit(name, categories, ls -> ls.setInteger(name, value, categories));
+    }
+
+    public CompletableFuture<Boolean> setInteger(String name, Integer value, long timeToLive, String... categories) {
+        return submit(name, categories, ls -> ls.setInteger(name, value, timeToLive, categories));
+    }
+
+    public CompletableFuture<Long> getLong(String name, String... categories) {
+        return submit(name, categories, ls -> ls.getLong(name, categories));
+    }
+
+    public CompletableFuture<Boolean> setLong(String name, Long value, String... categories) {
+        return submit(name, categories, ls -> ls.setLong(name, value, categories));
+    }
+
+    public CompletableFuture<Boolean> setLong(String name, Long value, long timeToLive, String... categories) {
+        return submit(name, categories, ls -> ls.setLong(name, value, timeToLive, categories));
+    }
+
+    public CompletableFuture<Float> getFloat(String name, String... categories) {
+        return submit(name, categories, ls -> ls.getFloat(name, categories));
+    }
+
+    public CompletableFuture<Boolean> setFloat(String name, Float value, String... categories) {
+        return submit(name, categories, ls -> ls.setFloat(name, value, categories));
+    }
+
+    public CompletableFuture<Boolean> setFloat(String name, Float value, long timeToLive, String... categories) {
+        return submit(name, categories, ls -> ls.setFloat(name, value, timeToLive, categories));
+    }
+
+    public CompletableFuture<Double> getDouble(String name, String... categories) {
+        return submit(name, categories, ls -> ls.getDouble(name, categories));
+    }
+
+    public CompletableFuture<Boolean> setDouble(String name, Double value, String... categories) {
+        return submit(name, categories, ls -> ls.setDouble(name, value, categories));
+    }
+
+    public CompletableFuture<Boolean> setDouble(String name, Double value, long timeToLive, String... categories) {
+        return submit(name, categories, ls -> ls.setDouble(name, value, timeToLive, categories));
+    }
+
+    public CompletableFuture<Date> getDate(String name, String... categories) {
+        return submit(name, categories, ls -> ls.getDate(name, categories));
+    }
+
+    public CompletableFuture<Boolean> setDate(String name, Date value, String... categories) {
+        return submit(name, categories, ls -> ls.setDate(name, value, categories));
+    }
+
+    public CompletableFuture<Boolean> setDate(String name, Date value, long timeToLive, String... categories) {
+        return submit(name, categories, ls -> ls.setDate(name, value, timeToLive, categories));
+    }
+
+    public <E> CompletableFuture<E> getEnum(String name, Class<E> enum_, String... categories) {
+        return submit(name, categories, ls -> ls.getEnum(name, enum_, categories));
+    }
+
+    public <E> CompletableFuture<Boolean> setEnum(String name, Class<E> enum_, E value, String... categories) {
+        return submit(name, categories, ls -> ls.setEnum(name, enum_, value, categories));
+    }
+
+    public <E> CompletableFuture<Boolean> setEnum(String name, Class<E> enum_, E value, long timeToLive, String... categories) {
+        return submit(name, categories, ls -> ls.setEnum(name, enum_, value, timeToLive, categories));
+    }
+
+    public CompletableFuture<Boolean> setTimeToLive(String name, long timeToLive, String... categories) {
+        return submit(name, categories, ls -> ls.setTimeToLive(name, timeToLive, categories));
+    }
+
+    public CompletableFuture<List<String>> getStringList(String name, String... categories) {
+        return submit(name, categories, ls -> ls.getStringList(name, categories));
+    }
+
+    public CompletableFuture<Void> setStringList(String name, List<String> list, String... categories) {
+        return submit(name, categories, ls -> {
+            ls.setStringList(name, list, categories);
+            return null;
+        });
+    }
+
+    public CompletableFuture<List<Boolean>> getBooleanList(String name, String... categories) {
+        return submit(name, categories, ls -> ls.getBooleanList(name, categories));
+    }
+
+    public CompletableFuture<Void> setBooleanList(String name, List<Boolean> list, String... categories) {
+        return submit(name, categories, ls -> {
+            ls.setBooleanList(name, list, categories);
+            return null;
+        });
+    }
+
+    public CompletableFuture<List<Byte>> getByteList(String name, String... categories) {
+        return submit(name, categories, ls -> ls.getByteList(name, categories));
+    }
+
+    public CompletableFuture<Void> setByteList(String name, List<Byte> list, String... categories) {
+        return submit(name, categories, ls -> {
+            ls.setByteList(name, list, categories);
+            return null;
+        });
+    }
+
+    public CompletableFuture<List<Short>> getShortList(String name, String... categories) {
+        return submit(name, categories, ls -> ls.getShortList(name, categories));
+    }
+
+    public CompletableFuture<Void> setShortList(String name, List<Short> list, String... categories) {
+        return submit(name, categories, ls -> {
+            ls.setShortList(name, list, categories);
+            return null;
+        });
+    }
+
+    public CompletableFuture<List<Integer>> getIntegerList(String name, String... categories) {
+        return submit(name, categories, ls -> ls.getIntegerList(name, categories));
+    }
+
+    public CompletableFuture<Void> setIntegerList(String name, List<Integer> list, String... categories) {
+        return submit(name, categories, ls -> {
+            ls.setIntegerList(name, list, categories);
+            return null;
+        });
+    }
+
+    public CompletableFuture<List<Long>> getLongList(String name, String... categories) {
+        return submit(name, categories, ls -> ls.getLongList(name, categories));
+    }
+
+    public CompletableFuture<Void> setLongList(String name, List<Long> list, String... categories) {
+        return submit(name, categories, ls -> {
+            ls.setLongList(name, list, categories);
+            return null;
+        });
+    }
+
+    public CompletableFuture<List<Float>> getFloatList(String name, String... categories) {
+        return submit(name, categories, ls -> ls.getFloatList(name, categories));
+    }
+
+    public CompletableFuture<Void> setFloatList(String name, List<Float> list, String... categories) {
+        return submit(name, categories, ls -> {
+            ls.setFloatList(name, list, categories);
+            return null;
+        });
+    }
+
+    public CompletableFuture<List<Double>> getDoubleList(String name, String... categories) {
+        return submit(name, categories, ls -> ls.getDoubleList(name, categories));
+    }
+
+    public CompletableFuture<Void> setDoubleList(String name, List<Double> list, String... categories) {
+        return submit(name, categories, ls -> {
+            ls.setDoubleList(name, list, categories);
+            return null;
+        });
+    }
+
+    public CompletableFuture<List<Date>> getDateList(String name, String... categories) {
+        return submit(name, categories, ls -> ls.getDateList(name, categories));
+    }
+
+    public CompletableFuture<Void> setDateList(String name, List<Date> list, String... categories) {
+        return submit(name, categories, ls -> {
+            ls.setDateList(name, list, categories);
+            return null;
+        });
+    }
+
+    public <E> CompletableFuture<List<E>> getEnumList(String name, Class<E> enum_, String... categories) {
+        return submit(name, categories, ls -> ls.getEnumList(name, enum_, categories));
+    }
+
+    public <E> CompletableFuture<Void> setEnumList(String name, Class<E> enum_, List<E> list, String... categories) {
+        return submit(name, categories, ls -> {
+            ls.setEnumList(name, enum_, list, categories);
+            return null;
+        });
+    }
+
+    public CompletableFuture<boolean[]> getBooleanArray(String name, String... categories) {
+        return submit(name, categories, ls -> ls.getBooleanArray(name, categories));
+    }
+
+    public CompletableFuture<Void> setBooleanArray(String name, boolean[] values, String... categories) {
+        return submit(name, categories, ls -> {
+            ls.setBooleanArray(name, values, categories);
+            return null;
+        });
+    }
+
+    public CompletableFuture<byte[]> getByteArray(String name, String... categories) {
+        return submit(name, categories, ls -> ls.getByteArray(name, categories));
+    }
+
+    public CompletableFuture<Void> setByteArray(String name, byte[] values, String... categories) {
+        return submit(name, categories, ls -> {
+            ls.setByteArray(name, values, categories);
+            return null;
+        });
+    }
+
+    public CompletableFuture<short[]> getShortArray(String name, String... categories) {
+        return submit(name, categories, ls -> ls.getShortArray(name, categories));
+    }
+
+    public CompletableFuture<Void> setShortArray(String name, short[] values, String... categories) {
+        return submit(name, categories, ls -> {
+            ls.setShortArray(name, values, categories);
+            return null;
+        });
+    }
+
+    public CompletableFuture<int[]> getIntArray(String name, String... categories) {
+        return submit(name, categories, ls -> ls.getIntArray(name, categories));
+    }
+
+    public CompletableFuture<Void> setIntArray(String name, int[] values, String... categories) {
+        return submit(name, categories, ls -> {
+            ls.setIntArray(name, values, categories);
+            return null;
+        });
+    }
+
+    public CompletableFuture<long[]> getLongArray(String name, String... categories) {
+        return submit(name, categories, ls -> ls.getLongArray(name, categories));
+    }
+
+    public CompletableFuture<Void> setLongArray(String name, long[] values, String... categories) {
+        return submit(name, categories, ls -> {
+            ls.setLongArray(name, values, categories);
+            return null;
+        });
+    }
+
+    public CompletableFuture<float[]> getFloatArray(String name, String... categories) {
+        return submit(name, categories, ls -> ls.getFloatArray(name, categories));
+    }
+
+    public CompletableFuture<Void> setFloatArray(String name, float[] values, String... categories) {
+        return submit(name, categories, ls -> {
+            ls.setFloatArray(name, values, categories);
+            return null;
+        });
+    }
+
+    public CompletableFuture<double[]> getDoubleArray(String name, String... categories) {
+        return submit(name, categories, ls -> ls.getDoubleArray(name, categories));
+    }
+
+    public CompletableFuture<Void> setDoubleArray(String name, double[] values, String... categories) {
+        return submit(name, categories, ls -> {
+            ls.setDoubleArray(name, values, categories);
+            return null;
+        });
+    }
+
+    /**
+     * Stops accepting operations, waits for the queued ones to complete and closes the wrapped local storage
+     *
+     * @return a future with the result of closing the local storage (see LocalStorage.close())
+     */
+    public CompletableFuture<Boolean> close() {
+        CompletableFuture<Boolean> future = new CompletableFuture<>();
+        for (ThreadPoolExecutor stripe : stripes) {
+            stripe.shutdown();
+        }
+        Thread closer = new Thread(() -> {
+            try {
+                for (ThreadPoolExecutor stripe : stripes) {
+                    while (!stripe.awaitTermination(1L, TimeUnit.SECONDS)) {
+                        // keep waiting
+                    }
+                }
+                future.complete(localStorage.close());
+            } catch (Throwable e) {
+                future.completeExceptionally(e);
+            }
+        }, "AsyncLocalStorage.close");
+        closer.setDaemon(true);
+        closer.start();
+        return future;
+    }
+}
@@ -0,0 +1,146 @@
+package org.aanguita.jacuzzi.io.serialization.localstorage;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Binary encoding of primitive lists stored in a local storage. Values are fixed-width and big-endian, preceded by
+ * a header with the format version, the element type and the element count:
+ * <p>
+ * [format version (1 byte)][element type (1 byte)][count (4 bytes)][values]
+ */
+final class BinaryListCodec {
+
+    private static final byte FORMAT_VERSION = 1;
+
+    private static final byte BOOLEAN = 1;
+
+    private static final byte BYTE = 2;
+
+    private static final byte SHORT = 3;
+
+    private static final byte INT = 4;
+
+    private static final byte LONG = 5;
+
+    private static final byte FLOAT = 6;
+
+    private static final byte DOUBLE = 7;
+
+    private static final int HEADER_SIZE = 6;
+
+    private BinaryListCodec() {
+    }
+
+    static byte[] encode(boolean[] values) {
+        ByteBuffer buffer = allocate(BOOLEAN, values.length, 1);
+        for (boolean value : values) {
+            buffer.put((byte) (value ? 1 : 0));
+        }
+        return buffer.array();
+    }
+
+    static byte[] encode(byte[] values) {
+        return allocate(BYTE, values.length, Byte.BYTES).put(values).array();
+    }
+
+    static byte[] encode(short[] values) {
+        ByteBuffer buffer = allocate(SHORT, values.length, Short.BYTES);
+        buffer.asShortBuffer().put(values);
+        return buffer.array();
+    }
+
+    static byte[] encode(int[] values) {
+        ByteBuffer buffer = allocate(INT, values.length, Integer.BYTES);
+        buffer.asIntBuffer().put(values);
+        return buffer.array();
+    }
+
+    static byte[] encode(long[] values) {
+        ByteBuffer buffer = allocate(LONG, values.length, Long.BYTES);
+        buffer.asLongBuffer().put(values);
+        return buffer.array();
+    }
+
+    static byte[] encode(float[] values) {
+        ByteBuffer buffer = allocate(FLOAT, values.length, Float.BYTES);
+        buffer.asFloatBuffer().put(values);
+        return buffer.array();
+    }
+
+    static byte[] encode(double[] values) {
+        ByteBuffer buffer = allocate(DOUBLE, values.length, Double.BYTES);
+        buffer.asDoubleBuffer().put(values);
+        return buffer.array();
+    }
+
+    static boolean[] decodeBooleans(byte[] data) {
+        ByteBuffer buffer = open(data, BOOLEAN);
+        boolean[] values = new boolean[buffer.getInt()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = buffer.get() != 0;
+        }
+        return values;
+    }
+
+    static byte[] decodeBytes(byte[] data) {
+        ByteBuffer buffer = open(data, BYTE);
+        byte[] values = new byte[buffer.getInt()];
+        buffer.get(values);
+        return values;
+    }
+
+    static short[] decodeShorts(byte[] data) {
+        ByteBuffer buffer = open(data, SHORT);
+        short[] values = new short[buffer.getInt()];
+        buffer.asShortBuffer().get(values);
+        return values;
+    }
+
+    static int[] decodeInts(byte[] data) {
+        ByteBuffer buffer = open(data, INT);
+        int[] values = new int[buffer.getInt()];
+        buffer.asIntBuffer().get(values);
+        return values;
+    }
+
+    static long[] decodeLongs(byte[] data) {
+        ByteBuffer buffer = open(data, LONG);
+        long[] values = new long[buffer.getInt()];
+        buffer.asLongBuffer().get(values);
+        return values;
+    }
+
+    static float[] decodeFloats(byte[] data) {
+        ByteBuffer buffer = open(data, FLOAT);
+        float[] values = new float[buffer.getInt()];
+        buffer.asFloatBuffer().get(values);
+        return values;
+    }
+
+    static double[] decodeDoubles(byte[] data) {
+        ByteBuffer buffer = open(data, DOUBLE);
+        double[] values = new double[buffer.getInt()];
+        buffer.asDoubleBuffer().get(values);
+        return values;
+    }
+
+    private static ByteBuffer allocate(byte type, int count, int width) {
+        return ByteBuffer.allocate(HEADER_SIZE + count * width).put(FORMAT_VERSION).put(type).putInt(count);
+    }
+
+    /**
+     * Checks the header of an encoded list, leaving the buffer positioned at the element count
+     */
+    private static ByteBuffer open(byte[] data, byte type) {
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        byte version = buffer.get();
+        if (version != FORMAT_VERSION) {
+            throw new IllegalArgumentException("Unsupported binary list format version: " + version);
+        }
+        byte storedType = buffer.get();
+        if (storedType != type) {
+            throw new IllegalArgumentException("Binary list holds element type " + storedType + ", expected " + type);
+        }
+        return buffer;
+    }
+}
@@ -0,0 +1,15 @@
+package org.aanguita.jacuzzi.io.serialization.localstorage;
+
+/**
+ * Policies for evicting values from the item cache of a local storage once it is full
+ */
+public enum CacheEvictionPolicy {
+    /**
+     * Least recently used values are evicted first
+     */
+    LRU,
+    /**
+     * Least frequently used values are evicted first
+     */
+    LFU
+}
@@ -0,0 +1,37 @@
+package org.aanguita.jacuzzi.io.serialization.localstorage;
+
+/**
+ * Snapshot of the statistics of the item cache of a local storage
+ */
+public class CacheStats {
+
+    public final long hits;
+
+    public final long misses;
+
+    public final long evictions;
+
+    public final int size;
+
+    public CacheStats(long hits, long misses, long evictions, int size) {
+        this.hits = hits;
+        this.misses = misses;
+        this.evictions = evictions;
+        this.size = size;
+    }
+
+    public double hitRate() {
+        long requests = hits + misses;
+        return requests > 0 ? (double) hits / requests : 0d;
+    }
+
+    @Override
+    public String toString() {
+        return "CacheStats{" +
+                "hits=" + hits +
+                ", misses=" + misses +
+                ", evictions=" + evictions +
+                ", size=" + size +
+                '}';
+    }
+}
@@ -0,0 +1,208 @@
+package org.aanguita.jacuzzi.io.serialization.localstorage;
+
+import org.aanguita.jacuzzi.event.hub.EventHub;
+import org.aanguita.jacuzzi.event.hub.EventHubSubscriber;
+import org.aanguita.jacuzzi.log.ErrorLog;
+
+import java.util.*;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+/**
+ * Publishes the item changes of a local storage in an event hub. Changes are coalesced per item: all changes of an
+ * item happening within the coalescing delay are published once, reporting the last one.
+ * <p>
+ * Each item is published in a channel built from its category path, with one level per category plus a last level
+ * for the item name (marked with ITEM_MARK, so items and categories with the same name are not confused). Levels
+ * are escaped so they contain no channel separators or wildcards
+ */
+class ChangeNotifier {
+
+    private static final String CHANNEL_SEPARATOR = "/";
+
+    private static final String ITEM_MARK = "=";
+
+    private static final String MULTILEVEL_WILDCARD = "*";
+
+    private static final String ONE_LEVEL_WILDCARD = "?";
+
+    /**
+     * Channel of CLEARED events. It cannot collide with escaped categories nor items
+     */
+    private static final String CLEAR_CHANNEL = "%";
+
+    /**
+     * Filters the events of a category by item name prefix. It takes the id of the filtered subscriber plus the
+     * prefix, so it can be unsubscribed with a new instance
+     */
+    private static class PrefixSubscriber implements EventHubSubscriber {
+
+        private final EventHubSubscriber subscriber;
+
+        private final String prefix;
+
+        private final List<String> categories;
+
+        private PrefixSubscriber(EventHubSubscriber subscriber, String prefix, List<String> categories) {
+            this.subscriber = subscriber;
+            this.prefix = prefix;
+            this.categories = categories;
+        }
+
+        @Override
+        public String getId() {
+            return subscriber.getId() + CHANNEL_SEPARATOR + "prefix" + CHANNEL_SEPARATOR + categories + CHANNEL_SEPARATOR + prefix;
+        }
+
+        @Override
+        public void event(String channel, Object... messages) {
+            ItemChangeEvent event = (ItemChangeEvent) messages[0];
+            if (event.categories.equals(categories) && event.name.startsWith(prefix)) {
+                subscriber.event(channel, messages);
+            }
+        }
+    }
+
+    private final EventHub eventHub;
+
+    private final long coalesceDelay;
+
+    private final ScheduledThreadPoolExecutor executor;
+
+    /**
+     * Last change of each item pending to be published, in order of last change (a new change of an item moves it to the end)
+     */
+    private LinkedHashMap<String, ItemChangeEvent> pendingEvents;
+
+    ChangeNotifier(EventHub eventHub, long coalesceDelay) {
+        if (coalesceDelay < 0L) {
+            throw new IllegalArgumentException("Coalesce delay cannot be negative, received " + coalesceDelay);
+        }
+        this.eventHub = eventHub;
+        this.coalesceDelay = coalesceDelay;
+        executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+            Thread thread = new Thread(runnable, "LocalStorage.ChangeNotifier(" + eventHub.getName() + ")");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.setKeepAliveTime(1L, TimeUnit.SECONDS);
+        executor.allowCoreThreadTimeOut(true);
+        pendingEvents = new LinkedHashMap<>();
+    }
+
+    EventHub getEventHub() {
+        return eventHub;
+    }
+
+    void itemChanged(String fullName, ItemChangeEvent.Kind kind) {
+        String[] levels = fullName.split(Pattern.quote(StorageBackend.CATEGORY_SEPARATOR), -1);
+        List<String> categories = Collections.unmodifiableList(Arrays.asList(Arrays.copyOf(levels, levels.length - 1)));
+        addEvent(fullName, new ItemChangeEvent(levels[levels.length - 1], categories, kind));
+    }
+
+    void cleared() {
+        synchronized (this) {
+            // previous changes are superseded by the clear
+            pendingEvents.clear();
+        }
+        addEvent(CLEAR_CHANNEL, new ItemChangeEvent("", Collections.emptyList(), ItemChangeEvent.Kind.CLEARED));
+    }
+
+    private void addEvent(String key, ItemChangeEvent event) {
+        boolean schedule;
+        synchronized (this) {
+            schedule = pendingEvents.isEmpty();
+            pendingEvents.remove(key);
+            pendingEvents.put(key, event);
+        }
+        if (schedule) {
+            executor.schedule(this::publish, coalesceDelay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void publish() {
+        Map<String, ItemChangeEvent> events;
+        synchronized (this) {
+            events = pendingEvents;
+            pendingEvents = new LinkedHashMap<>();
+        }
+        for (ItemChangeEvent event : events.values()) {
+            try {
+                eventHub.publish(channel(event), event);
+            } catch (RuntimeException e) {
+                ErrorLog.reportError(ChangeNotifier.class.getName(), "Watcher failed processing a change event", event, e);
+            }
+        }
+    }
+
+    private static String channel(ItemChangeEvent event) {
+        if (event.kind == ItemChangeEvent.Kind.CLEARED) {
+            return CLEAR_CHANNEL;
+        } else {
+            StringBuilder channel = new StringBuilder();
+            for (String category : event.categories) {
+                channel.append(escape(category)).append(CHANNEL_SEPARATOR);
+            }
+            return channel.append(ITEM_MARK).append(escape(event.name)).toString();
+        }
+    }
+
+    void watchItem(EventHubSubscriber subscriber, String name, List<String> categories) {
+        eventHub.subscribe(subscriber, channel(new ItemChangeEvent(name, categories, ItemChangeEvent.Kind.UPDATED)));
+    }
+
+    void unwatchItem(EventHubSubscriber subscriber, String name, List<String> categories) {
+        eventHub.unsubscribe(subscriber, channel(new ItemChangeEvent(name, categories, ItemChangeEvent.Kind.UPDATED)));
+    }
+
+    void watchCategory(EventHubSubscriber subscriber, List<String> categories) {
+        eventHub.subscribe(subscriber, categoryExpression(categories, MULTILEVEL_WILDCARD));
+    }
+
+    void unwatchCategory(EventHubSubscriber subscriber, List<String> categories) {
+        eventHub.unsubscribe(subscriber, categoryExpression(categories, MULTILEVEL_WILDCARD));
+    }
+
+    void watchPrefix(EventHubSubscriber subscriber, String prefix, List<String> categories) {
+        eventHub.subscribe(new PrefixSubscriber(subscriber, prefix, categories), categoryExpression(categories, ONE_LEVEL_WILDCARD));
+    }
+
+    void unwatchPrefix(EventHubSubscriber subscriber, String prefix, List<String> categories) {
+        eventHub.unsubscribe(new PrefixSubscriber(subscriber, prefix, categories), categoryExpression(categories, ONE_LEVEL_WILDCARD));
+    }
+
+    private static String categoryExpression(List<String> categories, String wildcard) {
+        StringBuilder expression = new StringBuilder();
+        for (String category : categories) {
+            expression.append(escape(category)).append(CHANNEL_SEPARATOR);
+        }
+        return expression.append(wildcard).toString();
+    }
+
+    private static String escape(String level) {
+        StringBuilder escaped = new StringBuilder(level.length());
+        for (char c : level.toCharArray()) {
+            switch (c) {
+                case '%':
+                    escaped.append("%25");
+                    break;
+                case '/':
+                    escaped.append("%2F");
+                    break;
+                case '=':
+                    escaped.append("%3D");
+                    break;
+                case '*':
+                    escaped.append("%2A");
+                    break;
+                case '?':
+                    escaped.append("%3F");
+                    break;
+                default:
+                    escaped.append(c);
+            }
+        }
+        return escaped.toString();
+    }
+}
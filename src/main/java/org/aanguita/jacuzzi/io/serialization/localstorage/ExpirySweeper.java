@@ -0,0 +1,103 @@
+package org.aanguita.jacuzzi.io.serialization.localstorage;
+
+import org.aanguita.jacuzzi.concurrency.timer.Timer;
+import org.aanguita.jacuzzi.concurrency.timer.TimerAction;
+import org.aanguita.jacuzzi.io.serialization.localstorage.StorageBackend.ExpiredItems;
+import org.aanguita.jacuzzi.log.ErrorLog;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.function.BiConsumer;
+
+/**
+ * Background maintenance of a storage backend. Expired items are periodically removed in batches (each batch is
+ * removed atomically, and readers and writers can proceed between batches), and the storage is periodically
+ * compacted to reclaim the space of removed items.
+ * <p>
+ * Errors are reported to the error log, and the task is retried in the next period
+ */
+class ExpirySweeper {
+
+    private final StorageBackend backend;
+
+    private final int batchSize;
+
+    /**
+     * Invoked before each sweep
+     */
+    private final Runnable beforeSweep;
+
+    /**
+     * Receives each batch of removed items, together with the time used for the removal
+     */
+    private final BiConsumer<List<String>, Long> removedItemsConsumer;
+
+    private final Timer sweepTimer;
+
+    private final Timer compactionTimer;
+
+    /**
+     * @param sweepDelay      time (in millis) between sweeps of expired items
+     * @param compactionDelay time (in millis) between compactions of the storage (0 to never compact)
+     */
+    ExpirySweeper(StorageBackend backend, long sweepDelay, int batchSize, long compactionDelay, Runnable beforeSweep, BiConsumer<List<String>, Long> removedItemsConsumer) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be positive, received " + batchSize);
+        }
+        if (compactionDelay < 0L) {
+            throw new IllegalArgumentException("Compaction delay cannot be negative, received " + compactionDelay);
+        }
+        this.backend = backend;
+        this.batchSize = batchSize;
+        this.beforeSweep = beforeSweep;
+        this.removedItemsConsumer = removedItemsConsumer;
+        sweepTimer = new Timer(sweepDelay, sweepAction(), "LocalStorage.ExpirySweeper");
+        compactionTimer = compactionDelay > 0L ? new Timer(compactionDelay, compactionAction(), "LocalStorage.Compaction") : null;
+    }
+
+    private TimerAction sweepAction() {
+        return timer -> {
+            try {
+                sweep(backend, batchSize, beforeSweep, removedItemsConsumer);
+            } catch (RuntimeException e) {
+                ErrorLog.reportError(LocalStorage.class.getName(), "Could not remove expired items of local storage " + backend.getPath(), e);
+            }
+            return null;
+        };
+    }
+
+    private TimerAction compactionAction() {
+        return timer -> {
+            try {
+                backend.compact();
+            } catch (IOException | RuntimeException e) {
+                ErrorLog.reportError(LocalStorage.class.getName(), "Could not compact local storage " + backend.getPath(), e);
+            }
+            return null;
+        };
+    }
+
+    /**
+     * Removes all currently expired items of a backend, in batches. Batches go on until the backend finds fewer
+     * expired items than the batch size (not until fewer items are removed, as items modified concurrently are
+     * skipped)
+     */
+    static void sweep(StorageBackend backend, int batchSize, Runnable beforeSweep, BiConsumer<List<String>, Long> removedItemsConsumer) {
+        beforeSweep.run();
+        long time = System.currentTimeMillis();
+        ExpiredItems expiredItems;
+        do {
+            expiredItems = backend.removeExpired(time, batchSize);
+            if (!expiredItems.getRemovedNames().isEmpty()) {
+                removedItemsConsumer.accept(expiredItems.getRemovedNames(), time);
+            }
+        } while (expiredItems.getCandidateCount() >= batchSize);
+    }
+
+    void stop() {
+        sweepTimer.stop();
+        if (compactionTimer != null) {
+            compactionTimer.stop();
+        }
+    }
+}
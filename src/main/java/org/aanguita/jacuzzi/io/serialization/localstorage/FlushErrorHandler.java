@@ -0,0 +1,18 @@
+package org.aanguita.jacuzzi.io.serialization.localstorage;
+
+import java.util.Set;
+
+/**
+ * Receives the errors raised while flushing pending writes of a local storage in write-behind mode
+ */
+public interface FlushErrorHandler {
+
+    /**
+     * Invoked when a group of pending writes could not be flushed to the database. The writes are kept pending and
+     * will be retried in the next flush
+     *
+     * @param names names of the items whose writes could not be flushed
+     * @param e     the exception raised by the flush
+     */
+    void flushFailed(Set<String> names, Exception e);
+}
@@ -7,7 +7,7 @@ import org.javalite.activejdbc.annotations.Table;
 /**
  * The table for user-made items handled by the local storage
  */
-@DbName(LocalStorage.DATABASE)
-@Table(LocalStorage.ITEMS_TABLE)
+@DbName(SQLiteStorageBackend.DATABASE)
+@Table(SQLiteStorageBackend.ITEMS_TABLE)
 public class Item extends Model {
 }
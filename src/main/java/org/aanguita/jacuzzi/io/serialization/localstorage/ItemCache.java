@@ -0,0 +1,224 @@
+package org.aanguita.jacuzzi.io.serialization.localstorage;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded, concurrent cache of item values. Each entry is tagged with the type its value was read or written as,
+ * so a lookup with a different type is a miss.
+ * <p>
+ * Lookups never block: they read a concurrent map and update the access statistics of the entry without locking.
+ * When the max size is exceeded, the least valuable entries (least recently used, or least frequently used) are
+ * evicted in a batch, so eviction cost is amortized among insertions.
+ * <p>
+ * Misses (non-existing items) can also be cached, with an optional time to live. Values can be given an expiration
+ * time too (the expiration of their items)
+ *
+ * @param <T> type of the tags of the entries
+ */
+class ItemCache<T> {
+
+    static class Entry<T> {
+
+        private final T type;
+
+        private final Object value;
+
+        /**
+         * Time at which this entry expires (NO_EXPIRATION if it does not expire)
+         */
+        private final long expiration;
+
+        private volatile long lastAccess;
+
+        /**
+         * Approximate access count (increments are not atomic, lost updates are acceptable)
+         */
+        private volatile long accessCount;
+
+        private Entry(T type, Object value, long expiration) {
+            this.type = type;
+            this.value = value;
+            this.expiration = expiration;
+            lastAccess = System.nanoTime();
+            accessCount = 1;
+        }
+
+        Object getValue() {
+            return value;
+        }
+
+        boolean expires() {
+            return expiration != NO_EXPIRATION;
+        }
+
+        private void access() {
+            lastAccess = System.nanoTime();
+            //noinspection NonAtomicOperationOnVolatileField
+            accessCount++;
+        }
+
+        private long score(CacheEvictionPolicy evictionPolicy) {
+            return evictionPolicy == CacheEvictionPolicy.LRU ? lastAccess : accessCount;
+        }
+    }
+
+    /**
+     * Fraction of the max size that is evicted when the cache overflows
+     */
+    private static final double EVICTION_FRACTION = 0.1d;
+
+    static final long NO_EXPIRATION = Long.MAX_VALUE;
+
+    private final ConcurrentHashMap<String, Entry<T>> entries;
+
+    private final int maxSize;
+
+    private final CacheEvictionPolicy evictionPolicy;
+
+    /**
+     * Time to live of cached misses, in millis. Long.MAX_VALUE means no expiration, and 0 means misses are not
+     * cached
+     */
+    private final long missTimeToLive;
+
+    private final LongAdder hits;
+
+    private final LongAdder misses;
+
+    private final LongAdder evictions;
+
+    private final Object evictionLock;
+
+    ItemCache(int maxSize, CacheEvictionPolicy evictionPolicy, long missTimeToLive) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("Cache max size must be positive, received " + maxSize);
+        }
+        if (missTimeToLive < 0L) {
+            throw new IllegalArgumentException("Miss time to live cannot be negative, received " + missTimeToLive);
+        }
+        entries = new ConcurrentHashMap<>();
+        this.maxSize = maxSize;
+        this.evictionPolicy = evictionPolicy;
+        this.missTimeToLive = missTimeToLive;
+        hits = new LongAdder();
+        misses = new LongAdder();
+        evictions = new LongAdder();
+        evictionLock = new Object();
+    }
+
+    /**
+     * Looks up a cached value
+     *
+     * @param name name of the item
+     * @param type expected type of the value
+     * @return the cache entry (whose value can be null), or null if there is no valid entry of the given type
+     */
+    Entry<T> get(String name, T type) {
+        Entry<T> entry = entries.get(name);
+        if (entry != null && entry.type.equals(type)) {
+            if (entry.expiration == NO_EXPIRATION || entry.expiration > System.currentTimeMillis()) {
+                entry.access();
+                hits.increment();
+                return entry;
+            } else {
+                entries.remove(name, entry);
+            }
+        }
+        misses.increment();
+        return null;
+    }
+
+    Entry<T> put(String name, T type, Object value) {
+        return put(name, type, value, NO_EXPIRATION);
+    }
+
+    /**
+     * Caches a value until a given expiration time
+     *
+     * @return the new entry
+     */
+    Entry<T> put(String name, T type, Object value, long expiration) {
+        Entry<T> entry = new Entry<>(type, value, expiration);
+        entries.put(name, entry);
+        evictIfNeeded();
+        return entry;
+    }
+
+    /**
+     * Caches the fact that an item does not exist
+     *
+     * @return an entry with a null value (which is not stored if misses are not cached)
+     */
+    Entry<T> putMiss(String name, T type) {
+        if (missTimeToLive > 0L) {
+            long expiration = missTimeToLive == NO_EXPIRATION ? NO_EXPIRATION : System.currentTimeMillis() + missTimeToLive;
+            return put(name, type, null, expiration);
+        } else {
+            return new Entry<>(type, null, NO_EXPIRATION);
+        }
+    }
+
+    void remove(String name) {
+        entries.remove(name);
+    }
+
+    void clear() {
+        entries.clear();
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    CacheStats stats() {
+        return new CacheStats(hits.sum(), misses.sum(), evictions.sum(), entries.size());
+    }
+
+    private void evictIfNeeded() {
+        if (entries.size() > maxSize) {
+            synchronized (evictionLock) {
+                if (entries.size() > maxSize) {
+                    evict(entries.size() - maxSize + (int) (maxSize * EVICTION_FRACTION));
+                }
+            }
+        }
+    }
+
+    private void evict(int count) {
+        // scores are copied before sorting, as other threads keep updating them (a comparator reading them
+        // directly would be inconsistent, and the sort could fail)
+        List<EvictionCandidate<T>> candidates = new ArrayList<>(entries.size());
+        for (Map.Entry<String, Entry<T>> entry : entries.entrySet()) {
+            candidates.add(new EvictionCandidate<>(entry.getKey(), entry.getValue(), entry.getValue().score(evictionPolicy)));
+        }
+        candidates.sort(Comparator.comparingLong(candidate -> candidate.score));
+        for (int i = 0; i < count && i < candidates.size(); i++) {
+            if (entries.remove(candidates.get(i).name, candidates.get(i).entry)) {
+                evictions.increment();
+            }
+        }
+    }
+
+    /**
+     * An entry considered for eviction, with its score at the time of the eviction
+     */
+    private static class EvictionCandidate<T> {
+
+        private final String name;
+
+        private final Entry<T> entry;
+
+        private final long score;
+
+        private EvictionCandidate(String name, Entry<T> entry, long score) {
+            this.name = name;
+            this.entry = entry;
+            this.score = score;
+        }
+    }
+}
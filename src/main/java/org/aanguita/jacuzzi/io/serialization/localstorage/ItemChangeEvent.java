@@ -0,0 +1,54 @@
+package org.aanguita.jacuzzi.io.serialization.localstorage;
+
+import java.util.List;
+
+/**
+ * Change of an item of a local storage, published to the watchers of the item (see LocalStorage.watchItem())
+ */
+public class ItemChangeEvent {
+
+    public enum Kind {
+        /**
+         * The item was created or its value was modified
+         */
+        UPDATED,
+        /**
+         * The item was removed
+         */
+        REMOVED,
+        /**
+         * All items were removed (only published to watchers of the whole storage)
+         */
+        CLEARED
+    }
+
+    /**
+     * Name of the changed item (empty for CLEARED events)
+     */
+    public final String name;
+
+    /**
+     * Category path of the changed item
+     */
+    public final List<String> categories;
+
+    /**
+     * Last change of the item. Changes happening within the coalescing delay of a local storage are reported once
+     */
+    public final Kind kind;
+
+    public ItemChangeEvent(String name, List<String> categories, Kind kind) {
+        this.name = name;
+        this.categories = categories;
+        this.kind = kind;
+    }
+
+    @Override
+    public String toString() {
+        return "ItemChangeEvent{" +
+                "name='" + name + '\'' +
+                ", categories=" + categories +
+                ", kind=" + kind +
+                '}';
+    }
+}
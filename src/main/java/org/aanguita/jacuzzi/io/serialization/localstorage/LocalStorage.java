@@ -1,599 +1,943 @@
 package org.aanguita.jacuzzi.io.serialization.localstorage;
 
-import org.aanguita.jacuzzi.concurrency.LockMap;
-import org.aanguita.jacuzzi.io.serialization.activejdbcsupport.ActiveJDBCController;
+import org.aanguita.jacuzzi.event.hub.EventHub;
+import org.aanguita.jacuzzi.event.hub.EventHubSubscriber;
+import org.aanguita.jacuzzi.io.serialization.localstorage.StorageBackend.Column;
+import org.aanguita.jacuzzi.io.serialization.localstorage.StorageBackend.ItemChange;
+import org.aanguita.jacuzzi.log.ErrorLog;
 import org.aanguita.jacuzzi.objects.Util;
-import org.javalite.activejdbc.DB;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.lang.reflect.Method;
 import java.util.*;
-import java.util.concurrent.locks.Lock;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
+import java.util.function.Function;
+import java.util.stream.*;
 
 /**
- * A local storage implementation backed by SQLite 3 databases. Data access is performed via the ActiveJDBC orm
+ * A local storage of typed items, organized in categories. Items are kept by a pluggable storage backend. By
+ * default, SQLite 3 databases are used (accessed via the ActiveJDBC orm), but other backends can be provided, such
+ * as the LogStorageBackend, an append-only memory-mapped file that needs no database engine.
  * <p>
- * A write-through cache is maintained for all written data, so accessions do not go to the database.
+ * A write-through cache is maintained for written and read data, so accessions do not go to the database. The
+ * cache is bounded, evicting least recently (or least frequently) used values, and cached values are read without
+ * blocking. Hit and miss statistics are available through getCacheStats().
+ * <p>
+ * An optional write-behind mode can be enabled. Writes then update the cache immediately, and are flushed to the
+ * database in the background, grouped in single transactions. Pending writes are flushed when enough of them
+ * accumulate, periodically, or upon explicit invocation of flush() or close().
+ * <p>
+ * For fast startup, whole categories (or the whole storage) can be preloaded in memory with a single sequential
+ * scan (see preload()). Reads of preloaded items never go to the database. Load times and item counts are
+ * available through getPreloadStats().
+ * <p>
+ * Items can be given a time to live (see the setters with a timeToLive parameter, and setTimeToLive()). Expired
+ * items are not visible to reads, and can be removed in the background (see enableExpirySweeper()). Until they are
+ * removed, expired items are still listed by keys() and counted by itemCount().
+ * <p>
+ * The whole storage can be exported to a stream and imported from it (see exportTo() and importFrom()), for
+ * copying or migrating storages, or seeding new ones.
+ * <p>
+ * Item changes can be watched, by item, category or item name prefix. Changes are published as ItemChangeEvents
+ * through an event hub (shared by all local storages of the same path), coalesced per item.
  *
  * todo put IOException upon loading not existing path?
  */
 public class LocalStorage {
 
-    private static class TableField {
+    /**
+     * Types of the single values that can be stored, with the column that holds them and their conversions to and
+     * from that column
+     */
+    private enum ItemType {
+        STRING(String.class, Column.STRING) {
+            @Override
+            Object read(Object columnValue) {
+                return columnValue;
+            }
+        },
+        BOOLEAN(Boolean.class, Column.INTEGER) {
+            @Override
+            Object read(Object columnValue) {
+                return columnValue != null ? ((Number) columnValue).longValue() != 0L : null;
+            }
+
+            @Override
+            Object toColumn(Object value) {
+                return value != null ? ((Boolean) value ? 1L : 0L) : null;
+            }
+        },
+        BYTE(Byte.class, Column.INTEGER) {
+            @Override
+            Object read(Object columnValue) {
+                return columnValue != null ? ((Number) columnValue).byteValue() : null;
+            }
+        },
+        SHORT(Short.class, Column.INTEGER) {
+            @Override
+            Object read(Object columnValue) {
+                return columnValue != null ? ((Number) columnValue).shortValue() : null;
+            }
+        },
+        INTEGER(Integer.class, Column.INTEGER) {
+            @Override
+            Object read(Object columnValue) {
+                return columnValue != null ? ((Number) columnValue).intValue() : null;
+            }
+        },
+        LONG(Long.class, Column.INTEGER) {
+            @Override
+            Object read(Object columnValue) {
+                return columnValue != null ? ((Number) columnValue).longValue() : null;
+            }
+        },
+        FLOAT(Float.class, Column.REAL) {
+            @Override
+            Object read(Object columnValue) {
+                return columnValue != null ? ((Number) columnValue).floatValue() : null;
+            }
+        },
+        DOUBLE(Double.class, Column.REAL) {
+            @Override
+            Object read(Object columnValue) {
+                return columnValue != null ? ((Number) columnValue).doubleValue() : null;
+            }
+        },
+        DATE(Date.class, Column.INTEGER) {
+            @Override
+            Object read(Object columnValue) {
+                return columnValue != null ? new Date(((Number) columnValue).longValue()) : null;
+            }
+
+            @Override
+            Object toColumn(Object value) {
+                return value != null ? ((Date) value).getTime() : null;
+            }
+        };
 
-        final String name;
+        final Class<?> valueClass;
 
-        final String type;
+        final Column column;
 
-        public TableField(String name, String type) {
-            this.name = name;
-            this.type = type;
+        ItemType(Class<?> valueClass, Column column) {
+            this.valueClass = valueClass;
+            this.column = column;
+        }
+
+        abstract Object read(Object columnValue);
+
+        /**
+         * Converts a value to the representation of its column (Long for integer columns, Double for real columns)
+         */
+        Object toColumn(Object value) {
+            if (value == null || column == Column.STRING) {
+                return value;
+            } else if (column == Column.INTEGER) {
+                return ((Number) value).longValue();
+            } else {
+                return ((Number) value).doubleValue();
+            }
+        }
+
+        static ItemType ofClass(Class<?> valueClass) {
+            for (ItemType itemType : values()) {
+                if (itemType.valueClass.equals(valueClass)) {
+                    return itemType;
+                }
+            }
+            throw new IllegalArgumentException("Unsupported item type: " + valueClass.getName());
         }
     }
 
-    static final String DATABASE = "jacuzzi_localStorage";
+    private static final String CATEGORY_SEPARATOR = StorageBackend.CATEGORY_SEPARATOR;
+
+    private static final String LIST_SEPARATOR = "\n";
 
-    static final String METADATA_TABLE = DATABASE + "_metadata";
 
-    static final String ITEMS_TABLE = DATABASE + "_items";
+    /**
+     * Version of the SQLite databases created by this class
+     */
+    public static final String CURRENT_VERSION = SQLiteStorageBackend.CURRENT_VERSION;
 
-    private static final TableField ID = new TableField("id", "INTEGER NOT NULL PRIMARY KEY AUTOINCREMENT");
+    private static final int DEFAULT_MAX_CACHED_ITEMS = 10000;
 
-    private static final TableField LS_VERSION = new TableField("ls_version", "TEXT");
+    private static final long DEFAULT_WATCH_COALESCE_DELAY = 100L;
 
-    private static final TableField CREATION_DATE = new TableField("creation_date", "INTEGER");
+    private static final int DEFAULT_EXPIRY_BATCH_SIZE = 500;
 
-    private static final TableField NAME = new TableField("id", "TEXT NOT NULL PRIMARY KEY");
+    /**
+     * Number of items written in each transaction of an import
+     */
+    private static final int IMPORT_BATCH_SIZE = 20000;
 
-    private static final TableField STRING_ITEM = new TableField("string_item", "TEXT");
 
-    private static final TableField INTEGER_ITEM = new TableField("integer_item", "INTEGER");
+    private final StorageBackend backend;
 
-    private static final TableField REAL_ITEM = new TableField("real_item", "REAL");
+    /**
+     * Cache of item values, tagged with the type they were read or written as
+     */
+    private final ItemCache<ItemType> cache;
 
-    private static final String CATEGORY_SEPARATOR = "@/-CAT-/@";
+    /**
+     * Queue of pending writes in write-behind mode (null if this mode is not enabled)
+     */
+    private volatile WriteBehindQueue writeBehindQueue;
 
-    private static final String LIST_SEPARATOR = "\n";
+    /**
+     * Items of the preloaded categories
+     */
+    private final PreloadedItems preloadedItems;
+
+    /**
+     * Publisher of item changes to watchers (null if watching is not enabled)
+     */
+    private volatile ChangeNotifier changeNotifier;
 
+    /**
+     * Background removal of expired items (null if not enabled)
+     */
+    private ExpirySweeper expirySweeper;
 
-    public static final String CURRENT_VERSION = "0.1.0";
+    public LocalStorage(String path) {
+        this(new SQLiteStorageBackend(path));
+    }
 
+    /**
+     * Creates a local storage with a custom item cache
+     *
+     * @param path           path to the local database
+     * @param maxCachedItems max number of item values kept in the cache
+     * @param evictionPolicy policy for evicting values when the cache is full
+     * @param missTimeToLive time (in millis) that non-existing items are remembered in the cache. Long.MAX_VALUE
+     *                       means forever, and 0 means non-existing items are not cached
+     */
+    public LocalStorage(String path, int maxCachedItems, CacheEvictionPolicy evictionPolicy, long missTimeToLive) {
+        this(new SQLiteStorageBackend(path), maxCachedItems, evictionPolicy, missTimeToLive);
+    }
 
     /**
-     * Path to the local database
+     * Creates a local storage on top of the given storage backend
+     *
+     * @param backend backend that stores the items
      */
-    private final String path;
+    public LocalStorage(StorageBackend backend) {
+        this(backend, DEFAULT_MAX_CACHED_ITEMS, CacheEvictionPolicy.LRU, Long.MAX_VALUE);
+    }
 
-    private final Map<String, String> stringItems;
+    /**
+     * Creates a local storage on top of the given storage backend, with a custom item cache
+     *
+     * @param backend        backend that stores the items
+     * @param maxCachedItems max number of item values kept in the cache
+     * @param evictionPolicy policy for evicting values when the cache is full
+     * @param missTimeToLive time (in millis) that non-existing items are remembered in the cache. Long.MAX_VALUE
+     *                       means forever, and 0 means non-existing items are not cached
+     */
+    public LocalStorage(StorageBackend backend, int maxCachedItems, CacheEvictionPolicy evictionPolicy, long missTimeToLive) {
+        this.backend = backend;
+        cache = new ItemCache<>(maxCachedItems, evictionPolicy, missTimeToLive);
+        writeBehindQueue = null;
+        preloadedItems = new PreloadedItems();
+        changeNotifier = null;
+        expirySweeper = null;
+    }
 
-    private final Map<String, Boolean> booleanItems;
+    public static LocalStorage createNew(String path) throws IOException {
+        return new LocalStorage(SQLiteStorageBackend.createNew(path));
+    }
+
+    /**
+     * Opens a local storage and preloads a category
+     *
+     * @param path       path to the local database
+     * @param categories the category path to preload (empty to preload the whole storage)
+     * @return the opened local storage
+     */
+    public static LocalStorage openPreloaded(String path, String... categories) {
+        LocalStorage localStorage = new LocalStorage(path);
+        localStorage.preload(categories);
+        return localStorage;
+    }
 
-    private final Map<String, Byte> byteItems;
+    public String getPath() {
+        return backend.getPath();
+    }
 
-    private final Map<String, Short> shortItems;
+    /**
+     * Enables the write-behind mode. Written values are immediately visible in the cache, but reach the database in
+     * the background. Errors during flushes are reported to the error log
+     *
+     * @param maxPendingItems max number of items with pending writes. Reaching it triggers a flush
+     * @param flushDelay      time (in millis) between periodic flushes
+     */
+    public void enableWriteBehind(int maxPendingItems, long flushDelay) {
+        enableWriteBehind(maxPendingItems, flushDelay, (names, e) ->
+                ErrorLog.reportError(LocalStorage.class.getName(), "Could not flush pending writes of " + getPath(), names, e));
+    }
 
-    private final Map<String, Integer> integerItems;
+    /**
+     * Enables the write-behind mode. Written values are immediately visible in the cache, but reach the database in
+     * the background
+     *
+     * @param maxPendingItems   max number of items with pending writes. Reaching it triggers a flush
+     * @param flushDelay        time (in millis) between periodic flushes
+     * @param flushErrorHandler handler for errors raised during flushes. Failed writes are retried in the next flush
+     */
+    public synchronized void enableWriteBehind(int maxPendingItems, long flushDelay, FlushErrorHandler flushErrorHandler) {
+        if (writeBehindQueue == null) {
+            writeBehindQueue = new WriteBehindQueue(maxPendingItems, flushDelay, backend::write, flushErrorHandler);
+        }
+    }
 
-    private final Map<String, Long> longItems;
+    public boolean isWriteBehindEnabled() {
+        return writeBehindQueue != null;
+    }
 
-    private final Map<String, Float> floatItems;
+    public int pendingWriteCount() {
+        WriteBehindQueue queue = writeBehindQueue;
+        return queue != null ? queue.pendingItemCount() : 0;
+    }
 
-    private final Map<String, Double> doubleItems;
+    /**
+     * Writes all pending writes to the database (only relevant in write-behind mode). This method returns once the
+     * writes have been committed, or once the flush failed
+     *
+     * @return true if all pending writes were successfully flushed, false otherwise
+     */
+    public boolean flush() {
+        WriteBehindQueue queue = writeBehindQueue;
+        return queue == null || queue.flush();
+    }
 
-    private final Map<String, Date> dateItems;
+    /**
+     * Flushes all pending writes, disables the write-behind mode and closes the storage backend. The default SQLite
+     * backend holds no resources between accesses, so a local storage using it can still be used afterwards, with
+     * writes going directly to the database. If the final flush fails, the pending writes are kept (and the backend
+     * is not closed), so the close can be retried
+     *
+     * @return true if all pending writes were successfully flushed, false otherwise
+     */
+    public synchronized boolean close() {
+        if (expirySweeper != null) {
+            expirySweeper.stop();
+            expirySweeper = null;
+        }
+        WriteBehindQueue queue = writeBehindQueue;
+        if (queue != null) {
+            // the queue stays installed until its final flush succeeds. Writers still holding it once it is closed
+            // write directly to the backend
+            if (!queue.close()) {
+                return false;
+            }
+            writeBehindQueue = null;
+        }
+        backend.close();
+        return true;
+    }
 
-    private static final LockMap<String> locks = new LockMap<>();
+    /**
+     * Enables the periodic removal of expired items, and the periodic compaction of the storage to reclaim the
+     * space of removed items. Errors are reported to the error log
+     *
+     * @param sweepDelay      time (in millis) between removals of expired items
+     * @param batchSize       max number of items removed in a single transaction
+     * @param compactionDelay time (in millis) between compactions (0 to never compact)
+     */
+    public synchronized void enableExpirySweeper(long sweepDelay, int batchSize, long compactionDelay) {
+        if (expirySweeper == null) {
+            expirySweeper = new ExpirySweeper(backend, sweepDelay, batchSize, compactionDelay, () -> flushBeforeRead(null), this::expiredItemsRemoved);
+        }
+    }
 
-    public LocalStorage(String path) {
-        this.path = path;
-        stringItems = Collections.synchronizedMap(new HashMap<>());
-        booleanItems = Collections.synchronizedMap(new HashMap<>());
-        byteItems = Collections.synchronizedMap(new HashMap<>());
-        shortItems = Collections.synchronizedMap(new HashMap<>());
-        integerItems = Collections.synchronizedMap(new HashMap<>());
-        longItems = Collections.synchronizedMap(new HashMap<>());
-        floatItems = Collections.synchronizedMap(new HashMap<>());
-        doubleItems = Collections.synchronizedMap(new HashMap<>());
-        dateItems = Collections.synchronizedMap(new HashMap<>());
+    /**
+     * Removes all currently expired items from the storage
+     */
+    public void removeExpiredItems() {
+        ExpirySweeper.sweep(backend, DEFAULT_EXPIRY_BATCH_SIZE, () -> flushBeforeRead(null), this::expiredItemsRemoved);
     }
 
-    public static LocalStorage createNew(String path) throws IOException {
-        DB db = ActiveJDBCController.connect(DATABASE, path);
-        db.exec("DROP TABLE IF EXISTS " + METADATA_TABLE);
-        db.exec("DROP TABLE IF EXISTS " + ITEMS_TABLE);
-
-        StringBuilder create = new StringBuilder("CREATE TABLE ").append(METADATA_TABLE).append("(");
-        appendField(create, ID, false);
-        appendField(create, LS_VERSION, false);
-        appendField(create, CREATION_DATE, true);
-        db.exec(create.toString());
-
-        create = new StringBuilder("CREATE TABLE ").append(ITEMS_TABLE).append("(");
-        // todo add index to name
-        appendField(create, NAME, false);
-        appendField(create, STRING_ITEM, false);
-        appendField(create, INTEGER_ITEM, false);
-        appendField(create, REAL_ITEM, true);
-        db.exec(create.toString());
-
-        Metadata Metadata = new Metadata();
-        Metadata.setString(LS_VERSION.name, CURRENT_VERSION);
-        Metadata.setLong(CREATION_DATE.name, new Date().getTime());
-        Metadata.saveIt();
-
-        ActiveJDBCController.disconnect();
-        return new LocalStorage(path);
-    }
-
-    private static void appendField(StringBuilder create, TableField field, boolean isFinal) {
-        create.append(field.name).append(" ").append(field.type);
-        if (isFinal) {
-            create.append(")");
-        } else {
-            create.append(",");
+    private void expiredItemsRemoved(List<String> names, long time) {
+        for (String name : names) {
+            cache.remove(name);
+            preloadedItems.removeIfExpired(name, time);
+            notifyChange(name, ItemChangeEvent.Kind.REMOVED);
         }
     }
 
-    private Metadata getMetadata() {
-        ActiveJDBCController.connect(DATABASE, path);
+    /**
+     * Reclaims the storage space left by removed items. For SQLite databases, free pages are released in short
+     * incremental steps, so readers are not blocked for long
+     *
+     * @throws IOException if the storage could not be compacted
+     */
+    public void compact() throws IOException {
+        backend.compact();
+    }
+
+    /**
+     * Writes a snapshot of all the items of this storage to a stream, with a single sequential scan. Expired items
+     * are not included. The snapshot uses a compact binary format, with CRC protected blocks (see SnapshotCodec)
+     *
+     * @param out stream receiving the snapshot. It is flushed, but not closed
+     * @return the number of exported items
+     * @throws IOException if the stream could not be written
+     */
+    public long exportTo(OutputStream out) throws IOException {
+        flushBeforeRead(null);
+        return SnapshotCodec.export(backend, out);
+    }
+
+    /**
+     * Imports the items of a snapshot (see exportTo()). Imported items replace existing items of the same name,
+     * while other existing items are kept. Items are written in large batches, each in a single transaction, so if
+     * the snapshot is found to be corrupted in the middle, the items of the previous batches stay imported
+     *
+     * @param in stream with the snapshot. It is not closed
+     * @return the number of imported items
+     * @throws IOException if the stream could not be read, or it does not contain a valid snapshot
+     */
+    public long importFrom(InputStream in) throws IOException {
+        flush();
         try {
-            return (Metadata) Metadata.findAll().get(0);
+            return SnapshotCodec.importItems(in, IMPORT_BATCH_SIZE, batch -> {
+                backend.write(batch);
+                for (Map.Entry<String, ItemChange> item : batch.entrySet()) {
+                    if (preloadedItems.covers(item.getKey())) {
+                        preloadedItems.update(item.getKey(), item.getValue().getColumns());
+                    }
+                    notifyChange(item.getKey(), ItemChangeEvent.Kind.UPDATED);
+                }
+            });
         } finally {
-            ActiveJDBCController.disconnect();
+            cache.clear();
         }
     }
 
-    private Item getItem(String name, boolean create) {
-        // must be previously connected
-        Item item = Item.findFirst(NAME.name + " = ?", name);
-        if (item == null && create) {
-            item = new Item();
-            item.setString(NAME.name, name);
-            item.insert();
+    /**
+     * Loads all the items of a category (including its sub-categories) in memory, with one sequential scan.
+     * Afterwards, reads of these items are served from memory, and writes keep them updated. Successive invocations
+     * add more categories to the preloaded ones. This is meant to be invoked upon startup, before other threads
+     * start writing
+     *
+     * @param categories the category path to preload (empty to preload the whole storage)
+     * @return the accumulated preload statistics
+     */
+    public synchronized PreloadStats preload(String... categories) {
+        flushBeforeRead(null);
+        preloadedItems.load(backend, generateName("", categories));
+        return preloadedItems.stats();
+    }
+
+    public PreloadStats getPreloadStats() {
+        return preloadedItems.stats();
+    }
+
+    /**
+     * Enables publishing item changes to watchers. This is done automatically upon the first watch, with a default
+     * coalescing delay
+     *
+     * @param coalesceDelay time (in millis) that changes are retained before publishing them. All changes of an
+     *                      item within this delay are published once
+     */
+    public synchronized void enableWatch(long coalesceDelay) {
+        if (changeNotifier == null) {
+            changeNotifier = new ChangeNotifier(EventHub.getEventHub(LocalStorage.class.getName() + ":" + getPath()), coalesceDelay);
         }
-        return item;
     }
 
-    public String getPath() {
-        return path;
+    private ChangeNotifier getChangeNotifier() {
+        enableWatch(DEFAULT_WATCH_COALESCE_DELAY);
+        return changeNotifier;
+    }
+
+    /**
+     * Retrieves the event hub where item changes are published (see ChangeNotifier for the channel format)
+     */
+    public EventHub getEventHub() {
+        return getChangeNotifier().getEventHub();
+    }
+
+    /**
+     * Subscribes to the changes of an item
+     *
+     * @param subscriber subscriber receiving ItemChangeEvents
+     * @param name       name of the item
+     * @param categories categories of the item
+     */
+    public void watchItem(EventHubSubscriber subscriber, String name, String... categories) {
+        getChangeNotifier().watchItem(subscriber, name, Arrays.asList(categories));
+    }
+
+    public void unwatchItem(EventHubSubscriber subscriber, String name, String... categories) {
+        getChangeNotifier().unwatchItem(subscriber, name, Arrays.asList(categories));
+    }
+
+    /**
+     * Subscribes to the changes of the items of a category and its sub-categories. Watchers of the whole storage
+     * (empty category path) also receive CLEARED events
+     *
+     * @param subscriber subscriber receiving ItemChangeEvents
+     * @param categories the category path
+     */
+    public void watchCategory(EventHubSubscriber subscriber, String... categories) {
+        getChangeNotifier().watchCategory(subscriber, Arrays.asList(categories));
+    }
+
+    public void unwatchCategory(EventHubSubscriber subscriber, String... categories) {
+        getChangeNotifier().unwatchCategory(subscriber, Arrays.asList(categories));
+    }
+
+    /**
+     * Subscribes to the changes of the items of a category (not including sub-categories) whose name starts with
+     * a given prefix
+     *
+     * @param subscriber subscriber receiving ItemChangeEvents
+     * @param prefix     prefix of the item names
+     * @param categories the category path
+     */
+    public void watchPrefix(EventHubSubscriber subscriber, String prefix, String... categories) {
+        getChangeNotifier().watchPrefix(subscriber, prefix, Arrays.asList(categories));
+    }
+
+    public void unwatchPrefix(EventHubSubscriber subscriber, String prefix, String... categories) {
+        getChangeNotifier().unwatchPrefix(subscriber, prefix, Arrays.asList(categories));
+    }
+
+    private void notifyChange(String name, ItemChangeEvent.Kind kind) {
+        ChangeNotifier notifier = changeNotifier;
+        if (notifier != null) {
+            notifier.itemChanged(name, kind);
+        }
+    }
+
+    /**
+     * Reads the columns of an item, from the preloaded items if possible
+     *
+     * @return the columns of the item, or null if it does not exist
+     */
+    private Map<Column, Object> readColumns(String name) {
+        Map<Column, Object> columns;
+        if (preloadedItems.covers(name)) {
+            columns = preloadedItems.get(name);
+        } else {
+            flushBeforeRead(name);
+            columns = backend.read(name);
+        }
+        return columns != null && !isExpired(columns) ? columns : null;
+    }
+
+    private static boolean isExpired(Map<Column, Object> columns) {
+        Long expiration = (Long) columns.get(Column.EXPIRATION);
+        return expiration != null && expiration <= System.currentTimeMillis();
+    }
+
+    private static long expirationOf(Map<Column, Object> columns) {
+        Long expiration = (Long) columns.get(Column.EXPIRATION);
+        return expiration != null ? expiration : ItemCache.NO_EXPIRATION;
+    }
+
+    private static Long expirationFor(long timeToLive) {
+        if (timeToLive <= 0L) {
+            throw new IllegalArgumentException("Time to live must be positive, received " + timeToLive);
+        }
+        return System.currentTimeMillis() + timeToLive;
+    }
+
+    /**
+     * In write-behind mode, flushes pending writes before a read that must go to the database
+     *
+     * @param name name of the read item, or null if the read involves several items
+     */
+    private void flushBeforeRead(String name) {
+        WriteBehindQueue queue = writeBehindQueue;
+        if (queue != null && (name != null ? queue.isPending(name) : queue.hasPendingItems())) {
+            queue.flush();
+        }
+    }
+
+    /**
+     * Writes the value of a column of an item. The item is created if it does not exist
+     */
+    private void writeColumn(String name, Column column, Object value) {
+        writeColumns(name, Collections.singletonMap(column, value));
+    }
+
+    /**
+     * Writes the values of several columns of an item. The item is created if it does not exist
+     */
+    private void writeColumns(String name, Map<Column, Object> columns) {
+        if (preloadedItems.covers(name)) {
+            preloadedItems.update(name, columns);
+        }
+        WriteBehindQueue queue = writeBehindQueue;
+        if (queue != null) {
+            columns.forEach((column, value) -> queue.write(name, column, value));
+        } else {
+            ItemChange change = new ItemChange();
+            columns.forEach(change::setColumn);
+            backend.write(Collections.singletonMap(name, change));
+        }
+        notifyChange(name, ItemChangeEvent.Kind.UPDATED);
     }
 
     public String getLocalStorageVersion() {
-        return getMetadata().getString(LS_VERSION.name);
+        return backend.getVersion();
     }
 
     public Date getCreationDate() {
-        Long date = getMetadata().getLong(CREATION_DATE.name);
-        return date != null ? new Date(date) : null;
+        return backend.getCreationDate();
     }
 
     public int itemCount() {
-        ActiveJDBCController.connect(DATABASE, path);
-        try {
-            return Item.count().intValue();
-        } finally {
-            ActiveJDBCController.disconnect();
-        }
+        flushBeforeRead(null);
+        return backend.itemCount();
     }
 
-//    public List<String> keys() {
-//        ActiveJDBCController.connect(DATABASE, path);
-//        try {
-//            return Item.findAll().stream().map(model -> model.getString(NAME.name)).collect(Collectors.toList());
-//        } finally {
-//            ActiveJDBCController.disconnect();
-//        }
-//    }
-//
-//    public List<String> keys(String category) {
-//        ActiveJDBCController.connect(DATABASE, path);
-//        try {
-//            return Item.where(ID.name + " LIKE ?", category + "%").stream().map(model -> model.getString(NAME.name)).map(categoryAndName -> extractName(category, categoryAndName)).collect(Collectors.toList());
-//        } finally {
-//            ActiveJDBCController.disconnect();
-//        }
-//    }
-
+    /**
+     * Retrieves the names of the items directly contained in a category (items of its sub-categories are not
+     * included), in insertion order
+     *
+     * @param categories the category path (empty for items without category)
+     * @return the names of the items in the given category
+     */
     public List<String> keys(String... categories) {
         String preKey = generateName("", categories);
-        ActiveJDBCController.connect(DATABASE, path);
-        try {
-            return Item.where(ID.name + " LIKE ?", preKey + "%").stream()
-                    .map(model -> model.getString(NAME.name))
-                    .map(fullKey -> fullKey.substring(preKey.length()))
-                    .filter(key -> !key.contains(CATEGORY_SEPARATOR))
-                    .collect(Collectors.toList());
-        } finally {
-            ActiveJDBCController.disconnect();
-        }
+        flushBeforeRead(null);
+        return backend.names(preKey).stream()
+                .map(fullKey -> extractName(preKey, fullKey))
+                .collect(Collectors.toList());
     }
 
+    /**
+     * Iterates over the names of the items directly contained in a category, in insertion order. Names are
+     * retrieved from the storage in pages, so large categories are never fully loaded in memory. Items added or
+     * removed during the iteration may or may not be reflected
+     *
+     * @param categories the category path (empty for items without category)
+     * @return an iterator over the names of the items in the given category
+     */
+    public Iterator<String> keyIterator(String... categories) {
+        String preKey = generateName("", categories);
+        flushBeforeRead(null);
+        Iterator<String> fullKeys = backend.nameIterator(preKey);
+        return new Iterator<String>() {
+            @Override
+            public boolean hasNext() {
+                return fullKeys.hasNext();
+            }
+
+            @Override
+            public String next() {
+                return extractName(preKey, fullKeys.next());
+            }
+        };
+    }
+
+    /**
+     * Retrieves the direct sub-categories of a category
+     *
+     * @param categories the category path (empty for the top level categories)
+     * @return the names of the direct sub-categories of the given category
+     */
     public Set<String> categories(String... categories) {
         String preKey = generateName("", categories);
-        ActiveJDBCController.connect(DATABASE, path);
-        try {
-            return Item.where(ID.name + " LIKE ?", preKey + "%").stream()
-                    .map(model -> model.getString(NAME.name))
-                    .map(fullKey -> fullKey.substring(preKey.length()))
-                    .filter(key -> key.contains(CATEGORY_SEPARATOR))
-                    .map(key -> key.substring(0, key.indexOf(CATEGORY_SEPARATOR)))
-                    .collect(Collectors.toSet());
-        } finally {
-            ActiveJDBCController.disconnect();
-        }
+        flushBeforeRead(null);
+        return backend.subCategories(preKey).stream()
+                .map(category -> extractName(preKey, category))
+                .map(category -> category.substring(0, category.indexOf(CATEGORY_SEPARATOR)))
+                .collect(Collectors.toSet());
     }
 
     public boolean containsItem(String name, String... categories) {
-        name = generateName(name, categories);
-        connect(name);
-        try {
-            return getItem(name, false) != null;
-        } finally {
-            disconnect(name);
-        }
+        return readColumns(generateName(name, categories)) != null;
     }
 
     public void removeItem(String name, String... categories) {
         name = generateName(name, categories);
-        connect(name);
-        try {
-            Item item = getItem(name, false);
-            if (item != null) {
-                item.delete();
-            }
-        } finally {
-            disconnect(name);
+        cache.remove(name);
+        preloadedItems.remove(name);
+        WriteBehindQueue queue = writeBehindQueue;
+        if (queue != null) {
+            queue.remove(name);
+        } else {
+            backend.write(Collections.singletonMap(name, new ItemChange().markRemoved()));
         }
+        notifyChange(name, ItemChangeEvent.Kind.REMOVED);
     }
 
     public void clear() {
-        ActiveJDBCController.connect(DATABASE, path);
-        try {
-            Item.deleteAll();
-            stringItems.clear();
-            booleanItems.clear();
-            byteItems.clear();
-            shortItems.clear();
-            integerItems.clear();
-            longItems.clear();
-            floatItems.clear();
-            doubleItems.clear();
-            dateItems.clear();
-        } finally {
-            ActiveJDBCController.disconnect();
+        WriteBehindQueue queue = writeBehindQueue;
+        if (queue != null) {
+            queue.discard();
+        }
+        backend.clear();
+        cache.clear();
+        preloadedItems.clear();
+        ChangeNotifier notifier = changeNotifier;
+        if (notifier != null) {
+            notifier.cleared();
         }
     }
 
-    private <E> E loadCache(Map<String, E> cache, String name, E value) {
-        cache.put(name, value);
-        return value;
+    public CacheStats getCacheStats() {
+        return cache.stats();
     }
 
-    private void connect(String name) {
-        ActiveJDBCController.connect(DATABASE, path);
-        getLock(name).lock();
+    /**
+     * Retrieves the values of several items of the same type. Values not found in the cache are read from the
+     * storage with a single request, and loaded in the cache
+     *
+     * @param names      names of the items to retrieve
+     * @param type       type of the values (String, Boolean, Byte, Short, Integer, Long, Float, Double or Date)
+     * @param categories categories of the items
+     * @return a map with the value of each requested name (null for non-existing items), in the requested order
+     */
+    public <E> Map<String, E> getAll(Collection<String> names, Class<E> type, String... categories) {
+        ItemType itemType = ItemType.ofClass(type);
+        Map<String, E> values = new LinkedHashMap<>();
+        Map<String, String> missingNames = new LinkedHashMap<>();
+        for (String name : names) {
+            String fullName = generateName(name, categories);
+            ItemCache.Entry<ItemType> entry = cache.get(fullName, itemType);
+            if (entry != null) {
+                //noinspection unchecked
+                values.put(name, (E) entry.getValue());
+            } else if (preloadedItems.covers(fullName)) {
+                Map<Column, Object> columns = preloadedItems.get(fullName);
+                Object value = columns != null && !isExpired(columns) ? itemType.read(columns.get(itemType.column)) : null;
+                //noinspection unchecked
+                values.put(name, (E) value);
+            } else {
+                values.put(name, null);
+                missingNames.put(fullName, name);
+            }
+        }
+        if (!missingNames.isEmpty()) {
+            for (String fullName : missingNames.keySet()) {
+                flushBeforeRead(fullName);
+            }
+            Map<String, Map<Column, Object>> items = backend.read(missingNames.keySet());
+            for (String fullName : missingNames.keySet()) {
+                if (items.containsKey(fullName) && !isExpired(items.get(fullName))) {
+                    Object value = itemType.read(items.get(fullName).get(itemType.column));
+                    cache.put(fullName, itemType, value, expirationOf(items.get(fullName)));
+                    //noinspection unchecked
+                    values.put(missingNames.get(fullName), (E) value);
+                } else {
+                    cache.putMiss(fullName, itemType);
+                }
+            }
+        }
+        return values;
     }
 
-    private void disconnect(String name) {
-        getLock(name).unlock();
-        ActiveJDBCController.disconnect();
+    /**
+     * Sets the values of several items in a single transaction, and loads them in the cache. The type of each item
+     * is given by the class of its value (String, Boolean, Byte, Short, Integer, Long, Float, Double, Date or an
+     * enum). Null values are stored as null strings
+     *
+     * @param values     values to set, indexed by item name
+     * @param categories categories of the items
+     */
+    public void setAll(Map<String, ?> values, String... categories) {
+        Map<String, ItemChange> changes = new LinkedHashMap<>();
+        for (Map.Entry<String, ?> entry : values.entrySet()) {
+            String fullName = generateName(entry.getKey(), categories);
+            Object value = entry.getValue();
+            if (value instanceof Enum) {
+                value = ((Enum<?>) value).name();
+            }
+            ItemType itemType = value != null ? ItemType.ofClass(value.getClass()) : ItemType.STRING;
+            cache.put(fullName, itemType, value);
+            changes.put(fullName, new ItemChange().setColumn(itemType.column, itemType.toColumn(value)).setColumn(Column.EXPIRATION, null));
+            if (preloadedItems.covers(fullName)) {
+                preloadedItems.update(fullName, changes.get(fullName).getColumns());
+            }
+        }
+        WriteBehindQueue queue = writeBehindQueue;
+        if (queue != null) {
+            for (Map.Entry<String, ItemChange> change : changes.entrySet()) {
+                change.getValue().getColumns().forEach((column, value) -> queue.write(change.getKey(), column, value));
+            }
+        } else {
+            backend.write(changes);
+        }
+        for (String fullName : changes.keySet()) {
+            notifyChange(fullName, ItemChangeEvent.Kind.UPDATED);
+        }
     }
 
-    private Lock getLock(String name) {
-        return locks.getLock(path + name);
+    /**
+     * Retrieves the value of an item, from the cache if possible. Values read from the storage (including
+     * non-existing items) are loaded in the cache
+     */
+    private Object getValue(ItemType itemType, String name) {
+        return getEntry(itemType, name).getValue();
     }
 
-    public String getString(String name, String... categories) {
-        name = generateName(name, categories);
-        if (stringItems.containsKey(name)) {
-            return stringItems.get(name);
+    private ItemCache.Entry<ItemType> getEntry(ItemType itemType, String name) {
+        ItemCache.Entry<ItemType> entry = cache.get(name, itemType);
+        if (entry != null) {
+            return entry;
         } else {
-            connect(name);
-            try {
-                Item item = getItem(name, false);
-                return loadCache(stringItems, name, item != null ? item.getString(STRING_ITEM.name) : null);
-            } finally {
-                disconnect(name);
+            Map<Column, Object> columns = readColumns(name);
+            if (columns != null) {
+                return cache.put(name, itemType, itemType.read(columns.get(itemType.column)), expirationOf(columns));
+            } else {
+                return cache.putMiss(name, itemType);
             }
         }
     }
 
-    public boolean setString(String name, String value, String... categories) {
-        name = generateName(name, categories);
-        String storedValue = getString(name);
-        if (value == null || !Util.equals(value, storedValue)) {
-            loadCache(stringItems, name, value);
-            connect(name);
-            try {
-                Item item = getItem(name, true);
-                item.setString(STRING_ITEM.name, value);
-                saveItem(item);
-                return true;
-            } finally {
-                disconnect(name);
-            }
+    /**
+     * Sets the value of an item, unless it already holds that same value (with no time to live)
+     *
+     * @param expiration expiration time of the item (null if it does not expire)
+     * @return true if the value was written, false otherwise
+     */
+    private boolean setValue(ItemType itemType, String name, Object value, Long expiration) {
+        ItemCache.Entry<ItemType> stored = getEntry(itemType, name);
+        if (value == null || expiration != null || stored.expires() || !Util.equals(value, stored.getValue())) {
+            cache.put(name, itemType, value, expiration != null ? expiration : ItemCache.NO_EXPIRATION);
+            Map<Column, Object> columns = new EnumMap<>(Column.class);
+            columns.put(itemType.column, itemType.toColumn(value));
+            columns.put(Column.EXPIRATION, expiration);
+            writeColumns(name, columns);
+            return true;
         } else {
             return false;
         }
     }
 
-    public Boolean getBoolean(String name, String... categories) {
+    /**
+     * Sets the time to live of an existing item. Setting a new value to the item without a time to live makes it
+     * permanent again
+     *
+     * @param name       name of the item
+     * @param timeToLive time (in millis) until the item expires
+     * @param categories categories of the item
+     * @return true if the item exists, false otherwise
+     */
+    public boolean setTimeToLive(String name, long timeToLive, String... categories) {
         name = generateName(name, categories);
-        if (booleanItems.containsKey(name)) {
-            return booleanItems.get(name);
+        Long expiration = expirationFor(timeToLive);
+        if (readColumns(name) != null) {
+            // cached values hold the previous expiration
+            cache.remove(name);
+            writeColumn(name, Column.EXPIRATION, expiration);
+            return true;
         } else {
-            connect(name);
-            try {
-                Item item = getItem(name, false);
-                return loadCache(booleanItems, name, item != null ? item.getBoolean(INTEGER_ITEM.name) : null);
-            } finally {
-                disconnect(name);
-            }
+            return false;
         }
     }
 
+    public String getString(String name, String... categories) {
+        return (String) getValue(ItemType.STRING, generateName(name, categories));
+    }
+
+    public boolean setString(String name, String value, String... categories) {
+        return setValue(ItemType.STRING, generateName(name, categories), value, null);
+    }
+
+    public boolean setString(String name, String value, long timeToLive, String... categories) {
+        return setValue(ItemType.STRING, generateName(name, categories), value, expirationFor(timeToLive));
+    }
+
+    public Boolean getBoolean(String name, String... categories) {
+        return (Boolean) getValue(ItemType.BOOLEAN, generateName(name, categories));
+    }
+
     public boolean setBoolean(String name, Boolean value, String... categories) {
-        name = generateName(name, categories);
-        Boolean storedValue = getBoolean(name);
-        if (value == null || !Util.equals(value, storedValue)) {
-            loadCache(booleanItems, name, value);
-            connect(name);
-            try {
-                Item item = getItem(name, true);
-                item.setBoolean(INTEGER_ITEM.name, value);
-                saveItem(item);
-                return true;
-            } finally {
-                disconnect(name);
-            }
-        } else {
-            return false;
-        }
+        return setValue(ItemType.BOOLEAN, generateName(name, categories), value, null);
+    }
+
+    public boolean setBoolean(String name, Boolean value, long timeToLive, String... categories) {
+        return setValue(ItemType.BOOLEAN, generateName(name, categories), value, expirationFor(timeToLive));
     }
 
     public Byte getByte(String name, String... categories) {
-        name = generateName(name, categories);
-        if (byteItems.containsKey(name)) {
-            return byteItems.get(name);
-        } else {
-            connect(name);
-            try {
-                Item item = getItem(name, false);
-                return loadCache(byteItems, name, item != null ? item.getInteger(INTEGER_ITEM.name).byteValue() : null);
-            } finally {
-                disconnect(name);
-            }
-        }
+        return (Byte) getValue(ItemType.BYTE, generateName(name, categories));
     }
 
     public boolean setByte(String name, Byte value, String... categories) {
-        name = generateName(name, categories);
-        Byte storedValue = getByte(name);
-        if (value == null || !Util.equals(value, storedValue)) {
-            loadCache(byteItems, name, value);
-            connect(name);
-            try {
-                Item item = getItem(name, true);
-                item.setInteger(INTEGER_ITEM.name, value);
-                saveItem(item);
-                return true;
-            } finally {
-                disconnect(name);
-            }
-        } else {
-            return false;
-        }
+        return setValue(ItemType.BYTE, generateName(name, categories), value, null);
+    }
+
+    public boolean setByte(String name, Byte value, long timeToLive, String... categories) {
+        return setValue(ItemType.BYTE, generateName(name, categories), value, expirationFor(timeToLive));
     }
 
     public Short getShort(String name, String... categories) {
-        name = generateName(name, categories);
-        if (shortItems.containsKey(name)) {
-            return shortItems.get(name);
-        } else {
-            connect(name);
-            try {
-                Item item = getItem(name, false);
-                return loadCache(shortItems, name, item != null ? item.getShort(INTEGER_ITEM.name) : null);
-            } finally {
-                disconnect(name);
-            }
-        }
+        return (Short) getValue(ItemType.SHORT, generateName(name, categories));
     }
 
     public boolean setShort(String name, Short value, String... categories) {
-        name = generateName(name, categories);
-        Short storedValue = getShort(name);
-        if (value == null || !Util.equals(value, storedValue)) {
-            loadCache(shortItems, name, value);
-            connect(name);
-            try {
-                Item item = getItem(name, true);
-                item.setShort(INTEGER_ITEM.name, value);
-                saveItem(item);
-                return true;
-            } finally {
-                disconnect(name);
-            }
-        } else {
-            return false;
-        }
+        return setValue(ItemType.SHORT, generateName(name, categories), value, null);
+    }
+
+    public boolean setShort(String name, Short value, long timeToLive, String... categories) {
+        return setValue(ItemType.SHORT, generateName(name, categories), value, expirationFor(timeToLive));
     }
 
     public Integer getInteger(String name, String... categories) {
-        name = generateName(name, categories);
-        if (integerItems.containsKey(name)) {
-            return integerItems.get(name);
-        } else {
-            connect(name);
-            try {
-                Item item = getItem(name, false);
-                return loadCache(integerItems, name, item != null ? item.getInteger(INTEGER_ITEM.name) : null);
-            } finally {
-                disconnect(name);
-            }
-        }
+        return (Integer) getValue(ItemType.INTEGER, generateName(name, categories));
     }
 
     public boolean setInteger(String name, Integer value, String... categories) {
-        name = generateName(name, categories);
-        Integer storedValue = getInteger(name);
-        if (value == null || !Util.equals(value, storedValue)) {
-            loadCache(integerItems, name, value);
-            connect(name);
-            try {
-                Item item = getItem(name, true);
-                item.setInteger(INTEGER_ITEM.name, value);
-                saveItem(item);
-                return true;
-            } finally {
-                disconnect(name);
-            }
-        } else {
-            return false;
-        }
+        return setValue(ItemType.INTEGER, generateName(name, categories), value, null);
+    }
+
+    public boolean setInteger(String name, Integer value, long timeToLive, String... categories) {
+        return setValue(ItemType.INTEGER, generateName(name, categories), value, expirationFor(timeToLive));
     }
 
     public Long getLong(String name, String... categories) {
-        name = generateName(name, categories);
-        if (longItems.containsKey(name)) {
-            return longItems.get(name);
-        } else {
-            connect(name);
-            try {
-                Item item = getItem(name, false);
-                return loadCache(longItems, name, item != null ? item.getLong(INTEGER_ITEM.name) : null);
-            } finally {
-                disconnect(name);
-            }
-        }
+        return (Long) getValue(ItemType.LONG, generateName(name, categories));
     }
 
     public boolean setLong(String name, Long value, String... categories) {
-        name = generateName(name, categories);
-        Long storedValue = getLong(name);
-        if (value == null || !Util.equals(value, storedValue)) {
-            loadCache(longItems, name, value);
-            connect(name);
-            try {
-                Item item = getItem(name, true);
-                item.setLong(INTEGER_ITEM.name, value);
-                saveItem(item);
-                return true;
-            } finally {
-                disconnect(name);
-            }
-        } else {
-            return false;
-        }
+        return setValue(ItemType.LONG, generateName(name, categories), value, null);
+    }
+
+    public boolean setLong(String name, Long value, long timeToLive, String... categories) {
+        return setValue(ItemType.LONG, generateName(name, categories), value, expirationFor(timeToLive));
     }
 
     public Float getFloat(String name, String... categories) {
-        name = generateName(name, categories);
-        if (floatItems.containsKey(name)) {
-            return floatItems.get(name);
-        } else {
-            connect(name);
-            try {
-                Item item = getItem(name, false);
-                return loadCache(floatItems, name, item != null ? item.getFloat(REAL_ITEM.name) : null);
-            } finally {
-                disconnect(name);
-            }
-        }
+        return (Float) getValue(ItemType.FLOAT, generateName(name, categories));
     }
 
     public boolean setFloat(String name, Float value, String... categories) {
-        name = generateName(name, categories);
-        Float storedValue = getFloat(name);
-        if (value == null || !Util.equals(value, storedValue)) {
-            loadCache(floatItems, name, value);
-            connect(name);
-            try {
-                Item item = getItem(name, true);
-                item.setFloat(REAL_ITEM.name, value);
-                saveItem(item);
-                return true;
-            } finally {
-                disconnect(name);
-            }
-        } else {
-            return false;
-        }
+        return setValue(ItemType.FLOAT, generateName(name, categories), value, null);
+    }
+
+    public boolean setFloat(String name, Float value, long timeToLive, String... categories) {
+        return setValue(ItemType.FLOAT, generateName(name, categories), value, expirationFor(timeToLive));
     }
 
     public Double getDouble(String name, String... categories) {
-        name = generateName(name, categories);
-        if (doubleItems.containsKey(name)) {
-            return doubleItems.get(name);
-        } else {
-            connect(name);
-            try {
-                Item item = getItem(name, false);
-                return loadCache(doubleItems, name, item != null ? item.getDouble(REAL_ITEM.name) : null);
-            } finally {
-                disconnect(name);
-            }
-        }
+        return (Double) getValue(ItemType.DOUBLE, generateName(name, categories));
     }
 
     public boolean setDouble(String name, Double value, String... categories) {
-        name = generateName(name, categories);
-        Double storedValue = getDouble(name);
-        if (value == null || !Util.equals(value, storedValue)) {
-            loadCache(doubleItems, name, value);
-            connect(name);
-            try {
-                Item item = getItem(name, true);
-                item.setDouble(REAL_ITEM.name, value);
-                saveItem(item);
-                return true;
-            } finally {
-                disconnect(name);
-            }
-        } else {
-            return false;
-        }
+        return setValue(ItemType.DOUBLE, generateName(name, categories), value, null);
+    }
+
+    public boolean setDouble(String name, Double value, long timeToLive, String... categories) {
+        return setValue(ItemType.DOUBLE, generateName(name, categories), value, expirationFor(timeToLive));
     }
 
     public Date getDate(String name, String... categories) {
-        name = generateName(name, categories);
-        if (dateItems.containsKey(name)) {
-            return dateItems.get(name);
-        } else {
-            connect(name);
-            try {
-                Item item = getItem(name, false);
-                if (item != null) {
-                    Long date = item.getLong(INTEGER_ITEM.name);
-                    return loadCache(dateItems, name, date != null ? new Date(date) : null);
-                } else {
-                    return null;
-                }
-            } finally {
-                disconnect(name);
-            }
-        }
+        return (Date) getValue(ItemType.DATE, generateName(name, categories));
     }
 
     public boolean setDate(String name, Date value, String... categories) {
-        name = generateName(name, categories);
-        Date storedValue = getDate(name);
-        if (value == null || !Util.equals(value, storedValue)) {
-            loadCache(dateItems, name, value);
-            connect(name);
-            try {
-                Item item = getItem(name, true);
-                item.setLong(INTEGER_ITEM.name, value);
-                saveItem(item);
-                return true;
-            } finally {
-                disconnect(name);
-            }
-        } else {
-            return false;
-        }
+        return setValue(ItemType.DATE, generateName(name, categories), value, null);
+    }
+
+    public boolean setDate(String name, Date value, long timeToLive, String... categories) {
+        return setValue(ItemType.DATE, generateName(name, categories), value, expirationFor(timeToLive));
     }
 
     public <E> E getEnum(String name, Class<E> enum_, String... categories) {
@@ -625,252 +969,298 @@ public class LocalStorage {
         }
     }
 
-    public List<String> getStringList(String name, String... categories) {
+    public <E> boolean setEnum(String name, Class<E> enum_, E value, long timeToLive, String... categories) {
         name = generateName(name, categories);
-        connect(name);
         try {
-            Item item = getItem(name, false);
-            return item != null ? deserializeList(item.getString(STRING_ITEM.name)) : null;
-        } finally {
-            disconnect(name);
+            Method getName = enum_.getMethod("name");
+            return setString(name, (String) getName.invoke(value), timeToLive);
+        } catch (Exception e) {
+            // cannot happen
+            // todo fatal error
+            return false;
         }
     }
 
+    public List<String> getStringList(String name, String... categories) {
+        name = generateName(name, categories);
+        Map<Column, Object> columns = readColumns(name);
+        return columns != null ? deserializeList((String) columns.get(Column.STRING)) : null;
+    }
+
     public void setStringList(String name, List<String> list, String... categories) {
         setList(name, list, categories);
     }
 
+    /**
+     * Reads a list of primitive values. Binary encoded lists are decoded directly, while lists written as text
+     * (by previous versions) are parsed
+     */
+    private <A> A getArray(String name, Function<byte[], A> decoder, Function<List<String>, A> textParser) {
+        Map<Column, Object> columns = readColumns(name);
+        if (columns == null) {
+            return null;
+        }
+        byte[] binaryList = (byte[]) columns.get(Column.BLOB);
+        return binaryList != null ? decoder.apply(binaryList) : textParser.apply(deserializeList((String) columns.get(Column.STRING)));
+    }
+
+    private void setArray(String name, byte[] binaryList, String... categories) {
+        name = generateName(name, categories);
+        // the cache must not keep a previous value of this item
+        cache.remove(name);
+        Map<Column, Object> columns = new EnumMap<>(Column.class);
+        columns.put(Column.BLOB, binaryList);
+        columns.put(Column.STRING, null);
+        columns.put(Column.EXPIRATION, null);
+        writeColumns(name, columns);
+    }
+
+    public boolean[] getBooleanArray(String name, String... categories) {
+        return getArray(generateName(name, categories), BinaryListCodec::decodeBooleans, strList -> {
+            boolean[] values = new boolean[strList.size()];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = Boolean.parseBoolean(strList.get(i));
+            }
+            return values;
+        });
+    }
+
+    public void setBooleanArray(String name, boolean[] values, String... categories) {
+        setArray(name, BinaryListCodec.encode(values), categories);
+    }
+
+    public byte[] getByteArray(String name, String... categories) {
+        return getArray(generateName(name, categories), BinaryListCodec::decodeBytes, strList -> {
+            byte[] values = new byte[strList.size()];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = Byte.parseByte(strList.get(i));
+            }
+            return values;
+        });
+    }
+
+    public void setByteArray(String name, byte[] values, String... categories) {
+        setArray(name, BinaryListCodec.encode(values), categories);
+    }
+
+    public short[] getShortArray(String name, String... categories) {
+        return getArray(generateName(name, categories), BinaryListCodec::decodeShorts, strList -> {
+            short[] values = new short[strList.size()];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = Short.parseShort(strList.get(i));
+            }
+            return values;
+        });
+    }
+
+    public void setShortArray(String name, short[] values, String... categories) {
+        setArray(name, BinaryListCodec.encode(values), categories);
+    }
+
+    public int[] getIntArray(String name, String... categories) {
+        return getArray(generateName(name, categories), BinaryListCodec::decodeInts,
+                strList -> strList.stream().mapToInt(Integer::parseInt).toArray());
+    }
+
+    public void setIntArray(String name, int[] values, String... categories) {
+        setArray(name, BinaryListCodec.encode(values), categories);
+    }
+
+    public long[] getLongArray(String name, String... categories) {
+        return getArray(generateName(name, categories), BinaryListCodec::decodeLongs,
+                strList -> strList.stream().mapToLong(Long::parseLong).toArray());
+    }
+
+    public void setLongArray(String name, long[] values, String... categories) {
+        setArray(name, BinaryListCodec.encode(values), categories);
+    }
+
+    public float[] getFloatArray(String name, String... categories) {
+        return getArray(generateName(name, categories), BinaryListCodec::decodeFloats, strList -> {
+            float[] values = new float[strList.size()];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = Float.parseFloat(strList.get(i));
+            }
+            return values;
+        });
+    }
+
+    public void setFloatArray(String name, float[] values, String... categories) {
+        setArray(name, BinaryListCodec.encode(values), categories);
+    }
+
+    public double[] getDoubleArray(String name, String... categories) {
+        return getArray(generateName(name, categories), BinaryListCodec::decodeDoubles,
+                strList -> strList.stream().mapToDouble(Double::parseDouble).toArray());
+    }
+
+    public void setDoubleArray(String name, double[] values, String... categories) {
+        setArray(name, BinaryListCodec.encode(values), categories);
+    }
+
     public List<Boolean> getBooleanList(String name, String... categories) {
-        connect(name);
-        try {
-            Item item = getItem(name, false);
-            if (item != null) {
-                List<Boolean> values = new ArrayList<>();
-                for (String str : getStringList(name, categories)) {
-                    values.add(Boolean.parseBoolean(str));
-                }
-                return values;
-            } else {
-                return null;
+        boolean[] array = getBooleanArray(name, categories);
+        if (array != null) {
+            List<Boolean> values = new ArrayList<>(array.length);
+            for (boolean value : array) {
+                values.add(value);
             }
-        } finally {
-            disconnect(name);
+            return values;
+        } else {
+            return null;
         }
     }
 
     public void setBooleanList(String name, List<Boolean> list, String... categories) {
-        setList(name, list, categories);
+        boolean[] array = new boolean[list.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = list.get(i);
+        }
+        setBooleanArray(name, array, categories);
     }
 
     public List<Byte> getByteList(String name, String... categories) {
-        connect(name);
-        try {
-            Item item = getItem(name, false);
-            if (item != null) {
-                List<Byte> values = new ArrayList<>();
-                for (String str : getStringList(name, categories)) {
-                    values.add(Byte.parseByte(str));
-                }
-                return values;
-            } else {
-                return null;
+        byte[] array = getByteArray(name, categories);
+        if (array != null) {
+            List<Byte> values = new ArrayList<>(array.length);
+            for (byte value : array) {
+                values.add(value);
             }
-        } finally {
-            disconnect(name);
+            return values;
+        } else {
+            return null;
         }
     }
 
     public void setByteList(String name, List<Byte> list, String... categories) {
-        setList(name, list, categories);
+        byte[] array = new byte[list.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = list.get(i);
+        }
+        setByteArray(name, array, categories);
     }
 
     public List<Short> getShortList(String name, String... categories) {
-        connect(name);
-        try {
-            Item item = getItem(name, false);
-            if (item != null) {
-                List<Short> values = new ArrayList<>();
-                for (String str : getStringList(name, categories)) {
-                    values.add(Short.parseShort(str));
-                }
-                return values;
-            } else {
-                return null;
+        short[] array = getShortArray(name, categories);
+        if (array != null) {
+            List<Short> values = new ArrayList<>(array.length);
+            for (short value : array) {
+                values.add(value);
             }
-        } finally {
-            disconnect(name);
+            return values;
+        } else {
+            return null;
         }
     }
 
     public void setShortList(String name, List<Short> list, String... categories) {
-        setList(name, list, categories);
+        short[] array = new short[list.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = list.get(i);
+        }
+        setShortArray(name, array, categories);
     }
 
     public List<Integer> getIntegerList(String name, String... categories) {
-        connect(name);
-        try {
-            Item item = getItem(name, false);
-            if (item != null) {
-                List<Integer> values = new ArrayList<>();
-                for (String str : getStringList(name, categories)) {
-                    values.add(Integer.parseInt(str));
-                }
-                return values;
-            } else {
-                return null;
-            }
-        } finally {
-            disconnect(name);
-        }
+        int[] array = getIntArray(name, categories);
+        return array != null ? IntStream.of(array).boxed().collect(Collectors.toList()) : null;
     }
 
     public void setIntegerList(String name, List<Integer> list, String... categories) {
-        setList(name, list, categories);
+        setIntArray(name, list.stream().mapToInt(Integer::intValue).toArray(), categories);
     }
 
     public List<Long> getLongList(String name, String... categories) {
-        connect(name);
-        try {
-            Item item = getItem(name, false);
-            if (item != null) {
-                List<Long> values = new ArrayList<>();
-                for (String str : getStringList(name, categories)) {
-                    values.add(Long.parseLong(str));
-                }
-                return values;
-            } else {
-                return null;
-            }
-        } finally {
-            disconnect(name);
-        }
+        long[] array = getLongArray(name, categories);
+        return array != null ? LongStream.of(array).boxed().collect(Collectors.toList()) : null;
     }
 
     public void setLongList(String name, List<Long> list, String... categories) {
-        setList(name, list, categories);
+        setLongArray(name, list.stream().mapToLong(Long::longValue).toArray(), categories);
     }
 
     public List<Float> getFloatList(String name, String... categories) {
-        connect(name);
-        try {
-            Item item = getItem(name, false);
-            if (item != null) {
-                List<Float> values = new ArrayList<>();
-                for (String str : getStringList(name, categories)) {
-                    values.add(Float.parseFloat(str));
-                }
-                return values;
-            } else {
-                return null;
+        float[] array = getFloatArray(name, categories);
+        if (array != null) {
+            List<Float> values = new ArrayList<>(array.length);
+            for (float value : array) {
+                values.add(value);
             }
-        } finally {
-            disconnect(name);
+            return values;
+        } else {
+            return null;
         }
     }
 
     public void setFloatList(String name, List<Float> list, String... categories) {
-        setList(name, list, categories);
+        float[] array = new float[list.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = list.get(i);
+        }
+        setFloatArray(name, array, categories);
     }
 
     public List<Double> getDoubleList(String name, String... categories) {
-        connect(name);
-        try {
-            Item item = getItem(name, false);
-            if (item != null) {
-                List<Double> values = new ArrayList<>();
-                for (String str : getStringList(name, categories)) {
-                    values.add(Double.parseDouble(str));
-                }
-                return values;
-            } else {
-                return null;
-            }
-        } finally {
-            disconnect(name);
-        }
+        double[] array = getDoubleArray(name, categories);
+        return array != null ? DoubleStream.of(array).boxed().collect(Collectors.toList()) : null;
     }
 
     public void setDoubleList(String name, List<Double> list, String... categories) {
-        setList(name, list, categories);
+        setDoubleArray(name, list.stream().mapToDouble(Double::doubleValue).toArray(), categories);
     }
 
     public List<Date> getDateList(String name, String... categories) {
-        List<Long> longList = getLongList(name, categories);
-        if (longList != null) {
-            List<Date> list = new ArrayList<>();
-            for (long value : longList) {
-                list.add(new Date(value));
-            }
-            return list;
-        } else {
-            return null;
-        }
+        long[] array = getLongArray(name, categories);
+        return array != null ? LongStream.of(array).mapToObj(Date::new).collect(Collectors.toList()) : null;
     }
 
     public void setDateList(String name, List<Date> list, String... categories) {
-        List<Long> longList = new ArrayList<>();
-        for (Date date : list) {
-            longList.add(date.getTime());
-        }
-        setLongList(name, longList, categories);
+        setLongArray(name, list.stream().mapToLong(Date::getTime).toArray(), categories);
     }
 
     public <E> List<E> getEnumList(String name, Class<E> enum_, String... categories) {
-        connect(name);
-        try {
-            Item item = getItem(name, false);
-            if (item != null) {
+        List<String> strList = getStringList(name, categories);
+        if (strList != null) {
+            try {
                 Method valueOf = enum_.getMethod("valueOf", String.class);
                 List<E> enumValues = new ArrayList<>();
-                for (String str : getStringList(name, categories)) {
+                for (String str : strList) {
                     enumValues.add((E) valueOf.invoke(null, str));
                 }
                 return enumValues;
-            } else {
+            } catch (Exception e) {
+                // cannot happen
+                // todo fatal error
                 return null;
             }
-        } catch (Exception e) {
-            // cannot happen
-            // todo fatal error
+        } else {
             return null;
-        } finally {
-            disconnect(name);
         }
     }
 
     public <E> void setEnumList(String name, Class<E> enum_, List<E> list, String... categories) {
-        connect(name);
         try {
-            Item item = getItem(name, true);
             Method getName = enum_.getMethod("name");
             List<String> strList = new ArrayList<>();
             for (E value : list) {
                 strList.add((String) getName.invoke(value));
             }
-            setString(name, serializeList(strList), categories);
-            saveItem(item);
+            setList(name, strList, categories);
         } catch (Exception e) {
             // cannot happen
             // todo fatal error
-        } finally {
-            disconnect(name);
         }
     }
 
-    private void saveItem(Item item) {
-        item.saveIt();
-    }
-
     private void setList(String name, List<?> list, String... categories) {
         name = generateName(name, categories);
-        connect(name);
-        try {
-            Item item = getItem(name, true);
-            item.setString(STRING_ITEM.name, serializeList(list));
-            saveItem(item);
-        } finally {
-            disconnect(name);
-        }
+        // the cache must not keep a previous value of this item
+        cache.remove(name);
+        Map<Column, Object> columns = new EnumMap<>(Column.class);
+        columns.put(Column.STRING, serializeList(list));
+        columns.put(Column.BLOB, null);
+        columns.put(Column.EXPIRATION, null);
+        writeColumns(name, columns);
     }
 
     private String serializeList(List<?> list) {
@@ -899,7 +1289,7 @@ public class LocalStorage {
 //        return category + name;
 //    }
 
-    private static String generateName(String name, String... categories) {
+    static String generateName(String name, String... categories) {
         StringBuilder catBuilder = new StringBuilder();
         Stream.of(categories).forEach(cat -> catBuilder.append(generateCategory(cat)));
         return catBuilder.append(name).toString();
@@ -0,0 +1,938 @@
+package org.aanguita.jacuzzi.io.serialization.localstorage;
+
+import org.aanguita.jacuzzi.concurrency.timer.Timer;
+import org.aanguita.jacuzzi.concurrency.timer.TimerAction;
+import org.aanguita.jacuzzi.hash.CRC;
+import org.aanguita.jacuzzi.hash.CRCMismatchException;
+import org.aanguita.jacuzzi.io.serialization.SerializerReader;
+import org.aanguita.jacuzzi.log.ErrorLog;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+
+/**
+ * Storage backend based on an append-only log file, accessed through a memory mapping. It needs no database engine.
+ * <p>
+ * All names are indexed in memory, together with the position in the file of the latest state of their item. Each
+ * write appends a record with the full new state of every changed item (or a removal mark), protected by a CRC. A
+ * record only becomes visible once the end of data stored in the file header is moved past it, so groups of changes
+ * are atomic. Upon opening, the log is replayed to rebuild the index, and any data after the last valid record is
+ * discarded.
+ * <p>
+ * Overwritten and removed states stay in the file until it is compacted. A background task periodically rewrites
+ * the file with just the live items, once obsolete data outgrows them. Changes reach the disk when the operating
+ * system writes back the mapped pages, or upon close.
+ * <p>
+ * The file size is limited to 2 GB (the size of a single mapping)
+ */
+public class LogStorageBackend implements StorageBackend, TimerAction {
+
+    /**
+     * Position of the latest state of an item in the file
+     */
+    private static class IndexEntry {
+
+        /**
+         * Insertion order of the item
+         */
+        private final long sequence;
+
+        private final int offset;
+
+        private final int length;
+
+        /**
+         * Expiration time of the item (NO_EXPIRATION if it never expires)
+         */
+        private final long expiration;
+
+        private IndexEntry(long sequence, int offset, int length, long expiration) {
+            this.sequence = sequence;
+            this.offset = offset;
+            this.length = length;
+            this.expiration = expiration;
+        }
+
+        private IndexEntry(long sequence, int offset, int length, Map<Column, Object> columns) {
+            this(sequence, offset, length, columns.get(Column.EXPIRATION) != null ? (Long) columns.get(Column.EXPIRATION) : NO_EXPIRATION);
+        }
+
+        private IndexEntry moveTo(int offset, int length) {
+            return new IndexEntry(sequence, offset, length, expiration);
+        }
+    }
+
+    public static final String CURRENT_VERSION = "log-2";
+
+    private static final int MAGIC = 0x4A4C534C;
+
+    /**
+     * First format version, whose entries lack the expiration column. Files in this format are rewritten in the
+     * current format upon opening
+     */
+    private static final int FORMAT_VERSION_1 = 1;
+
+    private static final int FORMAT_VERSION = 2;
+
+    private static final long NO_EXPIRATION = Long.MAX_VALUE;
+
+    /**
+     * Header: magic (4 bytes), format version (4 bytes), creation date (8 bytes), end of data (8 bytes)
+     */
+    private static final int HEADER_SIZE = 24;
+
+    private static final int CREATION_DATE_OFFSET = 8;
+
+    private static final int DATA_END_OFFSET = 16;
+
+    private static final int CRC_BYTES = 4;
+
+    /**
+     * Each record is made of the CRC header (data length and CRC length), the payload (entry count and entries) and
+     * the CRC
+     */
+    private static final int RECORD_OVERHEAD = 8 + 4 + CRC_BYTES;
+
+    private static final byte STATE_ENTRY = 0;
+
+    private static final byte REMOVAL_ENTRY = 1;
+
+    private static final int INITIAL_CAPACITY = 64 * 1024;
+
+    /**
+     * Obsolete data below this size never triggers a compaction
+     */
+    private static final long MIN_COMPACTION_BYTES = 1024 * 1024;
+
+    private static final int MAX_COMPACTION_RECORD_SIZE = 1024 * 1024;
+
+    private static final long DEFAULT_COMPACTION_CHECK_DELAY = 60000L;
+
+    private static final int NAMES_PER_PAGE = 1000;
+
+    private final String path;
+
+    private final ReadWriteLock lock;
+
+    /**
+     * Serializes compactions
+     */
+    private final Object compactionLock;
+
+    private FileChannel channel;
+
+    private MappedByteBuffer mapping;
+
+    /**
+     * Format version of the current file
+     */
+    private int formatVersion;
+
+    private int dataEnd;
+
+    private long creationDate;
+
+    private final Map<String, IndexEntry> items;
+
+    /**
+     * Names of the items of each category, by insertion order
+     */
+    private final TreeMap<String, TreeMap<Long, String>> categories;
+
+    /**
+     * Names of the items that expire, by expiration time. Expired items are found without scanning the whole index
+     */
+    private final TreeMap<Long, Set<String>> expirations;
+
+    private long nextSequence;
+
+    private long liveBytes;
+
+    private long obsoleteBytes;
+
+    private final Timer compactionTimer;
+
+    /**
+     * Incremented each time the storage is cleared, as clearing overwrites the existing data
+     */
+    private long generation;
+
+    private boolean closed;
+
+    private LogStorageBackend(String path, long compactionCheckDelay) throws IOException {
+        this.path = path;
+        lock = new ReentrantReadWriteLock();
+        compactionLock = new Object();
+        items = new HashMap<>();
+        categories = new TreeMap<>();
+        expirations = new TreeMap<>();
+        nextSequence = 0L;
+        liveBytes = 0L;
+        obsoleteBytes = 0L;
+        generation = 0L;
+        closed = false;
+        openFile();
+        if (formatVersion != FORMAT_VERSION) {
+            compact();
+        }
+        compactionTimer = new Timer(compactionCheckDelay, this, "LocalStorage.LogStorageBackend");
+    }
+
+    /**
+     * Opens a log storage file, creating it if it does not exist
+     *
+     * @param path path to the log file
+     * @return the opened backend
+     * @throws IOException if the file could not be opened, or it is not a valid log storage file
+     */
+    public static LogStorageBackend open(String path) throws IOException {
+        return open(path, DEFAULT_COMPACTION_CHECK_DELAY);
+    }
+
+    /**
+     * Opens a log storage file, creating it if it does not exist
+     *
+     * @param path                 path to the log file
+     * @param compactionCheckDelay time (in millis) between checks for the need of compaction
+     * @return the opened backend
+     * @throws IOException if the file could not be opened, or it is not a valid log storage file
+     */
+    public static LogStorageBackend open(String path, long compactionCheckDelay) throws IOException {
+        return new LogStorageBackend(path, compactionCheckDelay);
+    }
+
+    /**
+     * Creates a new, empty log storage file, overwriting any existing file
+     *
+     * @param path path to the log file
+     * @return the opened backend
+     * @throws IOException if the file could not be created
+     */
+    public static LogStorageBackend createNew(String path) throws IOException {
+        Files.deleteIfExists(Paths.get(path));
+        return open(path);
+    }
+
+    private void openFile() throws IOException {
+        Path filePath = Paths.get(path);
+        boolean exists = Files.isRegularFile(filePath) && Files.size(filePath) > 0L;
+        channel = FileChannel.open(filePath, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+        try {
+            if (!exists) {
+                map(INITIAL_CAPACITY);
+                creationDate = System.currentTimeMillis();
+                mapping.putInt(0, MAGIC);
+                mapping.putInt(4, FORMAT_VERSION);
+                formatVersion = FORMAT_VERSION;
+                mapping.putLong(CREATION_DATE_OFFSET, creationDate);
+                setDataEnd(HEADER_SIZE);
+            } else {
+                long size = channel.size();
+                if (size < HEADER_SIZE || size > Integer.MAX_VALUE) {
+                    throw new IOException("Not a log storage file: " + path);
+                }
+                map((int) size);
+                if (mapping.getInt(0) != MAGIC) {
+                    throw new IOException("Not a log storage file: " + path);
+                }
+                formatVersion = mapping.getInt(4);
+                if (formatVersion != FORMAT_VERSION && formatVersion != FORMAT_VERSION_1) {
+                    throw new IOException("Unsupported log storage format version " + formatVersion + ": " + path);
+                }
+                creationDate = mapping.getLong(CREATION_DATE_OFFSET);
+                replay((int) Math.max(HEADER_SIZE, Math.min(mapping.getLong(DATA_END_OFFSET), size)));
+            }
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Rebuilds the index from the records of the log
+     *
+     * @param storedDataEnd end of data stored in the header
+     */
+    private void replay(int storedDataEnd) {
+        int position = HEADER_SIZE;
+        while (position + 8 <= storedDataEnd) {
+            int dataLength = mapping.getInt(position);
+            int crcLength = mapping.getInt(position + 4);
+            long recordEnd = (long) position + 8 + dataLength + crcLength;
+            if (dataLength < 4 || crcLength != CRC_BYTES || recordEnd > storedDataEnd) {
+                break;
+            }
+            ByteBuffer record = mapping.duplicate();
+            record.position(position);
+            record.limit((int) recordEnd);
+            try {
+                CRC.readRecord(new SerializerReader(record));
+            } catch (CRCMismatchException e) {
+                break;
+            }
+            applyRecord(position + 8);
+            obsoleteBytes += RECORD_OVERHEAD;
+            position = (int) recordEnd;
+        }
+        if (position != storedDataEnd) {
+            ErrorLog.reportError(LogStorageBackend.class.getName(), "Discarded invalid data at the end of log storage " + path, position, storedDataEnd);
+        }
+        setDataEnd(position);
+    }
+
+    private void applyRecord(int payloadOffset) {
+        ByteBuffer buffer = mapping.duplicate();
+        buffer.position(payloadOffset);
+        int entryCount = buffer.getInt();
+        for (int i = 0; i < entryCount; i++) {
+            int entryOffset = buffer.position();
+            byte kind = buffer.get();
+            String name = readName(buffer);
+            if (kind == STATE_ENTRY) {
+                long sequence = buffer.getLong();
+                Map<Column, Object> columns = readColumns(buffer, formatVersion);
+                index(name, new IndexEntry(sequence, entryOffset, buffer.position() - entryOffset, columns));
+                nextSequence = Math.max(nextSequence, sequence + 1);
+            } else {
+                unindex(name);
+                obsoleteBytes += buffer.position() - entryOffset;
+            }
+        }
+    }
+
+    private void index(String name, IndexEntry entry) {
+        IndexEntry previous = items.put(name, entry);
+        if (previous != null) {
+            liveBytes -= previous.length;
+            obsoleteBytes += previous.length;
+            if (previous.sequence != entry.sequence) {
+                removeFromCategory(name, previous.sequence);
+            }
+            removeFromExpirations(name, previous.expiration);
+        }
+        liveBytes += entry.length;
+        categories.computeIfAbsent(StorageBackend.categoryOf(name), category -> new TreeMap<>()).put(entry.sequence, name);
+        if (entry.expiration != NO_EXPIRATION) {
+            expirations.computeIfAbsent(entry.expiration, expiration -> new HashSet<>()).add(name);
+        }
+    }
+
+    private void unindex(String name) {
+        IndexEntry previous = items.remove(name);
+        if (previous != null) {
+            liveBytes -= previous.length;
+            obsoleteBytes += previous.length;
+            removeFromCategory(name, previous.sequence);
+            removeFromExpirations(name, previous.expiration);
+        }
+    }
+
+    private void removeFromCategory(String name, long sequence) {
+        String category = StorageBackend.categoryOf(name);
+        TreeMap<Long, String> categoryNames = categories.get(category);
+        if (categoryNames != null) {
+            categoryNames.remove(sequence);
+            if (categoryNames.isEmpty()) {
+                categories.remove(category);
+            }
+        }
+    }
+
+    private void removeFromExpirations(String name, long expiration) {
+        Set<String> expiringNames = expirations.get(expiration);
+        if (expiringNames != null) {
+            expiringNames.remove(name);
+            if (expiringNames.isEmpty()) {
+                expirations.remove(expiration);
+            }
+        }
+    }
+
+    private void map(int size) throws IOException {
+        mapping = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    }
+
+    private void setDataEnd(int dataEnd) {
+        this.dataEnd = dataEnd;
+        mapping.putLong(DATA_END_OFFSET, dataEnd);
+    }
+
+    private void ensureCapacity(long requiredSize) throws IOException {
+        if (requiredSize > Integer.MAX_VALUE) {
+            throw new IOException("Log storage is full: " + path);
+        }
+        if (requiredSize > mapping.capacity()) {
+            map((int) Math.min(Math.max(2L * mapping.capacity(), requiredSize), Integer.MAX_VALUE));
+        }
+    }
+
+    private static String readName(ByteBuffer buffer) {
+        byte[] name = new byte[buffer.getInt()];
+        buffer.get(name);
+        return new String(name, StandardCharsets.UTF_8);
+    }
+
+    private static Map<Column, Object> readColumns(ByteBuffer buffer, int formatVersion) {
+        Map<Column, Object> columns = new EnumMap<>(Column.class);
+        for (Column column : Column.values()) {
+            if ((column == Column.EXPIRATION && formatVersion == FORMAT_VERSION_1) || buffer.get() == 0) {
+                columns.put(column, null);
+                continue;
+            }
+            switch (column) {
+                case STRING:
+                    byte[] string = new byte[buffer.getInt()];
+                    buffer.get(string);
+                    columns.put(column, new String(string, StandardCharsets.UTF_8));
+                    break;
+                case INTEGER:
+                case EXPIRATION:
+                    columns.put(column, buffer.getLong());
+                    break;
+                case REAL:
+                    columns.put(column, buffer.getDouble());
+                    break;
+                case BLOB:
+                    byte[] blob = new byte[buffer.getInt()];
+                    buffer.get(blob);
+                    columns.put(column, blob);
+                    break;
+            }
+        }
+        return columns;
+    }
+
+    private static void writeColumns(DataOutputStream out, Map<Column, Object> columns) throws IOException {
+        for (Column column : Column.values()) {
+            Object value = columns.get(column);
+            out.writeBoolean(value != null);
+            if (value == null) {
+                continue;
+            }
+            switch (column) {
+                case STRING:
+                    writeBytes(out, ((String) value).getBytes(StandardCharsets.UTF_8));
+                    break;
+                case INTEGER:
+                case EXPIRATION:
+                    out.writeLong(((Number) value).longValue());
+                    break;
+                case REAL:
+                    out.writeDouble(((Number) value).doubleValue());
+                    break;
+                case BLOB:
+                    writeBytes(out, (byte[]) value);
+                    break;
+            }
+        }
+    }
+
+    private static void writeState(DataOutputStream out, String name, long sequence, Map<Column, Object> state) throws IOException {
+        out.writeByte(STATE_ENTRY);
+        writeBytes(out, name.getBytes(StandardCharsets.UTF_8));
+        out.writeLong(sequence);
+        writeColumns(out, state);
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private Map<Column, Object> readColumns(IndexEntry entry) {
+        return readColumns(mapping, entry, formatVersion);
+    }
+
+    private static Map<Column, Object> readColumns(MappedByteBuffer mapping, IndexEntry entry, int formatVersion) {
+        ByteBuffer buffer = mapping.duplicate();
+        // skip the entry kind, name and sequence
+        buffer.position(entry.offset + 1);
+        int nameLength = buffer.getInt();
+        buffer.position(buffer.position() + nameLength + 8);
+        return readColumns(buffer, formatVersion);
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("Log storage is closed: " + path);
+        }
+    }
+
+    @Override
+    public String getPath() {
+        return path;
+    }
+
+    @Override
+    public String getVersion() {
+        return CURRENT_VERSION;
+    }
+
+    @Override
+    public Date getCreationDate() {
+        return new Date(creationDate);
+    }
+
+    @Override
+    public int itemCount() {
+        lock.readLock().lock();
+        try {
+            return items.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public boolean contains(String name) {
+        lock.readLock().lock();
+        try {
+            return items.containsKey(name);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Map<Column, Object> read(String name) {
+        lock.readLock().lock();
+        try {
+            checkOpen();
+            IndexEntry entry = items.get(name);
+            return entry != null ? readColumns(entry) : null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Map<String, Map<Column, Object>> read(Collection<String> names) {
+        lock.readLock().lock();
+        try {
+            checkOpen();
+            Map<String, Map<Column, Object>> foundItems = new HashMap<>();
+            for (String name : names) {
+                IndexEntry entry = items.get(name);
+                if (entry != null) {
+                    foundItems.put(name, readColumns(entry));
+                }
+            }
+            return foundItems;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void write(Map<String, ItemChange> changes) {
+        lock.writeLock().lock();
+        try {
+            checkOpen();
+            ByteArrayOutputStream payload = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(payload);
+            // placeholder for the entry count
+            out.writeInt(0);
+            int entryCount = 0;
+            Map<String, IndexEntry> newEntries = new LinkedHashMap<>();
+            for (Map.Entry<String, ItemChange> change : changes.entrySet()) {
+                String name = change.getKey();
+                IndexEntry current = items.get(name);
+                int entryOffset = payload.size();
+                if (change.getValue().getColumns().isEmpty()) {
+                    if (change.getValue().isRemove() && current != null) {
+                        out.writeByte(REMOVAL_ENTRY);
+                        writeBytes(out, name.getBytes(StandardCharsets.UTF_8));
+                        newEntries.put(name, null);
+                        entryCount++;
+                    }
+                } else {
+                    boolean newItem = current == null || change.getValue().isRemove();
+                    Map<Column, Object> state = newItem ? new EnumMap<>(Column.class) : readColumns(current);
+                    state.putAll(change.getValue().getColumns());
+                    long sequence = newItem ? nextSequence++ : current.sequence;
+                    writeState(out, name, sequence, state);
+                    newEntries.put(name, new IndexEntry(sequence, entryOffset, payload.size() - entryOffset, state));
+                    entryCount++;
+                }
+            }
+            if (entryCount == 0) {
+                return;
+            }
+            byte[] payloadBytes = payload.toByteArray();
+            ByteBuffer.wrap(payloadBytes).putInt(0, entryCount);
+            int payloadOffset = append(payloadBytes);
+            obsoleteBytes += RECORD_OVERHEAD;
+            for (Map.Entry<String, IndexEntry> newEntry : newEntries.entrySet()) {
+                if (newEntry.getValue() != null) {
+                    IndexEntry entry = newEntry.getValue();
+                    index(newEntry.getKey(), entry.moveTo(payloadOffset + entry.offset, entry.length));
+                } else {
+                    unindex(newEntry.getKey());
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Appends a record with the given payload, and makes it visible
+     *
+     * @return the offset of the payload in the file
+     */
+    private int append(byte[] payload) throws IOException {
+        byte[] record = CRC.addCRC(payload, CRC_BYTES, true);
+        int recordOffset = dataEnd;
+        ensureCapacity((long) recordOffset + record.length);
+        ByteBuffer buffer = mapping.duplicate();
+        buffer.position(recordOffset);
+        buffer.put(record);
+        setDataEnd(recordOffset + record.length);
+        return recordOffset + 8;
+    }
+
+    @Override
+    public void clear() {
+        lock.writeLock().lock();
+        try {
+            checkOpen();
+            setDataEnd(HEADER_SIZE);
+            generation++;
+            items.clear();
+            categories.clear();
+            expirations.clear();
+            liveBytes = 0L;
+            obsoleteBytes = 0L;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public List<String> names(String category) {
+        lock.readLock().lock();
+        try {
+            TreeMap<Long, String> categoryNames = categories.get(category);
+            return categoryNames != null ? new ArrayList<>(categoryNames.values()) : new ArrayList<>();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Iterator<String> nameIterator(String category) {
+        return new NameIterator(category);
+    }
+
+    /**
+     * Iterates over the names of a category in pages, by insertion order
+     */
+    private class NameIterator implements Iterator<String> {
+
+        private final String category;
+
+        private final ArrayDeque<String> page;
+
+        private long lastSequence;
+
+        private boolean lastPage;
+
+        private NameIterator(String category) {
+            this.category = category;
+            page = new ArrayDeque<>();
+            lastSequence = Long.MIN_VALUE;
+            lastPage = false;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (page.isEmpty() && !lastPage) {
+                loadPage();
+            }
+            return !page.isEmpty();
+        }
+
+        @Override
+        public String next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return page.poll();
+        }
+
+        private void loadPage() {
+            lock.readLock().lock();
+            try {
+                TreeMap<Long, String> categoryNames = categories.get(category);
+                if (categoryNames != null) {
+                    for (Map.Entry<Long, String> name : categoryNames.tailMap(lastSequence, false).entrySet()) {
+                        if (page.size() == NAMES_PER_PAGE) {
+                            return;
+                        }
+                        lastSequence = name.getKey();
+                        page.add(name.getValue());
+                    }
+                }
+                lastPage = true;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+    }
+
+    @Override
+    public Set<String> subCategories(String category) {
+        lock.readLock().lock();
+        try {
+            Set<String> subCategories = new HashSet<>();
+            for (String storedCategory : categories.tailMap(category, false).keySet()) {
+                if (!storedCategory.startsWith(category)) {
+                    break;
+                }
+                subCategories.add(storedCategory);
+            }
+            return subCategories;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void scan(String category, BiConsumer<String, Map<Column, Object>> consumer) {
+        lock.readLock().lock();
+        try {
+            for (Map.Entry<String, TreeMap<Long, String>> storedCategory : categories.tailMap(category, true).entrySet()) {
+                if (!storedCategory.getKey().startsWith(category)) {
+                    break;
+                }
+                for (String name : storedCategory.getValue().values()) {
+                    consumer.accept(name, readColumns(items.get(name)));
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public ExpiredItems removeExpired(long time, int maxItems) {
+        // writers are only blocked if there are expired items
+        lock.readLock().lock();
+        try {
+            checkOpen();
+            if (expirations.isEmpty() || expirations.firstKey() > time) {
+                return new ExpiredItems(new ArrayList<>(), 0);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        lock.writeLock().lock();
+        try {
+            checkOpen();
+            Map<String, ItemChange> removals = new LinkedHashMap<>();
+            for (Set<String> expiringNames : expirations.headMap(time, true).values()) {
+                if (removals.size() >= maxItems) {
+                    break;
+                }
+                for (String name : expiringNames) {
+                    if (removals.size() >= maxItems) {
+                        break;
+                    }
+                    removals.put(name, new ItemChange().markRemoved());
+                }
+            }
+            write(removals);
+            return new ExpiredItems(new ArrayList<>(removals.keySet()), removals.size());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private boolean needsCompaction() {
+        lock.readLock().lock();
+        try {
+            return !closed && obsoleteBytes > MIN_COMPACTION_BYTES && obsoleteBytes > liveBytes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Rewrites the log file with just the live items, discarding overwritten states and removal marks. Live states
+     * are copied from a snapshot of the index, so readers and writers are not blocked meanwhile. Writers only wait
+     * for the final step, in which records appended during the copy are carried over to the compacted file and the
+     * file is replaced. The compaction is discarded if the storage is cleared or closed meanwhile
+     *
+     * @throws IOException if the compacted file could not be written. The current file is kept in that case
+     */
+    @Override
+    public void compact() throws IOException {
+        synchronized (compactionLock) {
+            List<Map.Entry<String, IndexEntry>> liveItems;
+            MappedByteBuffer snapshotMapping;
+            int snapshotDataEnd;
+            long snapshotGeneration;
+            int snapshotFormatVersion;
+            lock.readLock().lock();
+            try {
+                checkOpen();
+                // entries are copied, as the entries of the index are updated in place
+                liveItems = new ArrayList<>(items.size());
+                for (Map.Entry<String, IndexEntry> item : items.entrySet()) {
+                    liveItems.add(new AbstractMap.SimpleImmutableEntry<>(item));
+                }
+                snapshotMapping = mapping;
+                snapshotDataEnd = dataEnd;
+                snapshotGeneration = generation;
+                snapshotFormatVersion = formatVersion;
+            } finally {
+                lock.readLock().unlock();
+            }
+            liveItems.sort(Comparator.comparingLong(item -> item.getValue().sequence));
+            Path compactPath = Paths.get(path + ".compact");
+            boolean replaced = false;
+            try (FileChannel compactChannel = FileChannel.open(compactPath, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.putInt(MAGIC).putInt(FORMAT_VERSION).putLong(creationDate).putLong(0L).flip();
+                compactChannel.write(header);
+                Map<String, IndexEntry> compactedEntries = new HashMap<>();
+                int position = HEADER_SIZE;
+                int index = 0;
+                while (index < liveItems.size()) {
+                    // group live states in records of bounded size, copying them verbatim (or re-encoding them, if
+                    // the file is in a previous format). The snapshot data is never modified, as the file is only
+                    // appended until it is cleared
+                    ByteArrayOutputStream payload = new ByteArrayOutputStream();
+                    payload.write(new byte[4], 0, 4);
+                    int entryCount = 0;
+                    Map<String, IndexEntry> recordEntries = new HashMap<>();
+                    while (index < liveItems.size() && (entryCount == 0 || payload.size() + liveItems.get(index).getValue().length <= MAX_COMPACTION_RECORD_SIZE)) {
+                        String name = liveItems.get(index).getKey();
+                        IndexEntry entry = liveItems.get(index).getValue();
+                        byte[] entryBytes;
+                        if (snapshotFormatVersion == FORMAT_VERSION) {
+                            entryBytes = new byte[entry.length];
+                            ByteBuffer buffer = snapshotMapping.duplicate();
+                            buffer.position(entry.offset);
+                            buffer.get(entryBytes);
+                        } else {
+                            ByteArrayOutputStream entryStream = new ByteArrayOutputStream();
+                            writeState(new DataOutputStream(entryStream), name, entry.sequence, readColumns(snapshotMapping, entry, snapshotFormatVersion));
+                            entryBytes = entryStream.toByteArray();
+                        }
+                        recordEntries.put(name, entry.moveTo(position + 8 + payload.size(), entryBytes.length));
+                        payload.write(entryBytes, 0, entryBytes.length);
+                        entryCount++;
+                        index++;
+                    }
+                    byte[] payloadBytes = payload.toByteArray();
+                    ByteBuffer.wrap(payloadBytes).putInt(0, entryCount);
+                    byte[] record = CRC.addCRC(payloadBytes, CRC_BYTES, true);
+                    compactChannel.write(ByteBuffer.wrap(record), position);
+                    position += record.length;
+                    compactedEntries.putAll(recordEntries);
+                }
+                compactChannel.force(true);
+
+                lock.writeLock().lock();
+                try {
+                    if (closed || generation != snapshotGeneration) {
+                        return;
+                    }
+                    // carry over the records appended during the copy. They are copied verbatim (the format version
+                    // does not change after opening), so their entries are just shifted
+                    int appendedLength = dataEnd - snapshotDataEnd;
+                    int shift = position - snapshotDataEnd;
+                    if (appendedLength > 0) {
+                        ByteBuffer appended = mapping.duplicate();
+                        appended.position(snapshotDataEnd);
+                        appended.limit(dataEnd);
+                        compactChannel.write(appended, position);
+                    }
+                    int compactedDataEnd = position + appendedLength;
+                    ByteBuffer dataEndBuffer = ByteBuffer.allocate(8);
+                    dataEndBuffer.putLong(compactedDataEnd).flip();
+                    compactChannel.write(dataEndBuffer, DATA_END_OFFSET);
+                    compactChannel.force(true);
+                    mapping.force();
+                    Files.move(compactPath, Paths.get(path), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    replaced = true;
+                    channel.close();
+                    channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ, StandardOpenOption.WRITE);
+                    map(Math.max(compactedDataEnd, INITIAL_CAPACITY));
+                    dataEnd = compactedDataEnd;
+                    formatVersion = FORMAT_VERSION;
+                    long compactedLiveBytes = 0L;
+                    long appendedLiveBytes = 0L;
+                    for (Map.Entry<String, IndexEntry> item : items.entrySet()) {
+                        IndexEntry entry = item.getValue();
+                        if (entry.offset >= snapshotDataEnd) {
+                            // written during the copy
+                            entry = entry.moveTo(entry.offset + shift, entry.length);
+                            appendedLiveBytes += entry.length;
+                        } else {
+                            // unchanged since the snapshot
+                            entry = compactedEntries.get(item.getKey());
+                        }
+                        item.setValue(entry);
+                        compactedLiveBytes += entry.length;
+                    }
+                    liveBytes = compactedLiveBytes;
+                    obsoleteBytes = appendedLength - appendedLiveBytes;
+                } finally {
+                    lock.writeLock().unlock();
+                }
+            } finally {
+                if (!replaced) {
+                    Files.deleteIfExists(compactPath);
+                }
+            }
+        }
+    }
+
+    @Override
+    public Long wakeUp(Timer timer) {
+        if (needsCompaction()) {
+            try {
+                compact();
+            } catch (IOException | RuntimeException e) {
+                ErrorLog.reportError(LogStorageBackend.class.getName(), "Could not compact log storage " + path, e);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void close() {
+        compactionTimer.stop();
+        lock.writeLock().lock();
+        try {
+            if (!closed) {
+                closed = true;
+                mapping.force();
+                channel.close();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+}
@@ -7,7 +7,7 @@ import org.javalite.activejdbc.annotations.Table;
 /**
  * Metadata table
  */
-@DbName(LocalStorage.DATABASE)
-@Table(LocalStorage.METADATA_TABLE)
+@DbName(SQLiteStorageBackend.DATABASE)
+@Table(SQLiteStorageBackend.METADATA_TABLE)
 public class Metadata extends Model {
 }
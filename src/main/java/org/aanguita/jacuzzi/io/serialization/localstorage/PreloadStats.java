@@ -0,0 +1,44 @@
+package org.aanguita.jacuzzi.io.serialization.localstorage;
+
+/**
+ * Snapshot of the statistics of the items preloaded in a local storage
+ */
+public class PreloadStats {
+
+    /**
+     * Number of items read by all preloads
+     */
+    public final long loadedItems;
+
+    /**
+     * Accumulated time (in millis) spent by all preloads
+     */
+    public final long loadTime;
+
+    /**
+     * Number of items currently held in memory
+     */
+    public final int preloadedItems;
+
+    /**
+     * Number of reads served from the preloaded items
+     */
+    public final long hits;
+
+    public PreloadStats(long loadedItems, long loadTime, int preloadedItems, long hits) {
+        this.loadedItems = loadedItems;
+        this.loadTime = loadTime;
+        this.preloadedItems = preloadedItems;
+        this.hits = hits;
+    }
+
+    @Override
+    public String toString() {
+        return "PreloadStats{" +
+                "loadedItems=" + loadedItems +
+                ", loadTime=" + loadTime +
+                ", preloadedItems=" + preloadedItems +
+                ", hits=" + hits +
+                '}';
+    }
+}
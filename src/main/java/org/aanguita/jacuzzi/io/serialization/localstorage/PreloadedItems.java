@@ -0,0 +1,118 @@
+package org.aanguita.jacuzzi.io.serialization.localstorage;
+
+import org.aanguita.jacuzzi.io.serialization.localstorage.StorageBackend.Column;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The columns of all items of a set of categories (or of the whole storage), loaded in memory with a single scan.
+ * Within the preloaded categories, these items are authoritative: writes update them, and names not found here do
+ * not exist.
+ * <p>
+ * Reads do not block. Stored columns are never modified, they are replaced on each write
+ */
+class PreloadedItems {
+
+    private final Map<String, Map<Column, Object>> items;
+
+    /**
+     * Preloaded category prefixes (each including its sub-categories). The empty prefix covers all items
+     */
+    private final Set<String> categories;
+
+    private final LongAdder hits;
+
+    private long loadedItems;
+
+    private long loadTime;
+
+    PreloadedItems() {
+        items = new ConcurrentHashMap<>();
+        categories = new CopyOnWriteArraySet<>();
+        hits = new LongAdder();
+        loadedItems = 0L;
+        loadTime = 0L;
+    }
+
+    /**
+     * Loads all the items of a category (and its sub-categories) from the backend
+     *
+     * @param category category prefix (empty for all items)
+     */
+    synchronized void load(StorageBackend backend, String category) {
+        long start = System.currentTimeMillis();
+        long[] count = new long[1];
+        backend.scan(category, (name, columns) -> {
+            items.put(name, columns);
+            count[0]++;
+        });
+        categories.add(category);
+        loadedItems += count[0];
+        loadTime += System.currentTimeMillis() - start;
+    }
+
+    boolean covers(String name) {
+        for (String category : categories) {
+            if (name.startsWith(category)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Retrieves the columns of a covered item
+     *
+     * @return the columns of the item, or null if it does not exist
+     */
+    Map<Column, Object> get(String name) {
+        hits.increment();
+        return items.get(name);
+    }
+
+    /**
+     * Applies written columns to a covered item, creating it if needed
+     */
+    void update(String name, Map<Column, Object> columns) {
+        items.compute(name, (itemName, current) -> {
+            Map<Column, Object> updated = new EnumMap<>(Column.class);
+            if (current != null) {
+                updated.putAll(current);
+            } else {
+                for (Column column : Column.values()) {
+                    updated.put(column, null);
+                }
+            }
+            updated.putAll(columns);
+            return updated;
+        });
+    }
+
+    void remove(String name) {
+        items.remove(name);
+    }
+
+    /**
+     * Removes an item if it expired at or before the given time (so it is not removed if it was rewritten
+     * meanwhile)
+     */
+    void removeIfExpired(String name, long time) {
+        items.computeIfPresent(name, (itemName, columns) -> {
+            Long expiration = (Long) columns.get(Column.EXPIRATION);
+            return expiration != null && expiration <= time ? null : columns;
+        });
+    }
+
+    void clear() {
+        items.clear();
+    }
+
+    synchronized PreloadStats stats() {
+        return new PreloadStats(loadedItems, loadTime, items.size(), hits.sum());
+    }
+}
@@ -0,0 +1,801 @@
+package org.aanguita.jacuzzi.io.serialization.localstorage;
+
+import org.aanguita.jacuzzi.concurrency.LockMap;
+import org.aanguita.jacuzzi.io.serialization.activejdbcsupport.ActiveJDBCController;
+import org.javalite.activejdbc.DB;
+import org.javalite.activejdbc.DBException;
+import org.javalite.activejdbc.RowListener;
+
+import java.io.File;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
+import java.util.function.BiConsumer;
+import java.util.stream.Collectors;
+
+/**
+ * Storage backend based on SQLite 3 databases. Data access is performed via the ActiveJDBC orm
+ */
+class SQLiteStorageBackend implements StorageBackend {
+
+    private static class TableField {
+
+        final String name;
+
+        final String type;
+
+        public TableField(String name, String type) {
+            this.name = name;
+            this.type = type;
+        }
+    }
+
+    static final String DATABASE = "jacuzzi_localStorage";
+
+    static final String METADATA_TABLE = DATABASE + "_metadata";
+
+    static final String ITEMS_TABLE = DATABASE + "_items";
+
+    private static final TableField ID = new TableField("id", "INTEGER NOT NULL PRIMARY KEY AUTOINCREMENT");
+
+    private static final TableField LS_VERSION = new TableField("ls_version", "TEXT");
+
+    private static final TableField CREATION_DATE = new TableField("creation_date", "INTEGER");
+
+    private static final TableField NAME = new TableField("id", "TEXT NOT NULL PRIMARY KEY");
+
+    private static final TableField STRING_ITEM = new TableField("string_item", "TEXT");
+
+    private static final TableField INTEGER_ITEM = new TableField("integer_item", "INTEGER");
+
+    private static final TableField REAL_ITEM = new TableField("real_item", "REAL");
+
+    /**
+     * Binary encoded lists of primitive values (see BinaryListCodec)
+     */
+    private static final TableField BLOB_ITEM = new TableField("blob_item", "BLOB");
+
+    /**
+     * Category prefix of the name of each item (empty for items without categories). Indexed, so items of a
+     * category can be listed without scanning the whole table
+     */
+    private static final TableField CATEGORY = new TableField("category", "TEXT NOT NULL DEFAULT ''");
+
+    private static final String CATEGORY_INDEX = ITEMS_TABLE + "_category_index";
+
+    /**
+     * Expiration time of each item (null for items that never expire). Indexed, so expired items can be found
+     * without scanning the whole table
+     */
+    private static final TableField EXPIRATION = new TableField("expiration", "INTEGER");
+
+    private static final String EXPIRATION_INDEX = ITEMS_TABLE + "_expiration_index";
+
+    /**
+     * Number of free pages released in each step of a compaction. Each step is a short write transaction, so
+     * readers are only blocked briefly
+     */
+    private static final int COMPACTION_PAGES_PER_STEP = 256;
+
+    /**
+     * Value of the auto_vacuum pragma for incremental vacuum
+     */
+    private static final int INCREMENTAL_AUTO_VACUUM = 2;
+
+    /**
+     * Max number of names included in a single IN query (SQLite limits the number of parameters of a statement)
+     */
+    private static final int MAX_NAMES_PER_QUERY = 500;
+
+    /**
+     * Number of names retrieved from the database in each query of a name iterator
+     */
+    private static final int NAMES_PER_PAGE = 1000;
+
+    /**
+     * Queries of frequent read accesses. They are run through the prepared statements cached by the
+     * ActiveJDBCController, so pooled connections only parse them once
+     */
+    private static final String COUNT_QUERY = "SELECT COUNT(*) FROM " + ITEMS_TABLE;
+
+    private static final String CONTAINS_QUERY = "SELECT 1 FROM " + ITEMS_TABLE + " WHERE " + NAME.name + " = ?";
+
+    private static final String READ_QUERY = "SELECT " + STRING_ITEM.name + ", " + INTEGER_ITEM.name + ", " + REAL_ITEM.name + ", " + BLOB_ITEM.name + ", " + EXPIRATION.name + " FROM " + ITEMS_TABLE + " WHERE " + NAME.name + " = ?";
+
+    private static final String NAMES_QUERY = "SELECT " + NAME.name + " FROM " + ITEMS_TABLE + " WHERE " + CATEGORY.name + " = ? ORDER BY rowid";
+
+    private static final String NAMES_PAGE_QUERY = "SELECT rowid, " + NAME.name + " FROM " + ITEMS_TABLE + " WHERE " + CATEGORY.name + " = ? AND rowid > ? ORDER BY rowid LIMIT ?";
+
+    private static final String ALL_SUB_CATEGORIES_QUERY = "SELECT DISTINCT " + CATEGORY.name + " FROM " + ITEMS_TABLE + " WHERE " + CATEGORY.name + " > ?";
+
+    private static final String SUB_CATEGORIES_QUERY = ALL_SUB_CATEGORIES_QUERY + " AND " + CATEGORY.name + " < ?";
+
+    /**
+     * Statements of the write path, also run through cached prepared statements. Column updates are preceded by the
+     * insertion of the item, if it does not exist (the SQLite version in use does not support upserts). The update
+     * statement depends on the set of written columns
+     */
+    private static final String DELETE_STATEMENT = "DELETE FROM " + ITEMS_TABLE + " WHERE " + NAME.name + " = ?";
+
+    private static final String INSERT_IF_MISSING_STATEMENT = "INSERT OR IGNORE INTO " + ITEMS_TABLE + " (" + NAME.name + ", " + CATEGORY.name + ") VALUES (?, ?)";
+
+    private static final String REPLACE_STATEMENT = "INSERT OR REPLACE INTO " + ITEMS_TABLE + " (" + NAME.name + ", " + CATEGORY.name + ", " + STRING_ITEM.name + ", " + INTEGER_ITEM.name + ", " + REAL_ITEM.name + ", " + BLOB_ITEM.name + ", " + EXPIRATION.name + ") VALUES (?, ?, ?, ?, ?, ?, ?)";
+
+    /**
+     * Reads the rows of a query result
+     */
+    @FunctionalInterface
+    private interface RowReader {
+
+        void read(ResultSet row) throws SQLException;
+    }
+
+    private static final String VERSION_0_1_0 = "0.1.0";
+
+    private static final String VERSION_0_2_0 = "0.2.0";
+
+    private static final String VERSION_0_3_0 = "0.3.0";
+
+    static final String CURRENT_VERSION = "0.4.0";
+
+    private static final int LOCK_STRIPES = 64;
+
+    /**
+     * Item locks of each database, indexed by absolute path. Backends of the same database share them, while
+     * backends of different databases (such as the shards of a sharded storage) never wait for each other
+     */
+    private static final Map<String, LockMap<String>> databaseLocks = new ConcurrentHashMap<>();
+
+    /**
+     * Path to the local database
+     */
+    private final String path;
+
+    /**
+     * Locks for accessing the items of this database. Striped, so memory usage does not grow with the number of
+     * accessed items
+     */
+    private final LockMap<String> locks;
+
+    SQLiteStorageBackend(String path) {
+        this.path = path;
+        locks = databaseLocks.computeIfAbsent(new File(path).getAbsoluteFile().toPath().normalize().toString(), databasePath -> LockMap.striped(LOCK_STRIPES));
+        upgradeIfNeeded();
+    }
+
+    /**
+     * Upgrades the database of an existing local storage created with a previous version
+     */
+    private void upgradeIfNeeded() {
+        if (!new File(path).isFile()) {
+            return;
+        }
+        DB db = ActiveJDBCController.connect(DATABASE, path);
+        try {
+            if (db.firstColumn("SELECT name FROM sqlite_master WHERE type = 'table' AND name = ?", METADATA_TABLE).isEmpty()) {
+                // not a local storage database (yet)
+                return;
+            }
+            String storedVersion = (String) db.firstCell("SELECT " + LS_VERSION.name + " FROM " + METADATA_TABLE);
+            if (VERSION_0_1_0.equals(storedVersion)) {
+                upgradeFrom_0_1_0(db);
+                storedVersion = VERSION_0_2_0;
+            }
+            if (VERSION_0_2_0.equals(storedVersion)) {
+                upgradeFrom_0_2_0(db);
+                storedVersion = VERSION_0_3_0;
+            }
+            if (VERSION_0_3_0.equals(storedVersion)) {
+                upgradeFrom_0_3_0(db);
+            }
+        } finally {
+            ActiveJDBCController.disconnect();
+        }
+    }
+
+    /**
+     * Adds the indexed category column, filled from the names of the existing items
+     */
+    private static void upgradeFrom_0_1_0(DB db) {
+        db.openTransaction();
+        try {
+            db.exec("ALTER TABLE " + ITEMS_TABLE + " ADD COLUMN " + CATEGORY.name + " " + CATEGORY.type);
+            List<?> names = db.firstColumn("SELECT " + NAME.name + " FROM " + ITEMS_TABLE + " WHERE " + NAME.name + " LIKE ?", "%" + CATEGORY_SEPARATOR + "%");
+            PreparedStatement updateCategory = db.startBatch("UPDATE " + ITEMS_TABLE + " SET " + CATEGORY.name + " = ? WHERE " + NAME.name + " = ?");
+            for (Object name : names) {
+                db.addBatch(updateCategory, StorageBackend.categoryOf((String) name), name);
+            }
+            db.executeBatch(updateCategory);
+            createCategoryIndex(db);
+            db.exec("UPDATE " + METADATA_TABLE + " SET " + LS_VERSION.name + " = ?", VERSION_0_2_0);
+            db.commitTransaction();
+        } catch (RuntimeException e) {
+            db.rollbackTransaction();
+            throw e;
+        }
+    }
+
+    /**
+     * Adds the blob column for binary encoded lists. Existing text encoded lists are kept as they are
+     */
+    private static void upgradeFrom_0_2_0(DB db) {
+        db.openTransaction();
+        try {
+            db.exec("ALTER TABLE " + ITEMS_TABLE + " ADD COLUMN " + BLOB_ITEM.name + " " + BLOB_ITEM.type);
+            db.exec("UPDATE " + METADATA_TABLE + " SET " + LS_VERSION.name + " = ?", VERSION_0_3_0);
+            db.commitTransaction();
+        } catch (RuntimeException e) {
+            db.rollbackTransaction();
+            throw e;
+        }
+    }
+
+    /**
+     * Adds the indexed expiration column, and switches the database to incremental vacuum (this requires a full
+     * vacuum, done once)
+     */
+    private static void upgradeFrom_0_3_0(DB db) {
+        db.openTransaction();
+        try {
+            db.exec("ALTER TABLE " + ITEMS_TABLE + " ADD COLUMN " + EXPIRATION.name + " " + EXPIRATION.type);
+            createExpirationIndex(db);
+            db.exec("UPDATE " + METADATA_TABLE + " SET " + LS_VERSION.name + " = ?", CURRENT_VERSION);
+            db.commitTransaction();
+        } catch (RuntimeException e) {
+            db.rollbackTransaction();
+            throw e;
+        }
+        enableIncrementalVacuum(db);
+    }
+
+    private static void enableIncrementalVacuum(DB db) {
+        ensureAutoCommit(db);
+        db.exec("PRAGMA auto_vacuum = INCREMENTAL");
+        db.exec("VACUUM");
+    }
+
+    /**
+     * Vacuums cannot run inside a transaction. Connections are left in manual commit mode after a transaction
+     */
+    private static void ensureAutoCommit(DB db) {
+        try {
+            if (!db.connection().getAutoCommit()) {
+                db.connection().setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            throw new DBException(e);
+        }
+    }
+
+    private static void createExpirationIndex(DB db) {
+        db.exec("CREATE INDEX IF NOT EXISTS " + EXPIRATION_INDEX + " ON " + ITEMS_TABLE + "(" + EXPIRATION.name + ")");
+    }
+
+    private static void createCategoryIndex(DB db) {
+        db.exec("CREATE INDEX IF NOT EXISTS " + CATEGORY_INDEX + " ON " + ITEMS_TABLE + "(" + CATEGORY.name + ")");
+    }
+
+    static SQLiteStorageBackend createNew(String path) {
+        DB db = ActiveJDBCController.connect(DATABASE, path);
+        db.exec("DROP TABLE IF EXISTS " + METADATA_TABLE);
+        db.exec("DROP TABLE IF EXISTS " + ITEMS_TABLE);
+        enableIncrementalVacuum(db);
+
+        StringBuilder create = new StringBuilder("CREATE TABLE ").append(METADATA_TABLE).append("(");
+        appendField(create, ID, false);
+        appendField(create, LS_VERSION, false);
+        appendField(create, CREATION_DATE, true);
+        db.exec(create.toString());
+
+        create = new StringBuilder("CREATE TABLE ").append(ITEMS_TABLE).append("(");
+        // the name is the primary key, so it is already indexed
+        appendField(create, NAME, false);
+        appendField(create, CATEGORY, false);
+        appendField(create, STRING_ITEM, false);
+        appendField(create, INTEGER_ITEM, false);
+        appendField(create, REAL_ITEM, false);
+        appendField(create, BLOB_ITEM, false);
+        appendField(create, EXPIRATION, true);
+        db.exec(create.toString());
+        createCategoryIndex(db);
+        createExpirationIndex(db);
+
+        Metadata Metadata = new Metadata();
+        Metadata.setString(LS_VERSION.name, CURRENT_VERSION);
+        Metadata.setLong(CREATION_DATE.name, new Date().getTime());
+        Metadata.saveIt();
+
+        ActiveJDBCController.disconnect();
+        return new SQLiteStorageBackend(path);
+    }
+
+    private static void appendField(StringBuilder create, TableField field, boolean isFinal) {
+        create.append(field.name).append(" ").append(field.type);
+        if (isFinal) {
+            create.append(")");
+        } else {
+            create.append(",");
+        }
+    }
+
+    private static TableField fieldOf(Column column) {
+        switch (column) {
+            case STRING:
+                return STRING_ITEM;
+            case INTEGER:
+                return INTEGER_ITEM;
+            case REAL:
+                return REAL_ITEM;
+            case BLOB:
+                return BLOB_ITEM;
+            case EXPIRATION:
+                return EXPIRATION;
+            default:
+                throw new IllegalArgumentException("Unsupported column: " + column);
+        }
+    }
+
+    private static Map<Column, Object> readColumns(Item item) {
+        Map<Column, Object> columns = new EnumMap<>(Column.class);
+        columns.put(Column.STRING, item.getString(STRING_ITEM.name));
+        columns.put(Column.INTEGER, item.getLong(INTEGER_ITEM.name));
+        columns.put(Column.REAL, item.getDouble(REAL_ITEM.name));
+        columns.put(Column.BLOB, item.getBytes(BLOB_ITEM.name));
+        columns.put(Column.EXPIRATION, item.getLong(EXPIRATION.name));
+        return columns;
+    }
+
+    private static Map<Column, Object> readColumns(Map<String, Object> row) {
+        Map<Column, Object> columns = new EnumMap<>(Column.class);
+        Object integerValue = row.get(INTEGER_ITEM.name);
+        Object realValue = row.get(REAL_ITEM.name);
+        Object expiration = row.get(EXPIRATION.name);
+        columns.put(Column.STRING, row.get(STRING_ITEM.name));
+        columns.put(Column.INTEGER, integerValue != null ? ((Number) integerValue).longValue() : null);
+        columns.put(Column.REAL, realValue != null ? ((Number) realValue).doubleValue() : null);
+        columns.put(Column.BLOB, row.get(BLOB_ITEM.name));
+        columns.put(Column.EXPIRATION, expiration != null ? ((Number) expiration).longValue() : null);
+        return columns;
+    }
+
+    private static Map<Column, Object> readColumns(ResultSet row) throws SQLException {
+        Map<Column, Object> columns = new EnumMap<>(Column.class);
+        Object integerValue = row.getObject(INTEGER_ITEM.name);
+        Object realValue = row.getObject(REAL_ITEM.name);
+        Object expiration = row.getObject(EXPIRATION.name);
+        columns.put(Column.STRING, row.getString(STRING_ITEM.name));
+        columns.put(Column.INTEGER, integerValue != null ? ((Number) integerValue).longValue() : null);
+        columns.put(Column.REAL, realValue != null ? ((Number) realValue).doubleValue() : null);
+        columns.put(Column.BLOB, row.getBytes(BLOB_ITEM.name));
+        columns.put(Column.EXPIRATION, expiration != null ? ((Number) expiration).longValue() : null);
+        return columns;
+    }
+
+    /**
+     * Runs one of the fixed read queries with its cached prepared statement (must be previously connected)
+     */
+    private static void query(String sql, RowReader reader, Object... parameters) {
+        PreparedStatement statement = ActiveJDBCController.prepareStatement(sql);
+        try {
+            for (int i = 0; i < parameters.length; i++) {
+                statement.setObject(i + 1, parameters[i]);
+            }
+            try (ResultSet row = statement.executeQuery()) {
+                while (row.next()) {
+                    reader.read(row);
+                }
+            }
+        } catch (SQLException e) {
+            throw new DBException(e);
+        }
+    }
+
+    /**
+     * Runs one of the write statements with its cached prepared statement (must be previously connected)
+     */
+    private static void update(String sql, Object... parameters) {
+        PreparedStatement statement = ActiveJDBCController.prepareStatement(sql);
+        try {
+            for (int i = 0; i < parameters.length; i++) {
+                statement.setObject(i + 1, parameters[i]);
+            }
+            statement.executeUpdate();
+        } catch (SQLException e) {
+            throw new DBException(e);
+        }
+    }
+
+    /**
+     * Builds the statement for updating a set of columns of an item. Columns are always listed in the same order,
+     * so each set of columns maps to a single cached statement
+     */
+    private static String updateStatement(Set<Column> columns) {
+        StringBuilder update = new StringBuilder("UPDATE ").append(ITEMS_TABLE).append(" SET ");
+        boolean first = true;
+        for (Column column : columns) {
+            update.append(first ? "" : ", ").append(fieldOf(column).name).append(" = ?");
+            first = false;
+        }
+        return update.append(" WHERE ").append(NAME.name).append(" = ?").toString();
+    }
+
+    private Metadata getMetadata() {
+        ActiveJDBCController.connect(DATABASE, path);
+        try {
+            return (Metadata) Metadata.findAll().get(0);
+        } finally {
+            ActiveJDBCController.disconnect();
+        }
+    }
+
+    @Override
+    public String getPath() {
+        return path;
+    }
+
+    @Override
+    public String getVersion() {
+        return getMetadata().getString(LS_VERSION.name);
+    }
+
+    @Override
+    public Date getCreationDate() {
+        Long date = getMetadata().getLong(CREATION_DATE.name);
+        return date != null ? new Date(date) : null;
+    }
+
+    @Override
+    public int itemCount() {
+        ActiveJDBCController.connect(DATABASE, path);
+        try {
+            int[] count = new int[1];
+            query(COUNT_QUERY, row -> count[0] = row.getInt(1));
+            return count[0];
+        } finally {
+            ActiveJDBCController.disconnect();
+        }
+    }
+
+    @Override
+    public boolean contains(String name) {
+        connect(name);
+        try {
+            boolean[] found = new boolean[1];
+            query(CONTAINS_QUERY, row -> found[0] = true, name);
+            return found[0];
+        } finally {
+            disconnect(name);
+        }
+    }
+
+    @Override
+    public Map<Column, Object> read(String name) {
+        connect(name);
+        try {
+            List<Map<Column, Object>> columns = new ArrayList<>(1);
+            query(READ_QUERY, row -> columns.add(readColumns(row)), name);
+            return columns.isEmpty() ? null : columns.get(0);
+        } finally {
+            disconnect(name);
+        }
+    }
+
+    @Override
+    public Map<String, Map<Column, Object>> read(Collection<String> names) {
+        List<String> nameList = new ArrayList<>(names);
+        Map<String, Map<Column, Object>> items = new HashMap<>();
+        ActiveJDBCController.connect(DATABASE, path);
+        try {
+            for (int i = 0; i < nameList.size(); i += MAX_NAMES_PER_QUERY) {
+                List<String> queryNames = nameList.subList(i, Math.min(i + MAX_NAMES_PER_QUERY, nameList.size()));
+                List<Item> queryItems = Item.where(NAME.name + " IN (" + parameters(queryNames.size()) + ")", queryNames.toArray());
+                for (Item item : queryItems) {
+                    items.put(item.getString(NAME.name), readColumns(item));
+                }
+            }
+            return items;
+        } finally {
+            ActiveJDBCController.disconnect();
+        }
+    }
+
+    private static String parameters(int count) {
+        StringBuilder parameters = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            parameters.append(i == 0 ? "?" : ", ?");
+        }
+        return parameters.toString();
+    }
+
+    @Override
+    public void write(Map<String, ItemChange> changes) {
+        // locks are retrieved in stripe order, so concurrent group writes cannot deadlock
+        List<Lock> itemLocks = locks.getLocks(changes.keySet());
+        DB db = ActiveJDBCController.connect(DATABASE, path);
+        itemLocks.forEach(Lock::lock);
+        try {
+            // a transaction is needed whenever the changes take more than one statement
+            boolean transaction = changes.size() > 1 || changes.values().stream().anyMatch(SQLiteStorageBackend::needsSeveralStatements);
+            if (transaction) {
+                db.openTransaction();
+            }
+            PreparedStatement replaceStatement = null;
+            try {
+                for (Map.Entry<String, ItemChange> change : changes.entrySet()) {
+                    String name = change.getKey();
+                    Map<Column, Object> columns = change.getValue().getColumns();
+                    if (isFullReplacement(change.getValue())) {
+                        // full replacements (such as imported items) are applied in a single batched statement
+                        if (replaceStatement == null) {
+                            replaceStatement = ActiveJDBCController.prepareStatement(REPLACE_STATEMENT);
+                        }
+                        db.addBatch(replaceStatement, name, StorageBackend.categoryOf(name), columns.get(Column.STRING), columns.get(Column.INTEGER), columns.get(Column.REAL), columns.get(Column.BLOB), columns.get(Column.EXPIRATION));
+                        continue;
+                    }
+                    if (change.getValue().isRemove()) {
+                        update(DELETE_STATEMENT, name);
+                    }
+                    if (!columns.isEmpty()) {
+                        update(INSERT_IF_MISSING_STATEMENT, name, StorageBackend.categoryOf(name));
+                        List<Object> parameters = new ArrayList<>(columns.values());
+                        parameters.add(name);
+                        update(updateStatement(columns.keySet()), parameters.toArray());
+                    }
+                }
+                if (replaceStatement != null) {
+                    db.executeBatch(replaceStatement);
+                }
+                if (transaction) {
+                    db.commitTransaction();
+                }
+            } catch (RuntimeException e) {
+                if (transaction) {
+                    db.rollbackTransaction();
+                }
+                throw e;
+            } finally {
+                if (replaceStatement != null) {
+                    try {
+                        // the statement is cached, so it is reset instead of closed
+                        replaceStatement.clearBatch();
+                    } catch (SQLException e) {
+                        // ignore, the batch is discarded along with the connection
+                    }
+                }
+            }
+        } finally {
+            itemLocks.forEach(Lock::unlock);
+            ActiveJDBCController.disconnect();
+        }
+    }
+
+    /**
+     * Checks if a change is applied with more than one statement (setting columns takes an insertion of the item if
+     * missing, plus an update)
+     */
+    private static boolean needsSeveralStatements(ItemChange change) {
+        return !isFullReplacement(change) && !change.getColumns().isEmpty();
+    }
+
+    /**
+     * Checks if a change removes an item and sets all its columns
+     */
+    private static boolean isFullReplacement(ItemChange change) {
+        return change.isRemove() && change.getColumns().size() == Column.values().length;
+    }
+
+    @Override
+    public void clear() {
+        ActiveJDBCController.connect(DATABASE, path);
+        try {
+            Item.deleteAll();
+        } finally {
+            ActiveJDBCController.disconnect();
+        }
+    }
+
+    @Override
+    public List<String> names(String category) {
+        ActiveJDBCController.connect(DATABASE, path);
+        try {
+            List<String> names = new ArrayList<>();
+            query(NAMES_QUERY, row -> names.add(row.getString(1)), category);
+            return names;
+        } finally {
+            ActiveJDBCController.disconnect();
+        }
+    }
+
+    @Override
+    public Iterator<String> nameIterator(String category) {
+        return new NameIterator(category);
+    }
+
+    /**
+     * Iterates over the names of a category using keyset pagination over the rowid
+     */
+    private class NameIterator implements Iterator<String> {
+
+        private final String category;
+
+        private final ArrayDeque<String> page;
+
+        private long lastRowId;
+
+        private boolean lastPage;
+
+        private NameIterator(String category) {
+            this.category = category;
+            page = new ArrayDeque<>();
+            lastRowId = Long.MIN_VALUE;
+            lastPage = false;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (page.isEmpty() && !lastPage) {
+                loadPage();
+            }
+            return !page.isEmpty();
+        }
+
+        @Override
+        public String next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            return page.poll();
+        }
+
+        private void loadPage() {
+            ActiveJDBCController.connect(DATABASE, path);
+            try {
+                int pageSize = page.size();
+                query(NAMES_PAGE_QUERY, row -> {
+                    lastRowId = row.getLong(1);
+                    page.add(row.getString(2));
+                }, category, lastRowId, NAMES_PER_PAGE);
+                lastPage = page.size() - pageSize < NAMES_PER_PAGE;
+            } finally {
+                ActiveJDBCController.disconnect();
+            }
+        }
+    }
+
+    @Override
+    public Set<String> subCategories(String category) {
+        ActiveJDBCController.connect(DATABASE, path);
+        try {
+            // range scan over the category index
+            Set<String> subCategories = new HashSet<>();
+            if (category.isEmpty()) {
+                query(ALL_SUB_CATEGORIES_QUERY, row -> subCategories.add(row.getString(1)), category);
+            } else {
+                query(SUB_CATEGORIES_QUERY, row -> subCategories.add(row.getString(1)), category, prefixSuccessor(category));
+            }
+            return subCategories;
+        } finally {
+            ActiveJDBCController.disconnect();
+        }
+    }
+
+    @Override
+    public void scan(String category, BiConsumer<String, Map<Column, Object>> consumer) {
+        DB db = ActiveJDBCController.connect(DATABASE, path);
+        try {
+            String query = "SELECT " + NAME.name + ", " + STRING_ITEM.name + ", " + INTEGER_ITEM.name + ", " + REAL_ITEM.name + ", " + BLOB_ITEM.name + ", " + EXPIRATION.name + " FROM " + ITEMS_TABLE;
+            RowListener listener = row -> {
+                consumer.accept((String) row.get(NAME.name), readColumns(row));
+                return true;
+            };
+            if (category.isEmpty()) {
+                db.find(query, listener);
+            } else {
+                db.find(query + " WHERE " + CATEGORY.name + " >= ? AND " + CATEGORY.name + " < ?", category, prefixSuccessor(category)).with(listener);
+            }
+        } finally {
+            ActiveJDBCController.disconnect();
+        }
+    }
+
+    @Override
+    public ExpiredItems removeExpired(long time, int maxItems) {
+        DB db = ActiveJDBCController.connect(DATABASE, path);
+        try {
+            List<?> expiredNames = db.firstColumn("SELECT " + NAME.name + " FROM " + ITEMS_TABLE + " WHERE " + EXPIRATION.name + " <= ? ORDER BY " + EXPIRATION.name + " LIMIT ?", time, maxItems);
+            List<String> candidates = expiredNames.stream().map(name -> (String) name).collect(Collectors.toList());
+            if (candidates.isEmpty()) {
+                return new ExpiredItems(candidates, 0);
+            }
+            List<Lock> itemLocks = locks.getLocks(candidates);
+            itemLocks.forEach(Lock::lock);
+            try {
+                List<String> removed = new ArrayList<>();
+                db.openTransaction();
+                try {
+                    for (String name : candidates) {
+                        // the expiration is checked again, as the item might have been rewritten meanwhile
+                        if (db.exec("DELETE FROM " + ITEMS_TABLE + " WHERE " + NAME.name + " = ? AND " + EXPIRATION.name + " <= ?", name, time) > 0) {
+                            removed.add(name);
+                        }
+                    }
+                    db.commitTransaction();
+                } catch (RuntimeException e) {
+                    db.rollbackTransaction();
+                    throw e;
+                }
+                return new ExpiredItems(removed, candidates.size());
+            } finally {
+                itemLocks.forEach(Lock::unlock);
+            }
+        } finally {
+            ActiveJDBCController.disconnect();
+        }
+    }
+
+    /**
+     * Releases the free pages of the database file in short incremental steps. Databases created before incremental
+     * vacuum was enabled are fully vacuumed instead
+     */
+    @Override
+    public void compact() {
+        DB db = ActiveJDBCController.connect(DATABASE, path);
+        try {
+            if (((Number) db.firstCell("PRAGMA auto_vacuum")).intValue() != INCREMENTAL_AUTO_VACUUM) {
+                enableIncrementalVacuum(db);
+                return;
+            }
+            ensureAutoCommit(db);
+            int freePages = ((Number) db.firstCell("PRAGMA freelist_count")).intValue();
+            while (freePages > 0) {
+                db.exec("PRAGMA incremental_vacuum(" + COMPACTION_PAGES_PER_STEP + ")");
+                int remainingFreePages = ((Number) db.firstCell("PRAGMA freelist_count")).intValue();
+                if (remainingFreePages >= freePages) {
+                    break;
+                }
+                freePages = remainingFreePages;
+            }
+        } finally {
+            ActiveJDBCController.disconnect();
+        }
+    }
+
+    /**
+     * Computes the smallest string greater than all strings starting with the given prefix
+     */
+    static String prefixSuccessor(String prefix) {
+        StringBuilder successor = new StringBuilder(prefix);
+        int last = successor.length() - 1;
+        while (last >= 0 && successor.charAt(last) == Character.MAX_VALUE) {
+            successor.setLength(last);
+            last--;
+        }
+        if (last < 0) {
+            throw new IllegalArgumentException("Prefix has no successor: " + prefix);
+        }
+        successor.setCharAt(last, (char) (successor.charAt(last) + 1));
+        return successor.toString();
+    }
+
+    @Override
+    public void close() {
+        // connections are opened and closed (or pooled) on each access
+    }
+
+    private void connect(String name) {
+        ActiveJDBCController.connect(DATABASE, path);
+        getLock(name).lock();
+    }
+
+    private void disconnect(String name) {
+        getLock(name).unlock();
+        ActiveJDBCController.disconnect();
+    }
+
+    private Lock getLock(String name) {
+        return locks.getLock(name);
+    }
+}
@@ -0,0 +1,272 @@
+package org.aanguita.jacuzzi.io.serialization.localstorage;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Storage backend that splits items across several SQLite databases (shards), so writers of different shards do
+ * not wait for each other. Each shard is a regular SQLite local storage database, with its own connections and
+ * locks.
+ * <p>
+ * Items are assigned to shards by a hash of their top level category (so whole categories live in a single shard)
+ * or by a hash of their full name (so items are spread evenly). Items without categories are always assigned by
+ * name. The shard of an item never changes, so a sharded storage must always be opened with the same shard count
+ * and strategy.
+ * <p>
+ * Each group of changes is atomic within each shard, but not across shards. Items of a category are listed in
+ * insertion order if they live in a single shard. Otherwise, they are listed shard by shard
+ */
+public class ShardedStorageBackend implements StorageBackend {
+
+    public enum ShardingStrategy {
+        /**
+         * Items are assigned by a hash of their top level category
+         */
+        CATEGORY,
+        /**
+         * Items are assigned by a hash of their full name
+         */
+        NAME_HASH
+    }
+
+    private final String path;
+
+    private final ShardingStrategy strategy;
+
+    private final List<SQLiteStorageBackend> shards;
+
+    private ShardedStorageBackend(String path, ShardingStrategy strategy, List<SQLiteStorageBackend> shards) {
+        this.path = path;
+        this.strategy = strategy;
+        this.shards = shards;
+    }
+
+    /**
+     * Opens an existing sharded storage
+     *
+     * @param path       base path of the shard databases. Shard i is stored at path-i
+     * @param shardCount number of shards
+     * @param strategy   strategy for assigning items to shards
+     * @return the opened backend
+     * @throws IOException if some shard does not exist, or there are more shards than the given count
+     */
+    public static ShardedStorageBackend open(String path, int shardCount, ShardingStrategy strategy) throws IOException {
+        checkShardCount(shardCount);
+        if (new File(shardPath(path, shardCount)).exists()) {
+            throw new IOException("Sharded storage " + path + " has more than " + shardCount + " shards");
+        }
+        List<SQLiteStorageBackend> shards = new ArrayList<>();
+        for (int i = 0; i < shardCount; i++) {
+            String shardPath = shardPath(path, i);
+            if (!new File(shardPath).isFile()) {
+                throw new IOException("Missing shard of sharded storage: " + shardPath);
+            }
+            shards.add(new SQLiteStorageBackend(shardPath));
+        }
+        return new ShardedStorageBackend(path, strategy, shards);
+    }
+
+    /**
+     * Creates a new, empty sharded storage, overwriting any existing shards
+     *
+     * @param path       base path of the shard databases. Shard i is stored at path-i
+     * @param shardCount number of shards
+     * @param strategy   strategy for assigning items to shards
+     * @return the opened backend
+     */
+    public static ShardedStorageBackend createNew(String path, int shardCount, ShardingStrategy strategy) {
+        checkShardCount(shardCount);
+        List<SQLiteStorageBackend> shards = new ArrayList<>();
+        for (int i = 0; i < shardCount; i++) {
+            shards.add(SQLiteStorageBackend.createNew(shardPath(path, i)));
+        }
+        // remove shards of a previous storage with more shards
+        for (int i = shardCount; new File(shardPath(path, i)).delete(); i++) {
+            // keep deleting
+        }
+        return new ShardedStorageBackend(path, strategy, shards);
+    }
+
+    private static void checkShardCount(int shardCount) {
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("Shard count must be positive, received " + shardCount);
+        }
+    }
+
+    static String shardPath(String path, int shard) {
+        return path + "-" + shard;
+    }
+
+    public int getShardCount() {
+        return shards.size();
+    }
+
+    public ShardingStrategy getStrategy() {
+        return strategy;
+    }
+
+    private SQLiteStorageBackend shardOf(String name) {
+        String key = name;
+        if (strategy == ShardingStrategy.CATEGORY) {
+            int index = name.indexOf(CATEGORY_SEPARATOR);
+            if (index >= 0) {
+                key = name.substring(0, index);
+            }
+        }
+        int h = key.hashCode();
+        return shards.get(Math.floorMod(h ^ (h >>> 16), shards.size()));
+    }
+
+    /**
+     * Retrieves the shards that may contain items of a category (or its sub-categories)
+     */
+    private List<SQLiteStorageBackend> shardsOfCategory(String category) {
+        if (strategy == ShardingStrategy.CATEGORY && !category.isEmpty()) {
+            return Collections.singletonList(shardOf(category));
+        } else {
+            return shards;
+        }
+    }
+
+    private <T> Map<SQLiteStorageBackend, List<T>> groupByShard(Collection<T> elements, Function<T, String> nameFunction) {
+        Map<SQLiteStorageBackend, List<T>> groups = new LinkedHashMap<>();
+        for (T element : elements) {
+            groups.computeIfAbsent(shardOf(nameFunction.apply(element)), shard -> new ArrayList<>()).add(element);
+        }
+        return groups;
+    }
+
+    @Override
+    public String getPath() {
+        return path;
+    }
+
+    @Override
+    public String getVersion() {
+        return shards.get(0).getVersion();
+    }
+
+    @Override
+    public Date getCreationDate() {
+        return shards.get(0).getCreationDate();
+    }
+
+    @Override
+    public int itemCount() {
+        int count = 0;
+        for (SQLiteStorageBackend shard : shards) {
+            count += shard.itemCount();
+        }
+        return count;
+    }
+
+    @Override
+    public boolean contains(String name) {
+        return shardOf(name).contains(name);
+    }
+
+    @Override
+    public Map<Column, Object> read(String name) {
+        return shardOf(name).read(name);
+    }
+
+    @Override
+    public Map<String, Map<Column, Object>> read(Collection<String> names) {
+        Map<String, Map<Column, Object>> items = new HashMap<>();
+        groupByShard(names, name -> name).forEach((shard, shardNames) -> items.putAll(shard.read(shardNames)));
+        return items;
+    }
+
+    @Override
+    public void write(Map<String, ItemChange> changes) {
+        groupByShard(changes.entrySet(), Map.Entry::getKey).forEach((shard, shardChanges) -> {
+            Map<String, ItemChange> group = new LinkedHashMap<>();
+            shardChanges.forEach(change -> group.put(change.getKey(), change.getValue()));
+            shard.write(group);
+        });
+    }
+
+    @Override
+    public void clear() {
+        shards.forEach(SQLiteStorageBackend::clear);
+    }
+
+    @Override
+    public List<String> names(String category) {
+        List<String> names = new ArrayList<>();
+        for (SQLiteStorageBackend shard : shardsOfCategory(category)) {
+            names.addAll(shard.names(category));
+        }
+        return names;
+    }
+
+    @Override
+    public Iterator<String> nameIterator(String category) {
+        Iterator<SQLiteStorageBackend> shardIterator = shardsOfCategory(category).iterator();
+        return new Iterator<String>() {
+
+            private Iterator<String> current = Collections.emptyIterator();
+
+            @Override
+            public boolean hasNext() {
+                while (!current.hasNext() && shardIterator.hasNext()) {
+                    current = shardIterator.next().nameIterator(category);
+                }
+                return current.hasNext();
+            }
+
+            @Override
+            public String next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return current.next();
+            }
+        };
+    }
+
+    @Override
+    public Set<String> subCategories(String category) {
+        return shardsOfCategory(category).stream()
+                .flatMap(shard -> shard.subCategories(category).stream())
+                .collect(Collectors.toSet());
+    }
+
+    @Override
+    public void scan(String category, BiConsumer<String, Map<Column, Object>> consumer) {
+        for (SQLiteStorageBackend shard : shardsOfCategory(category)) {
+            shard.scan(category, consumer);
+        }
+    }
+
+    @Override
+    public ExpiredItems removeExpired(long time, int maxItems) {
+        // a shard returning fewer candidates than requested has no more expired items, so the total candidate count
+        // only falls below max items once all shards are exhausted
+        List<String> removed = new ArrayList<>();
+        int candidateCount = 0;
+        for (SQLiteStorageBackend shard : shards) {
+            if (candidateCount >= maxItems) {
+                break;
+            }
+            ExpiredItems shardItems = shard.removeExpired(time, maxItems - candidateCount);
+            removed.addAll(shardItems.getRemovedNames());
+            candidateCount += shardItems.getCandidateCount();
+        }
+        return new ExpiredItems(removed, candidateCount);
+    }
+
+    @Override
+    public void compact() {
+        shards.forEach(SQLiteStorageBackend::compact);
+    }
+
+    @Override
+    public void close() {
+        shards.forEach(SQLiteStorageBackend::close);
+    }
+}
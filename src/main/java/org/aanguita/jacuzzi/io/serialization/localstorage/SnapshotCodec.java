@@ -0,0 +1,262 @@
+package org.aanguita.jacuzzi.io.serialization.localstorage;
+
+import org.aanguita.jacuzzi.hash.CRC;
+import org.aanguita.jacuzzi.hash.CRCMismatchException;
+import org.aanguita.jacuzzi.io.serialization.localstorage.StorageBackend.Column;
+import org.aanguita.jacuzzi.io.serialization.localstorage.StorageBackend.ItemChange;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Binary snapshot format of the items of a local storage, for streaming export and import.
+ * <p>
+ * A snapshot starts with a magic number and a format version, followed by blocks of items. Each block is protected
+ * by a CRC (see CRC.addCRC): data length (4 bytes), CRC length (4 bytes), data and CRC. The data of a block is the
+ * item count (4 bytes) followed by the items. An empty block marks the end of the snapshot, so truncated snapshots
+ * are detected.
+ * <p>
+ * Each item is made of its full name (4 bytes length plus UTF-8 bytes), a byte with the mask of its non-null
+ * columns (one bit per column, in Column order) and the values of those columns: strings and blobs with a 4 bytes
+ * length prefix, integers and expirations as 8 bytes, and reals as 8 bytes doubles
+ */
+class SnapshotCodec {
+
+    private static final int MAGIC = 0x4A4C5353;
+
+    private static final int FORMAT_VERSION = 1;
+
+    private static final int CRC_BYTES = 4;
+
+    /**
+     * Blocks are closed once their data exceeds this size
+     */
+    private static final int BLOCK_SIZE = 256 * 1024;
+
+    /**
+     * Upper limit for the data size of a read block, to reject corrupted lengths before allocating them
+     */
+    private static final int MAX_BLOCK_DATA_SIZE = 256 * 1024 * 1024;
+
+    private final DataOutputStream out;
+
+    private final ByteArrayOutputStream block;
+
+    private final DataOutputStream blockOut;
+
+    private int blockItemCount;
+
+    private long itemCount;
+
+    private SnapshotCodec(OutputStream out) throws IOException {
+        this.out = new DataOutputStream(new BufferedOutputStream(out));
+        block = new ByteArrayOutputStream();
+        blockOut = new DataOutputStream(block);
+        blockItemCount = 0;
+        itemCount = 0L;
+        this.out.writeInt(MAGIC);
+        this.out.writeInt(FORMAT_VERSION);
+        startBlock();
+    }
+
+    /**
+     * Writes all the items of a backend, with a single scan. Expired items are skipped. The stream is flushed, but
+     * not closed
+     *
+     * @return the number of written items
+     * @throws IOException if the stream could not be written
+     */
+    static long export(StorageBackend backend, OutputStream out) throws IOException {
+        SnapshotCodec codec = new SnapshotCodec(out);
+        long time = System.currentTimeMillis();
+        try {
+            backend.scan("", (name, columns) -> {
+                Long expiration = (Long) columns.get(Column.EXPIRATION);
+                if (expiration != null && expiration <= time) {
+                    return;
+                }
+                try {
+                    codec.writeItem(name, columns);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        return codec.finish();
+    }
+
+    private void startBlock() throws IOException {
+        block.reset();
+        // placeholder for the item count
+        blockOut.writeInt(0);
+        blockItemCount = 0;
+    }
+
+    private void writeItem(String name, Map<Column, Object> columns) throws IOException {
+        writeBytes(blockOut, name.getBytes(StandardCharsets.UTF_8));
+        int mask = 0;
+        for (Column column : Column.values()) {
+            if (columns.get(column) != null) {
+                mask |= 1 << column.ordinal();
+            }
+        }
+        blockOut.writeByte(mask);
+        for (Column column : Column.values()) {
+            Object value = columns.get(column);
+            if (value == null) {
+                continue;
+            }
+            switch (column) {
+                case STRING:
+                    writeBytes(blockOut, ((String) value).getBytes(StandardCharsets.UTF_8));
+                    break;
+                case INTEGER:
+                case EXPIRATION:
+                    blockOut.writeLong(((Number) value).longValue());
+                    break;
+                case REAL:
+                    blockOut.writeDouble(((Number) value).doubleValue());
+                    break;
+                case BLOB:
+                    writeBytes(blockOut, (byte[]) value);
+                    break;
+            }
+        }
+        blockItemCount++;
+        itemCount++;
+        if (block.size() >= BLOCK_SIZE) {
+            writeBlock();
+            startBlock();
+        }
+    }
+
+    private void writeBlock() throws IOException {
+        byte[] data = block.toByteArray();
+        data[0] = (byte) (blockItemCount >>> 24);
+        data[1] = (byte) (blockItemCount >>> 16);
+        data[2] = (byte) (blockItemCount >>> 8);
+        data[3] = (byte) blockItemCount;
+        out.write(CRC.addCRC(data, CRC_BYTES, true));
+    }
+
+    private long finish() throws IOException {
+        if (blockItemCount > 0) {
+            writeBlock();
+            startBlock();
+        }
+        // end mark
+        writeBlock();
+        out.flush();
+        return itemCount;
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Reads a snapshot, handing its items in batches. Each item is given as a change that fully replaces any
+     * previous item of the same name
+     *
+     * @param in            stream with the snapshot. It is not closed
+     * @param batchSize     number of items of each batch (the last one can be smaller)
+     * @param batchConsumer receives each batch of items, indexed by full name
+     * @return the number of read items
+     * @throws IOException if the stream could not be read, or it does not contain a valid snapshot
+     */
+    static long importItems(InputStream in, int batchSize, Consumer<Map<String, ItemChange>> batchConsumer) throws IOException {
+        DataInputStream dataIn = new DataInputStream(new BufferedInputStream(in));
+        if (dataIn.readInt() != MAGIC) {
+            throw new IOException("Not a local storage snapshot");
+        }
+        int formatVersion = dataIn.readInt();
+        if (formatVersion != FORMAT_VERSION) {
+            throw new IOException("Unsupported local storage snapshot format version: " + formatVersion);
+        }
+        long itemCount = 0L;
+        Map<String, ItemChange> batch = new LinkedHashMap<>();
+        while (true) {
+            DataInputStream blockIn = new DataInputStream(new ByteArrayInputStream(readBlock(dataIn)));
+            int blockItemCount = blockIn.readInt();
+            if (blockItemCount == 0) {
+                break;
+            }
+            for (int i = 0; i < blockItemCount; i++) {
+                String name = new String(readBytes(blockIn), StandardCharsets.UTF_8);
+                batch.put(name, readItem(blockIn));
+                itemCount++;
+                if (batch.size() >= batchSize) {
+                    batchConsumer.accept(batch);
+                    batch = new LinkedHashMap<>();
+                }
+            }
+        }
+        if (!batch.isEmpty()) {
+            batchConsumer.accept(batch);
+        }
+        return itemCount;
+    }
+
+    private static byte[] readBlock(DataInputStream in) throws IOException {
+        int dataLength = in.readInt();
+        int crcLength = in.readInt();
+        if (dataLength < 4 || dataLength > MAX_BLOCK_DATA_SIZE || crcLength != CRC_BYTES) {
+            throw new IOException("Corrupted local storage snapshot block");
+        }
+        byte[] record = new byte[8 + dataLength + crcLength];
+        ByteArrayOutputStream header = new ByteArrayOutputStream(8);
+        DataOutputStream headerOut = new DataOutputStream(header);
+        headerOut.writeInt(dataLength);
+        headerOut.writeInt(crcLength);
+        System.arraycopy(header.toByteArray(), 0, record, 0, 8);
+        in.readFully(record, 8, dataLength + crcLength);
+        try {
+            return CRC.extractDataWithCRC(record);
+        } catch (CRCMismatchException e) {
+            throw new IOException("Corrupted local storage snapshot block (CRC mismatch)");
+        }
+    }
+
+    private static ItemChange readItem(DataInputStream in) throws IOException {
+        ItemChange change = new ItemChange().markRemoved();
+        int mask = in.readUnsignedByte();
+        for (Column column : Column.values()) {
+            if ((mask & (1 << column.ordinal())) == 0) {
+                change.setColumn(column, null);
+                continue;
+            }
+            switch (column) {
+                case STRING:
+                    change.setColumn(column, new String(readBytes(in), StandardCharsets.UTF_8));
+                    break;
+                case INTEGER:
+                case EXPIRATION:
+                    change.setColumn(column, in.readLong());
+                    break;
+                case REAL:
+                    change.setColumn(column, in.readDouble());
+                    break;
+                case BLOB:
+                    change.setColumn(column, readBytes(in));
+                    break;
+            }
+        }
+        return change;
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_BLOCK_DATA_SIZE) {
+            throw new IOException("Corrupted local storage snapshot item");
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+}
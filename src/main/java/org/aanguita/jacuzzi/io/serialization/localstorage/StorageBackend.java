@@ -0,0 +1,206 @@
+package org.aanguita.jacuzzi.io.serialization.localstorage;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.function.BiConsumer;
+
+/**
+ * Storage of the items of a local storage. A backend stores, for each item name, a fixed set of typed columns. The
+ * local storage is in charge of converting its typed values to and from these columns, and of caching them.
+ * <p>
+ * Item names include their categories, encoded as prefixes ended by CATEGORY_SEPARATOR. Backends must be able to
+ * list the items of a category in insertion order, and the distinct categories under a given one.
+ * <p>
+ * Implementations must be thread safe
+ */
+public interface StorageBackend {
+
+    String CATEGORY_SEPARATOR = "@/-CAT-/@";
+
+    /**
+     * Columns of an item. Their values are String, Long, Double, byte[] and Long respectively (or null)
+     */
+    enum Column {
+        STRING,
+        INTEGER,
+        REAL,
+        BLOB,
+        /**
+         * Time (in millis since the epoch) at which the item expires (null if it never expires)
+         */
+        EXPIRATION
+    }
+
+    /**
+     * Changes to a single item: an optional removal followed by a set of column values. Columns not included in
+     * the change keep their previous values (or null, for new or removed items)
+     */
+    final class ItemChange {
+
+        private boolean remove;
+
+        private final Map<Column, Object> columns;
+
+        public ItemChange() {
+            remove = false;
+            columns = new EnumMap<>(Column.class);
+        }
+
+        public boolean isRemove() {
+            return remove;
+        }
+
+        public Map<Column, Object> getColumns() {
+            return Collections.unmodifiableMap(columns);
+        }
+
+        public ItemChange setColumn(Column column, Object value) {
+            columns.put(column, value);
+            return this;
+        }
+
+        public ItemChange markRemoved() {
+            remove = true;
+            columns.clear();
+            return this;
+        }
+
+        /**
+         * Applies a newer change on top of this one
+         */
+        void mergeNewer(ItemChange newer) {
+            if (newer.remove) {
+                markRemoved();
+            }
+            columns.putAll(newer.columns);
+        }
+    }
+
+    /**
+     * Result of the removal of a batch of expired items
+     */
+    final class ExpiredItems {
+
+        private final List<String> removedNames;
+
+        private final int candidateCount;
+
+        public ExpiredItems(List<String> removedNames, int candidateCount) {
+            this.removedNames = removedNames;
+            this.candidateCount = candidateCount;
+        }
+
+        /**
+         * Full names of the removed items
+         */
+        public List<String> getRemovedNames() {
+            return removedNames;
+        }
+
+        /**
+         * Number of expired items found, including those not removed because they were modified concurrently. Fewer
+         * candidates than the requested max items means that no more expired items remain
+         */
+        public int getCandidateCount() {
+            return candidateCount;
+        }
+    }
+
+    /**
+     * Extracts the category prefix of a full item name (empty if the item has no categories)
+     */
+    static String categoryOf(String name) {
+        int index = name.lastIndexOf(CATEGORY_SEPARATOR);
+        return index >= 0 ? name.substring(0, index + CATEGORY_SEPARATOR.length()) : "";
+    }
+
+    String getPath();
+
+    String getVersion();
+
+    Date getCreationDate();
+
+    int itemCount();
+
+    boolean contains(String name);
+
+    /**
+     * Reads the columns of an item
+     *
+     * @param name full name of the item
+     * @return the values of all the columns of the item, or null if the item does not exist
+     */
+    Map<Column, Object> read(String name);
+
+    /**
+     * Reads the columns of several items
+     *
+     * @param names full names of the items
+     * @return the columns of the existing items, indexed by name
+     */
+    Map<String, Map<Column, Object>> read(Collection<String> names);
+
+    /**
+     * Applies a group of changes atomically. Items are created as needed
+     *
+     * @param changes changes to apply, indexed by full item name
+     */
+    void write(Map<String, ItemChange> changes);
+
+    /**
+     * Removes all items
+     */
+    void clear();
+
+    /**
+     * Retrieves the full names of the items of a category (items of its sub-categories are not included)
+     *
+     * @param category category prefix (empty for items without category)
+     * @return the names of the items of the category, in insertion order
+     */
+    List<String> names(String category);
+
+    /**
+     * Iterates over the full names of the items of a category, in insertion order, without loading all of them at
+     * once. Items added or removed during the iteration may or may not be reflected
+     */
+    Iterator<String> nameIterator(String category);
+
+    /**
+     * Retrieves the categories nested in a given one, at any depth
+     *
+     * @param category category prefix (empty for the top level)
+     * @return the category prefixes of all items in sub-categories of the given category
+     */
+    Set<String> subCategories(String category);
+
+    /**
+     * Reads all the items of a category and its sub-categories with a single sequential pass
+     *
+     * @param category category prefix (empty for all items)
+     * @param consumer receives the full name and the columns of each item
+     */
+    void scan(String category, BiConsumer<String, Map<Column, Object>> consumer);
+
+    /**
+     * Removes a batch of expired items. Items whose expiration is modified concurrently are not removed
+     *
+     * @param time     items expiring at or before this time are removed
+     * @param maxItems max number of expired items looked up
+     * @return the removed items, and the number of expired items found
+     */
+    ExpiredItems removeExpired(long time, int maxItems);
+
+    /**
+     * Reclaims the storage space left by removed and overwritten items. Implementations should keep the time
+     * during which readers are blocked short
+     *
+     * @throws IOException if the storage could not be compacted
+     */
+    void compact() throws IOException;
+
+    /**
+     * Releases the resources held by this backend. Backends are not required to support further use after this
+     */
+    void close();
+}
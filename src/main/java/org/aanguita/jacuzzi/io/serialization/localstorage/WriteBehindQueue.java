@@ -0,0 +1,251 @@
+package org.aanguita.jacuzzi.io.serialization.localstorage;
+
+import org.aanguita.jacuzzi.concurrency.timer.Timer;
+import org.aanguita.jacuzzi.concurrency.timer.TimerAction;
+import org.aanguita.jacuzzi.io.serialization.localstorage.StorageBackend.Column;
+import org.aanguita.jacuzzi.io.serialization.localstorage.StorageBackend.ItemChange;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+/**
+ * Queue of pending item writes of a local storage in write-behind mode. Writes to the same item are merged, and
+ * pending writes are handed to a flusher in a single group periodically after a given delay, or in the background
+ * once the max pending items is reached. Writers reaching the max pending items only wait if a flush is already
+ * running, so the queue does not grow without bounds while the database is slower than the writers.
+ * <p>
+ * Flushes are serialized, so groups reach the database in the same order they were queued. A failed group is put
+ * back in the queue, below any newer write of the same items. Once closed, writes go directly to the flusher
+ */
+class WriteBehindQueue implements TimerAction {
+
+    private final int maxPendingItems;
+
+    private final Consumer<Map<String, ItemChange>> flusher;
+
+    private final FlushErrorHandler flushErrorHandler;
+
+    private final Timer timer;
+
+    /**
+     * Runs the flushes requested upon reaching the max pending items
+     */
+    private final ExecutorService flushExecutor;
+
+    /**
+     * A flush has been requested and has not started yet
+     */
+    private boolean flushRequested;
+
+    private boolean closed;
+
+    private LinkedHashMap<String, ItemChange> pendingItems;
+
+    /**
+     * Items currently being flushed (empty if there is no flush in progress)
+     */
+    private Map<String, ItemChange> flushingItems;
+
+    /**
+     * Lock for serializing flushes
+     */
+    private final Object flushLock;
+
+    WriteBehindQueue(int maxPendingItems, long flushDelay, Consumer<Map<String, ItemChange>> flusher, FlushErrorHandler flushErrorHandler) {
+        if (maxPendingItems < 1) {
+            throw new IllegalArgumentException("Max pending items must be positive, received " + maxPendingItems);
+        }
+        if (flushDelay <= 0L) {
+            throw new IllegalArgumentException("Flush delay must be positive, received " + flushDelay);
+        }
+        this.maxPendingItems = maxPendingItems;
+        this.flusher = flusher;
+        this.flushErrorHandler = flushErrorHandler;
+        pendingItems = new LinkedHashMap<>();
+        flushingItems = new LinkedHashMap<>();
+        flushLock = new Object();
+        flushExecutor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "LocalStorage.WriteBehindQueue/Flush");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flushRequested = false;
+        closed = false;
+        timer = new Timer(flushDelay, this, "LocalStorage.WriteBehindQueue");
+    }
+
+    void write(String name, Column column, Object value) {
+        enqueue(name, change -> change.setColumn(column, value));
+    }
+
+    void remove(String name) {
+        enqueue(name, ItemChange::markRemoved);
+    }
+
+    private void enqueue(String name, Consumer<ItemChange> update) {
+        synchronized (this) {
+            if (!closed) {
+                update.accept(getItemChange(name));
+                if (pendingItems.size() >= maxPendingItems) {
+                    requestFlush();
+                    awaitRunningFlush();
+                }
+                return;
+            }
+        }
+        // the queue was closed meanwhile -> the change goes directly to the database
+        ItemChange change = new ItemChange();
+        update.accept(change);
+        flusher.accept(Collections.singletonMap(name, change));
+    }
+
+    /**
+     * Requests a flush in the background, unless one is already requested. Must be invoked holding this monitor
+     */
+    private void requestFlush() {
+        if (!flushRequested) {
+            flushRequested = true;
+            flushExecutor.execute(() -> {
+                synchronized (this) {
+                    flushRequested = false;
+                }
+                flush();
+            });
+        }
+    }
+
+    /**
+     * Waits until the running flush (if any) ends. Must be invoked holding this monitor
+     */
+    private void awaitRunningFlush() {
+        boolean interrupted = false;
+        while (!flushingItems.isEmpty()) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private ItemChange getItemChange(String name) {
+        if (!pendingItems.containsKey(name)) {
+            pendingItems.put(name, new ItemChange());
+        }
+        return pendingItems.get(name);
+    }
+
+    /**
+     * Checks if an item has writes that have not yet reached the database (queued or being flushed)
+     */
+    synchronized boolean isPending(String name) {
+        return pendingItems.containsKey(name) || flushingItems.containsKey(name);
+    }
+
+    synchronized boolean hasPendingItems() {
+        return !pendingItems.isEmpty() || !flushingItems.isEmpty();
+    }
+
+    synchronized int pendingItemCount() {
+        return pendingItems.size();
+    }
+
+    /**
+     * Discards all pending writes
+     */
+    void discard() {
+        synchronized (flushLock) {
+            synchronized (this) {
+                pendingItems = new LinkedHashMap<>();
+            }
+        }
+    }
+
+    /**
+     * Flushes all pending writes. Returns once they have been handed to the flusher (successfully or not)
+     *
+     * @return true if the pending writes were successfully flushed, false otherwise
+     */
+    boolean flush() {
+        synchronized (flushLock) {
+            Map<String, ItemChange> flushedItems = takePendingItems();
+            if (flushedItems.isEmpty()) {
+                return true;
+            }
+            try {
+                flusher.accept(flushedItems);
+                return true;
+            } catch (RuntimeException e) {
+                restorePendingItems(flushedItems);
+                if (flushErrorHandler != null) {
+                    flushErrorHandler.flushFailed(flushedItems.keySet(), e);
+                }
+                return false;
+            } finally {
+                endFlush();
+            }
+        }
+    }
+
+    private synchronized Map<String, ItemChange> takePendingItems() {
+        flushingItems = pendingItems;
+        pendingItems = new LinkedHashMap<>();
+        return flushingItems;
+    }
+
+    private synchronized void endFlush() {
+        flushingItems = new LinkedHashMap<>();
+        notifyAll();
+    }
+
+    private synchronized void restorePendingItems(Map<String, ItemChange> failedItems) {
+        Map<String, ItemChange> newerItems = pendingItems;
+        pendingItems = new LinkedHashMap<>(failedItems);
+        for (Map.Entry<String, ItemChange> newerItem : newerItems.entrySet()) {
+            if (pendingItems.containsKey(newerItem.getKey())) {
+                pendingItems.get(newerItem.getKey()).mergeNewer(newerItem.getValue());
+            } else {
+                pendingItems.put(newerItem.getKey(), newerItem.getValue());
+            }
+        }
+    }
+
+    @Override
+    public Long wakeUp(Timer timer) {
+        flush();
+        return null;
+    }
+
+    /**
+     * Flushes all pending writes and stops the periodic flushes. Later writes go directly to the flusher. If the
+     * flush fails, the queue is kept open (with its periodic flushes), so the close can be retried
+     *
+     * @return true if the pending writes were successfully flushed, false otherwise
+     */
+    boolean close() {
+        synchronized (flushLock) {
+            while (true) {
+                if (!flush()) {
+                    return false;
+                }
+                synchronized (this) {
+                    // writes queued during the flush must be flushed as well before closing
+                    if (pendingItems.isEmpty()) {
+                        closed = true;
+                        break;
+                    }
+                }
+            }
+        }
+        timer.stop();
+        flushExecutor.shutdown();
+        return true;
+    }
+}
@@ -1,14 +1,15 @@
 package org.aanguita.jacuzzi.io.xml;
 
+import org.aanguita.jacuzzi.files.FileReaderWriter;
 import org.aanguita.jacuzzi.hash.CRCMismatchException;
 import org.aanguita.jacuzzi.lists.tuple.Duple;
 
 import javax.xml.stream.*;
 import java.io.*;
 import java.net.URL;
+import java.nio.channels.Channels;
 import java.nio.file.Files;
 import java.nio.file.Paths;
-import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -42,7 +43,7 @@ public class XMLDom {
                 String newPath = backupPaths[0];
                 backupPaths = Arrays.copyOfRange(backupPaths, 1, backupPaths.length);
                 Duple<Element, List<String>> elementAndRepairedFiles = parseAndRepairBroken(newPath, backupPaths);
-                Files.copy(Paths.get(newPath), Paths.get(path), StandardCopyOption.REPLACE_EXISTING);
+                FileReaderWriter.copyAtomically(newPath, path);
                 elementAndRepairedFiles.element2.add(path);
                 return elementAndRepairedFiles;
             } else {
@@ -73,7 +74,7 @@ public class XMLDom {
                 String newPath = backupPaths[0];
                 backupPaths = Arrays.copyOfRange(backupPaths, 1, backupPaths.length);
                 Duple<Element, List<String>> elementAndRepairedFiles = parseWithCRCAndRepairBroken(newPath, backupPaths);
-                Files.copy(Paths.get(newPath), Paths.get(path), StandardCopyOption.REPLACE_EXISTING);
+                FileReaderWriter.copyAtomically(newPath, path);
                 elementAndRepairedFiles.element2.add(path);
                 return elementAndRepairedFiles;
             } else {
@@ -189,11 +190,13 @@ public class XMLDom {
         write(path, element, 0, backupPaths);
     }
 
+    /**
+     * Writes an element into a file atomically (see FileReaderWriter.writeAtomically). Backups are atomic copies of
+     * the written file, performed concurrently
+     */
     public static void write(String path, Element element, int hashLength, String... backupPaths) throws XMLStreamException, IOException {
         write(new File(path), element, hashLength);
-        for (String backupPath : backupPaths) {
-            write(new File(backupPath), element, hashLength);
-        }
+        FileReaderWriter.copyAtomically(path, backupPaths);
     }
 
     public static void write(File file, Element element) throws XMLStreamException, IOException {
@@ -201,7 +204,11 @@ public class XMLDom {
     }
 
     public static void write(File file, Element element, int hashLength) throws XMLStreamException, IOException {
-        write(new FileWriter(file), element, hashLength);
+        FileReaderWriter.writeAtomically(file.getPath(), channel -> {
+            Writer writer = new OutputStreamWriter(Channels.newOutputStream(channel));
+            write(writer, element, hashLength);
+            writer.flush();
+        });
     }
 
     public static void write(Writer stream, Element element) throws XMLStreamException {
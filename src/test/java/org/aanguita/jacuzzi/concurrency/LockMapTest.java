@@ -0,0 +1,54 @@
+package org.aanguita.jacuzzi.concurrency;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+
+public class LockMapTest {
+
+    @Test
+    public void testPerKey() {
+        LockMap<String> lockMap = new LockMap<>();
+        Assert.assertSame(lockMap.getLock("a"), lockMap.getLock("a"));
+        Assert.assertNotSame(lockMap.getLock("a"), lockMap.getLock("b"));
+        Assert.assertEquals(2, lockMap.size());
+        lockMap.removeLock("a");
+        Assert.assertEquals(1, lockMap.size());
+    }
+
+    @Test
+    public void testStriped() {
+        LockMap<Integer> lockMap = LockMap.striped(4);
+        for (int i = 0; i < 100; i++) {
+            Assert.assertSame(lockMap.getLock(i), lockMap.getLock(i));
+        }
+        Assert.assertEquals(4, lockMap.size());
+        Assert.assertSame(lockMap.getLock(1), lockMap.getLock(5));
+
+        List<Lock> locks = lockMap.getLocks(Arrays.asList(3, 2, 1, 0, 7, 6, 5, 4));
+        Assert.assertEquals(Arrays.asList(lockMap.getLock(0), lockMap.getLock(1), lockMap.getLock(2), lockMap.getLock(3)), locks);
+    }
+
+    @Test
+    public void testWeak() {
+        LockMap<String> lockMap = LockMap.weak();
+        Lock lock = lockMap.getLock("a");
+        Assert.assertSame(lock, lockMap.getLock("a"));
+        for (int i = 0; i < 1000; i++) {
+            lockMap.getLock("key" + i);
+        }
+        for (int i = 0; i < 1000; i++) {
+            lockMap.reclaimLock("key" + i);
+        }
+        // only the referenced lock survives
+        Assert.assertEquals(1, lockMap.size());
+        Assert.assertSame(lock, lockMap.getLock("a"));
+        // a reclaimed index gets a new lock
+        Lock newLock = lockMap.getLock("key0");
+        Assert.assertSame(newLock, lockMap.getLock("key0"));
+        Assert.assertEquals(2, lockMap.size());
+    }
+}
@@ -0,0 +1,62 @@
+package org.aanguita.jacuzzi.files;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermissions;
+
+/**
+ * tests
+ */
+public class FileReaderWriterTest {
+
+    @Test
+    public void testWriteAtomically() throws IOException {
+        Path tests = Paths.get("./etc/tests/atomic");
+        Files.createDirectories(tests);
+        FileUtil.cleanDirectory(tests);
+        String path = tests.resolve("data.bin").toString();
+
+        FileReaderWriter.writeBytes(path, new byte[]{1, 2, 3}, true);
+        Assert.assertArrayEquals(new byte[]{1, 2, 3}, FileReaderWriter.readBytes(path));
+
+        // a failing writer leaves the existing file untouched, and no temp files behind
+        try {
+            FileReaderWriter.writeAtomically(path, channel -> {
+                channel.write(ByteBuffer.wrap(new byte[]{9, 9}));
+                throw new IOException("failed write");
+            });
+            Assert.fail();
+        } catch (IOException e) {
+            Assert.assertEquals("failed write", e.getMessage());
+        }
+        Assert.assertArrayEquals(new byte[]{1, 2, 3}, FileReaderWriter.readBytes(path));
+        Assert.assertEquals(1, tests.toFile().list().length);
+
+        FileReaderWriter.writeAtomically(path, channel -> channel.write(ByteBuffer.wrap(new byte[]{4, 5})));
+        Assert.assertArrayEquals(new byte[]{4, 5}, FileReaderWriter.readBytes(path));
+
+        // the permissions of the replaced file are kept
+        if (Files.getFileAttributeView(Paths.get(path), PosixFileAttributeView.class) != null) {
+            Files.setPosixFilePermissions(Paths.get(path), PosixFilePermissions.fromString("rw-r--r--"));
+            FileReaderWriter.writeBytes(path, new byte[]{4, 5}, true);
+            Assert.assertEquals(PosixFilePermissions.fromString("rw-r--r--"), Files.getPosixFilePermissions(Paths.get(path)));
+        }
+
+        String backup1 = tests.resolve("data.bak1").toString();
+        String backup2 = tests.resolve("data.bak2").toString();
+        FileReaderWriter.writeBytes(backup1, new byte[]{7}, false);
+        FileReaderWriter.copyAtomically(path, backup1, backup2);
+        Assert.assertArrayEquals(new byte[]{4, 5}, FileReaderWriter.readBytes(backup1));
+        Assert.assertArrayEquals(new byte[]{4, 5}, FileReaderWriter.readBytes(backup2));
+        Assert.assertEquals(3, tests.toFile().list().length);
+
+        FileUtil.cleanDirectory(tests);
+    }
+}
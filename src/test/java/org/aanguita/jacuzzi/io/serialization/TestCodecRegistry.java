@@ -0,0 +1,213 @@
+package org.aanguita.jacuzzi.io.serialization;
+
+import org.aanguita.jacuzzi.lists.tuple.Duple;
+import org.aanguita.jacuzzi.lists.tuple.EightTuple;
+import org.aanguita.jacuzzi.lists.tuple.Triple;
+import org.aanguita.jacuzzi.maps.AutoKeyMap;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+
+/**
+ * CodecRegistry tests
+ */
+public class TestCodecRegistry {
+
+    private static class Point implements Serializable {
+
+        private final int x;
+
+        private final int y;
+
+        private Point(int x, int y) {
+            this.x = x;
+            this.y = y;
+        }
+    }
+
+    private static class LengthKeyGenerator implements AutoKeyMap.KeyGenerator<Integer, String, RuntimeException>, Serializable {
+
+        @Override
+        public Integer generateKey(String value) {
+            return value.length();
+        }
+    }
+
+    private static class AttributeHolder implements VersionedObject {
+
+        private final Map<String, Serializable> attributes;
+
+        private AttributeHolder(Map<String, Serializable> attributes) {
+            this.attributes = attributes;
+        }
+
+        @Override
+        public VersionStack getCurrentVersion() {
+            return new VersionStack("1.0");
+        }
+
+        @Override
+        public Map<String, Serializable> serialize() {
+            return attributes;
+        }
+
+        @Override
+        public void deserialize(String version, Map<String, Object> attributes, VersionStack parentVersions) {
+            this.attributes.clear();
+            for (Map.Entry<String, Object> entry : attributes.entrySet()) {
+                this.attributes.put(entry.getKey(), (Serializable) entry.getValue());
+            }
+        }
+    }
+
+    private static Map<String, Serializable> roundTrip(Map<String, Serializable> attributes) throws VersionedSerializationException, IOException {
+        byte[] data = VersionedObjectSerializer.serialize(new AttributeHolder(attributes), 2);
+        AttributeHolder holder = new AttributeHolder(new HashMap<>());
+        VersionedObjectSerializer.deserialize(holder, data);
+        return holder.attributes;
+    }
+
+    @Test
+    public void testBuiltInCodecs() throws VersionedSerializationException, IOException {
+        HashMap<String, Serializable> map = new HashMap<>();
+        map.put("list", new ArrayList<>(Arrays.asList(1, "two", 3L, null, TestSerializer.TestEnum.B)));
+        map.put("duple", new Duple<>("a", 2.5d));
+        map.put("triple", new Triple<>((short) 1, (byte) 2, true));
+        map.put("eight", new EightTuple<>(1, 2, 3, 4, 5, 6, 7, "8"));
+        map.put("bytes", new byte[]{4, 5});
+        map.put(null, new HashMap<>(Collections.singletonMap(1, 1.5f)));
+        AutoKeyMap<Integer, String, RuntimeException> autoKeyMap = new AutoKeyMap<>(new LengthKeyGenerator());
+        autoKeyMap.put("abc");
+        autoKeyMap.put("de");
+
+        CodecRegistry.register(LengthKeyGenerator.class, new Codec<LengthKeyGenerator>() {
+            @Override
+            public void write(LengthKeyGenerator value, SerializerWriter writer, CodecContext context) {
+            }
+
+            @Override
+            public LengthKeyGenerator read(SerializerReader reader, CodecContext context) {
+                return new LengthKeyGenerator();
+            }
+        });
+        try {
+            Map<String, Serializable> attributes = new HashMap<>();
+            attributes.put("map", map);
+            attributes.put("autoKeyMap", autoKeyMap);
+            Assert.assertTrue(CodecRegistry.canWrite(map));
+            Assert.assertTrue(CodecRegistry.canWrite(autoKeyMap));
+
+            Map<String, Serializable> read = roundTrip(attributes);
+            HashMap<?, ?> readMap = (HashMap<?, ?>) read.get("map");
+            Assert.assertEquals(map.get("list"), readMap.get("list"));
+            Assert.assertEquals(map.get("duple"), readMap.get("duple"));
+            Assert.assertEquals(map.get("triple"), readMap.get("triple"));
+            Assert.assertEquals(map.get("eight"), readMap.get("eight"));
+            Assert.assertEquals(map.get(null), readMap.get(null));
+            Assert.assertArrayEquals(new byte[]{4, 5}, (byte[]) readMap.get("bytes"));
+            AutoKeyMap<Integer, String, RuntimeException> readAutoKeyMap = (AutoKeyMap<Integer, String, RuntimeException>) read.get("autoKeyMap");
+            Assert.assertEquals(2, readAutoKeyMap.size());
+            Assert.assertEquals("abc", readAutoKeyMap.get(3));
+            Assert.assertEquals(2, (int) readAutoKeyMap.put("xy"));
+
+            // much more compact than java serialization
+            Assert.assertTrue(VersionedObjectSerializer.serialize(new AttributeHolder(attributes)).length < Serializer.serializeObject(map).length);
+        } finally {
+            CodecRegistry.unregister(LengthKeyGenerator.class);
+        }
+    }
+
+    @Test
+    public void testFallback() throws VersionedSerializationException, IOException {
+        // values without codec make the whole attribute fall back to java serialization
+        ArrayList<Serializable> list = new ArrayList<>(Arrays.asList(1, new Point(2, 3)));
+        Assert.assertFalse(CodecRegistry.canWrite(list));
+        Point point = (Point) ((ArrayList<?>) roundTrip(Collections.singletonMap("list", list)).get("list")).get(1);
+        Assert.assertEquals(3, point.y);
+
+        CodecRegistry.register(Point.class, new Codec<Point>() {
+            @Override
+            public void write(Point value, SerializerWriter writer, CodecContext context) {
+                writer.write(value.x).write(value.y);
+            }
+
+            @Override
+            public Point read(SerializerReader reader, CodecContext context) {
+                return new Point(reader.readIntValue(), reader.readIntValue());
+            }
+        });
+        try {
+            Assert.assertTrue(CodecRegistry.canWrite(list));
+            for (int i = 0; i < 20000; i++) {
+                list.add(new Point(i, -i));
+            }
+            byte[] data = VersionedObjectSerializer.serialize(new AttributeHolder(Collections.singletonMap("list", list)));
+            point = (Point) ((ArrayList<?>) roundTrip(Collections.singletonMap("list", list)).get("list")).get(20001);
+            Assert.assertEquals(-19999, point.y);
+
+            // values larger than the streaming buffer
+            String path = "codecRegistry.vso";
+            VersionedObjectSerializer.serialize(new AttributeHolder(Collections.singletonMap("list", list)), path);
+            Assert.assertArrayEquals(data, Files.readAllBytes(Paths.get(path)));
+            LazyVersionedObjectPreview preview = new LazyVersionedObjectPreview(path);
+            Assert.assertEquals(list.size(), ((ArrayList<?>) preview.getAttribute("list")).size());
+            Files.delete(Paths.get(path));
+
+            // codecs are required for deserializing
+            CodecRegistry.unregister(Point.class);
+            try {
+                VersionedObjectSerializer.deserialize(new AttributeHolder(new HashMap<>()), data);
+                Assert.fail();
+            } catch (VersionedSerializationException e) {
+                Assert.assertEquals(VersionedSerializationException.Reason.CLASS_NOT_FOUND, e.reason);
+            }
+        } finally {
+            CodecRegistry.unregister(Point.class);
+        }
+    }
+
+    @Test
+    public void testPrimitiveArrays() throws VersionedSerializationException, IOException {
+        int[] sorted = new int[500];
+        int[] random = new int[500];
+        Random rnd = new Random(3);
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = i * 3;
+            random[i] = rnd.nextInt();
+        }
+        Map<String, Serializable> attributes = new HashMap<>();
+        attributes.put("sorted", sorted);
+        attributes.put("random", random);
+        attributes.put("shorts", new short[]{1, 2, 3});
+        attributes.put("longs", new long[]{Long.MIN_VALUE, Long.MAX_VALUE});
+        attributes.put("floats", new float[]{0.5f});
+        attributes.put("doubles", new double[0]);
+        attributes.put("booleans", new boolean[]{true, false, true});
+        attributes.put("nested", new ArrayList<>(Collections.singletonList(new int[]{4, 5})));
+        attributes.put("last", "end");
+
+        byte[] data = VersionedObjectSerializer.serialize(new AttributeHolder(attributes));
+        // the sorted array is delta encoded, the random one is not
+        Assert.assertTrue(data.length < 3000);
+        AttributeHolder holder = new AttributeHolder(new HashMap<>());
+        VersionedObjectSerializer.deserialize(holder, data);
+        Assert.assertArrayEquals(sorted, (int[]) holder.attributes.get("sorted"));
+        Assert.assertArrayEquals(random, (int[]) holder.attributes.get("random"));
+        Assert.assertArrayEquals(new short[]{1, 2, 3}, (short[]) holder.attributes.get("shorts"));
+        Assert.assertArrayEquals(new long[]{Long.MIN_VALUE, Long.MAX_VALUE}, (long[]) holder.attributes.get("longs"));
+        Assert.assertArrayEquals(new float[]{0.5f}, (float[]) holder.attributes.get("floats"), 0f);
+        Assert.assertEquals(0, ((double[]) holder.attributes.get("doubles")).length);
+        Assert.assertArrayEquals(new boolean[]{true, false, true}, (boolean[]) holder.attributes.get("booleans"));
+        Assert.assertArrayEquals(new int[]{4, 5}, (int[]) ((ArrayList<?>) holder.attributes.get("nested")).get(0));
+
+        // all array types can be skipped by the lazy preview
+        LazyVersionedObjectPreview preview = new LazyVersionedObjectPreview(data);
+        Assert.assertEquals("end", preview.getAttribute("last"));
+        Assert.assertArrayEquals(sorted, (int[]) preview.getAttribute("sorted"));
+    }
+}
@@ -4,6 +4,7 @@ import org.junit.Assert;
 import org.junit.Test;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 /**
@@ -80,4 +81,89 @@ public class TestSerializer {
         Assert.assertEquals(list, Serializer.deserializeListFromReadableString(serString));
         Assert.assertEquals(list, Serializer.deserializeListFromReadableString(serString2));
     }
+
+    @Test
+    public void testArrays() {
+        short[] shorts = {Short.MIN_VALUE, -1, 0, 7, Short.MAX_VALUE};
+        int[] ints = {Integer.MIN_VALUE, Integer.MAX_VALUE, -5, 0, 3, 300000};
+        long[] longs = {Long.MAX_VALUE, Long.MIN_VALUE, -1L, 1L << 40};
+        float[] floats = {-0.0f, 1.5f, Float.NaN, Float.MAX_VALUE};
+        double[] doubles = {Double.MIN_VALUE, -2.25d, Double.NEGATIVE_INFINITY};
+        boolean[] booleans = {true, false, false, true, true, false, true, false, true, true, false, false, true};
+
+        byte[] data = FragmentedByteArray.addFinal(
+                Serializer.serialize(shorts), Serializer.serialize(ints), Serializer.serialize(longs),
+                Serializer.serialize(floats), Serializer.serialize(doubles), Serializer.serialize(booleans),
+                Serializer.serialize((int[]) null),
+                Serializer.serializeDelta(shorts), Serializer.serializeDelta(ints), Serializer.serializeDelta(longs),
+                Serializer.serializeDelta(floats), Serializer.serializeDelta(doubles), Serializer.serializeDelta((long[]) null));
+        MutableOffset offset = new MutableOffset();
+        Assert.assertArrayEquals(shorts, Serializer.deserializeShortArray(data, offset));
+        Assert.assertArrayEquals(ints, Serializer.deserializeIntArray(data, offset));
+        Assert.assertArrayEquals(longs, Serializer.deserializeLongArray(data, offset));
+        Assert.assertArrayEquals(floats, Serializer.deserializeFloatArray(data, offset), 0f);
+        Assert.assertArrayEquals(doubles, Serializer.deserializeDoubleArray(data, offset), 0d);
+        Assert.assertArrayEquals(booleans, Serializer.deserializeBooleanArray(data, offset));
+        Assert.assertNull(Serializer.deserializeIntArray(data, offset));
+        Assert.assertArrayEquals(shorts, Serializer.deserializeShortArrayDelta(data, offset));
+        Assert.assertArrayEquals(ints, Serializer.deserializeIntArrayDelta(data, offset));
+        Assert.assertArrayEquals(longs, Serializer.deserializeLongArrayDelta(data, offset));
+        Assert.assertArrayEquals(floats, Serializer.deserializeFloatArrayDelta(data, offset), 0f);
+        Assert.assertArrayEquals(doubles, Serializer.deserializeDoubleArrayDelta(data, offset), 0d);
+        Assert.assertNull(Serializer.deserializeLongArrayDelta(data, offset));
+        Assert.assertEquals(data.length, offset.value());
+
+        // fixed-width values are big-endian, as the scalar serialize methods
+        Assert.assertArrayEquals(FragmentedByteArray.addFinal(Serializer.serialize((Integer) 2), Serializer.serialize(-5), Serializer.serialize(7)), Serializer.serialize(new int[]{-5, 7}));
+        Assert.assertEquals(1 + 4 + 2, Serializer.serialize(booleans).length);
+
+        // sorted arrays take around one byte per element with delta encoding
+        long[] timestamps = new long[1000];
+        for (int i = 0; i < timestamps.length; i++) {
+            timestamps[i] = 1500000000000L + i * 10;
+        }
+        byte[] delta = Serializer.serializeDelta(timestamps);
+        Assert.assertTrue(delta.length < timestamps.length + 10);
+        Assert.assertArrayEquals(timestamps, Serializer.deserializeLongArrayDelta(delta, new MutableOffset()));
+
+        try {
+            Serializer.deserializeIntArray(Serializer.serialize((Integer) 1000), new MutableOffset());
+            Assert.fail();
+        } catch (IndexOutOfBoundsException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testVarInts() throws Exception {
+        byte[] data = FragmentedByteArray.addFinal(
+                Serializer.serializeVarInt(0), Serializer.serializeVarInt(300), Serializer.serializeVarInt(-1),
+                Serializer.serializeVarLong(Long.MAX_VALUE), Serializer.serializeZigZag(-64), Serializer.serializeZigZag(Integer.MIN_VALUE),
+                Serializer.serializeZigZag(-1L), Serializer.serializeZigZag(Long.MIN_VALUE),
+                Serializer.serializeCompact("qw?"), Serializer.serializeCompact(""), Serializer.serializeCompact((String) null),
+                Serializer.serializeCompact(new byte[]{4, -4}), Serializer.serializeCompact((byte[]) null),
+                Serializer.serializeObjectCompact(new ArrayList<>(Collections.singletonList("x"))));
+        MutableOffset offset = new MutableOffset();
+        Assert.assertEquals(0, Serializer.deserializeVarInt(data, offset));
+        Assert.assertEquals(300, Serializer.deserializeVarInt(data, offset));
+        Assert.assertEquals(-1, Serializer.deserializeVarInt(data, offset));
+        Assert.assertEquals(Long.MAX_VALUE, Serializer.deserializeVarLong(data, offset));
+        Assert.assertEquals(-64, Serializer.deserializeZigZagInt(data, offset));
+        Assert.assertEquals(Integer.MIN_VALUE, Serializer.deserializeZigZagInt(data, offset));
+        Assert.assertEquals(-1L, Serializer.deserializeZigZagLong(data, offset));
+        Assert.assertEquals(Long.MIN_VALUE, Serializer.deserializeZigZagLong(data, offset));
+        Assert.assertEquals("qw?", Serializer.deserializeCompactString(data, offset));
+        Assert.assertEquals("", Serializer.deserializeCompactString(data, offset));
+        Assert.assertNull(Serializer.deserializeCompactString(data, offset));
+        Assert.assertArrayEquals(new byte[]{4, -4}, Serializer.deserializeCompactBytes(data, offset));
+        Assert.assertNull(Serializer.deserializeCompactBytes(data, offset));
+        Assert.assertEquals(Collections.singletonList("x"), Serializer.deserializeObjectCompact(data, offset));
+        Assert.assertEquals(data.length, offset.value());
+
+        // small values take less space than with fixed-width encodings
+        Assert.assertArrayEquals(new byte[]{(byte) 0xAC, 0x02}, Serializer.serializeVarInt(300));
+        Assert.assertArrayEquals(new byte[]{0x7F}, Serializer.serializeZigZag(-64));
+        Assert.assertEquals(5, Serializer.serializeVarInt(-1).length);
+        Assert.assertEquals(4, Serializer.serializeCompact("qw?").length);
+    }
 }
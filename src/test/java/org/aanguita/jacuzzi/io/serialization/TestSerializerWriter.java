@@ -0,0 +1,161 @@
+package org.aanguita.jacuzzi.io.serialization;
+
+import org.aanguita.jacuzzi.hash.CRC;
+import org.aanguita.jacuzzi.hash.CRCMismatchException;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * SerializerWriter and SerializerReader unit tests
+ */
+public class TestSerializerWriter {
+
+    @Test
+    public void testIdenticalOutput() throws Exception {
+        ArrayList<String> list = new ArrayList<>(Arrays.asList("a", "b"));
+        byte[] expected = FragmentedByteArray.addFinal(
+                Serializer.serialize("héllo"),
+                Serializer.serialize((String) null),
+                Serializer.serialize((Boolean) null),
+                Serializer.serialize(true),
+                Serializer.serialize((Byte) null),
+                Serializer.serialize((byte) -3),
+                Serializer.serialize(new Byte((byte) 4)),
+                Serializer.serialize((short) -300),
+                Serializer.serialize(new Short((short) 7)),
+                Serializer.serialize(-123456),
+                Serializer.serialize((Integer) null),
+                Serializer.serialize(new Integer(99)),
+                Serializer.serialize(-5L),
+                Serializer.serialize(new Long(Long.MAX_VALUE)),
+                Serializer.serialize(0.25f),
+                Serializer.serialize(new Float(-1.5f)),
+                Serializer.serialize((Float) null),
+                Serializer.serialize(3.75d),
+                Serializer.serialize(new Double(-7.5d)),
+                Serializer.serialize(TestSerializer.TestEnum.C),
+                Serializer.serialize(new byte[]{1, 2, 3}),
+                Serializer.serialize((byte[]) null),
+                Serializer.serializeObject(list));
+
+        // small initial capacity, so the buffer grows several times
+        SerializerWriter writer = new SerializerWriter(4);
+        writer.write("héllo")
+                .write((String) null)
+                .write((Boolean) null)
+                .write(true)
+                .write((Byte) null)
+                .write((byte) -3)
+                .write(new Byte((byte) 4))
+                .write((short) -300)
+                .write(new Short((short) 7))
+                .write(-123456)
+                .write((Integer) null)
+                .write(new Integer(99))
+                .write(-5L)
+                .write(new Long(Long.MAX_VALUE))
+                .write(0.25f)
+                .write(new Float(-1.5f))
+                .write((Float) null)
+                .write(3.75d)
+                .write(new Double(-7.5d))
+                .write(TestSerializer.TestEnum.C)
+                .write(new byte[]{1, 2, 3})
+                .write((byte[]) null)
+                .writeObject(list);
+        Assert.assertArrayEquals(expected, writer.toByteArray());
+
+        SerializerReader reader = new SerializerReader(ByteBuffer.wrap(expected));
+        Assert.assertEquals("héllo", reader.readString());
+        Assert.assertNull(reader.readString());
+        Assert.assertNull(reader.readBoolean());
+        Assert.assertTrue(reader.readBooleanValue());
+        Assert.assertNull(reader.readByte());
+        Assert.assertEquals(-3, reader.readByteValue());
+        Assert.assertEquals(new Byte((byte) 4), reader.readByte());
+        Assert.assertEquals(-300, reader.readShortValue());
+        Assert.assertEquals(new Short((short) 7), reader.readShort());
+        Assert.assertEquals(-123456, reader.readIntValue());
+        Assert.assertNull(reader.readInt());
+        Assert.assertEquals(new Integer(99), reader.readInt());
+        Assert.assertEquals(-5L, reader.readLongValue());
+        Assert.assertEquals(new Long(Long.MAX_VALUE), reader.readLong());
+        Assert.assertEquals(0.25f, reader.readFloatValue(), 0f);
+        Assert.assertEquals(new Float(-1.5f), reader.readFloat());
+        Assert.assertNull(reader.readFloat());
+        Assert.assertEquals(3.75d, reader.readDoubleValue(), 0d);
+        Assert.assertEquals(new Double(-7.5d), reader.readDouble());
+        Assert.assertEquals(TestSerializer.TestEnum.C, reader.readEnum(TestSerializer.TestEnum.class));
+        Assert.assertArrayEquals(new byte[]{1, 2, 3}, reader.readBytes());
+        Assert.assertNull(reader.readBytes());
+        Assert.assertEquals(list, reader.readObject());
+        Assert.assertEquals(0, reader.remaining());
+
+        writer.clear();
+        Assert.assertEquals(0, writer.toByteArray().length);
+        writer.write(5);
+        Assert.assertArrayEquals(Serializer.serialize(5), writer.toByteArray());
+    }
+
+    @Test
+    public void testDirectBuffer() {
+        SerializerWriter writer = new SerializerWriter(ByteBuffer.allocateDirect(2));
+        writer.write("direct").write(12L);
+        Assert.assertArrayEquals(Serializer.addArrays(Serializer.serialize("direct"), Serializer.serialize(12L)), writer.toByteArray());
+        SerializerReader reader = new SerializerReader(writer.buffer());
+        Assert.assertEquals("direct", reader.readString());
+        Assert.assertEquals(12L, reader.readLongValue());
+    }
+
+    @Test
+    public void testCRC() throws CRCMismatchException {
+        byte[] data = "some data protected by a crc".getBytes();
+        for (int CRCBytes = 0; CRCBytes <= 9; CRCBytes++) {
+            byte[] expected = Serializer.addArrays(Serializer.serialize(data.length), Serializer.serialize(CRCBytes), data, originalCRC(data, CRCBytes));
+            Assert.assertArrayEquals(expected, CRC.addCRC(data, CRCBytes, true));
+
+            SerializerWriter writer = new SerializerWriter();
+            writer.write(7);
+            int recordPosition = CRC.startRecord(writer);
+            writer.writeRaw(data);
+            CRC.endRecord(writer, recordPosition, CRCBytes);
+            Assert.assertArrayEquals(Serializer.addArrays(Serializer.serialize(7), expected), writer.toByteArray());
+
+            SerializerReader reader = new SerializerReader(writer.toByteArray());
+            reader.skip(4);
+            SerializerReader record = CRC.readRecord(reader);
+            Assert.assertArrayEquals(data, record.readRaw(record.remaining()));
+            Assert.assertEquals(0, reader.remaining());
+        }
+
+        byte[] corrupted = CRC.addCRC(data, 4, true);
+        corrupted[10]++;
+        try {
+            CRC.extractDataWithCRC(corrupted);
+            Assert.fail();
+        } catch (CRCMismatchException e) {
+            // expected
+        }
+    }
+
+    /**
+     * CRC computation as originally implemented, with one CRC32 per chunk of 4 bytes
+     */
+    private static byte[] originalCRC(byte[] data, int CRCBytes) {
+        if (CRCBytes == 0) {
+            return new byte[0];
+        } else {
+            CRC32 crc32 = new CRC32();
+            crc32.update(data);
+            int bytesForCRC = Math.min(CRCBytes, 4);
+            byte[] crcData = Serializer.serialize(crc32.getValue());
+            crcData = Arrays.copyOfRange(crcData, crcData.length - bytesForCRC, crcData.length);
+            return Serializer.addArrays(crcData, originalCRC(Serializer.addArrays(data, crcData), CRCBytes - bytesForCRC));
+        }
+    }
+}
@@ -1,12 +1,21 @@
 package org.aanguita.jacuzzi.io.serialization;
 
+import org.aanguita.jacuzzi.hash.CRC;
 import org.junit.Assert;
 import org.junit.Test;
 
 import java.io.IOException;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * Versioned object tests
@@ -126,4 +135,409 @@ public class TestVersionedObject {
 
         System.out.println("END");
     }
+
+    @Test
+    public void testOriginalFormat() throws VersionedSerializationException, IOException {
+        // record with string types and names, as written by previous versions
+        FragmentedByteArray data = new FragmentedByteArray(Serializer.serializeObject(new ArrayList<>(Collections.singletonList("1.0"))));
+        data.add(Serializer.serialize(8));
+        data.add(Serializer.serialize("i"), Serializer.serialize("Integer"), Serializer.serialize((Integer) 8));
+        data.add(Serializer.serialize("s"), Serializer.serialize("String"), Serializer.serialize("old"));
+        data.add(Serializer.serialize("t"), Serializer.serialize("Enum"), Serializer.serialize(TestSerializer.TestEnum.class.getName()), Serializer.serialize(TestSerializer.TestEnum.A));
+        data.add(Serializer.serialize("b"), Serializer.serialize("Boolean"), Serializer.serialize((Boolean) false));
+        data.add(Serializer.serialize("l"), Serializer.serialize("Long"), Serializer.serialize((Long) 9L));
+        data.add(Serializer.serialize("f"), Serializer.serialize("Float"), Serializer.serialize((Float) 1.5f));
+        data.add(Serializer.serialize("serClass"), Serializer.serialize("Boolean"), Serializer.serialize((Boolean) null));
+        data.add(Serializer.serialize("data"), Serializer.serialize("ByteArray"), Serializer.serialize(new byte[]{1, 2}));
+
+        VersionedObjectImpl versionedObject = new VersionedObjectImpl();
+        VersionedObjectSerializer.deserialize(versionedObject, CRC.addCRC(data.generateArray(), 2, true));
+        Assert.assertEquals(8, versionedObject.i);
+        Assert.assertEquals("old", versionedObject.s);
+        Assert.assertEquals(TestSerializer.TestEnum.A, versionedObject.t);
+        Assert.assertFalse(versionedObject.b);
+        Assert.assertEquals(9L, versionedObject.l);
+        Assert.assertEquals(1.5f, versionedObject.f, 0);
+        Assert.assertNull(versionedObject.serClass);
+        Assert.assertArrayEquals(new byte[]{1, 2}, versionedObject.data);
+    }
+
+    @Test
+    public void testSharedDictionary() throws VersionedSerializationException, IOException {
+        VersionedObjectImpl versionedObject = new VersionedObjectImpl();
+        versionedObject.s = null;
+        AttributeNameDictionary writeDictionary = new AttributeNameDictionary();
+        byte[] first = VersionedObjectSerializer.serialize(versionedObject, 2, writeDictionary);
+        byte[] second = VersionedObjectSerializer.serialize(versionedObject, 2, writeDictionary);
+        Assert.assertEquals(8, writeDictionary.size());
+        // names of the second record are serialized as dictionary indexes
+        Assert.assertTrue(second.length < first.length);
+
+        byte[] data = FragmentedByteArray.addFinal(first, second);
+        MutableOffset offset = new MutableOffset();
+        AttributeNameDictionary readDictionary = new AttributeNameDictionary();
+        for (int i = 0; i < 2; i++) {
+            VersionedObjectImpl readObject = new VersionedObjectImpl(false);
+            VersionedObjectSerializer.deserialize(readObject, data, offset, readDictionary);
+            Assert.assertEquals(5, readObject.i);
+            Assert.assertNull(readObject.s);
+            Assert.assertEquals(0.5f, readObject.f, 0);
+            Assert.assertEquals(3, readObject.serClass.i);
+        }
+        Assert.assertEquals(data.length, offset.value());
+
+        // the second record cannot be read without the dictionary built by the first one
+        try {
+            VersionedObjectSerializer.deserialize(new VersionedObjectImpl(false), second);
+            Assert.fail();
+        } catch (VersionedSerializationException e) {
+            Assert.assertEquals(VersionedSerializationException.Reason.INCORRECT_DATA, e.reason);
+        }
+    }
+
+    @Test
+    public void testSelfContainedList() throws VersionedSerializationException, IOException {
+        List<VersionedObjectImpl> objects = Arrays.asList(new VersionedObjectImpl(), new VersionedObjectImpl(), new VersionedObjectImpl());
+        for (boolean varInts : new boolean[]{false, true}) {
+            byte[] data = VersionedObjectSerializer.serialize(objects, 2, varInts);
+            int withDictionaryIndexes = 0;
+            for (VersionedObjectImpl object : objects) {
+                SerializerWriter writer = new SerializerWriter();
+                VersionedObjectSerializer.serialize(object, 2, varInts, new AttributeNameDictionary(), writer);
+                withDictionaryIndexes += writer.toByteArray().length;
+            }
+            // the list records carry no dictionary index for their 8 attribute names
+            Assert.assertEquals(withDictionaryIndexes - objects.size() * 8, data.length);
+
+            MutableOffset offset = new MutableOffset();
+            for (int i = 0; i < objects.size(); i++) {
+                VersionedObjectImpl readObject = new VersionedObjectImpl(false);
+                VersionedObjectSerializer.deserialize(readObject, data, offset);
+                Assert.assertEquals("hello", readObject.serClass.s);
+            }
+            Assert.assertEquals(data.length, offset.value());
+        }
+    }
+
+    @Test
+    public void testStreamToFile() throws VersionedSerializationException, IOException {
+        // attributes larger than the streaming buffer
+        VersionedObjectImpl large = new VersionedObjectImpl();
+        large.data = new byte[200000];
+        large.data[199999] = 7;
+        StringBuilder longString = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            longString.append(i);
+        }
+        large.serClass = new SerClass(4, longString.toString());
+        List<VersionedObjectImpl> objects = Arrays.asList(new VersionedObjectImpl(), large, new VersionedObjectImpl());
+
+        String path = "versionedObjectStream.vso";
+        String backupPath = "versionedObjectStream.bak";
+        VersionedObjectSerializer.serialize(objects, 5, path, backupPath);
+        byte[] data = Files.readAllBytes(Paths.get(path));
+        Assert.assertArrayEquals(VersionedObjectSerializer.serialize(objects, 5), data);
+        Assert.assertArrayEquals(data, Files.readAllBytes(Paths.get(backupPath)));
+
+        MutableOffset offset = new MutableOffset();
+        for (VersionedObjectImpl object : objects) {
+            VersionedObjectImpl readObject = new VersionedObjectImpl(false);
+            VersionedObjectSerializer.deserialize(readObject, data, offset);
+            Assert.assertArrayEquals(object.data, readObject.data);
+            Assert.assertEquals(object.serClass.s, readObject.serClass.s);
+        }
+        Assert.assertEquals(data.length, offset.value());
+        Files.delete(Paths.get(path));
+        Files.delete(Paths.get(backupPath));
+    }
+
+    @Test
+    public void testLazyPreview() throws VersionedSerializationException, IOException {
+        VersionedObjectImpl second = new VersionedObjectImpl();
+        second.i = 12;
+        second.s = null;
+        List<VersionedObjectImpl> objects = Arrays.asList(new VersionedObjectImpl(), second);
+        String path = "versionedObjectPreview.vso";
+        VersionedObjectSerializer.serialize(objects, 4, path);
+        byte[] data = Files.readAllBytes(Paths.get(path));
+
+        LazyVersionedObjectPreview preview = new LazyVersionedObjectPreview(path);
+        Assert.assertEquals("1.0", preview.getVersion());
+        Assert.assertEquals(8, preview.getAttributeNames().size());
+        Assert.assertTrue(preview.containsAttribute("serClass"));
+        Assert.assertFalse(preview.containsAttribute("x"));
+        Assert.assertNull(preview.getAttribute("x"));
+        Assert.assertEquals(5, preview.getAttribute("i"));
+        Assert.assertEquals("fuck", preview.getAttribute("s"));
+        Assert.assertEquals(TestSerializer.TestEnum.A, preview.getAttribute("t"));
+        Assert.assertEquals(0.5f, preview.getAttribute("f"));
+        Assert.assertEquals("hello", ((SerClass) preview.getAttribute("serClass")).s);
+        Assert.assertArrayEquals(new byte[]{5, 27, -12}, (byte[]) preview.getAttribute("data"));
+        preview.validate();
+
+        LazyVersionedObjectPreview secondPreview = new LazyVersionedObjectPreview(path, preview.getEndPosition());
+        Assert.assertEquals(12, secondPreview.getAttribute("i"));
+        Assert.assertNull(secondPreview.getAttribute("s"));
+        Assert.assertTrue(secondPreview.containsAttribute("s"));
+        Assert.assertEquals(data.length, secondPreview.getEndPosition());
+        Files.delete(Paths.get(path));
+
+        MutableOffset offset = new MutableOffset();
+        new LazyVersionedObjectPreview(data, offset);
+        Assert.assertEquals(preview.getEndPosition(), offset.value());
+        LazyVersionedObjectPreview lazyPreview = new LazyVersionedObjectPreview(data, offset);
+        Assert.assertEquals(data.length, offset.value());
+        VersionedObjectPreview fullPreview = new VersionedObjectPreview(data, new MutableOffset());
+        Assert.assertEquals(fullPreview.getAttributes().keySet(), lazyPreview.getAttributes().keySet());
+
+        // the CRC is only checked on request
+        data[20]++;
+        LazyVersionedObjectPreview corrupted = new LazyVersionedObjectPreview(data);
+        try {
+            corrupted.validate();
+            Assert.fail();
+        } catch (VersionedSerializationException e) {
+            Assert.assertEquals(VersionedSerializationException.Reason.CRC_MISMATCH, e.reason);
+        }
+
+        // records in the original format
+        FragmentedByteArray original = new FragmentedByteArray(Serializer.serializeObject(new ArrayList<>(Collections.singletonList("1.0"))));
+        original.add(Serializer.serialize(3));
+        original.add(Serializer.serialize("i"), Serializer.serialize("Integer"), Serializer.serialize((Integer) 8));
+        original.add(Serializer.serialize("serClass"), Serializer.serialize("Serializable"), Serializer.serializeObject(new SerClass(1, "old")));
+        original.add(Serializer.serialize("l"), Serializer.serialize("Long"), Serializer.serialize((Long) 9L));
+        LazyVersionedObjectPreview originalPreview = new LazyVersionedObjectPreview(CRC.addCRC(original.generateArray(), 2, true));
+        Assert.assertEquals(9L, originalPreview.getAttribute("l"));
+        Assert.assertEquals(8, originalPreview.getAttribute("i"));
+        Assert.assertEquals("old", ((SerClass) originalPreview.getAttribute("serClass")).s);
+    }
+
+    @Test
+    public void testIncremental() throws VersionedSerializationException, IOException {
+        String snapshotPath = "versionedObjectIncremental.vso";
+        String logPath = "versionedObjectIncremental.log";
+        String backupPath = "versionedObjectIncremental.bak";
+        VersionedObjectImpl versionedObject = new VersionedObjectImpl();
+        IncrementalVersionedObjectSerializer serializer = new IncrementalVersionedObjectSerializer(versionedObject, 4, 3, snapshotPath, logPath, backupPath);
+        serializer.save();
+        Assert.assertEquals(0, serializer.getDeltaCount());
+        byte[] snapshot = Files.readAllBytes(Paths.get(snapshotPath));
+        long logLength = Files.size(Paths.get(logPath));
+
+        versionedObject.i = 6;
+        serializer.save();
+        Assert.assertEquals(1, serializer.getDeltaCount());
+        // no changes -> no delta
+        serializer.save();
+        Assert.assertEquals(1, serializer.getDeltaCount());
+        // changes inside a serializable attribute are also detected
+        versionedObject.serClass.s = "changed";
+        serializer.save();
+        Assert.assertEquals(2, serializer.getDeltaCount());
+        Assert.assertArrayEquals(snapshot, Files.readAllBytes(Paths.get(snapshotPath)));
+        Assert.assertTrue(Files.size(Paths.get(logPath)) > logLength);
+        byte[] log = Files.readAllBytes(Paths.get(logPath));
+
+        // a torn record at the end of the log is discarded
+        Files.write(Paths.get(logPath), Arrays.copyOf(log, log.length + 5));
+        VersionedObjectImpl loadedObject = new VersionedObjectImpl(false);
+        IncrementalVersionedObjectSerializer loadSerializer = new IncrementalVersionedObjectSerializer(loadedObject, 4, 3, snapshotPath, logPath, backupPath);
+        Assert.assertTrue(loadSerializer.load().isEmpty());
+        Assert.assertEquals(6, loadedObject.i);
+        Assert.assertEquals("changed", loadedObject.serClass.s);
+        Assert.assertEquals("fuck", loadedObject.s);
+        Assert.assertEquals(2, loadSerializer.getDeltaCount());
+        Assert.assertArrayEquals(log, Files.readAllBytes(Paths.get(logPath)));
+
+        // the deltas are folded into a snapshot once the max number of deltas is reached
+        loadedObject.l = 100;
+        loadSerializer.save();
+        Assert.assertEquals(3, loadSerializer.getDeltaCount());
+        loadedObject.l = 101;
+        loadSerializer.save();
+        Assert.assertEquals(0, loadSerializer.getDeltaCount());
+        Assert.assertArrayEquals(Files.readAllBytes(Paths.get(snapshotPath)), Files.readAllBytes(Paths.get(backupPath)));
+
+        // a log of a previous snapshot is ignored, and a broken snapshot is repaired from its backup
+        Files.write(Paths.get(logPath), log);
+        Files.write(Paths.get(snapshotPath), new byte[]{1, 2, 3});
+        loadedObject = new VersionedObjectImpl(false);
+        loadSerializer = new IncrementalVersionedObjectSerializer(loadedObject, 4, 3, snapshotPath, logPath, backupPath);
+        Assert.assertEquals(Collections.singletonList(snapshotPath), loadSerializer.load());
+        Assert.assertEquals(101, loadedObject.l);
+        Assert.assertEquals(6, loadedObject.i);
+        Assert.assertEquals(0, loadSerializer.getDeltaCount());
+        Assert.assertTrue(Files.size(Paths.get(logPath)) < log.length);
+
+        Files.delete(Paths.get(snapshotPath));
+        Files.delete(Paths.get(logPath));
+        Files.delete(Paths.get(backupPath));
+    }
+
+    @Test
+    public void testIncrementalExplicitChanges() throws VersionedSerializationException, IOException {
+        String snapshotPath = "versionedObjectIncrementalExplicit.vso";
+        String logPath = "versionedObjectIncrementalExplicit.log";
+        VersionedObjectImpl versionedObject = new VersionedObjectImpl();
+        IncrementalVersionedObjectSerializer serializer = new IncrementalVersionedObjectSerializer(versionedObject, 4, 3, true, snapshotPath, logPath);
+        serializer.save();
+        Assert.assertEquals(0, serializer.getDeltaCount());
+
+        // only marked attributes are saved
+        versionedObject.i = 6;
+        versionedObject.l = 100;
+        serializer.markChanged("i");
+        serializer.save();
+        Assert.assertEquals(1, serializer.getDeltaCount());
+        // marks are cleared after each save
+        serializer.save();
+        Assert.assertEquals(1, serializer.getDeltaCount());
+
+        VersionedObjectImpl loadedObject = new VersionedObjectImpl(false);
+        new IncrementalVersionedObjectSerializer(loadedObject, 4, 3, true, snapshotPath, logPath).load();
+        Assert.assertEquals(6, loadedObject.i);
+        Assert.assertEquals(27, loadedObject.l);
+
+        // unmarked changes are saved with the next snapshot
+        serializer.snapshot();
+        loadedObject = new VersionedObjectImpl(false);
+        new IncrementalVersionedObjectSerializer(loadedObject, 4, 3, true, snapshotPath, logPath).load();
+        Assert.assertEquals(100, loadedObject.l);
+
+        try {
+            new IncrementalVersionedObjectSerializer(versionedObject, 4, 3, snapshotPath, logPath).markChanged("i");
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            // expected, changes are detected automatically
+        }
+
+        Files.delete(Paths.get(snapshotPath));
+        Files.delete(Paths.get(logPath));
+    }
+
+    @Test
+    public void testParallelDeserialization() throws VersionedSerializationException, IOException {
+        List<VersionedObjectImpl> objects = new ArrayList<>();
+        for (int i = 0; i < 3000; i++) {
+            VersionedObjectImpl versionedObject = new VersionedObjectImpl();
+            versionedObject.i = i;
+            versionedObject.s = "object " + i;
+            objects.add(versionedObject);
+        }
+        String path = "versionedObjectParallel.vso";
+        String backupPath = "versionedObjectParallel.bak";
+        VersionedObjectSerializer.serialize(objects, 2, path, backupPath);
+        byte[] data = Files.readAllBytes(Paths.get(path));
+
+        List<VersionedObjectImpl> readObjects = VersionedObjectSerializer.deserializeParallel(() -> new VersionedObjectImpl(false), path);
+        Assert.assertEquals(objects.size(), readObjects.size());
+        for (int i = 0; i < objects.size(); i++) {
+            Assert.assertEquals(i, readObjects.get(i).i);
+            Assert.assertEquals("object " + i, readObjects.get(i).s);
+            Assert.assertEquals("hello", readObjects.get(i).serClass.s);
+        }
+
+        List<Integer> consumed = new ArrayList<>();
+        ForkJoinPool pool = new ForkJoinPool(3);
+        VersionedObjectSerializer.deserializeParallel(ByteBuffer.wrap(data), () -> new VersionedObjectImpl(false), pool, versionedObject -> consumed.add(versionedObject.i));
+        pool.shutdown();
+        for (int i = 0; i < objects.size(); i++) {
+            Assert.assertEquals(i, (int) consumed.get(i));
+        }
+
+        // a corrupted record makes the whole deserialization fail, so the backup is used
+        data[data.length / 2]++;
+        Files.write(Paths.get(path), data);
+        try {
+            VersionedObjectSerializer.deserializeParallel(data, () -> new VersionedObjectImpl(false));
+            Assert.fail();
+        } catch (VersionedSerializationException e) {
+            Assert.assertTrue(e.reason == VersionedSerializationException.Reason.CRC_MISMATCH || e.reason == VersionedSerializationException.Reason.INCORRECT_DATA);
+        }
+        readObjects = VersionedObjectSerializer.deserializeParallel(() -> new VersionedObjectImpl(false), path, backupPath);
+        Assert.assertEquals(2999, readObjects.get(2999).i);
+
+        Files.delete(Paths.get(path));
+        Files.delete(Paths.get(backupPath));
+    }
+
+    @Test
+    public void testVarInts() throws VersionedSerializationException, IOException {
+        VersionedObjectImpl versionedObject = new VersionedObjectImpl();
+        versionedObject.l = -300L;
+        byte[] regular = VersionedObjectSerializer.serialize(versionedObject, 4);
+        byte[] data = VersionedObjectSerializer.serialize(versionedObject, 4, true);
+        Assert.assertTrue(data.length < regular.length);
+
+        VersionedObjectImpl readObject = new VersionedObjectImpl(false);
+        VersionedObjectSerializer.deserialize(readObject, data);
+        Assert.assertEquals(5, readObject.i);
+        Assert.assertEquals("fuck", readObject.s);
+        Assert.assertEquals(TestSerializer.TestEnum.A, readObject.t);
+        Assert.assertTrue(readObject.b);
+        Assert.assertEquals(-300L, readObject.l);
+        Assert.assertEquals(0.5f, readObject.f, 0);
+        Assert.assertEquals("hello", readObject.serClass.s);
+        Assert.assertArrayEquals(versionedObject.data, readObject.data);
+
+        // types with a specific varint encoding, and values written with codecs
+        Map<String, Serializable> attributes = new HashMap<>();
+        attributes.put("short", (short) -2);
+        attributes.put("int", Integer.MIN_VALUE);
+        attributes.put("long", Long.MAX_VALUE);
+        attributes.put("string", null);
+        attributes.put("bytes", new byte[0]);
+        attributes.put("list", new ArrayList<>(Arrays.asList(1, "two", 3L)));
+        attributes.put("ints", new int[]{1, 2, 3});
+        VersionedObject attributeSet = new VersionedObject() {
+            @Override
+            public VersionStack getCurrentVersion() {
+                return new VersionStack("2.0", new VersionStack("1.0"));
+            }
+
+            @Override
+            public Map<String, Serializable> serialize() {
+                return attributes;
+            }
+
+            @Override
+            public void deserialize(String version, Map<String, Object> attributes, VersionStack parentVersions) {
+            }
+        };
+        data = VersionedObjectSerializer.serialize(Arrays.asList(attributeSet, versionedObject), 2, true);
+        VersionedObjectPreview preview = new VersionedObjectPreview(data);
+        Assert.assertEquals("2.0", preview.getVersion());
+        Assert.assertEquals((short) -2, preview.getAttributes().get("short"));
+        Assert.assertEquals(Integer.MIN_VALUE, preview.getAttributes().get("int"));
+        Assert.assertEquals(Long.MAX_VALUE, preview.getAttributes().get("long"));
+        Assert.assertTrue(preview.getAttributes().containsKey("string"));
+        Assert.assertNull(preview.getAttributes().get("string"));
+        Assert.assertArrayEquals(new byte[0], (byte[]) preview.getAttributes().get("bytes"));
+        Assert.assertEquals(attributes.get("list"), preview.getAttributes().get("list"));
+        Assert.assertArrayEquals(new int[]{1, 2, 3}, (int[]) preview.getAttributes().get("ints"));
+
+        LazyVersionedObjectPreview lazyPreview = new LazyVersionedObjectPreview(data);
+        lazyPreview.validate();
+        Assert.assertEquals(attributes.get("list"), lazyPreview.getAttribute("list"));
+        Assert.assertEquals(Long.MAX_VALUE, lazyPreview.getAttribute("long"));
+        MutableOffset offset = new MutableOffset();
+        offset.add((int) lazyPreview.getEndPosition());
+        lazyPreview = new LazyVersionedObjectPreview(data, offset);
+        Assert.assertEquals(-300L, lazyPreview.getAttribute("l"));
+        Assert.assertEquals("hello", ((SerClass) lazyPreview.getAttribute("serClass")).s);
+        Assert.assertEquals(data.length, lazyPreview.getEndPosition());
+
+        // files, with the lazy preview mapping records with compact CRC headers
+        String path = "versionedObjectVarInts.vso";
+        List<VersionedObjectImpl> objects = Arrays.asList(new VersionedObjectImpl(), versionedObject);
+        VersionedObjectSerializer.serialize(objects, 3, true, path);
+        Assert.assertArrayEquals(VersionedObjectSerializer.serialize(objects, 3, true), Files.readAllBytes(Paths.get(path)));
+        lazyPreview = new LazyVersionedObjectPreview(path);
+        lazyPreview = new LazyVersionedObjectPreview(path, lazyPreview.getEndPosition());
+        Assert.assertEquals(-300L, lazyPreview.getAttribute("l"));
+        List<VersionedObjectImpl> readObjects = VersionedObjectSerializer.deserializeParallel(() -> new VersionedObjectImpl(false), path);
+        Assert.assertEquals(27L, readObjects.get(0).l);
+        Assert.assertEquals(-300L, readObjects.get(1).l);
+        Files.delete(Paths.get(path));
+    }
 }
@@ -0,0 +1,79 @@
+package org.aanguita.jacuzzi.io.serialization.localstorage;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+
+public class AsyncLocalStorageTest {
+
+    @Test
+    public void testOrdering() throws IOException, ExecutionException, InterruptedException {
+        AsyncLocalStorage als = new AsyncLocalStorage(LocalStorage.createNew("localStorageAsync.db"), 2, 1000);
+        List<CompletableFuture<?>> futures = new ArrayList<>();
+        List<CompletableFuture<Integer>> reads = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            futures.add(als.setInteger("int", i, "cat1"));
+            reads.add(als.getInteger("int", "cat1"));
+            futures.add(als.setString("string" + (i % 10), "value" + i));
+        }
+        for (int i = 0; i < 100; i++) {
+            // each read sees the write submitted just before it
+            Assert.assertEquals(new Integer(i), reads.get(i).get());
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).get();
+        Assert.assertEquals("value95", als.getString("string5").get());
+        Assert.assertEquals(new Integer(11), als.itemCount().get());
+        Assert.assertEquals(Collections.singletonList("int"), als.keys("cat1").get());
+        als.removeItem("int", "cat1");
+        Assert.assertFalse(als.containsItem("int", "cat1").get());
+        Assert.assertEquals(new Integer(10), als.submit(LocalStorage::itemCount).get());
+        Assert.assertTrue(als.close().get());
+
+        try {
+            als.getString("string5").get();
+            Assert.fail();
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof RejectedExecutionException);
+        }
+    }
+
+    @Test
+    public void testBulkOrdering() throws IOException, ExecutionException, InterruptedException {
+        AsyncLocalStorage als = new AsyncLocalStorage(LocalStorage.createNew("localStorageAsync.db"), 3, 1000);
+        List<CompletableFuture<Integer>> reads = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            Map<String, Object> values = new HashMap<>();
+            values.put("a", i);
+            values.put("b" + (i % 5), i);
+            // bulk write followed by single item writes and reads of the same items
+            als.setAll(values);
+            reads.add(als.getInteger("a"));
+            als.setInteger("a", -i);
+            reads.add(als.getInteger("a"));
+            als.setInteger("b" + (i % 5), -i);
+        }
+        for (int i = 0; i < 10; i++) {
+            Assert.assertEquals(new Integer(i), reads.get(2 * i).get());
+            Assert.assertEquals(new Integer(-i), reads.get(2 * i + 1).get());
+        }
+        Map<String, Integer> all = als.getAll(Arrays.asList("a", "b0", "b4"), Integer.class).get();
+        Assert.assertEquals(new Integer(-9), all.get("a"));
+        Assert.assertEquals(new Integer(-5), all.get("b0"));
+        Assert.assertEquals(new Integer(-9), all.get("b4"));
+
+        // list, array and time to live accessors
+        als.setIntArray("array", new int[]{1, 2});
+        Assert.assertArrayEquals(new int[]{1, 2}, als.getIntArray("array").get());
+        als.setLongList("list", Arrays.asList(3L, 4L));
+        Assert.assertEquals(Arrays.asList(3L, 4L), als.getLongList("list").get());
+        Assert.assertTrue(als.setString("expiring", "value", 1L).get());
+        Thread.sleep(20L);
+        Assert.assertNull(als.getString("expiring").get());
+        Assert.assertTrue(als.close().get());
+    }
+}
@@ -1,10 +1,23 @@
 package org.aanguita.jacuzzi.io.serialization.localstorage;
 
+import org.aanguita.jacuzzi.event.hub.EventHubSubscriber;
+import org.aanguita.jacuzzi.io.serialization.activejdbcsupport.ActiveJDBCController;
+import org.aanguita.jacuzzi.io.serialization.activejdbcsupport.ConnectionPragmas;
 import org.junit.Assert;
+import org.javalite.activejdbc.DB;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.file.Files;
 import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Created by Alberto on 08/04/2016.
@@ -164,4 +177,510 @@ public class LocalStorageTest {
         Assert.assertEquals(false, ls.getBoolean("boolean", "cat1", "cat2"));
         Assert.assertEquals(new Integer(26), ls.getInteger("int", "cat1"));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testConnectionPool() throws IOException {
+        ActiveJDBCController.enableConnectionPool(2, 60000L);
+        try {
+            LocalStorage ls = LocalStorage.createNew("localStoragePool.db");
+            Assert.assertEquals(1, ActiveJDBCController.idleConnectionCount("localStoragePool.db"));
+
+            ls.setString("string", "hello");
+            ls.setInteger("int", 5, "cat1");
+            Assert.assertEquals(2, ls.itemCount());
+            Assert.assertEquals(1, ActiveJDBCController.idleConnectionCount("localStoragePool.db"));
+
+            ls = new LocalStorage("localStoragePool.db");
+            Assert.assertEquals("hello", ls.getString("string"));
+            Assert.assertEquals(new Integer(5), ls.getInteger("int", "cat1"));
+        } finally {
+            ActiveJDBCController.disableConnectionPool();
+        }
+        Assert.assertEquals(0, ActiveJDBCController.idleConnectionCount("localStoragePool.db"));
+    }
+
+    @Test
+    public void testPragmas() throws IOException {
+        String path = "localStoragePragmas.db";
+        ActiveJDBCController.configurePragmas(new ConnectionPragmas(true, ConnectionPragmas.Synchronous.NORMAL, -4096, 1L << 26));
+        ActiveJDBCController.enableConnectionPool(2, 60000L);
+        try {
+            LocalStorage ls = LocalStorage.createNew(path);
+            ls.setString("string", "hello");
+            ls.setInteger("int", 5, "cat1");
+            for (int i = 0; i < 10; i++) {
+                Assert.assertEquals("hello", ls.getString("string"));
+                Assert.assertTrue(ls.containsItem("int", "cat1"));
+                Assert.assertEquals(Collections.singletonList("int"), ls.keys("cat1"));
+                Assert.assertEquals(Collections.singleton("cat1"), ls.categories());
+            }
+            ls = new LocalStorage(path);
+            Assert.assertEquals(new Integer(5), ls.getInteger("int", "cat1"));
+
+            DB db = ActiveJDBCController.connect(SQLiteStorageBackend.DATABASE, path);
+            try {
+                Assert.assertEquals("wal", db.firstColumn("PRAGMA journal_mode").get(0));
+                Assert.assertEquals(1, ((Number) db.firstColumn("PRAGMA synchronous").get(0)).intValue());
+                Assert.assertEquals(-4096, ((Number) db.firstColumn("PRAGMA cache_size").get(0)).intValue());
+            } finally {
+                ActiveJDBCController.disconnect();
+            }
+        } finally {
+            ActiveJDBCController.disableConnectionPool();
+            ActiveJDBCController.configurePragmas(null);
+        }
+
+        // the journal mode is kept by the database file
+        LocalStorage ls = new LocalStorage(path);
+        Assert.assertEquals("hello", ls.getString("string"));
+        DB db = ActiveJDBCController.connect(SQLiteStorageBackend.DATABASE, path);
+        try {
+            Assert.assertEquals("wal", db.firstColumn("PRAGMA journal_mode").get(0));
+        } finally {
+            ActiveJDBCController.disconnect();
+        }
+    }
+
+    @Test
+    public void testWriteBehind() throws IOException {
+        LocalStorage ls = LocalStorage.createNew("localStorageWriteBehind.db");
+        ls.enableWriteBehind(100, 60000L);
+
+        ls.setString("string", "hello");
+        ls.setInteger("int", 5, "cat1");
+        ls.setIntegerList("integerList", Arrays.asList(1, 2, 3));
+        ls.setLong("removed", 7L);
+        ls.removeItem("removed");
+        Assert.assertEquals(4, ls.pendingWriteCount());
+        Assert.assertEquals("hello", ls.getString("string"));
+        Assert.assertEquals(new Integer(5), ls.getInteger("int", "cat1"));
+        Assert.assertNull(ls.getLong("removed"));
+        Assert.assertEquals(Arrays.asList(1, 2, 3), ls.getIntegerList("integerList"));
+
+        Assert.assertTrue(ls.flush());
+        Assert.assertEquals(0, ls.pendingWriteCount());
+        Assert.assertEquals(3, ls.itemCount());
+
+        ls.setString("string", "bye");
+        Assert.assertEquals(1, ls.pendingWriteCount());
+        Assert.assertTrue(ls.close());
+        Assert.assertFalse(ls.isWriteBehindEnabled());
+
+        ls = new LocalStorage("localStorageWriteBehind.db");
+        Assert.assertEquals("bye", ls.getString("string"));
+        Assert.assertEquals(Arrays.asList("integerList", "string"), sorted(ls.keys()));
+    }
+
+    @Test
+    public void testSweepSkippedItems() {
+        // batches with skipped items (modified concurrently) do not end the sweep while candidates remain
+        List<StorageBackend.ExpiredItems> batches = new ArrayList<>(Arrays.asList(
+                new StorageBackend.ExpiredItems(Collections.singletonList("a"), 2),
+                new StorageBackend.ExpiredItems(Collections.emptyList(), 2),
+                new StorageBackend.ExpiredItems(Collections.singletonList("b"), 1)));
+        StorageBackend backend = (StorageBackend) Proxy.newProxyInstance(StorageBackend.class.getClassLoader(), new Class<?>[]{StorageBackend.class}, (proxy, method, args) -> {
+            Assert.assertEquals("removeExpired", method.getName());
+            return batches.remove(0);
+        });
+        List<String> removed = new ArrayList<>();
+        ExpirySweeper.sweep(backend, 2, () -> {}, (names, time) -> removed.addAll(names));
+        Assert.assertEquals(Arrays.asList("a", "b"), removed);
+        Assert.assertTrue(batches.isEmpty());
+    }
+
+    @Test
+    public void testWriteBehindQueueFlushes() throws InterruptedException {
+        BlockingQueue<Map<String, StorageBackend.ItemChange>> flushed = new LinkedBlockingQueue<>();
+        List<Thread> flushThreads = Collections.synchronizedList(new ArrayList<>());
+        AtomicBoolean failing = new AtomicBoolean(false);
+        WriteBehindQueue queue = new WriteBehindQueue(2, 100L, changes -> {
+            if (failing.get()) {
+                throw new RuntimeException("failed flush");
+            }
+            flushThreads.add(Thread.currentThread());
+            flushed.add(changes);
+        }, null);
+
+        // reaching the max pending items triggers a background flush
+        queue.write("a", StorageBackend.Column.INTEGER, 1L);
+        queue.write("b", StorageBackend.Column.INTEGER, 2L);
+        Assert.assertEquals(new HashSet<>(Arrays.asList("a", "b")), flushed.poll(5L, TimeUnit.SECONDS).keySet());
+        Assert.assertNotSame(Thread.currentThread(), flushThreads.get(0));
+
+        // a failed close keeps the queue, with its periodic flushes
+        failing.set(true);
+        queue.write("c", StorageBackend.Column.INTEGER, 3L);
+        Assert.assertFalse(queue.close());
+        Assert.assertEquals(1, queue.pendingItemCount());
+        failing.set(false);
+        Assert.assertEquals(Collections.singleton("c"), flushed.poll(5L, TimeUnit.SECONDS).keySet());
+
+        // once closed, writes go directly to the flusher
+        Assert.assertTrue(queue.close());
+        queue.remove("a");
+        Assert.assertEquals(Collections.singleton("a"), flushed.poll().keySet());
+        Assert.assertEquals(0, queue.pendingItemCount());
+    }
+
+    @Test
+    public void testBulkOperations() throws IOException {
+        LocalStorage ls = LocalStorage.createNew("localStorageBulk.db");
+        Map<String, Object> values = new LinkedHashMap<>();
+        values.put("string", "hello");
+        values.put("int", 5);
+        values.put("long", 25L);
+        values.put("double", 5.23d);
+        values.put("enum", Letter.B);
+        values.put("null", null);
+        ls.setAll(values, "cat1");
+        Assert.assertEquals(6, ls.itemCount());
+
+        ls = new LocalStorage("localStorageBulk.db");
+        Map<String, Integer> ints = ls.getAll(Arrays.asList("int", "missing"), Integer.class, "cat1");
+        Assert.assertEquals(Arrays.asList("int", "missing"), new ArrayList<>(ints.keySet()));
+        Assert.assertEquals(new Integer(5), ints.get("int"));
+        Assert.assertNull(ints.get("missing"));
+        Assert.assertEquals("hello", ls.getAll(Collections.singletonList("string"), String.class, "cat1").get("string"));
+        Assert.assertEquals(new Long(25L), ls.getLong("long", "cat1"));
+        Assert.assertEquals(new Double(5.23d), ls.getDouble("double", "cat1"));
+        Assert.assertEquals(Letter.B, ls.getEnum("enum", Letter.class, "cat1"));
+        Assert.assertTrue(ls.containsItem("null", "cat1"));
+        Assert.assertNull(ls.getString("null", "cat1"));
+    }
+
+    @Test
+    public void testKeyIterator() throws IOException {
+        LocalStorage ls = LocalStorage.createNew("localStorageKeyIterator.db");
+        Map<String, Object> values = new LinkedHashMap<>();
+        List<String> keys = new ArrayList<>();
+        for (int i = 0; i < 2500; i++) {
+            keys.add("key" + i);
+            values.put("key" + i, i);
+        }
+        ls.setAll(values, "cat1");
+        ls.setInteger("other", 0, "cat1", "cat2");
+        ls.setInteger("other", 0, "cat1_");
+
+        List<String> iteratedKeys = new ArrayList<>();
+        ls.keyIterator("cat1").forEachRemaining(iteratedKeys::add);
+        Assert.assertEquals(keys, iteratedKeys);
+        Assert.assertEquals(keys, ls.keys("cat1"));
+        Assert.assertEquals(Collections.singletonList("other"), ls.keys("cat1", "cat2"));
+        Assert.assertEquals(new HashSet<>(Arrays.asList("cat1", "cat1_")), ls.categories());
+        Assert.assertEquals(Collections.singleton("cat2"), ls.categories("cat1"));
+        Assert.assertFalse(ls.keyIterator("cat3").hasNext());
+    }
+
+    @Test
+    public void testUpgradeFrom_0_1_0() throws IOException {
+        String path = "localStorage_0_1_0.db";
+        Files.deleteIfExists(new File(path).toPath());
+        DB db = ActiveJDBCController.connect(SQLiteStorageBackend.DATABASE, path);
+        try {
+            db.exec("CREATE TABLE " + SQLiteStorageBackend.METADATA_TABLE + "(id INTEGER NOT NULL PRIMARY KEY AUTOINCREMENT,ls_version TEXT,creation_date INTEGER)");
+            db.exec("CREATE TABLE " + SQLiteStorageBackend.ITEMS_TABLE + "(id TEXT NOT NULL PRIMARY KEY,string_item TEXT,integer_item INTEGER,real_item REAL)");
+            db.exec("INSERT INTO " + SQLiteStorageBackend.METADATA_TABLE + "(ls_version, creation_date) VALUES (?, ?)", "0.1.0", new Date().getTime());
+            db.exec("INSERT INTO " + SQLiteStorageBackend.ITEMS_TABLE + "(id, string_item) VALUES (?, ?)", "string", "hello");
+            db.exec("INSERT INTO " + SQLiteStorageBackend.ITEMS_TABLE + "(id, integer_item) VALUES (?, ?)", "cat1@/-CAT-/@int", 5);
+            db.exec("INSERT INTO " + SQLiteStorageBackend.ITEMS_TABLE + "(id, integer_item) VALUES (?, ?)", "cat1@/-CAT-/@cat2@/-CAT-/@int", 6);
+        } finally {
+            ActiveJDBCController.disconnect();
+        }
+
+        LocalStorage ls = new LocalStorage(path);
+        Assert.assertEquals(LocalStorage.CURRENT_VERSION, ls.getLocalStorageVersion());
+        Assert.assertEquals(Collections.singletonList("string"), ls.keys());
+        Assert.assertEquals(Collections.singletonList("int"), ls.keys("cat1"));
+        Assert.assertEquals(Collections.singletonList("int"), ls.keys("cat1", "cat2"));
+        Assert.assertEquals(Collections.singleton("cat2"), ls.categories("cat1"));
+        Assert.assertEquals(new Integer(6), ls.getInteger("int", "cat1", "cat2"));
+        ls.setInteger("new", 7, "cat1");
+        Assert.assertEquals(Arrays.asList("int", "new"), ls.keys("cat1"));
+        ls.setIntegerList("list", Arrays.asList(1, 2, 3));
+        Assert.assertEquals(Arrays.asList(1, 2, 3), ls.getIntegerList("list"));
+    }
+
+    @Test
+    public void testBoundedCache() throws IOException {
+        LocalStorage.createNew("localStorageCache.db");
+        LocalStorage ls = new LocalStorage("localStorageCache.db", 10, CacheEvictionPolicy.LRU, 0L);
+        for (int i = 0; i < 20; i++) {
+            ls.setInteger("int" + i, i);
+        }
+        Assert.assertTrue(ls.getCacheStats().size <= 10);
+        Assert.assertTrue(ls.getCacheStats().evictions >= 10);
+        for (int i = 0; i < 20; i++) {
+            Assert.assertEquals(new Integer(i), ls.getInteger("int" + i));
+        }
+
+        // values are tagged with their type
+        ls.setString("string", "hello");
+        long hits = ls.getCacheStats().hits;
+        Assert.assertEquals("hello", ls.getString("string"));
+        Assert.assertEquals(hits + 1, ls.getCacheStats().hits);
+        Assert.assertNull(ls.getInteger("string"));
+        Assert.assertEquals(hits + 1, ls.getCacheStats().hits);
+
+        // misses are not cached with a zero time to live
+        long misses = ls.getCacheStats().misses;
+        Assert.assertNull(ls.getLong("missing"));
+        Assert.assertNull(ls.getLong("missing"));
+        Assert.assertEquals(misses + 2, ls.getCacheStats().misses);
+        ls.setLong("missing", 5L);
+        Assert.assertEquals(new Long(5L), ls.getLong("missing"));
+    }
+
+    @Test
+    public void testBinaryLists() throws IOException {
+        LocalStorage ls = LocalStorage.createNew("localStorageBinaryLists.db");
+        int[] ints = new int[5000];
+        for (int i = 0; i < ints.length; i++) {
+            ints[i] = i * 31 - 1000;
+        }
+        ls.setIntArray("ints", ints, "cat1");
+        ls.setLongArray("longs", new long[]{Long.MIN_VALUE, 0L, Long.MAX_VALUE});
+        ls.setDoubleList("doubles", Arrays.asList(1.5d, -2.25d));
+        ls.setBooleanList("booleans", Arrays.asList(true, false, true));
+        ls.setShortArray("empty", new short[0]);
+
+        ls = new LocalStorage("localStorageBinaryLists.db");
+        Assert.assertArrayEquals(ints, ls.getIntArray("ints", "cat1"));
+        Assert.assertArrayEquals(new long[]{Long.MIN_VALUE, 0L, Long.MAX_VALUE}, ls.getLongArray("longs"));
+        Assert.assertEquals(Arrays.asList(1.5d, -2.25d), ls.getDoubleList("doubles"));
+        Assert.assertEquals(Arrays.asList(true, false, true), ls.getBooleanList("booleans"));
+        Assert.assertEquals(0, ls.getShortArray("empty").length);
+        Assert.assertNull(ls.getIntArray("missing"));
+
+        // lists stored as text are still readable
+        ls.setStringList("text", Arrays.asList("4", "5", "6"));
+        Assert.assertArrayEquals(new int[]{4, 5, 6}, ls.getIntArray("text"));
+        Assert.assertEquals(Arrays.asList(4L, 5L, 6L), ls.getLongList("text"));
+        // and can be overwritten in binary form
+        ls.setIntegerList("text", Arrays.asList(7, 8));
+        Assert.assertEquals(Arrays.asList(7, 8), ls.getIntegerList("text"));
+    }
+
+    @Test
+    public void testPreload() throws IOException {
+        LocalStorage ls = LocalStorage.createNew("localStoragePreload.db");
+        ls.setString("string", "hello");
+        ls.setInteger("int", 5, "cat1");
+        ls.setDouble("double", 2.5d, "cat1", "cat2");
+        ls.setIntArray("ints", new int[]{1, 2, 3}, "cat1");
+        ls.setStringList("strings", Arrays.asList("a", "b"), "cat1");
+        ls.setLong("long", 7L, "cat3");
+
+        ls = new LocalStorage("localStoragePreload.db");
+        PreloadStats stats = ls.preload("cat1");
+        Assert.assertEquals(4, stats.loadedItems);
+        Assert.assertEquals(4, stats.preloadedItems);
+        Assert.assertEquals(new Integer(5), ls.getInteger("int", "cat1"));
+        Assert.assertEquals(new Double(2.5d), ls.getDouble("double", "cat1", "cat2"));
+        Assert.assertArrayEquals(new int[]{1, 2, 3}, ls.getIntArray("ints", "cat1"));
+        Assert.assertEquals(Arrays.asList("a", "b"), ls.getStringList("strings", "cat1"));
+        Assert.assertNull(ls.getString("missing", "cat1"));
+        Assert.assertEquals(5, ls.getPreloadStats().hits);
+        // items out of the preloaded categories are read from the database
+        Assert.assertEquals(new Long(7L), ls.getLong("long", "cat3"));
+        Assert.assertEquals(5, ls.getPreloadStats().hits);
+
+        // writes keep the preloaded items updated
+        ls.setInteger("int", 6, "cat1");
+        ls.setString("new", "world", "cat1");
+        ls.removeItem("strings", "cat1");
+        Assert.assertEquals(new Integer(6), new LocalStorage("localStoragePreload.db").getInteger("int", "cat1"));
+        Assert.assertEquals("world", ls.getString("new", "cat1"));
+        Assert.assertFalse(ls.containsItem("strings", "cat1"));
+        Assert.assertTrue(ls.containsItem("ints", "cat1"));
+
+        ls = LocalStorage.openPreloaded("localStoragePreload.db");
+        Assert.assertEquals(6, ls.getPreloadStats().loadedItems);
+        Assert.assertEquals("hello", ls.getString("string"));
+        Assert.assertEquals("world", ls.getString("new", "cat1"));
+        Assert.assertEquals(new Long(7L), ls.getLong("long", "cat3"));
+    }
+
+    @Test
+    public void testTimeToLive() throws IOException, InterruptedException {
+        String path = "localStorageTimeToLive.db";
+        LocalStorage ls = LocalStorage.createNew(path);
+        Assert.assertTrue(ls.setString("session", "abc", 300L));
+        Assert.assertTrue(ls.setInteger("lease", 5, 300L, "cat1"));
+        ls.setInteger("permanent", 1);
+        ls.setString("renewed", "x", 300L);
+        Assert.assertTrue(ls.setString("renewed", "x"));
+        ls.setIntArray("ints", new int[]{1, 2});
+        Assert.assertTrue(ls.setTimeToLive("ints", 300L));
+        Assert.assertFalse(ls.setTimeToLive("missing", 300L));
+        Assert.assertEquals("abc", ls.getString("session"));
+        Assert.assertTrue(ls.containsItem("lease", "cat1"));
+
+        Thread.sleep(500L);
+        Assert.assertNull(ls.getString("session"));
+        Assert.assertFalse(ls.containsItem("session"));
+        Assert.assertNull(ls.getInteger("lease", "cat1"));
+        Assert.assertNull(ls.getIntArray("ints"));
+        Assert.assertEquals("x", ls.getString("renewed"));
+        Assert.assertNull(new LocalStorage(path).getString("session"));
+        // expired items remain until removed
+        Assert.assertEquals(5, ls.itemCount());
+        ls.removeExpiredItems();
+        Assert.assertEquals(2, ls.itemCount());
+        Assert.assertEquals(new Integer(1), ls.getInteger("permanent"));
+
+        // an expired item can be set again
+        ls.setString("session", "def");
+        Assert.assertEquals("def", new LocalStorage(path).getString("session"));
+
+        char[] chars = new char[10000];
+        Arrays.fill(chars, 'a');
+        for (int i = 0; i < 200; i++) {
+            ls.setString("big" + i, new String(chars), 100L);
+        }
+        Thread.sleep(200L);
+        ls.enableExpirySweeper(50L, 30, 100L);
+        Thread.sleep(1000L);
+        Assert.assertEquals(3, ls.itemCount());
+        Assert.assertTrue(new File(path).length() < 1000000L);
+        Assert.assertTrue(ls.close());
+    }
+
+    @Test
+    public void testExportImport() throws IOException {
+        LocalStorage ls = LocalStorage.createNew("localStorageExport.db");
+        Date date = new Date();
+        ls.setString("string", "hello");
+        ls.setString("stringNull", null);
+        ls.setBoolean("bool", true, "cat1");
+        ls.setLong("long", -25L, "cat1", "cat2");
+        ls.setDouble("double", 5.23d);
+        ls.setDate("date", date);
+        ls.setIntArray("ints", new int[]{1, 2, 3});
+        ls.setStringList("strings", Arrays.asList("a", "b"));
+        ls.setString("session", "abc", 100000L);
+        Map<String, Integer> bulk = new HashMap<>();
+        for (int i = 0; i < 30000; i++) {
+            bulk.put("int" + i, i);
+        }
+        ls.setAll(bulk, "bulk");
+        ByteArrayOutputStream snapshot = new ByteArrayOutputStream();
+        Assert.assertEquals(30009, ls.exportTo(snapshot));
+
+        LocalStorage imported = LocalStorage.createNew("localStorageImport.db");
+        imported.setString("string", "overwritten");
+        imported.setString("kept", "kept");
+        Assert.assertEquals(30009, imported.importFrom(new ByteArrayInputStream(snapshot.toByteArray())));
+        Assert.assertEquals(30010, imported.itemCount());
+        Assert.assertEquals("hello", imported.getString("string"));
+        Assert.assertEquals("kept", imported.getString("kept"));
+        Assert.assertTrue(imported.containsItem("stringNull"));
+        Assert.assertNull(imported.getString("stringNull"));
+        Assert.assertEquals(true, imported.getBoolean("bool", "cat1"));
+        Assert.assertEquals(new Long(-25L), imported.getLong("long", "cat1", "cat2"));
+        Assert.assertEquals(new Double(5.23d), imported.getDouble("double"));
+        Assert.assertEquals(date, imported.getDate("date"));
+        Assert.assertArrayEquals(new int[]{1, 2, 3}, imported.getIntArray("ints"));
+        Assert.assertEquals(Arrays.asList("a", "b"), imported.getStringList("strings"));
+        Assert.assertEquals("abc", imported.getString("session"));
+        Assert.assertEquals(new Integer(29999), imported.getInteger("int29999", "bulk"));
+        Assert.assertEquals(Collections.singleton("cat2"), imported.categories("cat1"));
+        Assert.assertEquals(30000, imported.keys("bulk").size());
+
+        // corrupted snapshots are rejected
+        byte[] corrupted = snapshot.toByteArray();
+        corrupted[100]++;
+        try {
+            LocalStorage.createNew("localStorageImport.db").importFrom(new ByteArrayInputStream(corrupted));
+            Assert.fail();
+        } catch (IOException e) {
+            // expected
+        }
+        byte[] truncated = Arrays.copyOf(snapshot.toByteArray(), snapshot.size() - 20);
+        try {
+            LocalStorage.createNew("localStorageImport.db").importFrom(new ByteArrayInputStream(truncated));
+            Assert.fail();
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    private static class EventCollector implements EventHubSubscriber {
+
+        private final String id;
+
+        private final BlockingQueue<ItemChangeEvent> events = new LinkedBlockingQueue<>();
+
+        private EventCollector(String id) {
+            this.id = id;
+        }
+
+        @Override
+        public String getId() {
+            return id;
+        }
+
+        @Override
+        public void event(String channel, Object... messages) {
+            events.add((ItemChangeEvent) messages[0]);
+        }
+    }
+
+    @Test
+    public void testWatch() throws IOException, InterruptedException {
+        LocalStorage ls = LocalStorage.createNew("localStorageWatch.db");
+        ls.enableWatch(500L);
+        EventCollector itemWatcher = new EventCollector("item");
+        EventCollector categoryWatcher = new EventCollector("category");
+        EventCollector prefixWatcher = new EventCollector("prefix");
+        EventCollector allWatcher = new EventCollector("all");
+        ls.watchItem(itemWatcher, "int", "cat1");
+        ls.watchCategory(categoryWatcher, "cat1");
+        ls.watchPrefix(prefixWatcher, "str", "cat1");
+        ls.watchCategory(allWatcher);
+
+        // several changes of one item are coalesced
+        ls.setInteger("int", 1, "cat1");
+        ls.setInteger("int", 2, "cat1");
+        ls.setInteger("int", 2, "cat1");
+        ls.setString("string", "hello", "cat1");
+        ls.setString("other", "bye", "cat1");
+        ls.setString("string", "sub", "cat1", "cat2");
+        ls.setString("=int", "root");
+
+        ItemChangeEvent event = itemWatcher.events.poll(5, TimeUnit.SECONDS);
+        Assert.assertEquals("int", event.name);
+        Assert.assertEquals(Collections.singletonList("cat1"), event.categories);
+        Assert.assertEquals(ItemChangeEvent.Kind.UPDATED, event.kind);
+        event = prefixWatcher.events.poll(5, TimeUnit.SECONDS);
+        Assert.assertEquals("string", event.name);
+        Assert.assertEquals(Collections.singletonList("cat1"), event.categories);
+        List<String> categoryEvents = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            categoryEvents.add(categoryWatcher.events.poll(5, TimeUnit.SECONDS).name);
+        }
+        Assert.assertEquals(Arrays.asList("int", "string", "other", "string"), categoryEvents);
+        for (int i = 0; i < 5; i++) {
+            Assert.assertNotNull(allWatcher.events.poll(5, TimeUnit.SECONDS));
+        }
+
+        ls.unwatchCategory(categoryWatcher, "cat1");
+        ls.removeItem("int", "cat1");
+        event = itemWatcher.events.poll(5, TimeUnit.SECONDS);
+        Assert.assertEquals(ItemChangeEvent.Kind.REMOVED, event.kind);
+        ls.clear();
+        Assert.assertEquals(ItemChangeEvent.Kind.REMOVED, allWatcher.events.poll(5, TimeUnit.SECONDS).kind);
+        Assert.assertEquals(ItemChangeEvent.Kind.CLEARED, allWatcher.events.poll(5, TimeUnit.SECONDS).kind);
+
+        Thread.sleep(1000L);
+        Assert.assertTrue(itemWatcher.events.isEmpty());
+        Assert.assertTrue(prefixWatcher.events.isEmpty());
+        Assert.assertTrue(categoryWatcher.events.isEmpty());
+        Assert.assertTrue(allWatcher.events.isEmpty());
+    }
+
+    private static List<String> sorted(List<String> list) {
+        List<String> sortedList = new ArrayList<>(list);
+        Collections.sort(sortedList);
+        return sortedList;
+    }
+}
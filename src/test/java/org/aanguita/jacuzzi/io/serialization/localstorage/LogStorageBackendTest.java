@@ -0,0 +1,187 @@
+package org.aanguita.jacuzzi.io.serialization.localstorage;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+
+public class LogStorageBackendTest {
+
+    private enum Letter {
+        A,
+        B
+    }
+
+    @Test
+    public void testTypedAccess() throws IOException {
+        String path = "logStorage.log";
+        LocalStorage ls = new LocalStorage(LogStorageBackend.createNew(path));
+        Date date = new Date();
+        ls.setString("string", "hello");
+        ls.setString("stringNull", null);
+        ls.setEnum("enum", Letter.class, Letter.B);
+        ls.setBoolean("bool", true);
+        ls.setByte("byte", (byte) -3);
+        ls.setInteger("int", 5, "cat1");
+        ls.setLong("long", 25L, "cat1", "cat2");
+        ls.setFloat("float", 0.32f);
+        ls.setDouble("double", 5.23d);
+        ls.setDate("date", date);
+        ls.setStringList("stringList", Arrays.asList("a", "b"));
+        ls.setIntArray("ints", new int[]{1, 2, 3}, "cat1");
+        ls.setLong("removed", 7L);
+        ls.removeItem("removed");
+        Assert.assertEquals(12, ls.itemCount());
+        Assert.assertTrue(ls.close());
+
+        ls = new LocalStorage(LogStorageBackend.open(path));
+        Assert.assertEquals(LogStorageBackend.CURRENT_VERSION, ls.getLocalStorageVersion());
+        Assert.assertEquals(12, ls.itemCount());
+        Assert.assertEquals("hello", ls.getString("string"));
+        Assert.assertTrue(ls.containsItem("stringNull"));
+        Assert.assertNull(ls.getString("stringNull"));
+        Assert.assertEquals(Letter.B, ls.getEnum("enum", Letter.class));
+        Assert.assertEquals(true, ls.getBoolean("bool"));
+        Assert.assertEquals(new Byte((byte) -3), ls.getByte("byte"));
+        Assert.assertEquals(new Integer(5), ls.getInteger("int", "cat1"));
+        Assert.assertEquals(new Long(25L), ls.getLong("long", "cat1", "cat2"));
+        Assert.assertEquals(new Float(0.32f), ls.getFloat("float"));
+        Assert.assertEquals(new Double(5.23d), ls.getDouble("double"));
+        Assert.assertEquals(date, ls.getDate("date"));
+        Assert.assertEquals(Arrays.asList("a", "b"), ls.getStringList("stringList"));
+        Assert.assertArrayEquals(new int[]{1, 2, 3}, ls.getIntArray("ints", "cat1"));
+        Assert.assertFalse(ls.containsItem("removed"));
+
+        Assert.assertEquals(Arrays.asList("string", "stringNull", "enum", "bool", "byte", "float", "double", "date", "stringList"), ls.keys());
+        Assert.assertEquals(Arrays.asList("int", "ints"), ls.keys("cat1"));
+        List<String> iteratedKeys = new ArrayList<>();
+        ls.keyIterator("cat1").forEachRemaining(iteratedKeys::add);
+        Assert.assertEquals(Arrays.asList("int", "ints"), iteratedKeys);
+        Assert.assertEquals(Collections.singleton("cat1"), ls.categories());
+        Assert.assertEquals(Collections.singleton("cat2"), ls.categories("cat1"));
+        Assert.assertEquals(3, ls.preload("cat1").loadedItems);
+        Assert.assertArrayEquals(new int[]{1, 2, 3}, ls.getIntArray("ints", "cat1"));
+
+        ls.clear();
+        Assert.assertEquals(0, ls.itemCount());
+        Assert.assertTrue(ls.close());
+    }
+
+    @Test
+    public void testCompaction() throws IOException {
+        String path = "logStorageCompaction.log";
+        LogStorageBackend backend = LogStorageBackend.createNew(path);
+        LocalStorage ls = new LocalStorage(backend);
+        for (int round = 0; round < 20; round++) {
+            for (int i = 0; i < 100; i++) {
+                ls.setInteger("int" + i, round * 100 + i);
+            }
+        }
+        ls.setString("first", "hello");
+        ls.removeItem("first");
+        ls.setString("first", "again");
+        long sizeBeforeCompaction = Files.size(Paths.get(path));
+        backend.compact();
+        Assert.assertTrue(Files.size(Paths.get(path)) < sizeBeforeCompaction);
+        Assert.assertEquals(new Integer(1999), ls.getInteger("int99"));
+        ls.setInteger("new", 1);
+        Assert.assertTrue(ls.close());
+
+        ls = new LocalStorage(LogStorageBackend.open(path));
+        Assert.assertEquals(102, ls.itemCount());
+        Assert.assertEquals(new Integer(1950), ls.getInteger("int50"));
+        Assert.assertEquals("again", ls.getString("first"));
+        List<String> keys = ls.keys();
+        Assert.assertEquals("int0", keys.get(0));
+        Assert.assertEquals(Arrays.asList("first", "new"), keys.subList(100, 102));
+        Assert.assertTrue(ls.close());
+    }
+
+    @Test
+    public void testConcurrentCompaction() throws IOException, InterruptedException {
+        String path = "logStorageCompaction.log";
+        LogStorageBackend backend = LogStorageBackend.createNew(path);
+        LocalStorage ls = new LocalStorage(backend);
+        for (int i = 0; i < 1000; i++) {
+            ls.setInteger("int" + i, i);
+        }
+        // writes performed during the compaction are carried over to the compacted file
+        Thread writer = new Thread(() -> {
+            for (int i = 0; i < 1000; i++) {
+                if (i % 10 == 0) {
+                    ls.removeItem("int" + i);
+                } else {
+                    ls.setInteger("int" + i, -i);
+                }
+            }
+        });
+        writer.start();
+        for (int i = 0; i < 5; i++) {
+            backend.compact();
+        }
+        writer.join();
+        backend.compact();
+        Assert.assertEquals(new Integer(-999), ls.getInteger("int999"));
+        Assert.assertTrue(ls.close());
+
+        LocalStorage reopened = new LocalStorage(LogStorageBackend.open(path));
+        Assert.assertEquals(900, reopened.itemCount());
+        Assert.assertNull(reopened.getInteger("int500"));
+        Assert.assertEquals(new Integer(-501), reopened.getInteger("int501"));
+        Assert.assertTrue(reopened.close());
+    }
+
+    @Test
+    public void testTimeToLive() throws IOException, InterruptedException {
+        String path = "logStorageTimeToLive.log";
+        LocalStorage ls = new LocalStorage(LogStorageBackend.createNew(path));
+        ls.setString("session", "abc", 200L);
+        ls.setLong("lease", 3L, 200L, "cat1");
+        ls.setLong("permanent", 4L);
+        Assert.assertTrue(ls.close());
+
+        ls = new LocalStorage(LogStorageBackend.open(path));
+        Assert.assertEquals("abc", ls.getString("session"));
+        Thread.sleep(300L);
+        Assert.assertNull(ls.getString("session"));
+        Assert.assertEquals(3, ls.itemCount());
+        ls.enableExpirySweeper(50L, 1, 0L);
+        Thread.sleep(500L);
+        Assert.assertEquals(1, ls.itemCount());
+        Assert.assertEquals(new Long(4L), ls.getLong("permanent"));
+        Assert.assertTrue(ls.close());
+    }
+
+    @Test
+    public void testCorruptedTail() throws IOException {
+        String path = "logStorageCorrupted.log";
+        LocalStorage ls = new LocalStorage(LogStorageBackend.createNew(path));
+        ls.setString("kept", "hello");
+        ls.setString("lost", "bye");
+        Assert.assertTrue(ls.close());
+
+        try (RandomAccessFile file = new RandomAccessFile(path, "rw")) {
+            file.seek(16);
+            long dataEnd = file.readLong();
+            // corrupt the CRC of the last record
+            file.seek(dataEnd - 1);
+            byte lastByte = file.readByte();
+            file.seek(dataEnd - 1);
+            file.writeByte(lastByte + 1);
+        }
+
+        ls = new LocalStorage(LogStorageBackend.open(path));
+        Assert.assertEquals("hello", ls.getString("kept"));
+        Assert.assertFalse(ls.containsItem("lost"));
+        ls.setString("lost", "again");
+        Assert.assertTrue(ls.close());
+
+        ls = new LocalStorage(LogStorageBackend.open(path));
+        Assert.assertEquals("again", ls.getString("lost"));
+        Assert.assertTrue(ls.close());
+    }
+}
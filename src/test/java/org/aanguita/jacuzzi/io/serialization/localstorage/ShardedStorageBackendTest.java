@@ -0,0 +1,81 @@
+package org.aanguita.jacuzzi.io.serialization.localstorage;
+
+import org.aanguita.jacuzzi.io.serialization.localstorage.ShardedStorageBackend.ShardingStrategy;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.*;
+
+public class ShardedStorageBackendTest {
+
+    @Test
+    public void testNameHash() throws IOException, InterruptedException {
+        String path = "shardedStorage.db";
+        LocalStorage ls = new LocalStorage(ShardedStorageBackend.createNew(path, 4, ShardingStrategy.NAME_HASH));
+        List<Thread> writers = new ArrayList<>();
+        for (int w = 0; w < 4; w++) {
+            int writer = w;
+            writers.add(new Thread(() -> {
+                for (int i = 0; i < 50; i++) {
+                    ls.setInteger("int" + writer + "-" + i, i, "cat" + writer);
+                }
+            }));
+        }
+        writers.forEach(Thread::start);
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        ls.setString("string", "hello");
+        ls.setAll(Collections.singletonMap("bulk", 5L), "cat0", "sub");
+        Assert.assertEquals(202, ls.itemCount());
+        Assert.assertEquals(50, ls.keys("cat1").size());
+        Assert.assertEquals(new HashSet<>(Arrays.asList("cat0", "cat1", "cat2", "cat3")), ls.categories());
+        Assert.assertEquals(Collections.singleton("sub"), ls.categories("cat0"));
+
+        LocalStorage reopened = new LocalStorage(ShardedStorageBackend.open(path, 4, ShardingStrategy.NAME_HASH));
+        Assert.assertEquals(202, reopened.itemCount());
+        Assert.assertEquals(new Integer(49), reopened.getInteger("int3-49", "cat3"));
+        Assert.assertEquals("hello", reopened.getString("string"));
+        Assert.assertEquals(new Long(5L), reopened.getLong("bulk", "cat0", "sub"));
+        Set<String> iteratedKeys = new HashSet<>();
+        reopened.keyIterator("cat2").forEachRemaining(iteratedKeys::add);
+        Assert.assertEquals(new HashSet<>(reopened.keys("cat2")), iteratedKeys);
+        Assert.assertEquals(50, iteratedKeys.size());
+        reopened.removeItem("string");
+        Assert.assertEquals(201, reopened.itemCount());
+
+        try {
+            ShardedStorageBackend.open(path, 3, ShardingStrategy.NAME_HASH);
+            Assert.fail();
+        } catch (IOException e) {
+            // expected
+        }
+        try {
+            ShardedStorageBackend.open(path, 5, ShardingStrategy.NAME_HASH);
+            Assert.fail();
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testCategory() throws IOException {
+        String path = "shardedStorageCategory.db";
+        LocalStorage ls = new LocalStorage(ShardedStorageBackend.createNew(path, 3, ShardingStrategy.CATEGORY));
+        for (int i = 0; i < 20; i++) {
+            ls.setInteger("int" + i, i, "cat" + (i % 4));
+            ls.setInteger("int" + i, i, "cat" + (i % 4), "sub");
+        }
+        ls.setString("root", "value");
+        Assert.assertEquals(41, ls.itemCount());
+        // a whole category lives in one shard, so insertion order is kept
+        Assert.assertEquals(Arrays.asList("int1", "int5", "int9", "int13", "int17"), ls.keys("cat1"));
+        Assert.assertEquals(Arrays.asList("int2", "int6", "int10", "int14", "int18"), ls.keys("cat2", "sub"));
+        Assert.assertEquals(Collections.singletonList("root"), ls.keys());
+        Assert.assertEquals(10, ls.preload("cat3").loadedItems);
+        Assert.assertEquals(new Integer(19), ls.getInteger("int19", "cat3", "sub"));
+        ls.clear();
+        Assert.assertEquals(0, ls.itemCount());
+    }
+}